@@ -42,9 +42,14 @@ public final class ResponseEntityUtil {
     return responseEntity(HttpStatus.OK, er);
   }
 
+  /** Responds with the entity tag of the model, if known, or with not modified status. */
   public static <T> ResponseEntity<T> responseEntity(
       final HttpStatus status, final ServiceResponse<T> er) {
-    return responseEntity(status, er.model(), er.rateLimitStat());
+    if (er.notModified()) {
+      return notModified(er);
+    }
+    return responseEntity(
+        status, er.model(), er.rateLimitStat(), bodyBuilder -> withEntityTag(bodyBuilder, er));
   }
 
   public static <T> ResponseEntity<T> responseEntity(final HttpStatus status, final T body) {
@@ -61,21 +66,29 @@ public final class ResponseEntityUtil {
       final HttpServletRequest request,
       final String nextPageTokenKey,
       final Function<T, String> nextPageTokenValueExtractor) {
+    if (page.notModified()) {
+      return notModified(page);
+    }
     if (!page.model().hasNext()) {
-      return responseEntity(HttpStatus.OK, page.model().elements(), page.rateLimitStat());
+      return responseEntity(
+          HttpStatus.OK,
+          page.model().elements(),
+          page.rateLimitStat(),
+          bodyBuilder -> withEntityTag(bodyBuilder, page));
     }
     return responseEntity(
         HttpStatus.OK,
         page.model().elements(),
         page.rateLimitStat(),
         bodyBuilder ->
-            bodyBuilder.headers(
-                headers ->
-                    addLinkHeader(
-                        headers,
-                        request,
-                        nextPageTokenKey,
-                        nextPageTokenValueExtractor.apply(page.model().next()))));
+            withEntityTag(bodyBuilder, page)
+                .headers(
+                    headers ->
+                        addLinkHeader(
+                            headers,
+                            request,
+                            nextPageTokenKey,
+                            nextPageTokenValueExtractor.apply(page.model().next()))));
   }
 
   public static <T> ResponseEntity<T> responseEntity(
@@ -96,4 +109,21 @@ public final class ResponseEntityUtil {
     }
     return bodyBuilder.body(body);
   }
+
+  /** Response without body, the client already has the model of the entity tag. */
+  private static <T> ResponseEntity<T> notModified(final ServiceResponse<?> er) {
+    return responseEntity(
+        HttpStatus.NOT_MODIFIED,
+        null,
+        er.rateLimitStat(),
+        bodyBuilder -> withEntityTag(bodyBuilder, er));
+  }
+
+  private static BodyBuilder withEntityTag(
+      final BodyBuilder bodyBuilder, final ServiceResponse<?> er) {
+    if (er.entityTag() == null) {
+      return bodyBuilder;
+    }
+    return bodyBuilder.eTag(er.entityTag().toString());
+  }
 }
@@ -18,17 +18,32 @@ package com.adorogush.mirotask.controller;
 import static com.adorogush.mirotask.controller.ResponseEntityUtil.created;
 import static com.adorogush.mirotask.controller.ResponseEntityUtil.ok;
 import static com.adorogush.mirotask.controller.ResponseEntityUtil.page;
+import static com.adorogush.mirotask.controller.ResponseEntityUtil.responseEntity;
 
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Page;
 import com.adorogush.mirotask.model.ServiceResponse;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetChanges;
 import com.adorogush.mirotask.model.WidgetToCreate;
 import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsDeleted;
+import com.adorogush.mirotask.model.WidgetsImported;
+import com.adorogush.mirotask.model.WidgetsToDelete;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.service.BoardRegistry;
+import com.adorogush.mirotask.service.WidgetEventService;
+import com.adorogush.mirotask.service.WidgetExportService;
+import com.adorogush.mirotask.service.WidgetImportService;
 import com.adorogush.mirotask.service.WidgetService;
+import java.io.InputStream;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -37,64 +52,227 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-/** REST controller for {@code /widgets} endpoints. */
+/**
+ * REST controller for {@code /widgets} endpoints. The same endpoints under {@code
+ * /boards/{boardId}/widgets} work with the widgets of the board kept by {@link BoardRegistry}.
+ */
 @RestController
-@RequestMapping(path = "/widgets")
+@RequestMapping(path = {"/widgets", "/boards/{" + WidgetsController.BOARD_ID_PV + "}/widgets"})
 public class WidgetsController {
 
+  static final String BOARD_ID_PV = "boardId";
   private static final String PER_PAGE_QP = "perPage";
   private static final String FROM_Z_QP = "fromZ";
+  private static final String PAGE_TOKEN_QP = "pageToken";
+  private static final String AREA_QP = "area";
+  private static final String LIMIT_QP = "limit";
+  private static final String SINCE_QP = "since";
+  private static final String NDJSON_VALUE = "application/x-ndjson";
   private final WidgetService widgetService;
+  private final WidgetImportService widgetImportService;
+  private final WidgetExportService widgetExportService;
+  private final WidgetEventService widgetEventService;
+  private final BoardRegistry boardRegistry;
   private final int perPageDefault;
   private final int perPageMax;
+  private final int batchSizeMax;
+  private final int deleteSizeMax;
 
   public WidgetsController(
       final WidgetService widgetService,
+      final WidgetImportService widgetImportService,
+      final WidgetExportService widgetExportService,
+      final WidgetEventService widgetEventService,
+      final BoardRegistry boardRegistry,
       @Value("${perPageDefault}") final int perPageDefault,
-      @Value("${perPageMax}") final int perPageMax) {
+      @Value("${perPageMax}") final int perPageMax,
+      @Value("${batchSizeMax}") final int batchSizeMax,
+      @Value("${deleteSizeMax}") final int deleteSizeMax) {
     this.widgetService = widgetService;
+    this.widgetImportService = widgetImportService;
+    this.widgetExportService = widgetExportService;
+    this.widgetEventService = widgetEventService;
+    this.boardRegistry = boardRegistry;
     this.perPageDefault = perPageDefault;
     this.perPageMax = perPageMax;
+    this.batchSizeMax = batchSizeMax;
+    this.deleteSizeMax = deleteSizeMax;
   }
 
   @PostMapping(
       consumes = MediaType.APPLICATION_JSON_VALUE,
       produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<Widget> post(@RequestBody final WidgetToCreate widget) {
-    return created(widgetService.createOne(widget));
+  public ResponseEntity<Widget> post(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestBody final WidgetToCreate widget) {
+    return created(widgetService(boardId).createOne(widget));
+  }
+
+  @PostMapping(
+      value = "/batch",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<List<Widget>> postBatch(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestBody final List<WidgetToCreate> widgets) {
+    if (widgets.isEmpty() || widgets.size() > batchSizeMax) {
+      throw new ValidationException(
+          String.format("Batch must contain from 1 to %d widgets.", batchSizeMax));
+    }
+    if (widgets.contains(null)) {
+      throw new ValidationException("Batch cannot contain empty widgets.");
+    }
+    return created(widgetService(boardId).createMany(widgets));
+  }
+
+  @PostMapping(
+      value = "/import",
+      consumes = NDJSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<WidgetsImported> postImport(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      final InputStream body) {
+    final WidgetImportService importService =
+        boardId == null ? widgetImportService : boardRegistry.board(boardId).widgetImportService();
+    return ok(importService.importAll(body));
   }
 
   @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<Widget> getOne(@PathVariable("id") final String id) {
-    return ok(widgetService.readOne(id));
+  public ResponseEntity<Widget> getOne(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @PathVariable("id") final String id,
+      @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) final String ifNoneMatch) {
+    return ok(widgetService(boardId).readOne(id, ifNoneMatch));
   }
 
   @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<List<Widget>> getMany(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
       @RequestParam(name = PER_PAGE_QP, required = false) final Integer perPageUser,
       @RequestParam(name = FROM_Z_QP, required = false) final Integer fromZ,
+      @RequestParam(name = AREA_QP, required = false) final String area,
+      @RequestParam(name = PAGE_TOKEN_QP, required = false) final String pageToken,
+      @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) final String ifNoneMatch,
       @Autowired final HttpServletRequest request) {
     final int perPage = getPerPage(perPageUser);
-    final ServiceResponse<Page<Widget>> widgetsFound = widgetService.readAll(perPage, fromZ);
+    final WidgetService service = widgetService(boardId);
+    final ServiceResponse<Page<Widget>> widgetsFound;
+    if (pageToken != null) {
+      widgetsFound = service.readPage(perPage, pageToken);
+    } else if (area == null) {
+      widgetsFound = service.readAll(perPage, fromZ, ifNoneMatch);
+    } else {
+      widgetsFound = service.readAllInArea(perPage, fromZ, Area.parse(area), ifNoneMatch);
+    }
+    final String nextPageToken =
+        widgetsFound.notModified() ? null : widgetsFound.model().nextPageToken();
+    if (nextPageToken != null) {
+      return page(widgetsFound, request, PAGE_TOKEN_QP, widget -> nextPageToken);
+    }
     return page(widgetsFound, request, FROM_Z_QP, widget -> String.valueOf(widget.z()));
   }
 
+  @GetMapping(value = "/export", produces = NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> getExport(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId) {
+    final WidgetExportService exportService =
+        boardId == null ? widgetExportService : boardRegistry.board(boardId).widgetExportService();
+    final ServiceResponse<StreamingResponseBody> export = exportService.exportAll();
+    // streamed body skips message converters, which would set the content type otherwise
+    return responseEntity(
+        HttpStatus.OK,
+        export.model(),
+        export.rateLimitStat(),
+        bodyBuilder -> bodyBuilder.contentType(MediaType.parseMediaType(NDJSON_VALUE)));
+  }
+
+  @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public ResponseEntity<SseEmitter> getEvents(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId) {
+    final WidgetEventService eventService =
+        boardId == null ? widgetEventService : boardRegistry.board(boardId).widgetEventService();
+    return ok(eventService.subscribe());
+  }
+
+  @GetMapping(value = "/changes", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<WidgetChanges> getChanges(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestParam(name = SINCE_QP) final String since) {
+    return ok(widgetService(boardId).readChanges(since));
+  }
+
+  @GetMapping(value = "/top", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<List<Widget>> getTop(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestParam(name = "x") final int x,
+      @RequestParam(name = "y") final int y,
+      @RequestParam(name = LIMIT_QP, required = false) final Integer limitUser) {
+    if (limitUser != null && limitUser < 1) {
+      throw new ValidationException("Limit must be positive.");
+    }
+    final int limit = limitUser == null ? 1 : Math.min(limitUser, perPageMax);
+    return ok(widgetService(boardId).readTopAt(limit, x, y));
+  }
+
   @PutMapping(
       value = "/{id}",
       consumes = MediaType.APPLICATION_JSON_VALUE,
       produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<Widget> putOne(
-      @PathVariable("id") final String id, @RequestBody final WidgetToUpdate widget) {
-    return ok(widgetService.updateOne(id, widget));
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @PathVariable("id") final String id,
+      @RequestBody final WidgetToUpdate widget) {
+    return ok(widgetService(boardId).updateOne(id, widget));
+  }
+
+  @PostMapping(
+      value = "/reorder",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<List<Widget>> postReorder(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestBody final WidgetsToReorder widgetsToReorder) {
+    if (widgetsToReorder.ids().size() > batchSizeMax) {
+      throw new ValidationException(
+          String.format("Reorder must contain from 1 to %d widgets.", batchSizeMax));
+    }
+    return ok(widgetService(boardId).reorder(widgetsToReorder));
   }
 
   @DeleteMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<Widget> deleteOne(@PathVariable("id") final String id) {
-    return ok(widgetService.deleteOne(id));
+  public ResponseEntity<Widget> deleteOne(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @PathVariable("id") final String id) {
+    return ok(widgetService(boardId).deleteOne(id));
+  }
+
+  @PostMapping(
+      value = "/delete",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<WidgetsDeleted> postDelete(
+      @PathVariable(name = BOARD_ID_PV, required = false) final String boardId,
+      @RequestBody final WidgetsToDelete widgetsToDelete) {
+    if (widgetsToDelete.area() != null) {
+      return ok(widgetService(boardId).deleteAllInArea(Area.parse(widgetsToDelete.area())));
+    }
+    if (widgetsToDelete.ids().size() > deleteSizeMax) {
+      throw new ValidationException(
+          String.format("Delete must contain from 1 to %d ids.", deleteSizeMax));
+    }
+    return ok(widgetService(boardId).deleteMany(widgetsToDelete.ids()));
+  }
+
+  /** Service of the board or of the widgets outside of any board if the board id is absent. */
+  private WidgetService widgetService(final String boardId) {
+    return boardId == null ? widgetService : boardRegistry.board(boardId).widgetService();
   }
 
   private int getPerPage(final Integer perPageUser) {
@@ -0,0 +1,34 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/** Exception class to represent server error Service Unavailable. */
+public class ServiceUnavailableException extends ResponseStatusException {
+
+  public ServiceUnavailableException(final String message) {
+    super(HttpStatus.SERVICE_UNAVAILABLE, message);
+  }
+
+  /** Fails a write to the repository of a board which is being evicted, so it is retried. */
+  public static void checkBoardOpen(final boolean closed) {
+    if (closed) {
+      throw new ServiceUnavailableException("Board is being evicted, try again.");
+    }
+  }
+}
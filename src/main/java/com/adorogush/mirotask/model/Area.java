@@ -0,0 +1,118 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.adorogush.mirotask.exception.ValidationException;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold a rectangular area, including its borders. Corners are normalized,
+ * so {@link #x1()} is never greater than {@link #x2()} and {@link #y1()} is never greater than
+ * {@link #y2()}.
+ */
+public class Area {
+
+  private static final String FORMAT_MSG = "Area must be formatted as x1,y1,x2,y2.";
+  private final long x1;
+  private final long y1;
+  private final long x2;
+  private final long y2;
+
+  public Area(final long x1, final long y1, final long x2, final long y2) {
+    this.x1 = Math.min(x1, x2);
+    this.y1 = Math.min(y1, y2);
+    this.x2 = Math.max(x1, x2);
+    this.y2 = Math.max(y1, y2);
+  }
+
+  /** Returns the area taken by the widget. Width and height are allowed to be negative. */
+  public static Area of(final Widget widget) {
+    return new Area(
+        widget.x(),
+        widget.y(),
+        (long) widget.x() + widget.width(),
+        (long) widget.y() + widget.height());
+  }
+
+  /** Parses the area from {@code x1,y1,x2,y2} string. */
+  public static Area parse(final String area) {
+    final String[] parts = area.split(",", -1);
+    if (parts.length != 4) {
+      throw new ValidationException(FORMAT_MSG);
+    }
+    try {
+      return new Area(
+          Integer.parseInt(parts[0].trim()),
+          Integer.parseInt(parts[1].trim()),
+          Integer.parseInt(parts[2].trim()),
+          Integer.parseInt(parts[3].trim()));
+    } catch (final NumberFormatException e) {
+      throw new ValidationException(FORMAT_MSG);
+    }
+  }
+
+  /** Formats the area as {@code x1,y1,x2,y2}, the same as parsed by {@link #parse}. */
+  public String format() {
+    return x1 + "," + y1 + "," + x2 + "," + y2;
+  }
+
+  public long x1() {
+    return x1;
+  }
+
+  public long y1() {
+    return y1;
+  }
+
+  public long x2() {
+    return x2;
+  }
+
+  public long y2() {
+    return y2;
+  }
+
+  /** {@code true} if the areas have at least one common point. */
+  public boolean intersects(final Area other) {
+    return x1 <= other.x2 && other.x1 <= x2 && y1 <= other.y2 && other.y1 <= y2;
+  }
+
+  public boolean intersects(final Widget widget) {
+    return intersects(of(widget));
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    Area area = (Area) o;
+    return x1 == area.x1 && y1 == area.y1 && x2 == area.x2 && y2 == area.y2;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(x1, y1, x2, y2);
+  }
+
+  @Override
+  public String toString() {
+    return "Area{" + "x1=" + x1 + ", y1=" + y1 + ", x2=" + x2 + ", y2=" + y2 + '}';
+  }
+}
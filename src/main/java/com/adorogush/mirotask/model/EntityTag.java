@@ -0,0 +1,112 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold a strong entity tag of a response, which is derived from the
+ * repository version or the widget itself, so it is known without building the response.
+ */
+public class EntityTag {
+
+  private final String value;
+
+  private EntityTag(final String value) {
+    this.value = value;
+  }
+
+  /**
+   * @param instance tells apart versions counted anew by every start of the application.
+   * @param version version of the repository, see {@link
+   *     com.adorogush.mirotask.repository.WidgetRepository#version()}.
+   */
+  public static EntityTag of(final long instance, final long version) {
+    return new EntityTag(Long.toHexString(instance) + '-' + Long.toHexString(version));
+  }
+
+  /** Entity tag of the widget built from all its fields, so it changes with any of them. */
+  public static EntityTag of(final Widget widget) {
+    return new EntityTag(
+        Integer.toHexString(widget.x())
+            + '-'
+            + Integer.toHexString(widget.y())
+            + '-'
+            + Integer.toHexString(widget.z())
+            + '-'
+            + Integer.toHexString(widget.width())
+            + '-'
+            + Integer.toHexString(widget.height())
+            + '-'
+            + Long.toHexString(widget.lastModified().getEpochSecond())
+            + '-'
+            + Integer.toHexString(widget.lastModified().getNano()));
+  }
+
+  /**
+   * {@code true} if the {@code If-None-Match} header value lists this tag or is {@code *}. Tags
+   * are compared by the weak comparison, as required for this header.
+   */
+  public boolean matches(final String ifNoneMatch) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (final String tag : ifNoneMatch.split(",")) {
+      String opaqueTag = tag.trim();
+      if (opaqueTag.equals("*")) {
+        return true;
+      }
+      if (opaqueTag.startsWith("W/")) {
+        opaqueTag = opaqueTag.substring(2);
+      }
+      if (opaqueTag.length() == value.length() + 2
+          && opaqueTag.startsWith("\"")
+          && opaqueTag.endsWith("\"")
+          && opaqueTag.regionMatches(1, value, 0, value.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Value without quotes. */
+  public String value() {
+    return value;
+  }
+
+  /** Quoted value, as used by {@code ETag} header. */
+  @Override
+  public String toString() {
+    return '"' + value + '"';
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    EntityTag entityTag = (EntityTag) o;
+    return Objects.equals(value, entityTag.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(value);
+  }
+}
@@ -18,23 +18,33 @@ package com.adorogush.mirotask.model;
 import java.util.List;
 import java.util.Objects;
 
-/** Immutable data class to hold a page of found elements. */
+/**
+ * Immutable data class to hold a page of found elements. The next page is located either by the
+ * first element of it or by an opaque page token.
+ */
 public class Page<T> {
 
   private final List<T> elements;
   private final T next;
+  private final String nextPageToken;
 
-  private Page(final List<T> elements, final T next) {
+  private Page(final List<T> elements, final T next, final String nextPageToken) {
     this.elements = elements;
     this.next = next;
+    this.nextPageToken = nextPageToken;
   }
 
   public static <T> Page<T> of(final List<T> elements, final int perPage) {
     boolean hasNext = elements.size() > perPage;
     if (!hasNext) {
-      return new Page<>(elements, null);
+      return new Page<>(elements, null, null);
     }
-    return new Page<>(elements.subList(0, perPage), elements.get(perPage));
+    return new Page<>(elements.subList(0, perPage), elements.get(perPage), null);
+  }
+
+  /** @param nextPageToken token of the next page or {@code null} if this page is the last. */
+  public static <T> Page<T> of(final List<T> elements, final String nextPageToken) {
+    return new Page<>(elements, null, nextPageToken);
   }
 
   public List<T> elements() {
@@ -45,8 +55,12 @@ public class Page<T> {
     return next;
   }
 
+  public String nextPageToken() {
+    return nextPageToken;
+  }
+
   public boolean hasNext() {
-    return next != null;
+    return next != null || nextPageToken != null;
   }
 
   @Override
@@ -58,16 +72,26 @@ public class Page<T> {
       return false;
     }
     Page<?> page = (Page<?>) o;
-    return Objects.equals(elements, page.elements) && Objects.equals(next, page.next);
+    return Objects.equals(elements, page.elements)
+        && Objects.equals(next, page.next)
+        && Objects.equals(nextPageToken, page.nextPageToken);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(elements, next);
+    return Objects.hash(elements, next, nextPageToken);
   }
 
   @Override
   public String toString() {
-    return "Page{" + "elements=" + elements + ", next=" + next + '}';
+    return "Page{"
+        + "elements="
+        + elements
+        + ", next="
+        + next
+        + ", nextPageToken='"
+        + nextPageToken
+        + '\''
+        + '}';
   }
 }
@@ -16,23 +16,46 @@
 package com.adorogush.mirotask.model;
 
 /**
- * Immutable data class to hold the pair: model returned from the service layer and current rate
- * limit stats.
+ * Immutable data class to hold the model returned from the service layer, current rate limit stats
+ * and optionally the entity tag of the model. A not modified response holds no model.
  */
 public class ServiceResponse<T> {
 
   private final T model;
   private final RateLimitStat rateLimitStat;
+  private final EntityTag entityTag;
+  private final boolean notModified;
 
-  public ServiceResponse(final T model, final RateLimitStat rateLimitStat) {
+  private ServiceResponse(
+      final T model,
+      final RateLimitStat rateLimitStat,
+      final EntityTag entityTag,
+      final boolean notModified) {
     this.model = model;
     this.rateLimitStat = rateLimitStat;
+    this.entityTag = entityTag;
+    this.notModified = notModified;
+  }
+
+  public ServiceResponse(
+      final T model, final RateLimitStat rateLimitStat, final EntityTag entityTag) {
+    this(model, rateLimitStat, entityTag, false);
+  }
+
+  public ServiceResponse(final T model, final RateLimitStat rateLimitStat) {
+    this(model, rateLimitStat, null);
   }
 
   public ServiceResponse(final T model) {
     this(model, null);
   }
 
+  /** Response to a conditional request, telling the client its copy with the tag is current. */
+  public static <T> ServiceResponse<T> notModified(
+      final EntityTag entityTag, final RateLimitStat rateLimitStat) {
+    return new ServiceResponse<>(null, rateLimitStat, entityTag, true);
+  }
+
   public T model() {
     return model;
   }
@@ -40,4 +63,12 @@ public class ServiceResponse<T> {
   public RateLimitStat rateLimitStat() {
     return rateLimitStat;
   }
+
+  public EntityTag entityTag() {
+    return entityTag;
+  }
+
+  public boolean notModified() {
+    return notModified;
+  }
 }
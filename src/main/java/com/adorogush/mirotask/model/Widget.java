@@ -24,7 +24,7 @@ import java.time.Instant;
 import java.util.Objects;
 
 /** Immutable data class to hold complete Widget. */
-public class Widget {
+public final class Widget {
 
   private final String id;
   private final int x;
@@ -91,6 +91,13 @@ public class Widget {
     return new Widget(id, x, y, checkOverflow(z) + 1, width, height, lastModified);
   }
 
+  public Widget withZ(final int z) {
+    if (this.z == z) {
+      return this;
+    }
+    return new Widget(id, x, y, z, width, height, lastModified);
+  }
+
   @Override
   public boolean equals(final Object o) {
     if (this == o) {
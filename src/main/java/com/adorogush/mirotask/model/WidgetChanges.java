@@ -0,0 +1,103 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold the changes of the widgets since a version: the shifts of z-indexes
+ * in the order they were made, the current state of every created or updated widget and the ids of
+ * the deleted ones. A widget only moved by the shifts is not listed, its z-index is found by
+ * applying the shifts to the z-index it had at the version.
+ */
+public class WidgetChanges {
+
+  private final String version;
+  private final List<ZIndexShift> shifts;
+  private final List<Widget> upserts;
+  private final List<String> tombstones;
+
+  public WidgetChanges(
+      @JsonProperty("version") final String version,
+      @JsonProperty("shifts") final List<ZIndexShift> shifts,
+      @JsonProperty("upserts") final List<Widget> upserts,
+      @JsonProperty("tombstones") final List<String> tombstones) {
+    this.version = version;
+    this.shifts = shifts;
+    this.upserts = upserts;
+    this.tombstones = tombstones;
+  }
+
+  /** Version the changes are read up to, the next changes are read since it. */
+  @JsonProperty("version")
+  public String version() {
+    return version;
+  }
+
+  /** Shifts to apply in order to the widgets held, before the upserts and tombstones. */
+  @JsonProperty("shifts")
+  public List<ZIndexShift> shifts() {
+    return shifts;
+  }
+
+  /** Widgets in z-index order. */
+  @JsonProperty("upserts")
+  public List<Widget> upserts() {
+    return upserts;
+  }
+
+  @JsonProperty("tombstones")
+  public List<String> tombstones() {
+    return tombstones;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    WidgetChanges that = (WidgetChanges) o;
+    return Objects.equals(version, that.version)
+        && Objects.equals(shifts, that.shifts)
+        && Objects.equals(upserts, that.upserts)
+        && Objects.equals(tombstones, that.tombstones);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(version, shifts, upserts, tombstones);
+  }
+
+  @Override
+  public String toString() {
+    return "WidgetChanges{"
+        + "version='"
+        + version
+        + '\''
+        + ", shifts="
+        + shifts
+        + ", upserts="
+        + upserts
+        + ", tombstones="
+        + tombstones
+        + '}';
+  }
+}
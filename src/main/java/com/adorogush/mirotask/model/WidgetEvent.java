@@ -0,0 +1,167 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold a committed modification of widgets, as published by the change
+ * feed. Only the fields of its type are set.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WidgetEvent {
+
+  /** Type of the modification, also used as the name of the server-sent event. */
+  public enum Type {
+    /** Widget is created, holds the widget. */
+    CREATED("created"),
+    /** Widget is updated, holds the widget. */
+    UPDATED("updated"),
+    /** Widget is deleted, holds its id. */
+    DELETED("deleted"),
+    /** All widgets intersecting the area are deleted, holds the area. */
+    DELETED_IN_AREA("deletedInArea"),
+    /**
+     * Widgets from a z-index to another one inclusive are moved by the same distance, keeping their
+     * relative order. Holds the range and the distance, see {@link ZIndexShift}.
+     */
+    SHIFTED("shifted");
+
+    private final String value;
+
+    Type(final String value) {
+      this.value = value;
+    }
+
+    public String value() {
+      return value;
+    }
+  }
+
+  private final Type type;
+  private final Widget widget;
+  private final String id;
+  private final String area;
+  private final ZIndexShift shift;
+
+  private WidgetEvent(
+      final Type type,
+      final Widget widget,
+      final String id,
+      final String area,
+      final ZIndexShift shift) {
+    this.type = type;
+    this.widget = widget;
+    this.id = id;
+    this.area = area;
+    this.shift = shift;
+  }
+
+  public static WidgetEvent created(final Widget widget) {
+    return new WidgetEvent(Type.CREATED, widget, null, null, null);
+  }
+
+  public static WidgetEvent updated(final Widget widget) {
+    return new WidgetEvent(Type.UPDATED, widget, null, null, null);
+  }
+
+  public static WidgetEvent deleted(final String id) {
+    return new WidgetEvent(Type.DELETED, null, id, null, null);
+  }
+
+  public static WidgetEvent deletedInArea(final Area area) {
+    return new WidgetEvent(Type.DELETED_IN_AREA, null, null, area.format(), null);
+  }
+
+  public static WidgetEvent shifted(final ZIndexShift shift) {
+    return new WidgetEvent(Type.SHIFTED, null, null, null, shift);
+  }
+
+  @JsonProperty("type")
+  public String type() {
+    return type.value();
+  }
+
+  @JsonProperty("widget")
+  public Widget widget() {
+    return widget;
+  }
+
+  @JsonProperty("id")
+  public String id() {
+    return id;
+  }
+
+  /** Area formatted as {@code x1,y1,x2,y2}, the same as the area query parameter. */
+  @JsonProperty("area")
+  public String area() {
+    return area;
+  }
+
+  @JsonProperty("fromZ")
+  public Integer fromZ() {
+    return shift == null ? null : shift.fromZ();
+  }
+
+  @JsonProperty("toZ")
+  public Integer toZ() {
+    return shift == null ? null : shift.toZ();
+  }
+
+  @JsonProperty("by")
+  public Integer by() {
+    return shift == null ? null : shift.by();
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    WidgetEvent that = (WidgetEvent) o;
+    return type == that.type
+        && Objects.equals(widget, that.widget)
+        && Objects.equals(id, that.id)
+        && Objects.equals(area, that.area)
+        && Objects.equals(shift, that.shift);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(type, widget, id, area, shift);
+  }
+
+  @Override
+  public String toString() {
+    return "WidgetEvent{"
+        + "type="
+        + type
+        + ", widget="
+        + widget
+        + ", id="
+        + id
+        + ", area="
+        + area
+        + ", shift="
+        + shift
+        + '}';
+  }
+}
@@ -0,0 +1,56 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Objects;
+
+/** Immutable data class to hold the result of the import Widgets request. */
+public class WidgetsImported {
+
+  private final long imported;
+
+  public WidgetsImported(@JsonProperty("imported") final long imported) {
+    this.imported = imported;
+  }
+
+  @JsonProperty("imported")
+  public long imported() {
+    return imported;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    WidgetsImported that = (WidgetsImported) o;
+    return imported == that.imported;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(imported);
+  }
+
+  @Override
+  public String toString() {
+    return "WidgetsImported{" + "imported=" + imported + '}';
+  }
+}
@@ -0,0 +1,74 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold the set of fields representing the bulk delete Widgets request.
+ * Either ids or area formatted as {@code x1,y1,x2,y2} must be provided.
+ */
+public class WidgetsToDelete {
+
+  private final List<String> ids;
+  private final String area;
+
+  public WidgetsToDelete(
+      @JsonProperty("ids") final List<String> ids, @JsonProperty("area") final String area) {
+    if ((ids == null) == (area == null)) {
+      throw new IllegalArgumentException("Must provide either ids or area field.");
+    }
+    if (ids != null && (ids.isEmpty() || ids.stream().anyMatch(Objects::isNull))) {
+      throw new IllegalArgumentException("Field ids cannot be empty.");
+    }
+    this.ids = ids == null ? null : List.copyOf(ids);
+    this.area = area;
+  }
+
+  @JsonProperty("ids")
+  public List<String> ids() {
+    return ids;
+  }
+
+  @JsonProperty("area")
+  public String area() {
+    return area;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    WidgetsToDelete that = (WidgetsToDelete) o;
+    return Objects.equals(ids, that.ids) && Objects.equals(area, that.area);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(ids, area);
+  }
+
+  @Override
+  public String toString() {
+    return "WidgetsToDelete{" + "ids=" + ids + ", area=" + area + '}';
+  }
+}
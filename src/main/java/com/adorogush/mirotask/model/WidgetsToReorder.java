@@ -0,0 +1,126 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import static java.util.Objects.requireNonNull;
+
+import com.adorogush.mirotask.exception.ConflictException;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold the set of fields representing the reorder Widgets request. Either
+ * target z-index or position must be provided. Repeated ids are ignored.
+ */
+public class WidgetsToReorder {
+
+  /** Target position of the widgets relative to all the others. */
+  public enum Position {
+    @JsonProperty("front")
+    FRONT,
+    @JsonProperty("back")
+    BACK
+  }
+
+  private final List<String> ids;
+  private final Integer z;
+  private final Position position;
+
+  public WidgetsToReorder(
+      @JsonProperty("ids") final List<String> ids,
+      @JsonProperty("z") final Integer z,
+      @JsonProperty("position") final Position position) {
+    requireNonNull(ids, "Field ids cannot be empty.");
+    if (ids.isEmpty() || ids.stream().anyMatch(Objects::isNull)) {
+      throw new IllegalArgumentException("Field ids cannot be empty.");
+    }
+    if ((z == null) == (position == null)) {
+      throw new IllegalArgumentException("Must provide either z or position field.");
+    }
+    this.ids = List.copyOf(new LinkedHashSet<>(ids));
+    this.z = z;
+    this.position = position;
+  }
+
+  public static WidgetsToReorder toZ(final List<String> ids, final int z) {
+    return new WidgetsToReorder(ids, z, null);
+  }
+
+  public static WidgetsToReorder toPosition(final List<String> ids, final Position position) {
+    return new WidgetsToReorder(ids, null, position);
+  }
+
+  /** Distinct ids in the request order. */
+  @JsonProperty("ids")
+  public List<String> ids() {
+    return ids;
+  }
+
+  @JsonProperty("z")
+  public Integer z() {
+    return z;
+  }
+
+  @JsonProperty("position")
+  public Position position() {
+    return position;
+  }
+
+  /**
+   * Returns the z-index of the lowest of the reordered widgets, which take consecutive z-indexes.
+   * Front and back positions are resolved against the lowest and the highest existing z-indexes.
+   *
+   * @throws ConflictException if any z-index would overflow.
+   */
+  public int firstZ(final int count, final int lowestZ, final int highestZ) {
+    final long firstZ;
+    if (z != null) {
+      firstZ = z;
+    } else if (position == Position.FRONT) {
+      firstZ = highestZ + 1L;
+    } else {
+      firstZ = (long) lowestZ - count;
+    }
+    if (firstZ < Integer.MIN_VALUE || firstZ + count - 1 > Integer.MAX_VALUE) {
+      throw new ConflictException("z-index overflow.");
+    }
+    return (int) firstZ;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    WidgetsToReorder that = (WidgetsToReorder) o;
+    return ids.equals(that.ids) && Objects.equals(z, that.z) && position == that.position;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(ids, z, position);
+  }
+
+  @Override
+  public String toString() {
+    return "WidgetsToReorder{" + "ids=" + ids + ", z=" + z + ", position=" + position + '}';
+  }
+}
@@ -0,0 +1,87 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Objects;
+
+/**
+ * Immutable data class to hold a shift of z-indexes: every widget with z-index from {@code fromZ}
+ * to {@code toZ} inclusive is moved up by {@code by}, keeping their relative order. A shift of all
+ * z-indexes from a given one has {@code toZ} of {@link Integer#MAX_VALUE}.
+ */
+public class ZIndexShift {
+
+  private final int fromZ;
+  private final int toZ;
+  private final int by;
+
+  public ZIndexShift(
+      @JsonProperty("fromZ") final int fromZ,
+      @JsonProperty("toZ") final int toZ,
+      @JsonProperty("by") final int by) {
+    this.fromZ = fromZ;
+    this.toZ = toZ;
+    this.by = by;
+  }
+
+  /** Shift of all z-indexes from provided one. */
+  public static ZIndexShift from(final int fromZ, final int by) {
+    return new ZIndexShift(fromZ, Integer.MAX_VALUE, by);
+  }
+
+  @JsonProperty("fromZ")
+  public int fromZ() {
+    return fromZ;
+  }
+
+  @JsonProperty("toZ")
+  public int toZ() {
+    return toZ;
+  }
+
+  @JsonProperty("by")
+  public int by() {
+    return by;
+  }
+
+  /** Z-index after the shift of a widget which had provided z-index before it. */
+  public long apply(final long z) {
+    return z >= fromZ && z <= toZ ? z + by : z;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    ZIndexShift that = (ZIndexShift) o;
+    return fromZ == that.fromZ && toZ == that.toZ && by == that.by;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(fromZ, toZ, by);
+  }
+
+  @Override
+  public String toString() {
+    return "ZIndexShift{" + "fromZ=" + fromZ + ", toZ=" + toZ + ", by=" + by + '}';
+  }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.exception.ConflictException;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.ZIndexShift;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Z-indexes resulting from creating a batch of widgets one after another, computed without
+ * touching the existing widgets.<br>
+ * Every create with an occupied z-index shifts all z-indexes starting from it. Such shifts are
+ * recorded as thresholds in terms of the existing z-indexes, so an existing widget ends up moved up
+ * by the number of thresholds not above its z-index, and all of them can be moved at once. Cost is
+ * quadratic in the batch size and does not depend on the number of existing widgets.
+ */
+final class BatchPlan {
+
+  private static final long EMPTY = Long.MIN_VALUE;
+  private final int[] createdZ;
+  private final int[] finalZ;
+  private final int[] thresholds;
+
+  private BatchPlan(final int[] createdZ, final int[] finalZ, final int[] thresholds) {
+    this.createdZ = createdZ;
+    this.finalZ = finalZ;
+    this.thresholds = thresholds;
+  }
+
+  /**
+   * @param lastZ the highest existing z-index or {@code null} if there are no widgets.
+   * @param occupied tells if an existing widget has the z-index.
+   * @throws ConflictException if any z-index would overflow.
+   */
+  static BatchPlan of(
+      final List<WidgetToCreate> widgetsToCreate,
+      final Integer lastZ,
+      final IntPredicate occupied) {
+    final int size = widgetsToCreate.size();
+    final int[] createdZ = new int[size];
+    // z-indexes of the batch widgets created so far, as of now
+    final long[] currentZ = new long[size];
+    final long[] shiftPoints = new long[size];
+    final long[] thresholds = new long[size];
+    int shifts = 0;
+    long top = lastZ == null ? EMPTY : lastZ;
+    for (int i = 0; i < size; i++) {
+      final Integer requestedZ = widgetsToCreate.get(i).z();
+      final long z;
+      if (requestedZ == null) {
+        z = top == EMPTY ? Integer.MIN_VALUE : top + 1;
+      } else {
+        z = requestedZ;
+        if (isOccupied(z, currentZ, i, shiftPoints, shifts, occupied)) {
+          for (int j = 0; j < i; j++) {
+            if (currentZ[j] >= z) {
+              currentZ[j]++;
+            }
+          }
+          thresholds[shifts] = threshold(z, shiftPoints, shifts);
+          shiftPoints[shifts++] = z;
+          if (top >= z) {
+            top++;
+          }
+        }
+      }
+      if (z > Integer.MAX_VALUE || top > Integer.MAX_VALUE) {
+        throw new ConflictException("z-index overflow.");
+      }
+      createdZ[i] = (int) z;
+      currentZ[i] = z;
+      top = top == EMPTY ? z : Math.max(top, z);
+    }
+    final int[] finalZ = new int[size];
+    for (int i = 0; i < size; i++) {
+      finalZ[i] = (int) currentZ[i];
+    }
+    final int[] sortedThresholds = new int[shifts];
+    for (int k = 0; k < shifts; k++) {
+      sortedThresholds[k] = (int) thresholds[k];
+    }
+    Arrays.sort(sortedThresholds);
+    return new BatchPlan(createdZ, finalZ, sortedThresholds);
+  }
+
+  /** Z-index of the widget at the moment it is created, before shifts made by the next ones. */
+  int createdZ(final int i) {
+    return createdZ[i];
+  }
+
+  /** Z-index of the widget after the whole batch is created. */
+  int finalZ(final int i) {
+    return finalZ[i];
+  }
+
+  boolean shifts() {
+    return thresholds.length > 0;
+  }
+
+  /** The lowest existing z-index that is shifted. */
+  int shiftFrom() {
+    return thresholds[0];
+  }
+
+  /** Number of shift thresholds, sorted ascending and possibly repeating. */
+  int thresholdCount() {
+    return thresholds.length;
+  }
+
+  int threshold(final int k) {
+    return thresholds[k];
+  }
+
+  /**
+   * Shifts moving the existing widgets the same as {@link #shifted(int)}, in the order to apply
+   * them: starting from the highest threshold, each one moving by the number of equal thresholds.
+   */
+  List<ZIndexShift> zIndexShifts() {
+    final List<ZIndexShift> shifts = new ArrayList<>();
+    int k = thresholds.length - 1;
+    while (k >= 0) {
+      final int threshold = thresholds[k];
+      int by = 0;
+      while (k >= 0 && thresholds[k] == threshold) {
+        by++;
+        k--;
+      }
+      shifts.add(ZIndexShift.from(threshold, by));
+    }
+    return shifts;
+  }
+
+  /** Z-index of an existing widget after the whole batch is created. */
+  int shifted(final int z) {
+    // number of thresholds not above z
+    int low = 0;
+    int high = thresholds.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (thresholds[mid] <= z) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return z + low;
+  }
+
+  private static boolean isOccupied(
+      final long z,
+      final long[] currentZ,
+      final int created,
+      final long[] shiftPoints,
+      final int shifts,
+      final IntPredicate occupied) {
+    for (int j = 0; j < created; j++) {
+      if (currentZ[j] == z) {
+        return true;
+      }
+    }
+    // map z back through the shifts made so far to the existing z-index
+    long existingZ = z;
+    for (int k = shifts - 1; k >= 0; k--) {
+      if (existingZ == shiftPoints[k]) {
+        // freed by the shift and taken by a batch widget
+        return false;
+      }
+      if (existingZ > shiftPoints[k]) {
+        existingZ--;
+      }
+    }
+    return occupied.test((int) existingZ);
+  }
+
+  /** The lowest existing z-index that is at or above z after the shifts made so far. */
+  private static long threshold(final long z, final long[] shiftPoints, final int shifts) {
+    long existingZ = z;
+    for (int k = shifts - 1; k >= 0; k--) {
+      if (existingZ > shiftPoints[k]) {
+        existingZ--;
+      }
+    }
+    return existingZ;
+  }
+}
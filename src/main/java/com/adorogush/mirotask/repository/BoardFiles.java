@@ -0,0 +1,104 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.repository.WriteAheadLog.SyncPolicy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Directory keeping the widgets of the boards whose repositories are not in memory, see {@link
+ * WidgetRepository#forBoard(String)}. A board is written to its snapshot file when it is closed
+ * and loaded from it by the next {@link WidgetRepository#forBoard(String)}, so any board can be
+ * evicted without losing widgets.<br>
+ * If {@code boardsPath} is not configured, a temporary directory created on the first use is used
+ * instead, so boards are still evicted and loaded again, but not kept across restarts. Only a
+ * configured directory holds write-ahead logs of the boards.
+ */
+final class BoardFiles {
+
+  private static final Logger log = LogManager.getLogger();
+  private final Path path;
+  private final SyncPolicy walSyncPolicy;
+  private final long walSyncIntervalMillis;
+  // guarded by this, created on the first use if no path is configured
+  private Path directory;
+
+  private BoardFiles(
+      final Path path, final SyncPolicy walSyncPolicy, final long walSyncIntervalMillis) {
+    this.path = path;
+    this.directory = path;
+    this.walSyncPolicy = walSyncPolicy;
+    this.walSyncIntervalMillis = walSyncIntervalMillis;
+  }
+
+  /** Board files without write-ahead logs, in the directory or a temporary one if it is empty. */
+  static BoardFiles of(final String boardsPath) {
+    return of(boardsPath, null, 0);
+  }
+
+  /**
+   * Board files in the directory or a temporary one if it is empty. Boards in a configured
+   * directory log their writes with the sync policy, if it is not {@code null}.
+   */
+  static BoardFiles of(
+      final String boardsPath, final SyncPolicy walSyncPolicy, final long walSyncIntervalMillis) {
+    if (boardsPath.isEmpty()) {
+      return new BoardFiles(null, null, 0);
+    }
+    final Path path = Path.of(boardsPath);
+    try {
+      Files.createDirectories(path);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new BoardFiles(path, walSyncPolicy, walSyncIntervalMillis);
+  }
+
+  /** Board files in a temporary directory. */
+  static BoardFiles temporary() {
+    return new BoardFiles(null, null, 0);
+  }
+
+  /** Snapshot file the widgets of the board are written to when it is closed. */
+  SnapshotFile snapshotFile(final String boardId) {
+    return SnapshotFile.of(directory().resolve(boardId + ".snapshot"));
+  }
+
+  /** Write-ahead log of the board, disabled unless the directory and sync policy are configured. */
+  WriteAheadLog writeAheadLog(final String boardId) {
+    if (path == null || walSyncPolicy == null) {
+      return WriteAheadLog.disabled();
+    }
+    return WriteAheadLog.open(path.resolve(boardId + ".wal"), walSyncPolicy, walSyncIntervalMillis);
+  }
+
+  private synchronized Path directory() {
+    if (directory == null) {
+      try {
+        directory = Files.createTempDirectory("widgets-boards");
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      log.info("Boards are kept in {} for this start only.", directory);
+    }
+    return directory;
+  }
+}
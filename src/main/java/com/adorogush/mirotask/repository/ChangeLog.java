@@ -0,0 +1,284 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetEvent;
+import com.adorogush.mirotask.model.ZIndexShift;
+import com.adorogush.mirotask.repository.WidgetRepository.CommitListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Bounded in-memory log of the ids of modified widgets and of z-index shifts, each entry stamped
+ * with the repository version its modification produced. A shift takes a single entry however
+ * many widgets it moves. Entries are kept in a ring buffer, so the oldest ones are overwritten by
+ * the new ones and the changes since a version are only known while none of the entries after it
+ * is overwritten. The buffer starts small and grows up to the capacity, so a log of a few
+ * modifications takes little memory. Modifications must be recorded once they are visible to
+ * reads, in the order they are made visible. All operations are thread safe, {@link #version()}
+ * does not lock.<br>
+ * Events of every record are passed to {@link #listener} under the lock of the log together with
+ * the version they produced, so the listener receives them in the order of the versions.
+ */
+final class ChangeLog {
+
+  /** Capacity of the logs of repositories created without {@code changeLogSize} configured. */
+  static final int DEFAULT_CAPACITY = 100_000;
+  private static final int INITIAL_LENGTH = 16;
+  private final int capacity;
+  private long[] versions;
+  // id of a modified widget or a ZIndexShift
+  private Object[] entries;
+  // index of the entry written next
+  private int next;
+  private int size;
+  private volatile long version;
+  // the highest version some entries of which are overwritten
+  private long evictedVersion;
+  private volatile CommitListener listener;
+
+  ChangeLog(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Change log capacity must be positive.");
+    }
+    this.capacity = capacity;
+    this.versions = new long[Math.min(capacity, INITIAL_LENGTH)];
+    this.entries = new Object[versions.length];
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  long version() {
+    return version;
+  }
+
+  void listen(final CommitListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Increases the version, stamps the shifts and ids of the record with it and passes the events
+   * of the record to the listener, nothing is done if the record is empty.
+   */
+  synchronized void record(final Record record) {
+    if (record.isEmpty()) {
+      return;
+    }
+    final long newVersion = version + 1;
+    final List<ZIndexShift> shifts = new ArrayList<>(record.shifts);
+    // runs do not overlap, so applying them from the highest one never moves a widget twice
+    for (int i = record.pushes.size() - 1; i >= 0; i--) {
+      shifts.add(record.pushes.get(i));
+    }
+    shifts.forEach(shift -> add(newVersion, shift));
+    record.ids.forEach(id -> add(newVersion, id));
+    version = newVersion;
+    final CommitListener commitListener = listener;
+    if (commitListener != null) {
+      final List<WidgetEvent> events = new ArrayList<>(shifts.size() + record.events.size());
+      shifts.forEach(shift -> events.add(WidgetEvent.shifted(shift)));
+      events.addAll(record.events);
+      commitListener.committed(newVersion, events);
+    }
+  }
+
+  /**
+   * Records the record made under the lock of the log, so a record reading the current state of a
+   * widget is never followed by a record of an older state of it.
+   */
+  synchronized void record(final Supplier<Record> record) {
+    record(record.get());
+  }
+
+  /** Forgets all entries, so no changes before the increased version are known anymore. */
+  synchronized void clear() {
+    Arrays.fill(entries, null);
+    next = 0;
+    size = 0;
+    version++;
+    evictedVersion = version;
+  }
+
+  /**
+   * Changes made after the version, or empty if some of them are no longer kept or the version is
+   * unknown.
+   */
+  synchronized Optional<Changes> changedSince(final long sinceVersion) {
+    return changedSince(sinceVersion, version);
+  }
+
+  /**
+   * Reads the page following the widget which had the z-index at the version, wherever the shifts
+   * recorded since moved it. Must be called while no shift can be recorded, the read gets the
+   * z-index to start from. Empty if the changes since the version are no longer known.
+   */
+  Optional<VersionedPage> readAfter(
+      final long sinceVersion, final int lastZ, final IntFunction<VersionedPage> read) {
+    return readAfter(sinceVersion, version, lastZ, read);
+  }
+
+  /**
+   * Same as {@link #readAfter(long, int, IntFunction)} for the reads of the widgets as they were at
+   * the until version, only the shifts up to it are applied.
+   */
+  Optional<VersionedPage> readAfter(
+      final long sinceVersion,
+      final long untilVersion,
+      final int lastZ,
+      final IntFunction<VersionedPage> read) {
+    final Optional<Changes> changes = changedSince(sinceVersion, untilVersion);
+    if (changes.isEmpty()) {
+      return Optional.empty();
+    }
+    final long fromZ = changes.get().shiftedZ(lastZ) + 1;
+    return Optional.of(
+        fromZ > Integer.MAX_VALUE
+            ? new VersionedPage(List.of(), untilVersion)
+            : read.apply((int) fromZ));
+  }
+
+  private synchronized Optional<Changes> changedSince(
+      final long sinceVersion, final long untilVersion) {
+    if (sinceVersion < evictedVersion || sinceVersion > untilVersion || untilVersion > version) {
+      return Optional.empty();
+    }
+    final Set<String> changedIds = new HashSet<>();
+    final List<ZIndexShift> shifts = new ArrayList<>();
+    // walk from the newest entry back to the first one not after the version
+    int i = next;
+    for (int k = 0; k < size; k++) {
+      i = i == 0 ? entries.length - 1 : i - 1;
+      if (versions[i] <= sinceVersion) {
+        break;
+      }
+      if (versions[i] > untilVersion) {
+        continue;
+      }
+      if (entries[i] instanceof ZIndexShift) {
+        shifts.add((ZIndexShift) entries[i]);
+      } else {
+        changedIds.add((String) entries[i]);
+      }
+    }
+    Collections.reverse(shifts);
+    return Optional.of(new Changes(changedIds, shifts));
+  }
+
+  private void add(final long newVersion, final Object entry) {
+    if (size == entries.length && entries.length < capacity) {
+      // the buffer never wrapped before reaching the capacity, so the entries start at 0
+      final int length = (int) Math.min(capacity, 2L * entries.length);
+      versions = Arrays.copyOf(versions, length);
+      entries = Arrays.copyOf(entries, length);
+      next = size;
+    }
+    if (size == entries.length) {
+      evictedVersion = versions[next];
+    } else {
+      size++;
+    }
+    versions[next] = newVersion;
+    entries[next] = entry;
+    next = next + 1 == entries.length ? 0 : next + 1;
+  }
+
+  /**
+   * Changes of a single write operation, recorded under a single version. Shifts must be added in
+   * the order they are applied, pushes are recorded after them. Events of the shifts precede the
+   * events of the widgets, which keep the order they are added in.
+   */
+  static final class Record {
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<ZIndexShift> shifts = new ArrayList<>();
+    // runs of pushed widgets moved by the same distance, in ascending order
+    private final List<ZIndexShift> pushes = new ArrayList<>();
+    private final List<WidgetEvent> events = new ArrayList<>();
+
+    Record created(final Widget widget) {
+      ids.add(widget.id());
+      events.add(WidgetEvent.created(widget));
+      return this;
+    }
+
+    Record updated(final Widget widget) {
+      ids.add(widget.id());
+      events.add(WidgetEvent.updated(widget));
+      return this;
+    }
+
+    Record deleted(final String id) {
+      ids.add(id);
+      events.add(WidgetEvent.deleted(id));
+      return this;
+    }
+
+    Record deleted(final Collection<String> deletedIds) {
+      deletedIds.forEach(this::deleted);
+      return this;
+    }
+
+    /** Adds the widgets deleted from the area by a single event, nothing if none is deleted. */
+    Record deletedInArea(final Area area, final Collection<String> deletedIds) {
+      if (!deletedIds.isEmpty()) {
+        ids.addAll(deletedIds);
+        events.add(WidgetEvent.deletedInArea(area));
+      }
+      return this;
+    }
+
+    /** Adds the shift of all z-indexes from provided one. */
+    Record shifted(final int fromZ, final int by) {
+      return shifted(ZIndexShift.from(fromZ, by));
+    }
+
+    Record shifted(final ZIndexShift shift) {
+      shifts.add(shift);
+      return this;
+    }
+
+    /**
+     * Adds a widget pushed up from one z-index to another. Pushes must be added in ascending order
+     * of z-index, adjacent ones moved by the same distance are merged into a single shift.
+     */
+    Record pushed(final int fromZ, final int toZ) {
+      final int by = toZ - fromZ;
+      final int last = pushes.size() - 1;
+      if (last >= 0 && pushes.get(last).toZ() + 1 == fromZ && pushes.get(last).by() == by) {
+        pushes.set(last, new ZIndexShift(pushes.get(last).fromZ(), fromZ, by));
+      } else {
+        pushes.add(new ZIndexShift(fromZ, fromZ, by));
+      }
+      return this;
+    }
+
+    boolean isEmpty() {
+      return ids.isEmpty() && shifts.isEmpty() && pushes.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.ZIndexShift;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Changes of widgets since a version: ids of the widgets created, updated or deleted and shifts of
+ * z-indexes in the order they were made. A widget moved by a shift only is not listed by its id,
+ * so the changes of a shift do not depend on the number of widgets moved.
+ */
+public final class Changes {
+
+  private final Set<String> ids;
+  private final List<ZIndexShift> shifts;
+
+  public Changes(final Set<String> ids, final List<ZIndexShift> shifts) {
+    this.ids = ids;
+    this.shifts = shifts;
+  }
+
+  public Set<String> ids() {
+    return ids;
+  }
+
+  public List<ZIndexShift> shifts() {
+    return shifts;
+  }
+
+  /**
+   * Z-index after all the shifts of a widget which had provided z-index at the version, or where
+   * such a widget would be. Changes of the listed widgets themselves are not taken into account.
+   */
+  public long shiftedZ(final long z) {
+    long shiftedZ = z;
+    for (final ZIndexShift shift : shifts) {
+      shiftedZ = shift.apply(shiftedZ);
+    }
+    return shiftedZ;
+  }
+}
@@ -16,103 +16,509 @@
 package com.adorogush.mirotask.repository;
 
 import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
 
+import com.adorogush.mirotask.exception.ConflictException;
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Widget;
 import com.adorogush.mirotask.model.WidgetToCreate;
 import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.repository.WriteAheadLog.SyncPolicy;
+import com.adorogush.mirotask.repository.WritePipeline.Mutation;
 import com.adorogush.mirotask.service.IdProvider;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import javax.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 /**
  * Implementation of {@link WidgetRepository} based on concurrent collections.<br>
- * <b>Create</b>, <b>Update</b> and <b>Delete</b> operations will acquire shared {@link
+ * <b>Create</b> with z-index, <b>Create many</b>, <b>Delete</b>, <b>Delete many</b>,
+ * <b>Reorder</b> and z-index changing <b>Update</b> operations will acquire shared {@link
  * #writesGlobalLock}, meaning no parallel writes are allowed.<br>
+ * <b>Create</b> without z-index and <b>Update</b> operations not changing z-index only acquire
+ * {@link #writesInPlaceLock}, which is the read side of {@link #writesGlobalLock}, so they run in
+ * parallel to each other. Appending creates claim their z-index from {@link #topZ} counter. Both
+ * atomically put the widget to {@link #idToWidget} and {@link #zToWidget} per entry.<br>
  * <b>Read one</b> operation is never blocked.<br>
- * <b>Read all</b> operation will not block in most cases. One exception is when <b>Create</b> or
- * <b>Update</b> operation caused the sequential shift operation. While shift is in progress, {@link
- * #writesShiftLock} is acquired by write operation, <b>Read all</b> will wait until {@link
- * #readsShiftLock} can be acquired.
+ * <b>Read all</b> operation will not block in most cases. It collects the page under an optimistic
+ * read stamp of {@link #shiftLock}, which is held in write mode by <b>Create</b> or <b>Update</b>
+ * operation while the sequential shift operation is in progress. Only if a shift happened during
+ * the collection, <b>Read all</b> falls back to the read mode of {@link #shiftLock} and waits for
+ * the shift to finish.<br>
+ * <b>Read all in area</b> and <b>Read top at</b> operations look up the widgets in {@link
+ * #gridIndex} and work the same way as <b>Read all</b>.<br>
+ * <b>Read versioned</b> operation collects the page under {@link #writesInPlaceLock} instead, so
+ * no shift is made between the page and its version.<br>
+ * <b>Export all</b> operation collects the widgets into a fixed size chunk under {@link
+ * #writesInPlaceLock}, so no shift is in progress. The operations acquiring {@link
+ * #writesGlobalLock}, shifts included, wait while a chunk is collected, but not while it is passed
+ * to the consumer outside of any lock, so a slow consumer blocks no writer. The next chunk starts
+ * after the last exported widget, wherever the shifts recorded since the chunk moved it.<br>
+ * Every write operation records the ids of the widgets it changed and the shifts it made to {@link
+ * #changeLog} while still holding its lock, which increases the version and passes its events to
+ * the listener. Parallel in-place writes record the state of the widget current under the lock of
+ * {@link #changeLog}, so the events of a widget never go back to an older state.<br>
+ * If {@code writePipelineSize} is positive, the operations acquiring {@link #writesGlobalLock}
+ * are not applied by the calling threads. They are queued to {@link #writePipeline} and applied
+ * by a single writer thread in batches, each batch under a single acquisition of the lock.
+ * Adjacent creates with z-index in a batch are applied the same way as <b>Create many</b>, so
+ * their shifts are merged into a single pass.<br>
+ * If {@code walPath} is configured, every write operation appends its result to {@link
+ * #writeAheadLog} while still holding its lock, so records are in the order of modifications, and
+ * waits for the record to be durable after releasing the lock. The record is appended before the
+ * widgets are changed in memory, so a failed append leaves them unchanged.<br>
+ * If {@code snapshotPath} is configured, all widgets are periodically written to {@link
+ * #snapshotFile} in background. Writers are only paused while references to the widgets are
+ * copied under {@link #writesGlobalLock}. On startup the snapshot is loaded first and only the log
+ * written after it is replayed. Once a snapshot is durable, the log before it is dropped, so
+ * without periodic snapshots the log keeps growing.<br>
+ * A board repository keeps its write-ahead log and snapshot in {@link #boardFiles}. The log is
+ * only written if both {@code walPath} and {@code boardsPath} are configured, the snapshot is
+ * written when the board is closed and loaded with the log when the board is created again.
  */
 @Repository
 @ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "collection")
 public class CollectionBasedWidgetRepository implements WidgetRepository {
 
   private static final Logger log = LogManager.getLogger();
-  private final Map<String, Widget> idToWidget;
+  private static final int EXPORT_CHUNK_SIZE = 1024;
+  private final ConcurrentMap<String, Widget> idToWidget;
   private final SortedMap<Integer, Widget> zToWidget;
   private final IdProvider idProvider;
   private final Clock clock;
-  private final Lock writesGlobalLock = new ReentrantLock();
-  private final Lock writesShiftLock;
-  private final Lock readsShiftLock;
+  private final Lock writesGlobalLock;
+  private final Lock writesInPlaceLock;
+  private final StampedLock shiftLock = new StampedLock();
+  private final GridIndex gridIndex = new GridIndex();
+  // last claimed z-index or Long.MIN_VALUE when empty, re-synced under writesGlobalLock
+  private final AtomicLong topZ = new AtomicLong();
+  private final ChangeLog changeLog;
+  private final WritePipeline writePipeline;
+  private final WriteAheadLog writeAheadLog;
+  private final SnapshotFile snapshotFile;
+  private final ScheduledExecutorService snapshotExecutor;
+  private final BoardFiles boardFiles;
+  // null for the repository of the default board
+  private final String boardId;
+  // guarded by writesGlobalLock, read under writesInPlaceLock
+  private boolean closed;
 
   @Autowired
+  public CollectionBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      @Value("${walPath}") final String walPath,
+      @Value("${walSyncPolicy}") final String walSyncPolicy,
+      @Value("${walSyncIntervalMillis}") final long walSyncIntervalMillis,
+      @Value("${snapshotPath}") final String snapshotPath,
+      @Value("${snapshotIntervalSeconds}") final long snapshotIntervalSeconds,
+      @Value("${changeLogSize}") final int changeLogSize,
+      @Value("${writePipelineSize}") final int writePipelineSize,
+      @Value("${boardsPath}") final String boardsPath) {
+    this(
+        idProvider,
+        clock,
+        new ConcurrentHashMap<>(),
+        new ConcurrentSkipListMap<>(),
+        walPath.isEmpty()
+            ? WriteAheadLog.disabled()
+            : WriteAheadLog.open(
+                Path.of(walPath), SyncPolicy.of(walSyncPolicy), walSyncIntervalMillis),
+        snapshotPath.isEmpty() ? SnapshotFile.disabled() : SnapshotFile.of(Path.of(snapshotPath)),
+        snapshotIntervalSeconds,
+        new ChangeLog(changeLogSize),
+        writePipelineSize,
+        BoardFiles.of(
+            boardsPath,
+            walPath.isEmpty() ? null : SyncPolicy.of(walSyncPolicy),
+            walSyncIntervalMillis),
+        null);
+    if (!walPath.isEmpty() && (snapshotPath.isEmpty() || snapshotIntervalSeconds <= 0)) {
+      log.warn("Periodic snapshots are disabled, the write-ahead log will grow without limit.");
+    }
+  }
+
   public CollectionBasedWidgetRepository(final IdProvider idProvider, final Clock clock) {
-    this(idProvider, clock, new ConcurrentHashMap<>(), new ConcurrentSkipListMap<>());
+    this(
+        idProvider,
+        clock,
+        new ConcurrentHashMap<>(),
+        new ConcurrentSkipListMap<>(),
+        WriteAheadLog.disabled(),
+        SnapshotFile.disabled(),
+        0,
+        new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+        0);
   }
 
   /*for tests*/ CollectionBasedWidgetRepository(
       final IdProvider idProvider,
       final Clock clock,
-      final Map<String, Widget> idToWidget,
+      final ConcurrentMap<String, Widget> idToWidget,
       final SortedMap<Integer, Widget> zToWidget) {
+    this(
+        idProvider,
+        clock,
+        idToWidget,
+        zToWidget,
+        WriteAheadLog.disabled(),
+        SnapshotFile.disabled(),
+        0,
+        new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+        0);
+  }
+
+  /**
+   * Snapshots are only written periodically if the interval is positive, otherwise by {@link
+   * #writeSnapshot()} calls. Writes are applied by the calling threads if the pipeline size is
+   * {@code 0}.
+   */
+  /*for tests*/ CollectionBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final ConcurrentMap<String, Widget> idToWidget,
+      final SortedMap<Integer, Widget> zToWidget,
+      final WriteAheadLog writeAheadLog,
+      final SnapshotFile snapshotFile,
+      final long snapshotIntervalSeconds,
+      final ChangeLog changeLog,
+      final int writePipelineSize) {
+    this(
+        idProvider,
+        clock,
+        idToWidget,
+        zToWidget,
+        writeAheadLog,
+        snapshotFile,
+        snapshotIntervalSeconds,
+        changeLog,
+        writePipelineSize,
+        BoardFiles.temporary(),
+        null);
+  }
+
+  private CollectionBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final ConcurrentMap<String, Widget> idToWidget,
+      final SortedMap<Integer, Widget> zToWidget,
+      final WriteAheadLog writeAheadLog,
+      final SnapshotFile snapshotFile,
+      final long snapshotIntervalSeconds,
+      final ChangeLog changeLog,
+      final int writePipelineSize,
+      final BoardFiles boardFiles,
+      final String boardId) {
     this.idProvider = idProvider;
     this.clock = clock;
     this.idToWidget = idToWidget;
     this.zToWidget = zToWidget;
+    this.changeLog = changeLog;
+    this.writeAheadLog = writeAheadLog;
+    this.snapshotFile = snapshotFile;
+    this.boardFiles = boardFiles;
+    this.boardId = boardId;
+
+    final ReadWriteLock writesLock = new ReentrantReadWriteLock();
+    writesGlobalLock = writesLock.writeLock();
+    writesInPlaceLock = writesLock.readLock();
 
-    final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    writesShiftLock = rwLock.writeLock();
-    readsShiftLock = rwLock.readLock();
+    final long walPosition = snapshotFile.load(this::loadWidget);
+    writeAheadLog.replay(walPosition, this::replayPut, this::replayDelete);
+    syncTopZ();
 
-    log.info("Collection based WidgetRepository initialized.");
+    writePipeline =
+        writePipelineSize == 0
+            ? WritePipeline.direct(this::applyBatch)
+            : WritePipeline.start(this::applyBatch, writePipelineSize);
+
+    if (snapshotFile.isEnabled() && snapshotIntervalSeconds > 0) {
+      snapshotExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                final Thread thread = new Thread(runnable, "widgets-snapshot");
+                thread.setDaemon(true);
+                return thread;
+              });
+      snapshotExecutor.scheduleWithFixedDelay(
+          this::writeSnapshotInBackground,
+          snapshotIntervalSeconds,
+          snapshotIntervalSeconds,
+          TimeUnit.SECONDS);
+    } else {
+      snapshotExecutor = null;
+    }
+
+    if (boardId == null) {
+      log.info(
+          "Collection based WidgetRepository initialized, writes are {}.",
+          writePipeline.isPipelined() ? "pipelined" : "applied by the calling threads");
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (snapshotExecutor != null) {
+      snapshotExecutor.shutdownNow();
+    }
+    writePipeline.close();
+    writeAheadLog.close();
   }
 
   @Override
   public Widget createOne(final WidgetToCreate widgetToCreate) {
-    writesGlobalLock.lock();
-    try {
+    final Widget widget =
+        widgetToCreate.z() == null ? append(widgetToCreate) : insert(widgetToCreate);
+    writeAheadLog.awaitDurable();
+    return widget;
+  }
+
+  private Widget insert(final WidgetToCreate widgetToCreate) {
+    return writePipeline.execute(
+        Mutation.insert(widgetToCreate, () -> insertLocked(widgetToCreate)));
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private Widget insertLocked(final WidgetToCreate widgetToCreate) {
+    // generate unique id
+    String id;
+    do {
+      id = idProvider.get();
+    } while (idToWidget.get(id) != null);
+
+    final Widget widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
+    final ChangeLog.Record record = new ChangeLog.Record();
+    final boolean shifts = zToWidget.get(widget.z()) != null;
+    if (shifts) {
+      checkShift(null);
+    }
+    writeAheadLog.put(widget);
+    if (shifts) {
+      shift(widget.z(), record);
+    }
+    idToWidget.put(widget.id(), widget);
+    zToWidget.put(widget.z(), widget);
+    gridIndex.add(widget);
+    syncTopZ();
+    changeLog.record(record.created(widget));
+    return widget;
+  }
+
+  /**
+   * All widgets are created under a single acquisition of {@link #writesGlobalLock}. Existing
+   * widgets are moved to their final z-indexes by a single shift, computed by {@link BatchPlan}.
+   * Every widget is logged with the z-index it had when created, so replaying the records one by
+   * one gives the same result.
+   */
+  @Override
+  public List<Widget> createMany(final List<WidgetToCreate> widgetsToCreate) {
+    final List<Widget> created =
+        writePipeline.execute(
+            Mutation.of(
+                () -> {
+                  final List<Widget> createdWidgets = new ArrayList<>(widgetsToCreate.size());
+                  createAll(widgetsToCreate, createdWidgets);
+                  return createdWidgets;
+                }));
+    writeAheadLog.awaitDurable();
+    return created;
+  }
+
+  /**
+   * Adds the widgets in their final state to the created list and returns the plan, which tells
+   * the z-index every widget had when created. Must be called under {@link #writesGlobalLock}.
+   */
+  private BatchPlan createAll(
+      final List<WidgetToCreate> widgetsToCreate, final List<Widget> created) {
+    final ChangeLog.Record record = new ChangeLog.Record();
+    final BatchPlan plan =
+        BatchPlan.of(
+            widgetsToCreate,
+            zToWidget.isEmpty() ? null : zToWidget.lastKey(),
+            zToWidget::containsKey);
+    final Set<String> ids = new HashSet<>();
+    for (int i = 0; i < widgetsToCreate.size(); i++) {
       // generate unique id
       String id;
       do {
         id = idProvider.get();
-      } while (idToWidget.get(id) != null);
-
-      final Widget widget;
-      if (widgetToCreate.z() == null) {
-        final int z =
-            zToWidget.isEmpty() ? Integer.MIN_VALUE : checkOverflow(zToWidget.lastKey()) + 1;
-        widget = widgetToCreateToWidget(widgetToCreate, id, z);
-      } else {
-        widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
-        if (zToWidget.get(widget.z()) != null) {
-          shift(widget.z());
-        }
-      }
+      } while (idToWidget.get(id) != null || !ids.add(id));
+      created.add(widgetToCreateToWidget(widgetsToCreate.get(i), id, plan.finalZ(i)));
+    }
+    for (int i = 0; i < created.size(); i++) {
+      writeAheadLog.put(created.get(i).withZ(plan.createdZ(i)));
+    }
+    if (plan.shifts()) {
+      shift(plan.shiftFrom(), widget -> widget.withZ(plan.shifted(widget.z())));
+      plan.zIndexShifts().forEach(record::shifted);
+    }
+    for (int i = 0; i < created.size(); i++) {
+      final Widget widget = created.get(i);
       idToWidget.put(widget.id(), widget);
       zToWidget.put(widget.z(), widget);
+      gridIndex.add(widget);
+      record.created(widget);
+    }
+    syncTopZ();
+    changeLog.record(record);
+    return plan;
+  }
+
+  /**
+   * Applies the batch of {@link #writePipeline} under a single acquisition of {@link
+   * #writesGlobalLock}. Adjacent inserts are created together by {@link #createAll}, if that fails
+   * they are applied one by one, so only the failing ones fail.
+   */
+  private void applyBatch(final List<Mutation<?>> batch) {
+    writesGlobalLock.lock();
+    try {
+      // only boards are closed and their writes are applied by the calling threads
+      checkBoardOpen(closed);
+      int from = 0;
+      while (from < batch.size()) {
+        int to = from + 1;
+        if (batch.get(from).insert() != null) {
+          while (to < batch.size() && batch.get(to).insert() != null) {
+            to++;
+          }
+        }
+        if (to - from > 1) {
+          applyInserts(batch.subList(from, to));
+        } else {
+          batch.get(from).apply();
+        }
+        from = to;
+      }
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private void applyInserts(final List<Mutation<?>> inserts) {
+    final List<WidgetToCreate> widgetsToCreate = new ArrayList<>(inserts.size());
+    inserts.forEach(mutation -> widgetsToCreate.add(mutation.insert()));
+    final List<Widget> created = new ArrayList<>(inserts.size());
+    final BatchPlan plan;
+    try {
+      plan = createAll(widgetsToCreate, created);
+    } catch (final ConflictException e) {
+      // nothing is changed when the plan overflows
+      inserts.forEach(Mutation::apply);
+      return;
+    }
+    for (int i = 0; i < inserts.size(); i++) {
+      // every caller gets the widget as if it was created alone
+      inserts.get(i).completeInsert(created.get(i).withZ(plan.createdZ(i)));
+    }
+  }
+
+  /**
+   * Z-index above all existing ones is never occupied, so no shift is needed and parallel appends
+   * only have to claim distinct z-indexes.
+   */
+  private Widget append(final WidgetToCreate widgetToCreate) {
+    writesInPlaceLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final int z =
+          (int)
+              topZ.updateAndGet(
+                  top -> top == Long.MIN_VALUE ? Integer.MIN_VALUE : checkOverflow((int) top) + 1);
+      // generate unique id
+      Widget widget;
+      do {
+        widget = widgetToCreateToWidget(widgetToCreate, idProvider.get(), z);
+      } while (!putIfAbsent(widget));
+      final String id = widget.id();
+      changeLog.record(() -> new ChangeLog.Record().created(idToWidget.get(id)));
       return widget;
+    } finally {
+      writesInPlaceLock.unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  /**
+   * Board repository loads its snapshot and replays its write-ahead log from {@link #boardFiles}.
+   * Its writes are applied by the calling threads and it writes no periodic snapshots, so an idle
+   * board holds no thread.
+   */
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    return new CollectionBasedWidgetRepository(
+        idProvider,
+        clock,
+        new ConcurrentHashMap<>(),
+        new ConcurrentSkipListMap<>(),
+        boardFiles.writeAheadLog(boardId),
+        boardFiles.snapshotFile(boardId),
+        0,
+        new ChangeLog(changeLog.capacity()),
+        0,
+        boardFiles,
+        boardId);
+  }
+
+  /** Writes the snapshot of the board, which drops its write-ahead log, and closes the log. */
+  @Override
+  public void closeBoard() {
+    if (boardId == null) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    writesGlobalLock.lock();
+    try {
+      closed = true;
     } finally {
       writesGlobalLock.unlock();
     }
+    writeSnapshot();
+    shutdown();
   }
 
   @Override
@@ -122,66 +528,540 @@ public class CollectionBasedWidgetRepository implements WidgetRepository {
 
   @Override
   public List<Widget> readAll(final int perPage, final Integer fromZ) {
-    readsShiftLock.lock();
+    final long optimisticStamp = shiftLock.tryOptimisticRead();
+    if (optimisticStamp != 0) {
+      final List<Widget> returnList = collectPage(perPage, fromZ);
+      if (shiftLock.validate(optimisticStamp)) {
+        return returnList;
+      }
+    }
+    final long stamp = shiftLock.readLock();
+    try {
+      return collectPage(perPage, fromZ);
+    } finally {
+      shiftLock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * The page is collected under {@link #writesInPlaceLock}, so no shift is in progress, and every
+   * shift is recorded before the lock is released. In-place writes running meanwhile shift nothing.
+   */
+  @Override
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    writesInPlaceLock.lock();
+    try {
+      final List<Widget> widgets =
+          area == null ? collectPage(perPage, fromZ) : collectPageInArea(perPage, fromZ, area);
+      return new VersionedPage(widgets, changeLog.version());
+    } finally {
+      writesInPlaceLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
+    writesInPlaceLock.lock();
+    try {
+      return changeLog.readAfter(version, lastZ, fromZ -> readVersioned(perPage, fromZ, area));
+    } finally {
+      writesInPlaceLock.unlock();
+    }
+  }
+
+  /**
+   * Widgets created or moved below the exported ones during the export are not exported, so the
+   * export ends even if widgets keep being inserted at its bottom.
+   */
+  @Override
+  public void exportAll(final Consumer<Widget> consumer) {
+    final Widget[] chunk = new Widget[EXPORT_CHUNK_SIZE];
+    Integer fromZ = null;
+    while (true) {
+      final int size;
+      final long version;
+      writesInPlaceLock.lock();
+      try {
+        size = collectChunk(chunk, fromZ);
+        version = changeLog.version();
+      } finally {
+        writesInPlaceLock.unlock();
+      }
+      for (int i = 0; i < size; i++) {
+        consumer.accept(chunk[i]);
+      }
+      if (size < chunk.length) {
+        return;
+      }
+      final long lastZ = resumeZ(chunk[size - 1], version);
+      if (lastZ >= Integer.MAX_VALUE) {
+        return;
+      }
+      fromZ = (int) lastZ + 1;
+    }
+  }
+
+  /**
+   * Current z-index of the exported widget, which was at its z-index at the version. If the
+   * changes since are no longer kept, the widget is looked up by its id.
+   */
+  private long resumeZ(final Widget exported, final long version) {
+    final Optional<Changes> changes = changeLog.changedSince(version);
+    if (changes.isPresent()) {
+      return changes.get().shiftedZ(exported.z());
+    }
+    final Widget current = idToWidget.get(exported.id());
+    return current != null ? current.z() : exported.z();
+  }
+
+  private int collectChunk(final Widget[] chunk, final Integer fromZ) {
+    final Collection<Widget> allWidgets =
+        fromZ == null ? zToWidget.values() : zToWidget.tailMap(fromZ).values();
+    int size = 0;
+    for (final Widget widget : allWidgets) {
+      if (size == chunk.length) {
+        break;
+      }
+      chunk[size++] = widget;
+    }
+    return size;
+  }
+
+  @Override
+  public List<Widget> readAllInArea(final int perPage, final Integer fromZ, final Area area) {
+    final long optimisticStamp = shiftLock.tryOptimisticRead();
+    if (optimisticStamp != 0) {
+      final List<Widget> returnList = collectPageInArea(perPage, fromZ, area);
+      if (shiftLock.validate(optimisticStamp)) {
+        return returnList;
+      }
+    }
+    final long stamp = shiftLock.readLock();
     try {
-      final Collection<Widget> allWidgets;
-      if (fromZ == null) {
-        allWidgets = zToWidget.values();
-      } else {
-        allWidgets = zToWidget.tailMap(fromZ).values();
-      }
-      final int returnListSize = Math.min(allWidgets.size(), perPage);
-      final List<Widget> returnList = new ArrayList<>(returnListSize);
-      int i = 0;
-      for (final Widget value : allWidgets) {
-        if (i++ >= returnListSize) {
+      return collectPageInArea(perPage, fromZ, area);
+    } finally {
+      shiftLock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public List<Widget> readTopAt(final int limit, final int x, final int y) {
+    final long optimisticStamp = shiftLock.tryOptimisticRead();
+    if (optimisticStamp != 0) {
+      final List<Widget> returnList = collectTopAt(limit, x, y);
+      if (shiftLock.validate(optimisticStamp)) {
+        return returnList;
+      }
+    }
+    final long stamp = shiftLock.readLock();
+    try {
+      return collectTopAt(limit, x, y);
+    } finally {
+      shiftLock.unlockRead(stamp);
+    }
+  }
+
+  private List<Widget> collectTopAt(final int limit, final int x, final int y) {
+    final List<Widget> found = new ArrayList<>();
+    // a point touches a few cells of every level, so it is never scanned
+    gridIndex.collect(new Area(x, y, x, y), idToWidget::get, found::add);
+    found.sort(Comparator.comparingInt(Widget::z).reversed());
+    return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+  }
+
+  private List<Widget> collectPageInArea(final int perPage, final Integer fromZ, final Area area) {
+    final List<Widget> found = new ArrayList<>();
+    final boolean indexed =
+        gridIndex.collect(
+            area,
+            idToWidget::get,
+            widget -> {
+              if (fromZ == null || widget.z() >= fromZ) {
+                found.add(widget);
+              }
+            });
+    if (!indexed) {
+      // area is too large, scan in z-index order
+      final Collection<Widget> allWidgets =
+          fromZ == null ? zToWidget.values() : zToWidget.tailMap(fromZ).values();
+      for (final Widget widget : allWidgets) {
+        if (found.size() >= perPage) {
           break;
         }
-        returnList.add(value);
+        if (area.intersects(widget)) {
+          found.add(widget);
+        }
       }
-      return returnList;
-    } finally {
-      readsShiftLock.unlock();
+      return found;
+    }
+    found.sort(Comparator.comparingInt(Widget::z));
+    return found.size() > perPage ? new ArrayList<>(found.subList(0, perPage)) : found;
+  }
+
+  private List<Widget> collectPage(final int perPage, final Integer fromZ) {
+    final Collection<Widget> allWidgets;
+    if (fromZ == null) {
+      allWidgets = zToWidget.values();
+    } else {
+      allWidgets = zToWidget.tailMap(fromZ).values();
+    }
+    // size of a skip list view is a walk over all of it, count of all widgets is cheap instead
+    final List<Widget> returnList = new ArrayList<>(Math.min(perPage, idToWidget.size()));
+    for (final Widget value : allWidgets) {
+      if (returnList.size() >= perPage) {
+        break;
+      }
+      returnList.add(value);
     }
+    return returnList;
   }
 
   @Override
   public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
-    writesGlobalLock.lock();
+    final Optional<Widget> widgetUpdated =
+        widgetToUpdate.z() == null
+            ? updateInPlace(id, widgetToUpdate)
+            : updateWithZ(id, widgetToUpdate);
+    writeAheadLog.awaitDurable();
+    return widgetUpdated;
+  }
+
+  private Optional<Widget> updateWithZ(final String id, final WidgetToUpdate widgetToUpdate) {
+    return writePipeline.execute(Mutation.of(() -> updateWithZLocked(id, widgetToUpdate)));
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private Optional<Widget> updateWithZLocked(
+      final String id, final WidgetToUpdate widgetToUpdate) {
+    final Widget widgetFound = idToWidget.get(id);
+    if (widgetFound == null) {
+      return Optional.empty();
+    }
+    final Widget widgetUpdated = widgetToUpdateToWidget(widgetFound, widgetToUpdate);
+    final ChangeLog.Record record = new ChangeLog.Record();
+    final boolean shifts =
+        widgetUpdated.z() != widgetFound.z() && zToWidget.get(widgetUpdated.z()) != null;
+    if (shifts) {
+      checkShift(widgetFound);
+    }
+    writeAheadLog.put(widgetUpdated);
+    zToWidget.remove(widgetFound.z());
+    if (shifts) {
+      shift(widgetUpdated.z(), record);
+    }
+    idToWidget.put(widgetUpdated.id(), widgetUpdated);
+    zToWidget.put(widgetUpdated.z(), widgetUpdated);
+    gridIndex.move(widgetFound, widgetUpdated);
+    syncTopZ();
+    changeLog.record(record.updated(widgetUpdated));
+    return Optional.of(widgetUpdated);
+  }
+
+  /**
+   * Z-index is not changed, so no other entries are affected. Widget is replaced in both maps while
+   * its {@link #idToWidget} entry is locked, so parallel updates of the same widget are applied one
+   * after another.
+   */
+  private Optional<Widget> updateInPlace(final String id, final WidgetToUpdate widgetToUpdate) {
+    writesInPlaceLock.lock();
     try {
-      final Widget widgetFound = idToWidget.get(id);
-      if (widgetFound == null) {
+      checkBoardOpen(closed);
+      final Widget widgetUpdated =
+          idToWidget.computeIfPresent(
+              id,
+              (key, widgetFound) -> {
+                final Widget updated = widgetToUpdateToWidget(widgetFound, widgetToUpdate);
+                writeAheadLog.put(updated);
+                zToWidget.put(updated.z(), updated);
+                gridIndex.move(widgetFound, updated);
+                return updated;
+              });
+      if (widgetUpdated != null) {
+        changeLog.record(() -> new ChangeLog.Record().updated(idToWidget.get(id)));
+      }
+      return Optional.ofNullable(widgetUpdated);
+    } finally {
+      writesInPlaceLock.unlock();
+    }
+  }
+
+  /**
+   * Only the widgets standing in the way of the moved ones are pushed up, each by as little as
+   * possible, so the cost depends on the affected z-index range rather than the board size. All
+   * changed widgets are replaced while {@link #shiftLock} is held. Records are logged so that
+   * replaying them never meets an occupied z-index: moved widgets are deleted, pushed widgets are
+   * put starting from the highest one, then moved widgets are put back.
+   */
+  @Override
+  public Optional<List<Widget>> reorder(final WidgetsToReorder widgetsToReorder) {
+    final Optional<List<Widget>> reordered =
+        writePipeline.execute(Mutation.of(() -> reorderLocked(widgetsToReorder)));
+    writeAheadLog.awaitDurable();
+    return reordered;
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private Optional<List<Widget>> reorderLocked(final WidgetsToReorder widgetsToReorder) {
+    final List<Widget> selected = new ArrayList<>();
+    for (final String id : widgetsToReorder.ids()) {
+      final Widget widget = idToWidget.get(id);
+      if (widget == null) {
         return Optional.empty();
       }
-      final Widget widgetUpdated = widgetToUpdateToWidget(widgetFound, widgetToUpdate);
-      if (widgetToUpdate.z() != null) {
-        zToWidget.remove(widgetFound.z());
-        if (zToWidget.get(widgetUpdated.z()) != null) {
-          shift(widgetUpdated.z());
-        }
+      selected.add(widget);
+    }
+    selected.sort(Comparator.comparingInt(Widget::z));
+    final int firstZ =
+        widgetsToReorder.firstZ(selected.size(), zToWidget.firstKey(), zToWidget.lastKey());
+    final Set<String> ids = new HashSet<>(widgetsToReorder.ids());
+    final List<Widget> inTheWay = new ArrayList<>();
+    // the lowest z-index the next widget in the way can take
+    long nextZ = (long) firstZ + selected.size();
+    for (final Widget widget : zToWidget.tailMap(firstZ).values()) {
+      if (widget.z() >= nextZ) {
+        break;
+      }
+      if (!ids.contains(widget.id())) {
+        inTheWay.add(widget);
+        nextZ++;
+      }
+    }
+    if (nextZ - 1 > Integer.MAX_VALUE) {
+      throw new ConflictException("z-index overflow.");
+    }
+    final List<Widget> reordered = new ArrayList<>(selected.size());
+    for (int i = 0; i < selected.size(); i++) {
+      reordered.add(widgetWithZ(selected.get(i), firstZ + i));
+    }
+    final List<Widget> pushed = new ArrayList<>(inTheWay.size());
+    for (int i = 0; i < inTheWay.size(); i++) {
+      pushed.add(inTheWay.get(i).withZ(firstZ + selected.size() + i));
+    }
+    selected.forEach(widget -> writeAheadLog.delete(widget.id()));
+    for (int i = pushed.size() - 1; i >= 0; i--) {
+      writeAheadLog.put(pushed.get(i));
+    }
+    reordered.forEach(writeAheadLog::put);
+    final long stamp = shiftLock.writeLock();
+    try {
+      selected.forEach(widget -> zToWidget.remove(widget.z()));
+      inTheWay.forEach(widget -> zToWidget.remove(widget.z()));
+      for (final Widget widget : pushed) {
+        idToWidget.put(widget.id(), widget);
+        zToWidget.put(widget.z(), widget);
+      }
+      for (final Widget widget : reordered) {
+        idToWidget.put(widget.id(), widget);
+        zToWidget.put(widget.z(), widget);
       }
-      idToWidget.put(widgetUpdated.id(), widgetUpdated);
-      zToWidget.put(widgetUpdated.z(), widgetUpdated);
-      return Optional.of(widgetUpdated);
     } finally {
-      writesGlobalLock.unlock();
+      shiftLock.unlockWrite(stamp);
     }
+    syncTopZ();
+    final ChangeLog.Record record = new ChangeLog.Record();
+    for (int i = 0; i < inTheWay.size(); i++) {
+      record.pushed(inTheWay.get(i).z(), pushed.get(i).z());
+    }
+    reordered.forEach(record::updated);
+    changeLog.record(record);
+    return Optional.of(reordered);
   }
 
   @Override
   public Optional<Widget> deleteOne(final String id) {
-    writesGlobalLock.lock();
-    try {
-      final Widget widgetFound = idToWidget.get(id);
-      if (widgetFound == null) {
-        return Optional.empty();
+    final Optional<Widget> widgetDeleted = delete(id);
+    writeAheadLog.awaitDurable();
+    return widgetDeleted;
+  }
+
+  private Optional<Widget> delete(final String id) {
+    return writePipeline.execute(Mutation.of(() -> deleteLocked(id)));
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private Optional<Widget> deleteLocked(final String id) {
+    final Widget widgetFound = idToWidget.get(id);
+    if (widgetFound == null) {
+      return Optional.empty();
+    }
+    writeAheadLog.delete(widgetFound.id());
+    idToWidget.remove(widgetFound.id());
+    zToWidget.remove(widgetFound.z());
+    gridIndex.remove(widgetFound);
+    syncTopZ();
+    changeLog.record(new ChangeLog.Record().deleted(widgetFound.id()));
+    return Optional.of(widgetFound);
+  }
+
+  /**
+   * All widgets are deleted under a single acquisition of {@link #writesGlobalLock} and logged by
+   * a single write.
+   */
+  @Override
+  public int deleteMany(final Collection<String> ids) {
+    final int deleted =
+        writePipeline.execute(
+            Mutation.of(
+                () -> {
+                  final List<String> deletedIds = deleteAll(ids);
+                  changeLog.record(new ChangeLog.Record().deleted(deletedIds));
+                  return deletedIds.size();
+                }));
+    writeAheadLog.awaitDurable();
+    return deleted;
+  }
+
+  /**
+   * Widgets are looked up in {@link #gridIndex} or, if the area is too large, by scanning all
+   * widgets, then deleted the same way as by {@link #deleteMany(Collection)}. The deletion is
+   * published as a single event of the area.
+   */
+  @Override
+  public int deleteAllInArea(final Area area) {
+    final int deleted = writePipeline.execute(Mutation.of(() -> deleteAllInAreaLocked(area)));
+    writeAheadLog.awaitDurable();
+    return deleted;
+  }
+
+  /** Must be called under {@link #writesGlobalLock}. */
+  private int deleteAllInAreaLocked(final Area area) {
+    final List<String> ids = new ArrayList<>();
+    final boolean indexed = gridIndex.collect(area, idToWidget::get, w -> ids.add(w.id()));
+    if (!indexed) {
+      for (final Widget widget : zToWidget.values()) {
+        if (area.intersects(widget)) {
+          ids.add(widget.id());
+        }
       }
-      idToWidget.remove(widgetFound.id());
+    }
+    final List<String> deletedIds = deleteAll(ids);
+    changeLog.record(new ChangeLog.Record().deletedInArea(area, deletedIds));
+    return deletedIds.size();
+  }
+
+  /**
+   * Returns the ids of the widgets deleted, which are logged but not recorded. Must be called
+   * under {@link #writesGlobalLock}.
+   */
+  private List<String> deleteAll(final Collection<String> ids) {
+    final Set<String> foundIds = new LinkedHashSet<>();
+    for (final String id : ids) {
+      if (idToWidget.containsKey(id)) {
+        foundIds.add(id);
+      }
+    }
+    final List<String> deletedIds = new ArrayList<>(foundIds);
+    writeAheadLog.deleteAll(deletedIds);
+    for (final String id : deletedIds) {
+      final Widget widgetFound = idToWidget.remove(id);
       zToWidget.remove(widgetFound.z());
-      return Optional.of(widgetFound);
+      gridIndex.remove(widgetFound);
+    }
+    syncTopZ();
+    return deletedIds;
+  }
+
+  /*for tests*/ void clear() {
+    writePipeline.execute(
+        Mutation.of(
+            () -> {
+              idToWidget.clear();
+              zToWidget.clear();
+              gridIndex.clear();
+              syncTopZ();
+              changeLog.clear();
+              return null;
+            }));
+  }
+
+  /**
+   * Puts the widget to both maps while its {@link #idToWidget} entry is locked, so it cannot be
+   * updated in between.
+   */
+  private boolean putIfAbsent(final Widget widget) {
+    return idToWidget.computeIfAbsent(
+            widget.id(),
+            id -> {
+              writeAheadLog.put(widget);
+              zToWidget.put(widget.z(), widget);
+              gridIndex.add(widget);
+              return widget;
+            })
+        == widget;
+  }
+
+  /**
+   * Copies references to all widgets and the matching log position while no write is in progress,
+   * then writes them out without holding any lock. The log is forced first, so it is never shorter
+   * than the snapshot expects, and truncated before the position once the snapshot is durable.
+   */
+  /*for tests*/ void writeSnapshot() {
+    final long startNanos = System.nanoTime();
+    final List<Widget> widgets;
+    final long walPosition;
+    writesGlobalLock.lock();
+    try {
+      widgets = new ArrayList<>(zToWidget.values());
+      walPosition = writeAheadLog.position();
     } finally {
       writesGlobalLock.unlock();
     }
+    final long copiedNanos = System.nanoTime();
+    writeAheadLog.forceAll();
+    snapshotFile.write(widgets, walPosition);
+    writeAheadLog.truncateBefore(walPosition);
+    log.info(
+        "Snapshot of {} widgets written in {} ms, writers paused for {} ms.",
+        widgets.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+        TimeUnit.NANOSECONDS.toMillis(copiedNanos - startNanos));
+  }
+
+  private void writeSnapshotInBackground() {
+    try {
+      writeSnapshot();
+    } catch (final RuntimeException e) {
+      log.error("Snapshot write failed.", e);
+    }
+  }
+
+  /** Puts a widget of a consistent snapshot, no z-index can be occupied. */
+  private void loadWidget(final Widget widget) {
+    idToWidget.put(widget.id(), widget);
+    zToWidget.put(widget.z(), widget);
+    gridIndex.add(widget);
+  }
+
+  /**
+   * Applies a logged widget state the same way it was applied originally: the previous state is
+   * removed and the z-index is shifted, if occupied. Only called before the repository is in use.
+   */
+  private void replayPut(final Widget widget) {
+    final Widget widgetFound = idToWidget.remove(widget.id());
+    if (widgetFound != null) {
+      zToWidget.remove(widgetFound.z());
+      gridIndex.remove(widgetFound);
+    }
+    if (zToWidget.get(widget.z()) != null) {
+      shift(widget.z(), Widget::incZ);
+    }
+    idToWidget.put(widget.id(), widget);
+    zToWidget.put(widget.z(), widget);
+    gridIndex.add(widget);
+  }
+
+  private void replayDelete(final String id) {
+    final Widget widgetFound = idToWidget.remove(id);
+    if (widgetFound != null) {
+      zToWidget.remove(widgetFound.z());
+      gridIndex.remove(widgetFound);
+    }
+  }
+
+  /** Must be called under {@link #writesGlobalLock} after z-indexes were changed. */
+  private void syncTopZ() {
+    topZ.set(zToWidget.isEmpty() ? Long.MIN_VALUE : zToWidget.lastKey());
   }
 
   private Widget widgetToCreateToWidget(
@@ -208,12 +1088,47 @@ public class CollectionBasedWidgetRepository implements WidgetRepository {
         clock.instant());
   }
 
-  private void shift(final int z) {
+  private Widget widgetWithZ(final Widget existing, final int z) {
+    return new Widget(
+        existing.id(),
+        existing.x(),
+        existing.y(),
+        z,
+        existing.width(),
+        existing.height(),
+        clock.instant());
+  }
+
+  /**
+   * Throws if a shift would move the top widget past the highest z-index, not counting the widget
+   * moved away before the shift. Checked before anything is logged, so an overflow changes
+   * nothing.
+   */
+  private void checkShift(final Widget movedAway) {
+    int top = zToWidget.lastKey();
+    if (movedAway != null && movedAway.z() == top) {
+      final SortedMap<Integer, Widget> below = zToWidget.headMap(top);
+      if (below.isEmpty()) {
+        return;
+      }
+      top = below.lastKey();
+    }
+    checkOverflow(top);
+  }
+
+  /** Increments z-index of all widgets starting from provided one and adds the shift to record. */
+  private void shift(final int z, final ChangeLog.Record record) {
+    shift(z, Widget::incZ);
+    record.shifted(z, 1);
+  }
+
+  /** Replaces all widgets starting from the z-index, the replacements must keep their order. */
+  private void shift(final int z, final UnaryOperator<Widget> shifter) {
     final Map<Integer, Widget> tailMap = zToWidget.tailMap(z);
     if (tailMap.isEmpty()) {
       return;
     }
-    writesShiftLock.lock();
+    final long stamp = shiftLock.writeLock();
     try {
       final Collection<Widget> values = tailMap.values();
       final Iterator<Widget> iterator = values.iterator();
@@ -223,12 +1138,12 @@ public class CollectionBasedWidgetRepository implements WidgetRepository {
         iterator.remove();
       }
       for (final Widget removedWidget : removed) {
-        final Widget newWidget = removedWidget.incZ();
+        final Widget newWidget = shifter.apply(removedWidget);
         idToWidget.put(newWidget.id(), newWidget);
         zToWidget.put(newWidget.z(), newWidget);
       }
     } finally {
-      writesShiftLock.unlock();
+      shiftLock.unlockWrite(stamp);
     }
   }
 }
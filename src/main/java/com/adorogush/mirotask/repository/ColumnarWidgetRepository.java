@@ -0,0 +1,550 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.service.IdProvider;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Implementation of {@link WidgetRepository} keeping widget fields in parallel primitive arrays
+ * indexed by slot. {@link Widget} objects are only created when returned to the caller.<br>
+ * Slots are ordered by z-index in {@link #zOrder} array and looked up by id in {@link #idIndex}
+ * open addressing hash table, so there are no per-widget map nodes and no boxed keys. Ids in
+ * canonical {@link java.util.UUID} form are kept as two {@code long}s, see {@link CompactId}, so
+ * they do not hold a {@link String} either. Insert into the middle of the stack moves the tail of
+ * {@link #zOrder}, a shift increments z-index of the tail slots in place.<br>
+ * <b>Create</b>, <b>Update</b> and <b>Delete</b> operations will acquire {@link #writesLock},
+ * meaning no parallel writes are allowed.<br>
+ * <b>Read one</b> and <b>Read all</b> operations will acquire {@link #readsLock} and can run in
+ * parallel to each other, waiting only while a write is being applied.<br>
+ * Every write operation records its changes to {@link #changeLog} while still holding {@link
+ * #writesLock}, a shift is recorded as a single entry.<br>
+ * A board repository is written to its snapshot in {@link #boardFiles} when it is closed, and
+ * loaded from it when the board is created again.
+ */
+@Repository
+@ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "columnar")
+public class ColumnarWidgetRepository implements WidgetRepository {
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final Logger log = LogManager.getLogger();
+  private final IdProvider idProvider;
+  private final Clock clock;
+  private final Lock writesLock;
+  private final Lock readsLock;
+  private final ChangeLog changeLog = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  private final BoardFiles boardFiles;
+  // null for the repository of the default board
+  private final String boardId;
+  // guarded by writesLock
+  private boolean closed;
+  // columns indexed by slot, ids are either compact in idsHigh and idsLow or as is in ids
+  private String[] ids;
+  private long[] idsHigh;
+  private long[] idsLow;
+  private int[] xs;
+  private int[] ys;
+  private int[] zs;
+  private int[] widths;
+  private int[] heights;
+  private long[] modifiedSeconds;
+  private int[] modifiedNanos;
+  // slots sorted by z-index
+  private int[] zOrder;
+  // slot + 1 or 0 for an empty bucket, linear probing
+  private int[] idIndex;
+  private int[] freeSlots;
+  private int freeSlotsCount;
+  private int slotsUsed;
+  private int size;
+
+  @Autowired
+  public ColumnarWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      @Value("${boardsPath}") final String boardsPath) {
+    this(idProvider, clock, BoardFiles.of(boardsPath), null);
+  }
+
+  public ColumnarWidgetRepository(final IdProvider idProvider, final Clock clock) {
+    this(idProvider, clock, BoardFiles.temporary(), null);
+  }
+
+  private ColumnarWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final BoardFiles boardFiles,
+      final String boardId) {
+    this.idProvider = idProvider;
+    this.clock = clock;
+    this.boardFiles = boardFiles;
+    this.boardId = boardId;
+
+    final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    writesLock = rwLock.writeLock();
+    readsLock = rwLock.readLock();
+
+    reset();
+
+    if (boardId == null) {
+      log.info("Columnar WidgetRepository initialized.");
+    }
+  }
+
+  @Override
+  public Widget createOne(final WidgetToCreate widgetToCreate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      // generate unique id
+      String id;
+      do {
+        id = idProvider.get();
+      } while (findSlot(id) >= 0);
+
+      final ChangeLog.Record record = new ChangeLog.Record();
+      final int z;
+      if (widgetToCreate.z() == null) {
+        z = size == 0 ? Integer.MIN_VALUE : checkOverflow(lastZ()) + 1;
+      } else {
+        z = widgetToCreate.z();
+        // must fail before the slot is allocated
+        if (occupied(z)) {
+          checkOverflow(lastZ());
+          record.shifted(z, 1);
+        }
+      }
+      final Widget widget =
+          new Widget(
+              id,
+              widgetToCreate.x(),
+              widgetToCreate.y(),
+              z,
+              widgetToCreate.width(),
+              widgetToCreate.height(),
+              clock.instant());
+      put(widget);
+      changeLog.record(record.created(widget));
+      return widget;
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    final ColumnarWidgetRepository board =
+        new ColumnarWidgetRepository(idProvider, clock, boardFiles, boardId);
+    boardFiles.snapshotFile(boardId).load(board::put);
+    return board;
+  }
+
+  @Override
+  public void closeBoard() {
+    if (boardId == null) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    writesLock.lock();
+    try {
+      closed = true;
+      final List<Widget> widgets = new ArrayList<>(size);
+      exportAll(widgets::add);
+      boardFiles.snapshotFile(boardId).write(widgets, 0);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> readOne(final String id) {
+    readsLock.lock();
+    try {
+      final int slot = findSlot(id);
+      return slot < 0 ? Optional.empty() : Optional.of(toWidget(slot));
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Widget> readAll(final int perPage, final Integer fromZ) {
+    readsLock.lock();
+    try {
+      final int from = fromZ == null ? 0 : lowerBound(fromZ);
+      final int to = from + Math.min(perPage, size - from);
+      final List<Widget> returnList = new ArrayList<>(to - from);
+      for (int i = from; i < to; i++) {
+        returnList.add(toWidget(zOrder[i]));
+      }
+      return returnList;
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  /** Changes are recorded under {@link #writesLock}, so none is made while the page is read. */
+  @Override
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    readsLock.lock();
+    try {
+      return new VersionedPage(
+          area == null ? readAll(perPage, fromZ) : readAllInArea(perPage, fromZ, area),
+          changeLog.version());
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
+    readsLock.lock();
+    try {
+      return changeLog.readAfter(version, lastZ, fromZ -> readVersioned(perPage, fromZ, area));
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final int slot = findSlot(id);
+      if (slot < 0) {
+        return Optional.empty();
+      }
+      final ChangeLog.Record record = new ChangeLog.Record();
+      if (widgetToUpdate.z() != null) {
+        final int z = widgetToUpdate.z();
+        // must fail before the slot is removed
+        if (z != zs[slot] && occupied(z)) {
+          checkOverflow(lastZ());
+          record.shifted(z, 1);
+        }
+        removeZOrder(slot);
+        zs[slot] = z;
+        insertZOrder(slot);
+      }
+      if (widgetToUpdate.x() != null) {
+        xs[slot] = widgetToUpdate.x();
+      }
+      if (widgetToUpdate.y() != null) {
+        ys[slot] = widgetToUpdate.y();
+      }
+      if (widgetToUpdate.width() != null) {
+        widths[slot] = widgetToUpdate.width();
+      }
+      if (widgetToUpdate.height() != null) {
+        heights[slot] = widgetToUpdate.height();
+      }
+      setModified(slot, clock.instant());
+      final Widget widgetUpdated = toWidget(slot);
+      changeLog.record(record.updated(widgetUpdated));
+      return Optional.of(widgetUpdated);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> deleteOne(final String id) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final int slot = findSlot(id);
+      if (slot < 0) {
+        return Optional.empty();
+      }
+      final Widget widgetFound = toWidget(slot);
+      removeZOrder(slot);
+      removeIdIndex(slot);
+      ids[slot] = null;
+      freeSlots[freeSlotsCount++] = slot;
+      size--;
+      changeLog.record(new ChangeLog.Record().deleted(id));
+      return Optional.of(widgetFound);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /*for tests*/ int size() {
+    readsLock.lock();
+    try {
+      return size;
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  /*for tests*/ void clear() {
+    writesLock.lock();
+    try {
+      reset();
+      changeLog.clear();
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  private void reset() {
+    ids = new String[INITIAL_CAPACITY];
+    idsHigh = new long[INITIAL_CAPACITY];
+    idsLow = new long[INITIAL_CAPACITY];
+    xs = new int[INITIAL_CAPACITY];
+    ys = new int[INITIAL_CAPACITY];
+    zs = new int[INITIAL_CAPACITY];
+    widths = new int[INITIAL_CAPACITY];
+    heights = new int[INITIAL_CAPACITY];
+    modifiedSeconds = new long[INITIAL_CAPACITY];
+    modifiedNanos = new int[INITIAL_CAPACITY];
+    zOrder = new int[INITIAL_CAPACITY];
+    freeSlots = new int[INITIAL_CAPACITY];
+    idIndex = new int[INITIAL_CAPACITY * 2];
+    freeSlotsCount = 0;
+    slotsUsed = 0;
+    size = 0;
+  }
+
+  /** Puts the widget to a new slot, shifting the widgets from its z-index if it is occupied. */
+  private void put(final Widget widget) {
+    final int slot = allocateSlot();
+    size++;
+    setId(slot, widget.id());
+    xs[slot] = widget.x();
+    ys[slot] = widget.y();
+    zs[slot] = widget.z();
+    widths[slot] = widget.width();
+    heights[slot] = widget.height();
+    setModified(slot, widget.lastModified());
+    insertZOrder(slot);
+    putIdIndex(slot);
+  }
+
+  private Widget toWidget(final int slot) {
+    return new Widget(
+        ids[slot] != null ? ids[slot] : CompactId.toString(idsHigh[slot], idsLow[slot]),
+        xs[slot],
+        ys[slot],
+        zs[slot],
+        widths[slot],
+        heights[slot],
+        Instant.ofEpochSecond(modifiedSeconds[slot], modifiedNanos[slot]));
+  }
+
+  private void setId(final int slot, final String id) {
+    if (CompactId.isCompact(id)) {
+      ids[slot] = null;
+      idsHigh[slot] = CompactId.high(id);
+      idsLow[slot] = CompactId.low(id);
+    } else {
+      ids[slot] = id;
+    }
+  }
+
+  private void setModified(final int slot, final Instant instant) {
+    modifiedSeconds[slot] = instant.getEpochSecond();
+    modifiedNanos[slot] = instant.getNano();
+  }
+
+  private int allocateSlot() {
+    if (freeSlotsCount > 0) {
+      return freeSlots[--freeSlotsCount];
+    }
+    if (slotsUsed == ids.length) {
+      final int capacity = ids.length * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      idsHigh = Arrays.copyOf(idsHigh, capacity);
+      idsLow = Arrays.copyOf(idsLow, capacity);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+      zs = Arrays.copyOf(zs, capacity);
+      widths = Arrays.copyOf(widths, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      modifiedSeconds = Arrays.copyOf(modifiedSeconds, capacity);
+      modifiedNanos = Arrays.copyOf(modifiedNanos, capacity);
+      zOrder = Arrays.copyOf(zOrder, capacity);
+      freeSlots = Arrays.copyOf(freeSlots, capacity);
+      rehashIdIndex(capacity * 2);
+    }
+    return slotsUsed++;
+  }
+
+  private int lastZ() {
+    return zs[zOrder[size - 1]];
+  }
+
+  /** Returns the position in {@link #zOrder} of the first slot with z-index not less than given. */
+  private int lowerBound(final int z) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (zs[zOrder[mid]] < z) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private boolean occupied(final int z) {
+    final int position = lowerBound(z);
+    return position < size && zs[zOrder[position]] == z;
+  }
+
+  /**
+   * Will insert the slot at its z-index, shifting the slot occupying it together with all the
+   * following ones. Slot must be already counted in {@link #size}, but not present in {@link
+   * #zOrder}. Overflow must be checked by the caller.
+   */
+  private void insertZOrder(final int slot) {
+    final int ordered = size - 1;
+    int lo = 0;
+    int hi = ordered;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (zs[zOrder[mid]] < zs[slot]) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo < ordered && zs[zOrder[lo]] == zs[slot]) {
+      for (int i = lo; i < ordered; i++) {
+        zs[zOrder[i]]++;
+      }
+    }
+    System.arraycopy(zOrder, lo, zOrder, lo + 1, ordered - lo);
+    zOrder[lo] = slot;
+  }
+
+  /** Removes the slot from {@link #zOrder}, it stays counted in {@link #size}. */
+  private void removeZOrder(final int slot) {
+    final int position = lowerBound(zs[slot]);
+    System.arraycopy(zOrder, position + 1, zOrder, position, size - position - 1);
+  }
+
+  private int findSlot(final String id) {
+    final int mask = idIndex.length - 1;
+    if (!CompactId.isCompact(id)) {
+      for (int i = bucket(id.hashCode(), mask); idIndex[i] != 0; i = (i + 1) & mask) {
+        final int slot = idIndex[i] - 1;
+        if (id.equals(ids[slot])) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+    final long high = CompactId.high(id);
+    final long low = CompactId.low(id);
+    for (int i = bucket(high, low, mask); idIndex[i] != 0; i = (i + 1) & mask) {
+      final int slot = idIndex[i] - 1;
+      if (ids[slot] == null && idsHigh[slot] == high && idsLow[slot] == low) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void putIdIndex(final int slot) {
+    final int mask = idIndex.length - 1;
+    int i = slotBucket(slot, mask);
+    while (idIndex[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    idIndex[i] = slot + 1;
+  }
+
+  /** Removes the slot and moves back the following entries of its probe sequence. */
+  private void removeIdIndex(final int slot) {
+    final int mask = idIndex.length - 1;
+    int hole = slotBucket(slot, mask);
+    while (idIndex[hole] != slot + 1) {
+      hole = (hole + 1) & mask;
+    }
+    for (int i = (hole + 1) & mask; idIndex[i] != 0; i = (i + 1) & mask) {
+      final int home = slotBucket(idIndex[i] - 1, mask);
+      // entry can fill the hole if its home bucket is not within (hole, i]
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        idIndex[hole] = idIndex[i];
+        hole = i;
+      }
+    }
+    idIndex[hole] = 0;
+  }
+
+  private void rehashIdIndex(final int capacity) {
+    idIndex = new int[capacity];
+    for (int i = 0; i < size; i++) {
+      putIdIndex(zOrder[i]);
+    }
+  }
+
+  private int slotBucket(final int slot, final int mask) {
+    return ids[slot] != null
+        ? bucket(ids[slot].hashCode(), mask)
+        : bucket(idsHigh[slot], idsLow[slot], mask);
+  }
+
+  private static int bucket(final long high, final long low, final int mask) {
+    return bucket(high * 31 + low, mask);
+  }
+
+  private static int bucket(final long hash, final int mask) {
+    final long mixed = hash * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32)) & mask;
+  }
+}
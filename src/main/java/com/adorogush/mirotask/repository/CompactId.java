@@ -0,0 +1,101 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Converts ids in canonical {@link UUID} string form (36 characters, lower case hex) to a pair of
+ * {@code long}s and back. Only canonical form is accepted, so conversion back always gives the very
+ * same string.
+ */
+final class CompactId {
+
+  private static final int LENGTH = 36;
+  private static final int BYTES = 16;
+  // never present in UTF-8, appended to the plain ids taking exactly BYTES bytes
+  private static final byte PLAIN_MARKER = (byte) 0xFF;
+
+  private CompactId() {}
+
+  static boolean isCompact(final String id) {
+    if (id.length() != LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < LENGTH; i++) {
+      final char c = id.charAt(i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          return false;
+        }
+      } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Most significant bits of the id, which must be compact. */
+  static long high(final String id) {
+    return (hex(id, 0, 8) << 32) | (hex(id, 9, 13) << 16) | hex(id, 14, 18);
+  }
+
+  /** Least significant bits of the id, which must be compact. */
+  static long low(final String id) {
+    return (hex(id, 19, 23) << 48) | hex(id, 24, 36);
+  }
+
+  static String toString(final long high, final long low) {
+    return new UUID(high, low).toString();
+  }
+
+  /**
+   * Id as bytes: compact ids take {@link #BYTES} bytes, other ids are kept as UTF-8 and never take
+   * exactly {@link #BYTES} bytes, so conversion back always gives the very same string.
+   */
+  static byte[] toBytes(final String id) {
+    if (isCompact(id)) {
+      return ByteBuffer.allocate(BYTES).putLong(high(id)).putLong(low(id)).array();
+    }
+    final byte[] plain = id.getBytes(StandardCharsets.UTF_8);
+    if (plain.length != BYTES) {
+      return plain;
+    }
+    final byte[] marked = Arrays.copyOf(plain, BYTES + 1);
+    marked[BYTES] = PLAIN_MARKER;
+    return marked;
+  }
+
+  static String fromBytes(final byte[] bytes) {
+    if (bytes.length == BYTES) {
+      final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      return toString(buffer.getLong(), buffer.getLong());
+    }
+    final int length = bytes[bytes.length - 1] == PLAIN_MARKER ? BYTES : bytes.length;
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static long hex(final String id, final int from, final int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      value = (value << 4) | Character.digit(id.charAt(i), 16);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,604 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.service.IdProvider;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Implementation of {@link WidgetRepository} based on concurrent collections, where widgets are
+ * kept under internal {@code long} keys spaced with gaps instead of under their z-index.<br>
+ * The z-index of a widget is derived from its key as {@code (key >> KEY_GAP_BITS) + offset}, where
+ * offset is taken from the closest preceding entry of {@link State#offsets}. This way a shift of
+ * all widgets starting from some z-index only records a single offset entry, and the widget being
+ * inserted takes a free key between its neighbours. Shift costs O(log n + number of offsets)
+ * instead of re-inserting the whole tail.<br>
+ * When {@link #compactionThreshold} offsets are accumulated, the keys are re-spread by a background
+ * compaction. When there is no free key between two neighbours left, compaction happens in place.
+ * Compaction duration is recorded by the {@code widgets.compaction} timer.<br>
+ * <b>Create</b>, <b>Update</b>, <b>Delete</b> and compaction will acquire shared {@link
+ * #writesGlobalLock}, meaning no parallel writes are allowed.<br>
+ * <b>Read one</b> and <b>Read all</b> operations will only wait while a shift or a z-index update
+ * is being applied.<br>
+ * Every write operation records its changes to {@link #changeLog} while still holding {@link
+ * #writesGlobalLock}, a shift is recorded as a single entry before {@link #writesShiftLock} is
+ * released. Compaction changes no z-index, so it is not recorded.<br>
+ * A board repository is written to its snapshot in {@link #boardFiles} when it is closed, and
+ * loaded from it when the board is created again with compacted keys. Boards share the compaction
+ * thread and timer of the repository they are created by.
+ */
+@Repository
+@ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "gap")
+public class GapBasedWidgetRepository implements WidgetRepository {
+
+  static final int KEY_GAP_BITS = 20;
+  private static final long KEY_GAP = 1L << KEY_GAP_BITS;
+  private static final long KEY_GAP_MIDDLE = KEY_GAP >> 1;
+  private static final Logger log = LogManager.getLogger();
+  private final IdProvider idProvider;
+  private final Clock clock;
+  private final int compactionThreshold;
+  private final Timer compactionTimer;
+  private final ExecutorService compactionExecutor;
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+  private final Lock writesGlobalLock = new ReentrantLock();
+  private final Lock writesShiftLock;
+  private final Lock readsShiftLock;
+  private volatile State state = new State();
+  private final ChangeLog changeLog = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  private final BoardFiles boardFiles;
+  // null for the repository of the default board
+  private final String boardId;
+  // guarded by writesGlobalLock
+  private boolean closed;
+
+  @Autowired
+  public GapBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final MeterRegistry meterRegistry,
+      @Value("${gapCompactionThreshold}") final int compactionThreshold,
+      @Value("${boardsPath}") final String boardsPath) {
+    this(
+        idProvider,
+        clock,
+        compactionThreshold,
+        meterRegistry.timer("widgets.compaction"),
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "widgets-compaction");
+              thread.setDaemon(true);
+              return thread;
+            }),
+        BoardFiles.of(boardsPath),
+        null);
+  }
+
+  public GapBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final MeterRegistry meterRegistry,
+      final int compactionThreshold) {
+    this(idProvider, clock, meterRegistry, compactionThreshold, "");
+  }
+
+  private GapBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final int compactionThreshold,
+      final Timer compactionTimer,
+      final ExecutorService compactionExecutor,
+      final BoardFiles boardFiles,
+      final String boardId) {
+    this.idProvider = idProvider;
+    this.clock = clock;
+    this.compactionThreshold = compactionThreshold;
+    this.compactionTimer = compactionTimer;
+    this.compactionExecutor = compactionExecutor;
+    this.boardFiles = boardFiles;
+    this.boardId = boardId;
+
+    final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    writesShiftLock = rwLock.writeLock();
+    readsShiftLock = rwLock.readLock();
+
+    if (boardId == null) {
+      log.info("Gap based WidgetRepository initialized.");
+    }
+  }
+
+  @Override
+  public Widget createOne(final WidgetToCreate widgetToCreate) {
+    writesGlobalLock.lock();
+    try {
+      checkBoardOpen(closed);
+      // generate unique id
+      String id;
+      do {
+        id = idProvider.get();
+      } while (state.idToKey.get(id) != null);
+
+      final Widget widget;
+      if (widgetToCreate.z() == null) {
+        final Long lastKey = state.lastKey();
+        final int z = lastKey == null ? Integer.MIN_VALUE : checkOverflow(state.z(lastKey)) + 1;
+        widget = widgetToCreateToWidget(widgetToCreate, id, z);
+      } else {
+        widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
+        ensureFreeKey(widget.z());
+        checkShiftOverflow(widget.z(), null);
+      }
+      insert(widget, new ChangeLog.Record().created(widget));
+      scheduleCompactionIfNeeded();
+      return widget;
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    final GapBasedWidgetRepository board =
+        new GapBasedWidgetRepository(
+            idProvider,
+            clock,
+            compactionThreshold,
+            compactionTimer,
+            compactionExecutor,
+            boardFiles,
+            boardId);
+    boardFiles.snapshotFile(boardId).load(board::load);
+    return board;
+  }
+
+  @Override
+  public void closeBoard() {
+    if (boardId == null) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    writesGlobalLock.lock();
+    try {
+      closed = true;
+      final List<Widget> widgets = new ArrayList<>(state.idToKey.size());
+      exportAll(widgets::add);
+      boardFiles.snapshotFile(boardId).write(widgets, 0);
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> readOne(final String id) {
+    readsShiftLock.lock();
+    try {
+      final State s = state;
+      final Long key = s.idToKey.get(id);
+      if (key == null) {
+        return Optional.empty();
+      }
+      return Optional.ofNullable(s.keyToWidget.get(key)).map(w -> w.withZ(s.z(key)));
+    } finally {
+      readsShiftLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Widget> readAll(final int perPage, final Integer fromZ) {
+    readsShiftLock.lock();
+    try {
+      final State s = state;
+      final Long fromKey = fromZ == null ? s.firstKey() : s.ceilingKey(fromZ);
+      if (fromKey == null) {
+        return List.of();
+      }
+      final List<Widget> returnList = new ArrayList<>(Math.min(perPage, 64));
+      for (final Map.Entry<Long, Widget> entry : s.keyToWidget.tailMap(fromKey).entrySet()) {
+        if (returnList.size() >= perPage) {
+          break;
+        }
+        returnList.add(entry.getValue().withZ(s.z(entry.getKey())));
+      }
+      return returnList;
+    } finally {
+      readsShiftLock.unlock();
+    }
+  }
+
+  /** Shifts are recorded under {@link #writesShiftLock}, so none is made while the page is read. */
+  @Override
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    readsShiftLock.lock();
+    try {
+      return new VersionedPage(
+          area == null ? readAll(perPage, fromZ) : readAllInArea(perPage, fromZ, area),
+          changeLog.version());
+    } finally {
+      readsShiftLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
+    readsShiftLock.lock();
+    try {
+      return changeLog.readAfter(version, lastZ, fromZ -> readVersioned(perPage, fromZ, area));
+    } finally {
+      readsShiftLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+    writesGlobalLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Long foundKey = state.idToKey.get(id);
+      if (foundKey == null) {
+        return Optional.empty();
+      }
+      final Widget widgetFound = state.keyToWidget.get(foundKey).withZ(state.z(foundKey));
+      final Widget widgetUpdated = widgetToUpdateToWidget(widgetFound, widgetToUpdate);
+      final ChangeLog.Record record = new ChangeLog.Record();
+      if (widgetToUpdate.z() == null) {
+        state.keyToWidget.put(foundKey, widgetUpdated);
+        changeLog.record(record.updated(widgetUpdated));
+        return Optional.of(widgetUpdated);
+      }
+      ensureFreeKey(widgetUpdated.z());
+      checkShiftOverflow(widgetUpdated.z(), id);
+      writesShiftLock.lock();
+      try {
+        // ensureFreeKey() might have compacted the keys
+        final State s = state;
+        s.keyToWidget.remove(s.idToKey.remove(id));
+        insert(widgetUpdated, record.updated(widgetUpdated));
+      } finally {
+        writesShiftLock.unlock();
+      }
+      scheduleCompactionIfNeeded();
+      return Optional.of(widgetUpdated);
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> deleteOne(final String id) {
+    writesGlobalLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final State s = state;
+      final Long foundKey = s.idToKey.get(id);
+      if (foundKey == null) {
+        return Optional.empty();
+      }
+      final Widget widgetFound = s.keyToWidget.get(foundKey).withZ(s.z(foundKey));
+      s.idToKey.remove(id);
+      s.keyToWidget.remove(foundKey);
+      changeLog.record(new ChangeLog.Record().deleted(id));
+      return Optional.of(widgetFound);
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    compactionExecutor.shutdownNow();
+  }
+
+  /** Re-spreads keys of all widgets so the gaps between them are restored. */
+  /*for tests*/ void compact() {
+    writesGlobalLock.lock();
+    try {
+      compactionScheduled.set(false);
+      final long start = System.nanoTime();
+      final State s = state;
+      final State compacted = new State();
+      for (final Map.Entry<Long, Widget> entry : s.keyToWidget.entrySet()) {
+        final int z = s.z(entry.getKey());
+        final long key = ((long) z << KEY_GAP_BITS) + KEY_GAP_MIDDLE;
+        final Widget widget = entry.getValue().withZ(z);
+        compacted.keyToWidget.put(key, widget);
+        compacted.idToKey.put(widget.id(), key);
+      }
+      // readers always take a single snapshot of state reference, no need to lock
+      state = compacted;
+      final long elapsed = System.nanoTime() - start;
+      compactionTimer.record(elapsed, TimeUnit.NANOSECONDS);
+      log.info(
+          "Compacted {} widgets and {} offsets in {} ms.",
+          compacted.idToKey.size(),
+          s.offsets.size(),
+          TimeUnit.NANOSECONDS.toMillis(elapsed));
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  /*for tests*/ int idIndexSize() {
+    return state.idToKey.size();
+  }
+
+  /*for tests*/ int keyIndexSize() {
+    return state.keyToWidget.size();
+  }
+
+  /*for tests*/ int offsetsSize() {
+    return state.offsets.size();
+  }
+
+  /*for tests*/ void clear() {
+    writesGlobalLock.lock();
+    try {
+      state = new State();
+      changeLog.clear();
+    } finally {
+      writesGlobalLock.unlock();
+    }
+  }
+
+  /**
+   * Will insert the widget at its z-index, shifting the widget occupying it together with all the
+   * following ones. The shift is added to the record, which is recorded while {@link
+   * #writesShiftLock} is still held, so a versioned read never sees a shift before its record.
+   */
+  private void insert(final Widget widget, final ChangeLog.Record record) {
+    final State s = state;
+    final Long succKey = s.ceilingKey(widget.z());
+    final Long predKey = succKey == null ? s.lastKey() : s.keyToWidget.lowerKey(succKey);
+    final boolean shift = succKey != null && s.z(succKey) == widget.z();
+    final Long naturalKey = s.naturalKey(widget.z(), predKey, succKey);
+    if (!shift && naturalKey != null) {
+      s.put(naturalKey, widget);
+      changeLog.record(record);
+      return;
+    }
+    writesShiftLock.lock();
+    try {
+      if (shift) {
+        s.shift(succKey);
+        record.shifted(widget.z(), 1);
+      }
+      s.put(naturalKey != null ? naturalKey : s.splitKey(widget.z(), predKey, succKey), widget);
+      changeLog.record(record);
+    } finally {
+      writesShiftLock.unlock();
+    }
+  }
+
+  /** Puts a widget of a consistent snapshot under the key compaction would give it. */
+  private void load(final Widget widget) {
+    state.put(((long) widget.z() << KEY_GAP_BITS) + KEY_GAP_MIDDLE, widget);
+  }
+
+  /** Will compact the keys in place if there is no free key left for the z-index. */
+  private void ensureFreeKey(final int z) {
+    final State s = state;
+    final Long succKey = s.ceilingKey(z);
+    if (succKey == null) {
+      return;
+    }
+    final Long predKey = s.keyToWidget.lowerKey(succKey);
+    if (predKey != null && succKey - predKey <= 1) {
+      log.debug("No free key left for z-index {}, compacting.", z);
+      compact();
+    }
+  }
+
+  /** Shift will fail if the top z-index is already at max value. */
+  private void checkShiftOverflow(final int z, final String excludedId) {
+    final State s = state;
+    final Long occupiedKey = s.ceilingKey(z);
+    final Long excludedKey = excludedId == null ? null : s.idToKey.get(excludedId);
+    if (occupiedKey == null || s.z(occupiedKey) != z || occupiedKey.equals(excludedKey)) {
+      return;
+    }
+    Long lastKey = s.keyToWidget.lastKey();
+    if (lastKey.equals(excludedKey)) {
+      lastKey = s.keyToWidget.lowerKey(lastKey);
+    }
+    if (lastKey != null) {
+      checkOverflow(s.z(lastKey));
+    }
+  }
+
+  private void scheduleCompactionIfNeeded() {
+    if (state.offsets.size() >= compactionThreshold
+        && compactionScheduled.compareAndSet(false, true)) {
+      compactionExecutor.execute(this::compact);
+    }
+  }
+
+  private Widget widgetToCreateToWidget(
+      final WidgetToCreate widgetToCreate, final String id, final int z) {
+    return new Widget(
+        id,
+        widgetToCreate.x(),
+        widgetToCreate.y(),
+        z,
+        widgetToCreate.width(),
+        widgetToCreate.height(),
+        clock.instant());
+  }
+
+  private Widget widgetToUpdateToWidget(
+      final Widget existing, final WidgetToUpdate widgetToUpdate) {
+    return new Widget(
+        existing.id(),
+        widgetToUpdate.x() != null ? widgetToUpdate.x() : existing.x(),
+        widgetToUpdate.y() != null ? widgetToUpdate.y() : existing.y(),
+        widgetToUpdate.z() != null ? widgetToUpdate.z() : existing.z(),
+        widgetToUpdate.width() != null ? widgetToUpdate.width() : existing.width(),
+        widgetToUpdate.height() != null ? widgetToUpdate.height() : existing.height(),
+        clock.instant());
+  }
+
+  /**
+   * Holds all the indexes. Is replaced as a whole by compaction, so readers never observe keys of
+   * one generation mixed with offsets of another.
+   */
+  private static final class State {
+
+    private final Map<String, Long> idToKey = new ConcurrentHashMap<>();
+    private final NavigableMap<Long, Widget> keyToWidget = new ConcurrentSkipListMap<>();
+    /** Offset applies to all keys greater or equal to its key, until the next offset. */
+    private final NavigableMap<Long, Long> offsets = new ConcurrentSkipListMap<>();
+
+    private Long firstKey() {
+      return keyToWidget.isEmpty() ? null : keyToWidget.firstKey();
+    }
+
+    private Long lastKey() {
+      return keyToWidget.isEmpty() ? null : keyToWidget.lastKey();
+    }
+
+    private long offset(final long key) {
+      final Map.Entry<Long, Long> entry = offsets.floorEntry(key);
+      return entry == null ? 0 : entry.getValue();
+    }
+
+    private int z(final long key) {
+      return (int) ((key >> KEY_GAP_BITS) + offset(key));
+    }
+
+    /** Returns the key of the first widget with z-index greater or equal to provided. */
+    private Long ceilingKey(final int z) {
+      // z-index grows together with the keys, so the first one found in key order is the one
+      long from = Long.MIN_VALUE;
+      long offset = 0;
+      final Iterator<Map.Entry<Long, Long>> iterator = offsets.entrySet().iterator();
+      while (true) {
+        final Map.Entry<Long, Long> next = iterator.hasNext() ? iterator.next() : null;
+        final Long key = keyToWidget.ceilingKey(Math.max(from, (z - offset) << KEY_GAP_BITS));
+        if (next == null) {
+          return key;
+        }
+        if (key != null && key < next.getKey()) {
+          return key;
+        }
+        from = next.getKey();
+        offset = next.getValue();
+      }
+    }
+
+    /**
+     * Returns a free key between provided neighbours, that is mapped to the z-index without any new
+     * offset. {@code null} if there is no such key.
+     */
+    private Long naturalKey(final int z, final Long predKey, final Long succKey) {
+      final long anchor = predKey != null ? predKey : succKey != null ? succKey - 1 : 0;
+      final long bucket = z - offset(anchor);
+      long lo = bucket << KEY_GAP_BITS;
+      long hi = (bucket + 1) << KEY_GAP_BITS;
+      final Long offsetFrom = offsets.floorKey(anchor);
+      final Long offsetTo = offsets.higherKey(anchor);
+      if (offsetFrom != null) {
+        lo = Math.max(lo, offsetFrom);
+      }
+      if (offsetTo != null) {
+        hi = Math.min(hi, offsetTo);
+      }
+      if (predKey != null) {
+        lo = Math.max(lo, predKey + 1);
+      }
+      if (succKey != null) {
+        hi = Math.min(hi, succKey);
+      }
+      if (lo >= hi) {
+        return null;
+      }
+      final long middle = (bucket << KEY_GAP_BITS) + KEY_GAP_MIDDLE;
+      return middle >= lo && middle < hi ? middle : lo + (hi - lo) / 2;
+    }
+
+    /**
+     * Returns a free key in the middle between provided neighbours and adds an offset, so the key
+     * is mapped to the z-index. Neighbours must not be adjacent.
+     */
+    private long splitKey(final int z, final Long predKey, final Long succKey) {
+      final long lo = predKey != null ? predKey + 1 : succKey != null ? succKey - KEY_GAP : 0;
+      final long hi = succKey != null ? succKey : lo + KEY_GAP;
+      final long key = lo + (hi - lo) / 2;
+      if (succKey != null) {
+        // keep z-index of the following widgets
+        offsets.putIfAbsent(succKey, offset(succKey));
+      }
+      offsets.put(key, z - (key >> KEY_GAP_BITS));
+      return key;
+    }
+
+    /** Increments z-index of all widgets with key greater or equal to provided. */
+    private void shift(final long fromKey) {
+      final long offset = offset(fromKey);
+      offsets.tailMap(fromKey, false).replaceAll((key, value) -> value + 1);
+      offsets.put(fromKey, offset + 1);
+    }
+
+    private void put(final long key, final Widget widget) {
+      keyToWidget.put(key, widget);
+      idToKey.put(widget.id(), key);
+    }
+  }
+}
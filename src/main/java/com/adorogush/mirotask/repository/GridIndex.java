@@ -0,0 +1,159 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Spatial index of widget ids based on a hierarchy of uniform grids of square cells, the cells of
+ * every next level are {@code 2^LEVEL_BITS} times larger.<br>
+ * Every widget id is put to a single cell of the finest level whose cells are not smaller than the
+ * widget, the cell holding its top left corner. So a widget only reaches the next cell to the
+ * right and below, and a query looks in the cells of every level touched by the area extended by
+ * one cell to the left and up. Widgets of any size are found by looking in a few cells of the
+ * coarse levels, no widget is checked by every query. Cells of the coarsest level are larger than
+ * any widget.<br>
+ * Only ids are kept, so z-index changes do not touch the index. All operations are thread safe.
+ * {@link H2BasedWidgetRepository} keeps the same cells in a table.
+ */
+final class GridIndex {
+
+  static final int LEVELS = 13;
+  private static final int CELL_BITS = 10;
+  private static final int LEVEL_BITS = 2;
+  private static final int MAX_AREA_CELLS = 4096;
+  private final List<ConcurrentMap<Long, Set<String>>> levels = new ArrayList<>(LEVELS);
+
+  GridIndex() {
+    for (int level = 0; level < LEVELS; level++) {
+      levels.add(new ConcurrentHashMap<>());
+    }
+  }
+
+  void add(final Widget widget) {
+    final Area area = Area.of(widget);
+    final int level = level(area);
+    final int bits = cellBits(level);
+    levels
+        .get(level)
+        .compute(
+            key(area.x1() >> bits, area.y1() >> bits),
+            (key, ids) -> {
+              final Set<String> cellIds = ids != null ? ids : ConcurrentHashMap.newKeySet();
+              cellIds.add(widget.id());
+              return cellIds;
+            });
+  }
+
+  void remove(final Widget widget) {
+    final Area area = Area.of(widget);
+    final int level = level(area);
+    final int bits = cellBits(level);
+    levels
+        .get(level)
+        .computeIfPresent(
+            key(area.x1() >> bits, area.y1() >> bits),
+            (key, ids) -> {
+              ids.remove(widget.id());
+              return ids.isEmpty() ? null : ids;
+            });
+  }
+
+  /** Moves the widget in the index, if its area is changed. */
+  void move(final Widget from, final Widget to) {
+    if (!Area.of(from).equals(Area.of(to))) {
+      remove(from);
+      add(to);
+    }
+  }
+
+  void clear() {
+    levels.forEach(Map::clear);
+  }
+
+  /**
+   * Passes every widget intersecting the area to the consumer exactly once, in no particular
+   * order. Widgets are looked up by id, so the current state is checked. Returns {@code false}
+   * without passing anything, if the area touches too many cells of the finest level and scanning
+   * all widgets is cheaper.
+   */
+  boolean collect(
+      final Area area, final Function<String, Widget> lookup, final Consumer<Widget> consumer) {
+    if (((area.x2() >> CELL_BITS) - (area.x1() >> CELL_BITS) + 2)
+            * ((area.y2() >> CELL_BITS) - (area.y1() >> CELL_BITS) + 2)
+        > MAX_AREA_CELLS) {
+      return false;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      final Map<Long, Set<String>> cells = levels.get(level);
+      if (cells.isEmpty()) {
+        continue;
+      }
+      final int bits = cellBits(level);
+      for (long cx = (area.x1() >> bits) - 1; cx <= area.x2() >> bits; cx++) {
+        for (long cy = (area.y1() >> bits) - 1; cy <= area.y2() >> bits; cy++) {
+          final Set<String> ids = cells.get(key(cx, cy));
+          if (ids == null) {
+            continue;
+          }
+          for (final String id : ids) {
+            final Widget widget = lookup.apply(id);
+            // a widget moved meanwhile is passed from the cell it is moved to
+            if (widget != null && area.intersects(widget) && isInCell(widget, level, cx, cy)) {
+              consumer.accept(widget);
+            }
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Level of the cells the area is kept in. */
+  static int level(final Area area) {
+    final long size = Math.max(area.x2() - area.x1(), area.y2() - area.y1());
+    int level = 0;
+    while (level < LEVELS - 1 && size > 1L << cellBits(level)) {
+      level++;
+    }
+    return level;
+  }
+
+  /** Cells of the level are {@code 2^cellBits} sized. */
+  static int cellBits(final int level) {
+    return CELL_BITS + level * LEVEL_BITS;
+  }
+
+  private static boolean isInCell(
+      final Widget widget, final int level, final long cx, final long cy) {
+    final Area area = Area.of(widget);
+    final int bits = cellBits(level);
+    return level(area) == level && area.x1() >> bits == cx && area.y1() >> bits == cy;
+  }
+
+  private static long key(final long cx, final long cy) {
+    return (cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+}
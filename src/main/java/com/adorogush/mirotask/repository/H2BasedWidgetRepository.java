@@ -16,58 +16,127 @@
 package com.adorogush.mirotask.repository;
 
 import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
 import static java.util.Objects.requireNonNull;
 
+import com.adorogush.mirotask.exception.ConflictException;
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Widget;
 import com.adorogush.mirotask.model.WidgetToCreate;
 import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsToReorder;
 import com.adorogush.mirotask.service.IdProvider;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
-/** Implementation of {@link WidgetRepository} based on H2 in-memory database. */
+/**
+ * Implementation of {@link WidgetRepository} based on H2 in-memory database. Bounds of widget area
+ * are kept in computed columns. The cell of every widget in the grids of {@link GridIndex} is kept
+ * in {@code widget_cell} table, so <b>Read all in area</b>, <b>Read top at</b> and <b>Delete all in
+ * area</b> operations only read the widgets of the cells touched by the area, one indexed range of
+ * cells per level. Cells are written with the widgets, a shift does not touch them and deleted
+ * widgets drop their cells by the cascading foreign key.<br>
+ * Ids are kept as bytes by {@link CompactId}, ids in canonical {@link java.util.UUID} form take 16
+ * bytes instead of a 36 characters string in the table and its primary key index.<br>
+ * Widgets of all boards are kept in the same table, every statement is restricted to the rows of
+ * {@link #boardId}. Indexes start with the board column, and transactions of different boards
+ * never lock the same rows, so they run in parallel.
+ */
 @Repository
 @ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "h2")
 public class H2BasedWidgetRepository implements WidgetRepository {
 
   private static final Logger log = LogManager.getLogger();
+  private static final int DELETE_CHUNK_SIZE = 1000;
+  private static final int EXPORT_FETCH_SIZE = 1000;
+  private static final String DEFAULT_BOARD_ID = "default";
+  private static final String CELLS_IN_AREA_SQL =
+      IntStream.range(0, GridIndex.LEVELS)
+          .mapToObj(
+              level ->
+                  "select id from widget_cell where board = ? and cellLevel = "
+                      + level
+                      + " and cellX between ? and ? and cellY between ? and ?")
+          .collect(Collectors.joining(" union all "));
   private final IdProvider idProvider;
   private final Clock clock;
   private final TransactionTemplate transactionTemplate;
   private final JdbcTemplate jdbcTemplate;
   private final SimpleJdbcInsert widgetTableInsert;
+  // changes of every modifying transaction are recorded once it is committed
+  private final ChangeLog changeLog;
+  // held from the commit of a modifying transaction until its changes are recorded
+  private final Lock commitLock = new ReentrantLock();
+  private final String boardId;
+  private volatile boolean closed;
 
+  @Autowired
   public H2BasedWidgetRepository(
       final IdProvider idProvider,
       final Clock clock,
       final TransactionTemplate transactionTemplate,
-      final JdbcTemplate jdbcTemplate) {
+      final JdbcTemplate jdbcTemplate,
+      @Value("${changeLogSize}") final int changeLogSize) {
+    this(idProvider, clock, transactionTemplate, jdbcTemplate, changeLogSize, DEFAULT_BOARD_ID);
+    log.info("H2 based WidgetRepository initialized.");
+  }
+
+  private H2BasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final TransactionTemplate transactionTemplate,
+      final JdbcTemplate jdbcTemplate,
+      final int changeLogSize,
+      final String boardId) {
     this.idProvider = idProvider;
     this.clock = clock;
     this.transactionTemplate = transactionTemplate;
     this.jdbcTemplate = jdbcTemplate;
-    this.widgetTableInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName("widget");
-    log.info("H2 based WidgetRepository initialized.");
+    this.changeLog = new ChangeLog(changeLogSize);
+    this.boardId = boardId;
+    this.widgetTableInsert =
+        new SimpleJdbcInsert(jdbcTemplate)
+            .withTableName("widget")
+            .usingColumns("board", "id", "x", "y", "z", "width", "height", "lastModified");
   }
 
   @Override
   public Widget createOne(final WidgetToCreate widgetToCreate) {
-    return transactionTemplate.execute(
-        status -> {
+    return modify(
+        record -> {
           // generate unique id
           final String id = idProvider.get();
 
@@ -79,14 +148,85 @@ public class H2BasedWidgetRepository implements WidgetRepository {
           } else {
             widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
             if (getIfWidgetExistsByZ(widget.z())) {
-              shift(widget.z());
+              shift(widget.z(), record);
             }
           }
           widgetTableInsert.execute(widgetToJdbcMap(widget));
+          insertCells(List.of(widget));
+          record.created(widget);
           return widget;
         });
   }
 
+  /**
+   * Existing widgets are moved by one update per distinct shift threshold of {@link BatchPlan},
+   * starting from the highest one, and all widgets are inserted by a single JDBC batch.
+   */
+  @Override
+  public List<Widget> createMany(final List<WidgetToCreate> widgetsToCreate) {
+    return modify(
+        record -> {
+          final BatchPlan plan =
+              BatchPlan.of(widgetsToCreate, getHighestZ().orElse(null), this::getIfWidgetExistsByZ);
+          final List<Widget> created = new ArrayList<>(widgetsToCreate.size());
+          for (int i = 0; i < widgetsToCreate.size(); i++) {
+            created.add(
+                widgetToCreateToWidget(widgetsToCreate.get(i), idProvider.get(), plan.finalZ(i)));
+          }
+          plan.zIndexShifts().forEach(record::shifted);
+          created.forEach(record::created);
+          final List<Object[]> shifts = new ArrayList<>();
+          int upperBound = Integer.MAX_VALUE;
+          for (int k = plan.thresholdCount() - 1; k >= 0; k--) {
+            final int threshold = plan.threshold(k);
+            if (k + 1 < plan.thresholdCount() && plan.threshold(k + 1) == threshold) {
+              continue;
+            }
+            // widgets from this threshold up to the next one are moved by the thresholds not above
+            shifts.add(new Object[] {k + 1, boardId, threshold, upperBound});
+            upperBound = threshold - 1;
+          }
+          jdbcTemplate.batchUpdate(
+              "update widget set z = z + ? where board = ? and z >= ? and z <= ?", shifts);
+          widgetTableInsert.executeBatch(
+              created.stream()
+                  .map(widget -> new MapSqlParameterSource(widgetToJdbcMap(widget)))
+                  .toArray(SqlParameterSource[]::new));
+          insertCells(created);
+          return created;
+        });
+  }
+
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    return new H2BasedWidgetRepository(
+        idProvider, clock, transactionTemplate, jdbcTemplate, changeLog.capacity(), boardId);
+  }
+
+  /** Widgets stay in the table of the board, so nothing has to be written. */
+  @Override
+  public void closeBoard() {
+    if (DEFAULT_BOARD_ID.equals(boardId)) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    closed = true;
+  }
+
   @Override
   public Optional<Widget> readOne(final String id) {
     return transactionTemplate.execute(status -> readOneInternal(id));
@@ -95,28 +235,48 @@ public class H2BasedWidgetRepository implements WidgetRepository {
   private Optional<Widget> readOneInternal(final String id) {
     final List<Widget> found =
         jdbcTemplate.query(
-            "select * from widget where id = ?", H2BasedWidgetRepository::widgetRowMapper, id);
+            "select * from widget where board = ? and id = ?",
+            H2BasedWidgetRepository::widgetRowMapper,
+            boardId,
+            CompactId.toBytes(id));
+    return Optional.of(found).filter(l -> !l.isEmpty()).map(l -> l.get(0));
+  }
+
+  private Optional<Integer> getLowestZ() {
+    final List<Integer> found =
+        jdbcTemplate.query(
+            "select z from widget where board = ? order by z limit 1",
+            (rs, rowNum) -> rs.getInt(1),
+            boardId);
     return Optional.of(found).filter(l -> !l.isEmpty()).map(l -> l.get(0));
   }
 
   private Optional<Integer> getHighestZ() {
     final List<Integer> found =
         jdbcTemplate.query(
-            "select z from widget order by z desc limit 1", (rs, rowNum) -> rs.getInt(1));
+            "select z from widget where board = ? order by z desc limit 1",
+            (rs, rowNum) -> rs.getInt(1),
+            boardId);
     return Optional.of(found).filter(l -> !l.isEmpty()).map(l -> l.get(0));
   }
 
   private boolean getIfWidgetExistsById(final String id) {
     return requireNonNull(
             jdbcTemplate.queryForObject(
-                "select count(*) from widget where id = ?", Integer.class, id))
+                "select count(*) from widget where board = ? and id = ?",
+                Integer.class,
+                boardId,
+                CompactId.toBytes(id)))
         > 0;
   }
 
   private boolean getIfWidgetExistsByZ(final int z) {
     return requireNonNull(
             jdbcTemplate.queryForObject(
-                "select count(*) from widget where z = ?", Integer.class, z))
+                "select count(*) from widget where board = ? and z = ?",
+                Integer.class,
+                boardId,
+                z))
         > 0;
   }
 
@@ -126,29 +286,168 @@ public class H2BasedWidgetRepository implements WidgetRepository {
         status -> {
           if (fromZ == null) {
             return jdbcTemplate.query(
-                "select * from widget order by z limit ?",
+                "select * from widget where board = ? order by z limit ?",
                 H2BasedWidgetRepository::widgetRowMapper,
+                boardId,
                 perPage);
           } else {
             return jdbcTemplate.query(
-                "select * from widget where z >= ? order by z limit ?",
+                "select * from widget where board = ? and z >= ? order by z limit ?",
                 H2BasedWidgetRepository::widgetRowMapper,
+                boardId,
                 fromZ,
                 perPage);
           }
         });
   }
 
+  /**
+   * The page is read under {@link #commitLock}, so no transaction is committed between the query
+   * and the version. The lock is taken once the transaction holds its connection, so a reader never
+   * waits for a connection held by a writer waiting for the lock.
+   */
   @Override
-  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    return transactionTemplate.execute(
+        status -> {
+          commitLock.lock();
+          try {
+            return new VersionedPage(
+                area == null ? readAll(perPage, fromZ) : readAllInArea(perPage, fromZ, area),
+                changeLog.version());
+          } finally {
+            commitLock.unlock();
+          }
+        });
+  }
+
+  /** The page is read the same way, the read of the changes joins its transaction and lock. */
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
     return transactionTemplate.execute(
         status -> {
+          commitLock.lock();
+          try {
+            return changeLog.readAfter(
+                version, lastZ, fromZ -> readVersioned(perPage, fromZ, area));
+          } finally {
+            commitLock.unlock();
+          }
+        });
+  }
+
+  /**
+   * Widgets are read by a single query in a transaction. Lazy query execution is enabled
+   * for it, so H2 fetches the rows from the z-index while the result set is iterated instead of
+   * materializing the whole result first.
+   */
+  @Override
+  public void exportAll(final Consumer<Widget> consumer) {
+    transactionTemplate.executeWithoutResult(
+        status -> {
+          jdbcTemplate.execute("set lazy_query_execution true");
+          try {
+            jdbcTemplate.query(
+                connection -> {
+                  final PreparedStatement statement =
+                      connection.prepareStatement(
+                          "select * from widget where board = ? order by z");
+                  statement.setString(1, boardId);
+                  statement.setFetchSize(EXPORT_FETCH_SIZE);
+                  return statement;
+                },
+                (RowCallbackHandler) rs -> consumer.accept(widgetRowMapper(rs, rs.getRow())));
+          } finally {
+            jdbcTemplate.execute("set lazy_query_execution false");
+          }
+        });
+  }
+
+  @Override
+  public List<Widget> readAllInArea(final int perPage, final Integer fromZ, final Area area) {
+    return transactionTemplate.execute(
+        status ->
+            jdbcTemplate.query(
+                inAreaSql("*") + " and z >= ? order by z limit ?",
+                H2BasedWidgetRepository::widgetRowMapper,
+                inAreaValues(area, fromZ == null ? Integer.MIN_VALUE : fromZ, perPage)));
+  }
+
+  @Override
+  public List<Widget> readTopAt(final int limit, final int x, final int y) {
+    return transactionTemplate.execute(
+        status ->
+            jdbcTemplate.query(
+                inAreaSql("*") + " order by z desc limit ?",
+                H2BasedWidgetRepository::widgetRowMapper,
+                inAreaValues(new Area(x, y, x, y), limit)));
+  }
+
+  /**
+   * Selects the columns of the widgets intersecting the area, the values are given by {@link
+   * #inAreaValues}. A widget only reaches the next cell to the right and below its own one, so the
+   * cells are looked up from one cell to the left and up of the area.
+   */
+  private static String inAreaSql(final String columns) {
+    // H2 looks the ids of the subquery up in the primary key, a join would scan the board instead
+    return "select "
+        + columns
+        + " from widget where board = ? and id in ("
+        + CELLS_IN_AREA_SQL
+        + ") and minX <= ? and maxX >= ? and minY <= ? and maxY >= ?";
+  }
+
+  private Object[] inAreaValues(final Area area, final Object... values) {
+    final List<Object> inAreaValues = new ArrayList<>();
+    inAreaValues.add(boardId);
+    for (int level = 0; level < GridIndex.LEVELS; level++) {
+      final int bits = GridIndex.cellBits(level);
+      inAreaValues.add(boardId);
+      inAreaValues.add((area.x1() >> bits) - 1);
+      inAreaValues.add(area.x2() >> bits);
+      inAreaValues.add((area.y1() >> bits) - 1);
+      inAreaValues.add(area.y2() >> bits);
+    }
+    inAreaValues.addAll(List.of(area.x2(), area.x1(), area.y2(), area.y1()));
+    inAreaValues.addAll(Arrays.asList(values));
+    return inAreaValues.toArray();
+  }
+
+  private void insertCells(final List<Widget> widgets) {
+    jdbcTemplate.batchUpdate(
+        "insert into widget_cell (board, id, cellLevel, cellX, cellY) values (?, ?, ?, ?, ?)",
+        widgets.stream().map(this::cellRow).collect(Collectors.toList()));
+  }
+
+  private void updateCell(final Widget widget) {
+    jdbcTemplate.update(
+        "delete from widget_cell where board = ? and id = ?",
+        boardId,
+        CompactId.toBytes(widget.id()));
+    insertCells(List.of(widget));
+  }
+
+  /** Row of the cell holding the top left corner of the widget. */
+  private Object[] cellRow(final Widget widget) {
+    final Area area = Area.of(widget);
+    final int level = GridIndex.level(area);
+    final int bits = GridIndex.cellBits(level);
+    return new Object[] {
+      boardId, CompactId.toBytes(widget.id()), level, area.x1() >> bits, area.y1() >> bits
+    };
+  }
+
+  @Override
+  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+    return modify(
+        record -> {
           if (widgetToUpdate.z() != null && getIfWidgetExistsByZ(widgetToUpdate.z())) {
             // we must explicitly check if widget exists by id before shifting
             if (!getIfWidgetExistsById(id)) {
               return Optional.empty();
             }
-            shift(widgetToUpdate.z());
+            shift(widgetToUpdate.z(), record);
           }
           final List<Object> values = new ArrayList<>();
           final String sql = buildUpdateSql(id, widgetToUpdate, values);
@@ -156,27 +455,224 @@ public class H2BasedWidgetRepository implements WidgetRepository {
           if (updated < 1) {
             return Optional.empty();
           }
-          return readOneInternal(id);
+          final Optional<Widget> widgetUpdated = readOneInternal(id);
+          if (widgetToUpdate.x() != null
+              || widgetToUpdate.y() != null
+              || widgetToUpdate.width() != null
+              || widgetToUpdate.height() != null) {
+            widgetUpdated.ifPresent(this::updateCell);
+          }
+          widgetUpdated.ifPresent(record::updated);
+          return widgetUpdated;
         });
   }
 
-  private void shift(final int z) {
-    jdbcTemplate.update("update widget set z = z + 1 where z >= ?", z);
+  /**
+   * Widgets standing in the way of the moved ones are read page by page only until the first one
+   * that can stay. Moved widgets are deleted, pushed widgets are updated starting from the highest
+   * one, then moved widgets are inserted back, so the unique z-index is never violated.
+   */
+  @Override
+  public Optional<List<Widget>> reorder(final WidgetsToReorder widgetsToReorder) {
+    return modify(
+        record -> {
+          final List<Widget> selected = new ArrayList<>();
+          for (final String id : widgetsToReorder.ids()) {
+            final Optional<Widget> widget = readOneInternal(id);
+            if (widget.isEmpty()) {
+              return Optional.empty();
+            }
+            selected.add(widget.get());
+          }
+          selected.sort(Comparator.comparingInt(Widget::z));
+          final int firstZ =
+              widgetsToReorder.firstZ(
+                  selected.size(), getLowestZ().orElseThrow(), getHighestZ().orElseThrow());
+          final Set<String> ids = new HashSet<>(widgetsToReorder.ids());
+          final List<Object[]> pushes = new ArrayList<>();
+          // the lowest z-index the next widget in the way can take
+          long nextZ = (long) firstZ + selected.size();
+          long scanFromZ = firstZ;
+          scan:
+          while (scanFromZ <= Integer.MAX_VALUE) {
+            final List<Object[]> scanned =
+                jdbcTemplate.query(
+                    "select id, z from widget where board = ? and z >= ? order by z limit ?",
+                    (rs, rowNum) ->
+                        new Object[] {CompactId.fromBytes(rs.getBytes(1)), rs.getInt(2)},
+                    boardId,
+                    scanFromZ,
+                    SCAN_PAGE_SIZE);
+            for (final Object[] row : scanned) {
+              final int z = (Integer) row[1];
+              if (z >= nextZ) {
+                break scan;
+              }
+              if (!ids.contains((String) row[0])) {
+                record.pushed(z, (int) nextZ);
+                pushes.add(new Object[] {nextZ++, boardId, CompactId.toBytes((String) row[0])});
+              }
+              scanFromZ = z + 1L;
+            }
+            if (scanned.size() < SCAN_PAGE_SIZE) {
+              break;
+            }
+          }
+          if (nextZ - 1 > Integer.MAX_VALUE) {
+            throw new ConflictException("z-index overflow.");
+          }
+          final List<Widget> reordered = new ArrayList<>(selected.size());
+          final Instant lastModified = clock.instant();
+          for (int i = 0; i < selected.size(); i++) {
+            final Widget widget = selected.get(i);
+            reordered.add(
+                new Widget(
+                    widget.id(),
+                    widget.x(),
+                    widget.y(),
+                    firstZ + i,
+                    widget.width(),
+                    widget.height(),
+                    lastModified));
+          }
+          jdbcTemplate.batchUpdate(
+              "delete from widget where board = ? and id = ?",
+              ids.stream()
+                  .map(id -> new Object[] {boardId, CompactId.toBytes(id)})
+                  .collect(Collectors.toList()));
+          Collections.reverse(pushes);
+          jdbcTemplate.batchUpdate("update widget set z = ? where board = ? and id = ?", pushes);
+          widgetTableInsert.executeBatch(
+              reordered.stream()
+                  .map(widget -> new MapSqlParameterSource(widgetToJdbcMap(widget)))
+                  .toArray(SqlParameterSource[]::new));
+          // cells of the deleted rows are dropped with them
+          insertCells(reordered);
+          reordered.forEach(record::updated);
+          return Optional.of(reordered);
+        });
   }
 
-  @Override
-  public Optional<Widget> deleteOne(final String id) {
+  /** Modification executed in a transaction, it adds the changes it makes to the record. */
+  @FunctionalInterface
+  private interface Modification<T> {
+    T execute(ChangeLog.Record record);
+  }
+
+  /**
+   * Executes the modification in a transaction and records its changes once it is committed,
+   * which increases the version. Commits are recorded one at a time under {@link #commitLock}, so
+   * the records are in the order of the commits.
+   */
+  private <T> T modify(final Modification<T> action) {
+    checkBoardOpen(closed);
+    final ChangeLog.Record record = new ChangeLog.Record();
     return transactionTemplate.execute(
         status -> {
+          final T result = action.execute(record);
+          TransactionSynchronizationManager.registerSynchronization(
+              new TransactionSynchronizationAdapter() {
+                private boolean locked;
+
+                @Override
+                public void beforeCommit(final boolean readOnly) {
+                  commitLock.lock();
+                  locked = true;
+                }
+
+                @Override
+                public void afterCompletion(final int completionStatus) {
+                  try {
+                    if (completionStatus == STATUS_COMMITTED) {
+                      changeLog.record(record);
+                    }
+                  } finally {
+                    if (locked) {
+                      commitLock.unlock();
+                    }
+                  }
+                }
+              });
+          return result;
+        });
+  }
+
+  /** Shifts the widgets by a single update, recorded as a single shift however many it moves. */
+  private void shift(final int z, final ChangeLog.Record record) {
+    jdbcTemplate.update("update widget set z = z + 1 where board = ? and z >= ?", boardId, z);
+    record.shifted(z, 1);
+  }
+
+  @Override
+  public Optional<Widget> deleteOne(final String id) {
+    return modify(
+        record -> {
           final Optional<Widget> widgetFound = readOneInternal(id);
-          widgetFound.ifPresent(w -> jdbcTemplate.update("delete from widget where id = ?", id));
+          widgetFound.ifPresent(
+              w ->
+                  jdbcTemplate.update(
+                      "delete from widget where board = ? and id = ?",
+                      boardId,
+                      CompactId.toBytes(id)));
+          widgetFound.ifPresent(w -> record.deleted(id));
           return widgetFound;
         });
   }
 
+  /**
+   * Deletes the widgets by one statement per {@link #DELETE_CHUNK_SIZE} ids. It is several times
+   * faster than a single statement taking all the ids as an array parameter.
+   */
+  @Override
+  public int deleteMany(final Collection<String> ids) {
+    final List<String> idList = List.copyOf(ids);
+    return modify(record -> deleteByIds(idList, record::deleted));
+  }
+
+  /**
+   * Selects the ids of the widgets in the area first, so they can be recorded as changed. The
+   * deletion is published as a single event of the area.
+   */
+  @Override
+  public int deleteAllInArea(final Area area) {
+    return modify(
+        record -> {
+          final List<String> deletedIds = new ArrayList<>();
+          final int deleted =
+              deleteByIds(
+                  jdbcTemplate.query(
+                      inAreaSql("id"),
+                      H2BasedWidgetRepository::idRowMapper,
+                      inAreaValues(area)),
+                  deletedIds::addAll);
+          record.deletedInArea(area, deletedIds);
+          return deleted;
+        });
+  }
+
+  /** Ids of the chunks deleting anything are passed to the consumer. */
+  private int deleteByIds(final List<String> ids, final Consumer<List<String>> deletedChunks) {
+    int deleted = 0;
+    for (int from = 0; from < ids.size(); from += DELETE_CHUNK_SIZE) {
+      final List<String> chunk = ids.subList(from, Math.min(from + DELETE_CHUNK_SIZE, ids.size()));
+      final StringJoiner sql =
+          new StringJoiner(", ", "delete from widget where board = ? and id in (", ")");
+      chunk.forEach(id -> sql.add("?"));
+      final List<Object> values = new ArrayList<>(chunk.size() + 1);
+      values.add(boardId);
+      chunk.forEach(id -> values.add(CompactId.toBytes(id)));
+      final int chunkDeleted = jdbcTemplate.update(sql.toString(), values.toArray());
+      if (chunkDeleted > 0) {
+        deletedChunks.accept(chunk);
+      }
+      deleted += chunkDeleted;
+    }
+    return deleted;
+  }
+
   private static Widget widgetRowMapper(final ResultSet rs, final int rowNum) throws SQLException {
     return new Widget(
-        rs.getString(1),
+        CompactId.fromBytes(rs.getBytes(1)),
         rs.getInt(2),
         rs.getInt(3),
         rs.getInt(4),
@@ -185,17 +681,22 @@ public class H2BasedWidgetRepository implements WidgetRepository {
         rs.getObject(7, Instant.class));
   }
 
+  private static String idRowMapper(final ResultSet rs, final int rowNum) throws SQLException {
+    return CompactId.fromBytes(rs.getBytes(1));
+  }
+
   private String buildUpdateSql(
       final String id, final WidgetToUpdate widgetToUpdate, final List<Object> values) {
     final StringJoiner updateSql =
-        new StringJoiner(" = ?, ", "update widget set ", " = ? where id = ?");
+        new StringJoiner(" = ?, ", "update widget set ", " = ? where board = ? and id = ?");
     addColumnToUpdateSql("x", widgetToUpdate.x(), updateSql, values);
     addColumnToUpdateSql("y", widgetToUpdate.y(), updateSql, values);
     addColumnToUpdateSql("z", widgetToUpdate.z(), updateSql, values);
     addColumnToUpdateSql("width", widgetToUpdate.width(), updateSql, values);
     addColumnToUpdateSql("height", widgetToUpdate.height(), updateSql, values);
     addColumnToUpdateSql("lastModified", clock.instant(), updateSql, values);
-    values.add(id);
+    values.add(boardId);
+    values.add(CompactId.toBytes(id));
     return updateSql.toString();
   }
 
@@ -210,10 +711,12 @@ public class H2BasedWidgetRepository implements WidgetRepository {
     }
   }
 
-  private static Map<String, Object> widgetToJdbcMap(final Widget widget) {
+  private Map<String, Object> widgetToJdbcMap(final Widget widget) {
     return Map.of(
+        "board",
+        boardId,
         "id",
-        widget.id(),
+        CompactId.toBytes(widget.id()),
         "x",
         widget.x(),
         "y",
@@ -0,0 +1,298 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable sorted map based on a treap (randomized balanced binary search tree).<br>
+ * Every modification returns a new map, which copies only the nodes on the path to the modified
+ * one and shares all the rest with the original map. Expected cost of a single key modification is
+ * O(log n) both in time and in allocated nodes. Instances are safe to publish to any number of
+ * readers without locking.<br>
+ * Every node is stamped with the generation of the map which created it, see {@link
+ * #withGeneration}. A node of an older generation is never above a node of the current one, since
+ * a modification below a node copies the node as well, so the nodes created since the generation
+ * started are found without visiting the shared ones.
+ */
+final class PersistentSortedMap<K extends Comparable<K>, V> {
+
+  private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null, 0);
+  private final Node<K, V> root;
+  private final long generation;
+
+  private PersistentSortedMap(final Node<K, V> root, final long generation) {
+    this.root = root;
+    this.generation = generation;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K extends Comparable<K>, V> PersistentSortedMap<K, V> empty() {
+    return (PersistentSortedMap<K, V>) EMPTY;
+  }
+
+  int size() {
+    return size(root);
+  }
+
+  boolean isEmpty() {
+    return root == null;
+  }
+
+  V get(final K key) {
+    Node<K, V> node = root;
+    while (node != null) {
+      final int cmp = key.compareTo(node.key);
+      if (cmp == 0) {
+        return node.value;
+      }
+      node = cmp < 0 ? node.left : node.right;
+    }
+    return null;
+  }
+
+  /** Returns the greatest key or {@code null} if the map is empty. */
+  K lastKey() {
+    if (root == null) {
+      return null;
+    }
+    Node<K, V> node = root;
+    while (node.right != null) {
+      node = node.right;
+    }
+    return node.key;
+  }
+
+  PersistentSortedMap<K, V> put(final K key, final V value) {
+    if (get(key) != null) {
+      return new PersistentSortedMap<>(replace(root, key, value), generation);
+    }
+    final Node<K, V> inserted =
+        new Node<>(key, value, ThreadLocalRandom.current().nextInt(), null, null, generation);
+    return new PersistentSortedMap<>(insert(root, inserted), generation);
+  }
+
+  PersistentSortedMap<K, V> remove(final K key) {
+    if (get(key) == null) {
+      return this;
+    }
+    return new PersistentSortedMap<>(remove(root, key), generation);
+  }
+
+  /** Returns the map of all entries with keys less than provided. */
+  PersistentSortedMap<K, V> headMap(final K toKey) {
+    return new PersistentSortedMap<>(split(root, toKey)[0], generation);
+  }
+
+  /** Returns the map of all entries with keys greater or equal to provided. */
+  PersistentSortedMap<K, V> tailMap(final K fromKey) {
+    return new PersistentSortedMap<>(split(root, fromKey)[1], generation);
+  }
+
+  /** Joins two maps, where all keys of this map must be less than all keys of the other one. */
+  PersistentSortedMap<K, V> concat(final PersistentSortedMap<K, V> other) {
+    return new PersistentSortedMap<>(merge(root, other.root), generation);
+  }
+
+  /**
+   * Returns the map with every entry replaced. Key mapper must keep the order of keys, so the tree
+   * shape is kept as is.
+   */
+  PersistentSortedMap<K, V> replaceAll(
+      final UnaryOperator<K> keyMapper, final UnaryOperator<V> valueMapper) {
+    return new PersistentSortedMap<>(replaceAll(root, keyMapper, valueMapper), generation);
+  }
+
+  /** Adds values with keys greater or equal to provided to the list in key order, up to limit. */
+  void collect(final K fromKey, final int limit, final List<V> out) {
+    collect(root, fromKey, limit, out);
+  }
+
+  /** Returns the same entries, stamping the nodes created by their modifications with provided. */
+  PersistentSortedMap<K, V> withGeneration(final long generation) {
+    return new PersistentSortedMap<>(root, generation);
+  }
+
+  /**
+   * Counts the nodes of this map created since its generation started, all the others are shared
+   * with the map {@link #withGeneration} was called on.
+   */
+  int created() {
+    return created(root);
+  }
+
+  /** Performs the action for every value in key order. */
+  void forEach(final Consumer<V> action) {
+    forEach(root, action);
+  }
+
+  private Node<K, V> replace(
+      final Node<K, V> node, final K key, final V value) {
+    final int cmp = key.compareTo(node.key);
+    if (cmp == 0) {
+      return node.with(value, generation);
+    }
+    return cmp < 0
+        ? node.with(replace(node.left, key, value), node.right, generation)
+        : node.with(node.left, replace(node.right, key, value), generation);
+  }
+
+  private Node<K, V> insert(
+      final Node<K, V> node, final Node<K, V> inserted) {
+    if (node == null) {
+      return inserted;
+    }
+    if (inserted.priority > node.priority) {
+      final Node<K, V>[] parts = split(node, inserted.key);
+      return inserted.with(parts[0], parts[1], generation);
+    }
+    return inserted.key.compareTo(node.key) < 0
+        ? node.with(insert(node.left, inserted), node.right, generation)
+        : node.with(node.left, insert(node.right, inserted), generation);
+  }
+
+  private Node<K, V> remove(
+      final Node<K, V> node, final K key) {
+    final int cmp = key.compareTo(node.key);
+    if (cmp == 0) {
+      return merge(node.left, node.right);
+    }
+    return cmp < 0
+        ? node.with(remove(node.left, key), node.right, generation)
+        : node.with(node.left, remove(node.right, key), generation);
+  }
+
+  /** Splits the tree into nodes with keys less than provided and all the rest. */
+  @SuppressWarnings("unchecked")
+  private Node<K, V>[] split(
+      final Node<K, V> node, final K key) {
+    if (node == null) {
+      return new Node[2];
+    }
+    if (node.key.compareTo(key) < 0) {
+      final Node<K, V>[] parts = split(node.right, key);
+      parts[0] = node.with(node.left, parts[0], generation);
+      return parts;
+    }
+    final Node<K, V>[] parts = split(node.left, key);
+    parts[1] = node.with(parts[1], node.right, generation);
+    return parts;
+  }
+
+  /** Merges two trees, where all keys of the first one are less than of the second. */
+  private Node<K, V> merge(
+      final Node<K, V> left, final Node<K, V> right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return left.with(left.left, merge(left.right, right), generation);
+    }
+    return right.with(merge(left, right.left), right.right, generation);
+  }
+
+  private Node<K, V> replaceAll(
+      final Node<K, V> node, final UnaryOperator<K> keyMapper, final UnaryOperator<V> valueMapper) {
+    if (node == null) {
+      return null;
+    }
+    return new Node<>(
+        keyMapper.apply(node.key),
+        valueMapper.apply(node.value),
+        node.priority,
+        replaceAll(node.left, keyMapper, valueMapper),
+        replaceAll(node.right, keyMapper, valueMapper),
+        generation);
+  }
+
+  /** Collects values in key order starting from provided key, skipping subtrees below. */
+  private static <K extends Comparable<K>, V> void collect(
+      final Node<K, V> node, final K fromKey, final int limit, final List<V> out) {
+    if (node == null || out.size() >= limit) {
+      return;
+    }
+    if (fromKey == null || node.key.compareTo(fromKey) >= 0) {
+      collect(node.left, fromKey, limit, out);
+      if (out.size() >= limit) {
+        return;
+      }
+      out.add(node.value);
+    }
+    collect(node.right, fromKey, limit, out);
+  }
+
+  private static <K extends Comparable<K>, V> void forEach(
+      final Node<K, V> node, final Consumer<V> action) {
+    if (node == null) {
+      return;
+    }
+    forEach(node.left, action);
+    action.accept(node.value);
+    forEach(node.right, action);
+  }
+
+  private int created(final Node<K, V> node) {
+    if (node == null || node.generation != generation) {
+      return 0;
+    }
+    return 1 + created(node.left) + created(node.right);
+  }
+
+  private static int size(final Node<?, ?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  /** Immutable treap node. Copies keep the priority, so the tree stays balanced. */
+  private static final class Node<K, V> {
+    private final K key;
+    private final V value;
+    private final int priority;
+    private final int size;
+    private final Node<K, V> left;
+    private final Node<K, V> right;
+    private final long generation;
+
+    private Node(
+        final K key,
+        final V value,
+        final int priority,
+        final Node<K, V> left,
+        final Node<K, V> right,
+        final long generation) {
+      this.key = key;
+      this.value = value;
+      this.priority = priority;
+      this.size = 1 + size(left) + size(right);
+      this.left = left;
+      this.right = right;
+      this.generation = generation;
+    }
+
+    private Node<K, V> with(final V value, final long generation) {
+      return new Node<>(key, value, priority, left, right, generation);
+    }
+
+    private Node<K, V> with(final Node<K, V> left, final Node<K, V> right, final long generation) {
+      return new Node<>(key, value, priority, left, right, generation);
+    }
+  }
+}
@@ -0,0 +1,558 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.service.IdProvider;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Implementation of {@link WidgetRepository} based on immutable snapshots.<br>
+ * Every write operation builds a new {@link Snapshot} out of {@link PersistentSortedMap}s, sharing
+ * all the untouched nodes with the previous one, and publishes it with a single volatile write to
+ * {@link #snapshot}. A shift copies the shifted tail of the z-index map, so its cost is the same as
+ * in {@link CollectionBasedWidgetRepository}, but it is never observed half-applied.<br>
+ * <b>Create</b>, <b>Update</b> and <b>Delete</b> operations will acquire {@link #writesLock},
+ * meaning no parallel writes are allowed.<br>
+ * <b>Read one</b>, <b>Read all</b>, <b>Read all in area</b> and <b>Export all</b> operations never
+ * block, each of them reads a single consistent snapshot. Readers are counted per snapshot, and a
+ * replaced snapshot still being read is kept in {@link #held} until its readers are done.<br>
+ * Every write operation records its changes to {@link #changeLog} once its snapshot is published,
+ * while still holding {@link #writesLock}, a shift is recorded as a single entry.<br>
+ * Number of published snapshots is reported by the {@code widgets.snapshot.version} gauge, number
+ * of replaced snapshots still being read by the {@code widgets.snapshot.held} gauge and number of
+ * map nodes retained by the current and the held snapshots by the {@code
+ * widgets.snapshot.retained} gauge. Every publish counts the nodes it created, see {@link
+ * PersistentSortedMap#created}, so the nodes it replaced are known without visiting the shared
+ * ones. They are charged to the replaced snapshot while it is held and subtracted once it is
+ * released, nodes a held snapshot shares with a later released one are not counted.<br>
+ * A board repository is written to its snapshot in {@link #boardFiles} when it is closed, and
+ * loaded from it when the board is created again. The gauges report the default board only.
+ */
+@Repository
+@ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "snapshot")
+public class SnapshotBasedWidgetRepository implements WidgetRepository {
+
+  private static final Logger log = LogManager.getLogger();
+  private final IdProvider idProvider;
+  private final Clock clock;
+  private final Lock writesLock = new ReentrantLock();
+  private volatile Snapshot snapshot = Snapshot.empty(0);
+  // replaced snapshots which still had readers, mapped to the nodes only they retain, pruned by
+  // writes and by the gauges
+  private final Map<Snapshot, Long> held = new ConcurrentHashMap<>();
+  // sum of the values of held
+  private final AtomicLong heldNodes = new AtomicLong();
+  private final ChangeLog changeLog = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  private final BoardFiles boardFiles;
+  // null for the repository of the default board
+  private final String boardId;
+  // guarded by writesLock
+  private boolean closed;
+
+  @Autowired
+  public SnapshotBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final MeterRegistry meterRegistry,
+      @Value("${boardsPath}") final String boardsPath) {
+    this(idProvider, clock, BoardFiles.of(boardsPath), null);
+    registerGauges(meterRegistry);
+    log.info("Snapshot based WidgetRepository initialized.");
+  }
+
+  public SnapshotBasedWidgetRepository(
+      final IdProvider idProvider, final Clock clock, final MeterRegistry meterRegistry) {
+    this(idProvider, clock, BoardFiles.temporary(), null);
+    registerGauges(meterRegistry);
+    log.info("Snapshot based WidgetRepository initialized.");
+  }
+
+  private SnapshotBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final BoardFiles boardFiles,
+      final String boardId) {
+    this.idProvider = idProvider;
+    this.clock = clock;
+    this.boardFiles = boardFiles;
+    this.boardId = boardId;
+  }
+
+  private void registerGauges(final MeterRegistry meterRegistry) {
+    Gauge.builder("widgets.snapshot.version", this, repository -> repository.snapshot.version)
+        .description("Number of snapshots published")
+        .register(meterRegistry);
+    Gauge.builder("widgets.snapshot.held", this, SnapshotBasedWidgetRepository::heldSnapshots)
+        .description("Number of replaced snapshots still being read")
+        .register(meterRegistry);
+    Gauge.builder("widgets.snapshot.retained", this, SnapshotBasedWidgetRepository::retainedNodes)
+        .description("Map nodes retained by the current snapshot and the held ones")
+        .baseUnit("nodes")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public Widget createOne(final WidgetToCreate widgetToCreate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Snapshot s = snapshot;
+      // generate unique id
+      String id;
+      do {
+        id = idProvider.get();
+      } while (s.idToWidget.get(id) != null);
+
+      final Widget widget;
+      if (widgetToCreate.z() == null) {
+        final Integer lastZ = s.zToWidget.lastKey();
+        final int z = lastZ == null ? Integer.MIN_VALUE : checkOverflow(lastZ) + 1;
+        widget = widgetToCreateToWidget(widgetToCreate, id, z);
+      } else {
+        widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
+      }
+      final ChangeLog.Record record = new ChangeLog.Record();
+      publish(s.shift(widget.z(), record).put(widget), record.created(widget));
+      return widget;
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /** Recorded after the snapshot is published, so it is never ahead of the current snapshot. */
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    final SnapshotBasedWidgetRepository board =
+        new SnapshotBasedWidgetRepository(idProvider, clock, boardFiles, boardId);
+    final List<Widget> widgets = new ArrayList<>();
+    boardFiles.snapshotFile(boardId).load(widgets::add);
+    // loaded widgets have distinct z-indexes, so nothing is shifted
+    Snapshot loaded = Snapshot.empty(0);
+    for (final Widget widget : widgets) {
+      loaded = loaded.put(widget);
+    }
+    board.snapshot = loaded.published(board.changeLog.version());
+    return board;
+  }
+
+  @Override
+  public void closeBoard() {
+    if (boardId == null) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    writesLock.lock();
+    try {
+      closed = true;
+      final List<Widget> widgets = new ArrayList<>(snapshot.size());
+      exportAll(widgets::add);
+      boardFiles.snapshotFile(boardId).write(widgets, 0);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> readOne(final String id) {
+    final Snapshot s = acquire();
+    try {
+      return Optional.ofNullable(s.idToWidget.get(id));
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  @Override
+  public List<Widget> readAll(final int perPage, final Integer fromZ) {
+    final Snapshot s = acquire();
+    try {
+      final List<Widget> returnList = new ArrayList<>(Math.min(perPage, s.size()));
+      s.zToWidget.collect(fromZ, perPage, returnList);
+      return returnList;
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  /** Reads a single snapshot, which knows the version its changes are recorded at. */
+  @Override
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    final Snapshot s = acquire();
+    try {
+      return readVersioned(s, perPage, fromZ, area);
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  /**
+   * Only the shifts recorded up to the version of the snapshot are applied, the later ones are not
+   * in it yet.
+   */
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
+    final Snapshot s = acquire();
+    try {
+      return changeLog.readAfter(
+          version, s.changeVersion, lastZ, fromZ -> readVersioned(s, perPage, fromZ, area));
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  private static VersionedPage readVersioned(
+      final Snapshot s, final int perPage, final Integer fromZ, final Area area) {
+    final List<Widget> returnList = new ArrayList<>(Math.min(perPage, s.size()));
+    if (area == null) {
+      s.zToWidget.collect(fromZ, perPage, returnList);
+    } else {
+      collectInArea(s, perPage, fromZ, area, returnList);
+    }
+    return new VersionedPage(returnList, s.changeVersion);
+  }
+
+  /** Scans a single snapshot, so no widget is seen twice or missed by a shift in between. */
+  @Override
+  public List<Widget> readAllInArea(final int perPage, final Integer fromZ, final Area area) {
+    final Snapshot s = acquire();
+    try {
+      final List<Widget> returnList = new ArrayList<>();
+      collectInArea(s, perPage, fromZ, area, returnList);
+      return returnList;
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  /** Exports the single snapshot current at the start, however long the consumer takes. */
+  @Override
+  public void exportAll(final Consumer<Widget> consumer) {
+    final Snapshot s = acquire();
+    try {
+      s.zToWidget.forEach(consumer);
+    } finally {
+      s.readers.decrement();
+    }
+  }
+
+  @Override
+  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Snapshot s = snapshot;
+      final Widget widgetFound = s.idToWidget.get(id);
+      if (widgetFound == null) {
+        return Optional.empty();
+      }
+      final Widget widgetUpdated = widgetToUpdateToWidget(widgetFound, widgetToUpdate);
+      final ChangeLog.Record record = new ChangeLog.Record();
+      if (widgetUpdated.z() == widgetFound.z()) {
+        publish(s.put(widgetUpdated), record.updated(widgetUpdated));
+      } else {
+        publish(
+            s.remove(widgetFound).shift(widgetUpdated.z(), record).put(widgetUpdated),
+            record.updated(widgetUpdated));
+      }
+      return Optional.of(widgetUpdated);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> deleteOne(final String id) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Snapshot s = snapshot;
+      final Widget widgetFound = s.idToWidget.get(id);
+      if (widgetFound == null) {
+        return Optional.empty();
+      }
+      publish(s.remove(widgetFound), new ChangeLog.Record().deleted(id));
+      return Optional.of(widgetFound);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /*for tests*/ int idIndexSize() {
+    return snapshot.idToWidget.size();
+  }
+
+  /*for tests*/ int zIndexSize() {
+    return snapshot.zToWidget.size();
+  }
+
+  /*for tests*/ void clear() {
+    writesLock.lock();
+    try {
+      changeLog.clear();
+      publish(Snapshot.empty(snapshot.version), new ChangeLog.Record());
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /** Adds the widgets of the snapshot intersecting the area in z-index order, up to limit. */
+  private static void collectInArea(
+      final Snapshot s,
+      final int perPage,
+      final Integer fromZ,
+      final Area area,
+      final List<Widget> out) {
+    final List<Widget> scanned = new ArrayList<>(SCAN_PAGE_SIZE);
+    Integer scanFromZ = fromZ;
+    while (true) {
+      scanned.clear();
+      s.zToWidget.collect(scanFromZ, SCAN_PAGE_SIZE, scanned);
+      for (final Widget widget : scanned) {
+        if (area.intersects(widget)) {
+          out.add(widget);
+          if (out.size() >= perPage) {
+            return;
+          }
+        }
+      }
+      if (scanned.size() < SCAN_PAGE_SIZE) {
+        return;
+      }
+      final int lastZ = scanned.get(scanned.size() - 1).z();
+      if (lastZ == Integer.MAX_VALUE) {
+        return;
+      }
+      scanFromZ = lastZ + 1;
+    }
+  }
+
+  /** Snapshot to read, its reader must be decremented once it is read. */
+  private Snapshot acquire() {
+    while (true) {
+      final Snapshot s = snapshot;
+      s.readers.increment();
+      // still current after the increment, so a write replacing it will see the reader
+      if (snapshot == s) {
+        return s;
+      }
+      s.readers.decrement();
+    }
+  }
+
+  /**
+   * Publishes the next version of the snapshot and records its changes, must be called under
+   * {@link #writesLock}.
+   */
+  private void publish(final Snapshot modified, final ChangeLog.Record record) {
+    final Snapshot replaced = snapshot;
+    // the version the record is about to produce, recorded under the same lock
+    snapshot =
+        modified.published(record.isEmpty() ? changeLog.version() : changeLog.version() + 1);
+    pruneHeld();
+    if (!replaced.isReleased()) {
+      // nodes of the replaced snapshot not shared with the published one
+      final long replacedNodes = replaced.nodes() - modified.nodes() + modified.created();
+      // added before the snapshot can be pruned, so the sum never goes below zero
+      heldNodes.addAndGet(replacedNodes);
+      held.put(replaced, replacedNodes);
+    }
+    changeLog.record(record);
+  }
+
+  private void pruneHeld() {
+    for (final Snapshot s : held.keySet()) {
+      if (s.isReleased()) {
+        final Long replacedNodes = held.remove(s);
+        if (replacedNodes != null) {
+          heldNodes.addAndGet(-replacedNodes);
+        }
+      }
+    }
+  }
+
+  /*for tests*/ int heldSnapshots() {
+    pruneHeld();
+    return held.size();
+  }
+
+  /*for tests*/ long retainedNodes() {
+    pruneHeld();
+    return snapshot.nodes() + heldNodes.get();
+  }
+
+  private Widget widgetToCreateToWidget(
+      final WidgetToCreate widgetToCreate, final String id, final int z) {
+    return new Widget(
+        id,
+        widgetToCreate.x(),
+        widgetToCreate.y(),
+        z,
+        widgetToCreate.width(),
+        widgetToCreate.height(),
+        clock.instant());
+  }
+
+  private Widget widgetToUpdateToWidget(
+      final Widget existing, final WidgetToUpdate widgetToUpdate) {
+    return new Widget(
+        existing.id(),
+        widgetToUpdate.x() != null ? widgetToUpdate.x() : existing.x(),
+        widgetToUpdate.y() != null ? widgetToUpdate.y() : existing.y(),
+        widgetToUpdate.z() != null ? widgetToUpdate.z() : existing.z(),
+        widgetToUpdate.width() != null ? widgetToUpdate.width() : existing.width(),
+        widgetToUpdate.height() != null ? widgetToUpdate.height() : existing.height(),
+        clock.instant());
+  }
+
+  /**
+   * Immutable state of the repository. Every modification returns a new snapshot, the original one
+   * stays valid for the readers still holding it. Version is only incremented by {@link
+   * #published}, so a write operation consisting of several modifications counts once. Only
+   * published snapshots count their readers and know the version of {@link #changeLog} they are
+   * at.
+   */
+  private static final class Snapshot {
+
+    private final PersistentSortedMap<Integer, Widget> zToWidget;
+    private final PersistentSortedMap<String, Widget> idToWidget;
+    private final long version;
+    private final long changeVersion;
+    private final LongAdder readers;
+
+    private Snapshot(
+        final PersistentSortedMap<Integer, Widget> zToWidget,
+        final PersistentSortedMap<String, Widget> idToWidget,
+        final long version,
+        final long changeVersion,
+        final LongAdder readers) {
+      this.zToWidget = zToWidget;
+      this.idToWidget = idToWidget;
+      this.version = version;
+      this.changeVersion = changeVersion;
+      this.readers = readers;
+    }
+
+    private Snapshot(
+        final PersistentSortedMap<Integer, Widget> zToWidget,
+        final PersistentSortedMap<String, Widget> idToWidget,
+        final Snapshot previous) {
+      this(zToWidget, idToWidget, previous.version, previous.changeVersion, null);
+    }
+
+    private static Snapshot empty(final long version) {
+      return new Snapshot(
+          PersistentSortedMap.empty(), PersistentSortedMap.empty(), version, 0, new LongAdder());
+    }
+
+    /** Modifications of the published snapshot stamp the nodes they create with its version. */
+    private Snapshot published(final long changeVersion) {
+      return new Snapshot(
+          zToWidget.withGeneration(version + 1),
+          idToWidget.withGeneration(version + 1),
+          version + 1,
+          changeVersion,
+          new LongAdder());
+    }
+
+    private boolean isReleased() {
+      return readers.sum() == 0;
+    }
+
+    private int size() {
+      return idToWidget.size();
+    }
+
+    private long nodes() {
+      return (long) zToWidget.size() + idToWidget.size();
+    }
+
+    /** Nodes created since the snapshot this one is modified from was published. */
+    private long created() {
+      return (long) zToWidget.created() + idToWidget.created();
+    }
+
+    /** Puts the widget to its z-index, which must be free or occupied by the same widget. */
+    private Snapshot put(final Widget widget) {
+      return new Snapshot(
+          zToWidget.put(widget.z(), widget), idToWidget.put(widget.id(), widget), this);
+    }
+
+    private Snapshot remove(final Widget widget) {
+      return new Snapshot(zToWidget.remove(widget.z()), idToWidget.remove(widget.id()), this);
+    }
+
+    /**
+     * Increments z-index of all widgets starting from provided one, if it is occupied, and adds the
+     * shift to the record.
+     */
+    private Snapshot shift(final int z, final ChangeLog.Record record) {
+      if (zToWidget.get(z) == null) {
+        return this;
+      }
+      checkOverflow(zToWidget.lastKey());
+      record.shifted(z, 1);
+      final PersistentSortedMap<Integer, Widget> shifted =
+          zToWidget.tailMap(z).replaceAll(key -> key + 1, Widget::incZ);
+      final List<Widget> shiftedWidgets = new ArrayList<>(shifted.size());
+      shifted.forEach(shiftedWidgets::add);
+      PersistentSortedMap<String, Widget> ids = idToWidget;
+      for (final Widget shiftedWidget : shiftedWidgets) {
+        ids = ids.put(shiftedWidget.id(), shiftedWidget);
+      }
+      return new Snapshot(zToWidget.headMap(z).concat(shifted), ids, this);
+    }
+  }
+}
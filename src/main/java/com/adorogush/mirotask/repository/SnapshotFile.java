@@ -0,0 +1,154 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.adorogush.mirotask.model.Widget;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compact binary file holding all widgets in z-index order together with the {@link
+ * WriteAheadLog} position they correspond to. The file is written and read through a memory
+ * mapping. A new snapshot is written next to the old one and atomically moved over it, so the file
+ * is always complete.
+ */
+final class SnapshotFile {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final int MAGIC = 0x57534e50;
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+  private static final int WIDGET_SIZE = Short.BYTES + Integer.BYTES * 6 + Long.BYTES;
+  private static final SnapshotFile DISABLED = new SnapshotFile(null);
+  private final Path path;
+
+  private SnapshotFile(final Path path) {
+    this.path = path;
+  }
+
+  /** Snapshot file that is never written and loads nothing. */
+  static SnapshotFile disabled() {
+    return DISABLED;
+  }
+
+  static SnapshotFile of(final Path path) {
+    return new SnapshotFile(path);
+  }
+
+  boolean isEnabled() {
+    return path != null;
+  }
+
+  /**
+   * Passes all widgets of the snapshot to the consumer in z-index order and returns the log
+   * position to replay from, which is {@code 0} if there is no snapshot yet.
+   */
+  long load(final Consumer<Widget> consumer) {
+    if (path == null || !Files.exists(path)) {
+      return 0;
+    }
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC) {
+        throw new IllegalStateException(String.format("%s is not a snapshot file.", path));
+      }
+      final long walPosition = buffer.getLong();
+      final int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        final byte[] id = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(id);
+        consumer.accept(
+            new Widget(
+                new String(id, UTF_8),
+                buffer.getInt(),
+                buffer.getInt(),
+                buffer.getInt(),
+                buffer.getInt(),
+                buffer.getInt(),
+                Instant.ofEpochSecond(buffer.getLong(), buffer.getInt())));
+      }
+      log.info("Loaded snapshot of {} widgets.", count);
+      return walPosition;
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Writes widgets, which must be in z-index order, replacing the previous snapshot. */
+  void write(final List<Widget> widgets, final long walPosition) {
+    long size = HEADER_SIZE;
+    for (final Widget widget : widgets) {
+      size += WIDGET_SIZE + utf8Length(widget.id());
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalStateException(String.format("Snapshot of %d bytes is too large.", size));
+    }
+    final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (final FileChannel channel =
+          FileChannel.open(
+              tmpPath,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC).putLong(walPosition).putInt(widgets.size());
+        for (final Widget widget : widgets) {
+          final byte[] id = widget.id().getBytes(UTF_8);
+          buffer.putShort((short) id.length).put(id);
+          buffer.putInt(widget.x()).putInt(widget.y()).putInt(widget.z());
+          buffer.putInt(widget.width()).putInt(widget.height());
+          buffer.putLong(widget.lastModified().getEpochSecond());
+          buffer.putInt(widget.lastModified().getNano());
+        }
+        buffer.force();
+      }
+      Files.move(
+          tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int utf8Length(final String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800 || Character.isSurrogate(c)) {
+        // a surrogate pair takes 4 bytes
+        length += 2;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,511 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.exception.ConflictException.checkOverflow;
+import static com.adorogush.mirotask.exception.ServiceUnavailableException.checkBoardOpen;
+
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.service.IdProvider;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Implementation of {@link WidgetRepository} based on a treap (randomized balanced binary search
+ * tree) ordered by z-index, where every node also holds its subtree size and a pending z-index
+ * increment for its subtree.<br>
+ * A shift of all widgets starting from some z-index is a split of the tree, a lazy increment of the
+ * right part and a merge back, so it costs O(log n) regardless of how many widgets are shifted.
+ * Pending increments are pushed down only by writers, readers sum them up along the path instead.
+ * <br>
+ * <b>Create</b>, <b>Update</b> and <b>Delete</b> operations will acquire {@link #writesLock},
+ * meaning no parallel writes are allowed. Every write operation costs O(log n).<br>
+ * <b>Read one</b> and <b>Read all</b> operations will acquire {@link #readsLock} and can run in
+ * parallel to each other, waiting only while a write is being applied.<br>
+ * Every write operation records its changes to {@link #changeLog} while still holding {@link
+ * #writesLock}, a shift is recorded as a single entry.<br>
+ * A board repository is written to its snapshot in {@link #boardFiles} when it is closed, and
+ * loaded from it when the board is created again.
+ */
+@Repository
+@ConditionalOnProperty(name = "widgetRepositoryImplementation", havingValue = "treap")
+public class TreapBasedWidgetRepository implements WidgetRepository {
+
+  private static final Logger log = LogManager.getLogger();
+  private final Map<String, Node> idToNode = new HashMap<>();
+  private final IdProvider idProvider;
+  private final Clock clock;
+  private final Lock writesLock;
+  private final Lock readsLock;
+  private final ChangeLog changeLog = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  private final BoardFiles boardFiles;
+  // null for the repository of the default board
+  private final String boardId;
+  private Node root;
+  // guarded by writesLock
+  private boolean closed;
+  // split() results
+  private Node splitLeft;
+  private Node splitRight;
+
+  @Autowired
+  public TreapBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      @Value("${boardsPath}") final String boardsPath) {
+    this(idProvider, clock, BoardFiles.of(boardsPath), null);
+  }
+
+  public TreapBasedWidgetRepository(final IdProvider idProvider, final Clock clock) {
+    this(idProvider, clock, BoardFiles.temporary(), null);
+  }
+
+  private TreapBasedWidgetRepository(
+      final IdProvider idProvider,
+      final Clock clock,
+      final BoardFiles boardFiles,
+      final String boardId) {
+    this.idProvider = idProvider;
+    this.clock = clock;
+    this.boardFiles = boardFiles;
+    this.boardId = boardId;
+
+    final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    writesLock = rwLock.writeLock();
+    readsLock = rwLock.readLock();
+
+    if (boardId == null) {
+      log.info("Treap based WidgetRepository initialized.");
+    }
+  }
+
+  @Override
+  public Widget createOne(final WidgetToCreate widgetToCreate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      // generate unique id
+      String id;
+      do {
+        id = idProvider.get();
+      } while (idToNode.get(id) != null);
+
+      final Widget widget;
+      if (widgetToCreate.z() == null) {
+        final int z = root == null ? Integer.MIN_VALUE : checkOverflow(lastZ(root)) + 1;
+        widget = widgetToCreateToWidget(widgetToCreate, id, z);
+      } else {
+        widget = widgetToCreateToWidget(widgetToCreate, id, widgetToCreate.z());
+      }
+      final ChangeLog.Record record = new ChangeLog.Record();
+      if (insert(new Node(widget))) {
+        record.shifted(widget.z(), 1);
+      }
+      changeLog.record(record.created(widget));
+      return widget;
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return changeLog.version();
+  }
+
+  @Override
+  public void listen(final CommitListener listener) {
+    changeLog.listen(listener);
+  }
+
+  @Override
+  public Optional<Changes> changedSince(final long version) {
+    return changeLog.changedSince(version);
+  }
+
+  @Override
+  public WidgetRepository forBoard(final String boardId) {
+    final TreapBasedWidgetRepository board =
+        new TreapBasedWidgetRepository(idProvider, clock, boardFiles, boardId);
+    // loaded widgets have distinct z-indexes, so nothing is shifted
+    boardFiles.snapshotFile(boardId).load(widget -> board.insert(new Node(widget)));
+    return board;
+  }
+
+  @Override
+  public void closeBoard() {
+    if (boardId == null) {
+      throw new IllegalStateException("Only the repository of a board can be closed.");
+    }
+    writesLock.lock();
+    try {
+      closed = true;
+      final List<Widget> widgets = new ArrayList<>(idToNode.size());
+      exportAll(widgets::add);
+      boardFiles.snapshotFile(boardId).write(widgets, 0);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> readOne(final String id) {
+    readsLock.lock();
+    try {
+      final Node node = idToNode.get(id);
+      if (node == null) {
+        return Optional.empty();
+      }
+      return Optional.of(node.widget.withZ(trueZ(node)));
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Widget> readAll(final int perPage, final Integer fromZ) {
+    readsLock.lock();
+    try {
+      final List<Widget> returnList = new ArrayList<>(Math.min(perPage, idToNode.size()));
+      collect(root, 0, fromZ == null ? Integer.MIN_VALUE : fromZ, perPage, returnList);
+      return returnList;
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  /** Changes are recorded under {@link #writesLock}, so none is made while the page is read. */
+  @Override
+  public VersionedPage readVersioned(final int perPage, final Integer fromZ, final Area area) {
+    readsLock.lock();
+    try {
+      return new VersionedPage(
+          area == null ? readAll(perPage, fromZ) : readAllInArea(perPage, fromZ, area),
+          changeLog.version());
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<VersionedPage> readVersionedAfter(
+      final int perPage, final int lastZ, final long version, final Area area) {
+    readsLock.lock();
+    try {
+      return changeLog.readAfter(version, lastZ, fromZ -> readVersioned(perPage, fromZ, area));
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Node node = idToNode.get(id);
+      if (node == null) {
+        return Optional.empty();
+      }
+      final int z = trueZ(node);
+      final Widget widgetUpdated = widgetToUpdateToWidget(node.widget.withZ(z), widgetToUpdate);
+      final ChangeLog.Record record = new ChangeLog.Record();
+      if (widgetToUpdate.z() != null) {
+        // must fail before the node is removed
+        if (widgetUpdated.z() != z && occupied(widgetUpdated.z())) {
+          checkOverflow(lastZ(root));
+        }
+        remove(z);
+        node.reset(widgetUpdated);
+        if (insert(node)) {
+          record.shifted(widgetUpdated.z(), 1);
+        }
+      } else {
+        node.widget = widgetUpdated;
+      }
+      changeLog.record(record.updated(widgetUpdated));
+      return Optional.of(widgetUpdated);
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> deleteOne(final String id) {
+    writesLock.lock();
+    try {
+      checkBoardOpen(closed);
+      final Node node = idToNode.get(id);
+      if (node == null) {
+        return Optional.empty();
+      }
+      final int z = trueZ(node);
+      remove(z);
+      idToNode.remove(id);
+      changeLog.record(new ChangeLog.Record().deleted(id));
+      return Optional.of(node.widget.withZ(z));
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /*for tests*/ int size() {
+    readsLock.lock();
+    try {
+      return size(root);
+    } finally {
+      readsLock.unlock();
+    }
+  }
+
+  /*for tests*/ void clear() {
+    writesLock.lock();
+    try {
+      root = null;
+      idToNode.clear();
+      changeLog.clear();
+    } finally {
+      writesLock.unlock();
+    }
+  }
+
+  /**
+   * Will insert the node at its z-index, shifting the node occupying it with all following. Returns
+   * if any node was shifted.
+   */
+  private boolean insert(final Node node) {
+    // must fail before the tree is split
+    final boolean shift = occupied(node.z);
+    if (shift) {
+      checkOverflow(lastZ(root));
+    }
+    split(root, node.z);
+    final Node left = splitLeft;
+    final Node right = splitRight;
+    if (shift) {
+      add(right, 1);
+    }
+    root = merge(merge(left, node), right);
+    root.parent = null;
+    idToNode.put(node.widget.id(), node);
+    return shift;
+  }
+
+  /** Will remove the node with provided z-index. */
+  private void remove(final int z) {
+    split(root, z);
+    final Node left = splitLeft;
+    if (z == Integer.MAX_VALUE) {
+      root = left;
+    } else {
+      split(splitRight, z + 1);
+      root = merge(left, splitRight);
+    }
+    if (root != null) {
+      root.parent = null;
+    }
+  }
+
+  private boolean occupied(final int z) {
+    Node node = root;
+    int acc = 0;
+    while (node != null) {
+      final int nodeZ = node.z + acc;
+      if (nodeZ == z) {
+        return true;
+      }
+      acc += node.lazy;
+      node = z < nodeZ ? node.left : node.right;
+    }
+    return false;
+  }
+
+  /** Splits the tree into nodes with z-index less than provided and all the rest. */
+  private void split(final Node node, final int z) {
+    if (node == null) {
+      splitLeft = null;
+      splitRight = null;
+      return;
+    }
+    push(node);
+    if (node.z < z) {
+      split(node.right, z);
+      node.right = splitLeft;
+      update(node);
+      splitLeft = node;
+    } else {
+      split(node.left, z);
+      node.left = splitRight;
+      update(node);
+      splitRight = node;
+    }
+  }
+
+  /** Merges two trees, where all nodes of the first one have z-index less than of the second. */
+  private static Node merge(final Node left, final Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      push(left);
+      left.right = merge(left.right, right);
+      update(left);
+      return left;
+    }
+    push(right);
+    right.left = merge(left, right.left);
+    update(right);
+    return right;
+  }
+
+  /** Collects nodes in z-index order starting from provided z-index, skipping subtrees below. */
+  private static void collect(
+      final Node node, final int acc, final int fromZ, final int limit, final List<Widget> out) {
+    if (node == null || out.size() >= limit) {
+      return;
+    }
+    final int z = node.z + acc;
+    final int childAcc = acc + node.lazy;
+    if (z >= fromZ) {
+      collect(node.left, childAcc, fromZ, limit, out);
+      if (out.size() >= limit) {
+        return;
+      }
+      out.add(node.widget.withZ(z));
+    }
+    collect(node.right, childAcc, fromZ, limit, out);
+  }
+
+  private static void push(final Node node) {
+    if (node.lazy != 0) {
+      add(node.left, node.lazy);
+      add(node.right, node.lazy);
+      node.lazy = 0;
+    }
+  }
+
+  private static void add(final Node node, final int delta) {
+    if (node != null) {
+      node.z += delta;
+      node.lazy += delta;
+    }
+  }
+
+  private static void update(final Node node) {
+    node.size = 1 + size(node.left) + size(node.right);
+    if (node.left != null) {
+      node.left.parent = node;
+    }
+    if (node.right != null) {
+      node.right.parent = node;
+    }
+  }
+
+  private static int size(final Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static int trueZ(final Node node) {
+    int z = node.z;
+    for (Node parent = node.parent; parent != null; parent = parent.parent) {
+      z += parent.lazy;
+    }
+    return z;
+  }
+
+  private static int lastZ(final Node root) {
+    Node node = root;
+    int acc = 0;
+    while (node.right != null) {
+      acc += node.lazy;
+      node = node.right;
+    }
+    return node.z + acc;
+  }
+
+  private Widget widgetToCreateToWidget(
+      final WidgetToCreate widgetToCreate, final String id, final int z) {
+    return new Widget(
+        id,
+        widgetToCreate.x(),
+        widgetToCreate.y(),
+        z,
+        widgetToCreate.width(),
+        widgetToCreate.height(),
+        clock.instant());
+  }
+
+  private Widget widgetToUpdateToWidget(
+      final Widget existing, final WidgetToUpdate widgetToUpdate) {
+    return new Widget(
+        existing.id(),
+        widgetToUpdate.x() != null ? widgetToUpdate.x() : existing.x(),
+        widgetToUpdate.y() != null ? widgetToUpdate.y() : existing.y(),
+        widgetToUpdate.z() != null ? widgetToUpdate.z() : existing.z(),
+        widgetToUpdate.width() != null ? widgetToUpdate.width() : existing.width(),
+        widgetToUpdate.height() != null ? widgetToUpdate.height() : existing.height(),
+        clock.instant());
+  }
+
+  /**
+   * Treap node. Z-index of the node is {@link #z} plus {@link #lazy} of all its ancestors. The
+   * {@link Widget#z()} of {@link #widget} is not maintained.
+   */
+  private static final class Node {
+    private final int priority = ThreadLocalRandom.current().nextInt();
+    private Widget widget;
+    private int z;
+    private int lazy;
+    private int size;
+    private Node left;
+    private Node right;
+    private Node parent;
+
+    private Node(final Widget widget) {
+      reset(widget);
+    }
+
+    private void reset(final Widget widget) {
+      this.widget = widget;
+      this.z = widget.z();
+      this.lazy = 0;
+      this.size = 1;
+      this.left = null;
+      this.right = null;
+      this.parent = null;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Widget;
+import java.util.List;
+
+/**
+ * Widgets of a page together with the repository version they were read at, see {@link
+ * WidgetRepository#readVersioned}.
+ */
+public final class VersionedPage {
+
+  private final List<Widget> widgets;
+  private final long version;
+
+  public VersionedPage(final List<Widget> widgets, final long version) {
+    this.widgets = widgets;
+    this.version = version;
+  }
+
+  public List<Widget> widgets() {
+    return widgets;
+  }
+
+  public long version() {
+    return version;
+  }
+}
@@ -15,22 +15,259 @@
 */
 package com.adorogush.mirotask.repository;
 
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetEvent;
 import com.adorogush.mirotask.model.WidgetToCreate;
 import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /** Instances of this interface provide repository features for Widgets. */
 public interface WidgetRepository {
 
+  /**
+   * Number of widgets read at once by the scans of the default implementations. Every page is read
+   * by a single {@link #readAll(int, Integer)} call, which holds the read lock of an
+   * implementation while it copies the page, so a page is small enough not to hold writers up, and
+   * large enough that the look up of its first widget is paid once per hundreds of widgets.
+   */
+  int SCAN_PAGE_SIZE = 500;
+
   Widget createOne(WidgetToCreate widgetToCreate);
 
+  /**
+   * Creates the widgets with the same result as creating them one by one, returning them in the
+   * same order with their final z-indexes. Default implementation does exactly that, so it is not
+   * atomic.
+   */
+  default List<Widget> createMany(final List<WidgetToCreate> widgetsToCreate) {
+    final List<Widget> created = new ArrayList<>(widgetsToCreate.size());
+    for (final WidgetToCreate widgetToCreate : widgetsToCreate) {
+      created.add(createOne(widgetToCreate));
+    }
+    // later creates may have shifted the earlier ones
+    final List<Widget> returnList = new ArrayList<>(created.size());
+    for (final Widget widget : created) {
+      returnList.add(readOne(widget.id()).orElse(widget));
+    }
+    return returnList;
+  }
+
   Optional<Widget> readOne(String id);
 
+  /**
+   * Version of all widgets, which is increased by every modification once it is visible to reads.
+   * Widgets read after getting the same version twice are the same, so it tells cheaply if a read
+   * would return anything new. Starts anew on every start of the application.
+   */
+  long version();
+
+  /**
+   * Sets the listener receiving the events of every modification together with the version it
+   * produced, in the order of the versions. The listener is called by the writing thread before
+   * other writes can be made visible, so it must only hand the events over.
+   */
+  void listen(CommitListener listener);
+
+  /**
+   * Ids of the widgets created, updated or deleted after the version and the shifts of z-indexes
+   * made since, or empty if those changes are no longer known and all widgets have to be read
+   * again. Default implementation keeps no changes.
+   */
+  default Optional<Changes> changedSince(final long version) {
+    return Optional.empty();
+  }
+
   List<Widget> readAll(int perPage, Integer fromZ);
 
+  /**
+   * Reads the page of {@link #readAll(int, Integer)}, or of {@link #readAllInArea} if the area is
+   * not {@code null}, together with the version it is read at. No shift is made between reading
+   * the page and taking the version, so the z-indexes of the page are the ones at the version, and
+   * the shifts {@link #changedSince} the version are exactly the ones the page has not seen. A scan
+   * resuming after the last widget of the page moved by those shifts neither repeats nor misses a
+   * widget left unmodified.
+   */
+  VersionedPage readVersioned(int perPage, Integer fromZ, Area area);
+
+  /**
+   * Reads the page of {@link #readVersioned} following the widget which had the z-index at the
+   * version, wherever the shifts made since moved it. The z-index is moved and the page is read
+   * with no shift in between, so the next page of a scan starts exactly after the last widget of
+   * the previous one. Empty if the changes since the version are no longer known.
+   */
+  Optional<VersionedPage> readVersionedAfter(int perPage, int lastZ, long version, Area area);
+
+  /**
+   * Passes all widgets to the consumer in z-index order. A widget moved by a modification made in
+   * the meantime may be passed twice or not at all, the same as with reading page by page. Default
+   * implementation reads the widgets by pages of {@link #readAll(int, Integer)}.
+   */
+  default void exportAll(final Consumer<Widget> consumer) {
+    Integer scanFromZ = null;
+    while (true) {
+      final List<Widget> scanned = readAll(SCAN_PAGE_SIZE, scanFromZ);
+      scanned.forEach(consumer);
+      if (scanned.size() < SCAN_PAGE_SIZE) {
+        return;
+      }
+      final int lastZ = scanned.get(scanned.size() - 1).z();
+      if (lastZ == Integer.MAX_VALUE) {
+        return;
+      }
+      scanFromZ = lastZ + 1;
+    }
+  }
+
+  /**
+   * Reads widgets intersecting the area in z-index order. Default implementation has no spatial
+   * index and scans all widgets page by page.
+   */
+  default List<Widget> readAllInArea(final int perPage, final Integer fromZ, final Area area) {
+    final List<Widget> returnList = new ArrayList<>();
+    Integer scanFromZ = fromZ;
+    while (true) {
+      final List<Widget> scanned = readAll(SCAN_PAGE_SIZE, scanFromZ);
+      for (final Widget widget : scanned) {
+        if (area.intersects(widget)) {
+          returnList.add(widget);
+          if (returnList.size() >= perPage) {
+            return returnList;
+          }
+        }
+      }
+      if (scanned.size() < SCAN_PAGE_SIZE) {
+        return returnList;
+      }
+      final int lastZ = scanned.get(scanned.size() - 1).z();
+      if (lastZ == Integer.MAX_VALUE) {
+        return returnList;
+      }
+      scanFromZ = lastZ + 1;
+    }
+  }
+
+  /**
+   * Reads widgets covering the point, the topmost first. Default implementation is based on {@link
+   * #readAllInArea(int, Integer, Area)}.
+   */
+  default List<Widget> readTopAt(final int limit, final int x, final int y) {
+    final List<Widget> returnList = readAllInArea(Integer.MAX_VALUE, null, new Area(x, y, x, y));
+    Collections.reverse(returnList);
+    return returnList.size() > limit ? new ArrayList<>(returnList.subList(0, limit)) : returnList;
+  }
+
   Optional<Widget> updateOne(String id, WidgetToUpdate widgetToUpdate);
 
+  /**
+   * Moves the widgets to consecutive z-indexes keeping their relative order, starting from the
+   * z-index or in front of or behind all the other widgets. Other widgets keep their order too.
+   * Returns the moved widgets in z-index order or empty if any of them does not exist. Default
+   * implementation updates the widgets one by one, shifting all z-indexes above each of them, so it
+   * is not atomic.
+   */
+  default Optional<List<Widget>> reorder(final WidgetsToReorder widgetsToReorder) {
+    final List<Widget> selected = new ArrayList<>();
+    for (final String id : widgetsToReorder.ids()) {
+      final Optional<Widget> widget = readOne(id);
+      if (widget.isEmpty()) {
+        return Optional.empty();
+      }
+      selected.add(widget.get());
+    }
+    selected.sort(Comparator.comparingInt(Widget::z));
+    final int lowestZ = readAll(1, null).get(0).z();
+    final int firstZ =
+        widgetsToReorder.firstZ(
+            selected.size(),
+            lowestZ,
+            widgetsToReorder.position() == WidgetsToReorder.Position.FRONT
+                ? highestZ(lowestZ)
+                : lowestZ);
+    final List<Widget> returnList = new ArrayList<>(selected.size());
+    for (int i = 0; i < selected.size(); i++) {
+      final Optional<Widget> updated =
+          updateOne(
+              selected.get(i).id(), new WidgetToUpdate(null, null, firstZ + i, null, null));
+      if (updated.isEmpty()) {
+        return Optional.empty();
+      }
+      returnList.add(updated.get());
+    }
+    return Optional.of(returnList);
+  }
+
   Optional<Widget> deleteOne(String id);
+
+  /**
+   * Deletes the widgets with the ids, returning the number of widgets deleted. Default
+   * implementation deletes them one by one, so it is not atomic.
+   */
+  default int deleteMany(final Collection<String> ids) {
+    int deleted = 0;
+    for (final String id : ids) {
+      if (deleteOne(id).isPresent()) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Deletes the widgets intersecting the area, returning the number of widgets deleted. Default
+   * implementation is based on {@link #readAllInArea(int, Integer, Area)} and {@link
+   * #deleteMany(Collection)}.
+   */
+  default int deleteAllInArea(final Area area) {
+    final List<String> ids = new ArrayList<>();
+    for (final Widget widget : readAllInArea(Integer.MAX_VALUE, null, area)) {
+      ids.add(widget.id());
+    }
+    return deleteMany(ids);
+  }
+
+  /**
+   * Creates a repository of the same kind holding the widgets of the board, which shares no locks
+   * with this one, so writes to different boards never wait for each other. Widgets of a board
+   * closed by {@link #closeBoard()} are loaded again.
+   */
+  WidgetRepository forBoard(String boardId);
+
+  /**
+   * Closes the repository of a board created by {@link #forBoard(String)}, keeping its widgets
+   * for the next {@link #forBoard(String)} of the same board, so the board can be dropped from
+   * memory. Writes made after it fail with {@link
+   * com.adorogush.mirotask.exception.ServiceUnavailableException}.
+   */
+  void closeBoard();
+
+  private int highestZ(final int lowestZ) {
+    int highestZ = lowestZ;
+    while (true) {
+      final List<Widget> scanned = readAll(SCAN_PAGE_SIZE, highestZ);
+      if (scanned.isEmpty()) {
+        return highestZ;
+      }
+      highestZ = scanned.get(scanned.size() - 1).z();
+      if (scanned.size() < SCAN_PAGE_SIZE || highestZ == Integer.MAX_VALUE) {
+        return highestZ;
+      }
+      // the next page starts from the last widget, so it is never empty
+    }
+  }
+
+  /** Receiver of the events of committed modifications, see {@link #listen}. */
+  @FunctionalInterface
+  interface CommitListener {
+
+    /** Events of a single modification, shifts of z-indexes first. */
+    void committed(long version, List<WidgetEvent> events);
+  }
 }
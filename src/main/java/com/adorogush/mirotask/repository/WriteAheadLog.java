@@ -0,0 +1,471 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.adorogush.mirotask.model.Widget;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only log of widget modifications written with a {@link FileChannel}.<br>
+ * Every record holds the resulting state of a widget or the id of a deleted one, so replaying the
+ * records in order with the same shift rules rebuilds the repository. Record is framed by its
+ * length and CRC32 checksum, a torn record at the end of the file is discarded on replay.<br>
+ * Positions are logical, they keep growing across {@link #truncateBefore(long)}, which drops the
+ * records before a durable snapshot by copying the rest to a new file. The file starts with the
+ * position of its first record.<br>
+ * {@link #awaitDurable()} implements group commit: the first writer forces everything written so
+ * far, the writers waiting meanwhile find their records already durable and return without a
+ * force of their own.
+ */
+final class WriteAheadLog {
+
+  /** When the written records are forced to the storage device. */
+  enum SyncPolicy {
+    /** Every write operation waits for its record to be forced, concurrent ones share a force. */
+    PER_OP,
+    /** Records are forced in the background every sync interval, writers never wait. */
+    BATCHED,
+    /** Records are never forced explicitly, the OS decides when to flush. */
+    OS;
+
+    static SyncPolicy of(final String name) {
+      switch (name) {
+        case "perOp":
+          return PER_OP;
+        case "batched":
+          return BATCHED;
+        case "os":
+          return OS;
+        default:
+          throw new IllegalArgumentException(String.format("Unknown sync policy %s", name));
+      }
+    }
+  }
+
+  private static final Logger log = LogManager.getLogger();
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int HEADER_SIZE = Integer.BYTES * 2;
+  private static final int FILE_HEADER_SIZE = Long.BYTES;
+  private static final int MAX_PAYLOAD_SIZE = 1 << 16;
+  private static final WriteAheadLog DISABLED =
+      new WriteAheadLog(null, null, SyncPolicy.OS, null);
+  private final Path path;
+  // replaced by truncation holding both syncMonitor and writeLock
+  private volatile FileChannel channel;
+  private final SyncPolicy syncPolicy;
+  private final ScheduledExecutorService syncExecutor;
+  private final Lock writeLock = new ReentrantLock();
+  private final Object syncMonitor = new Object();
+  private volatile long writtenPosition;
+  private volatile long syncedPosition;
+  // position of the first record in the file
+  private volatile long basePosition;
+  // set under syncMonitor once everything written is forced and the channel is closed
+  private volatile boolean closed;
+
+  private WriteAheadLog(
+      final Path path,
+      final FileChannel channel,
+      final SyncPolicy syncPolicy,
+      final ScheduledExecutorService syncExecutor) {
+    this.path = path;
+    this.channel = channel;
+    this.syncPolicy = syncPolicy;
+    this.syncExecutor = syncExecutor;
+  }
+
+  /** Log that writes nothing and replays nothing. */
+  static WriteAheadLog disabled() {
+    return DISABLED;
+  }
+
+  static WriteAheadLog open(
+      final Path path, final SyncPolicy syncPolicy, final long syncIntervalMillis) {
+    final FileChannel channel;
+    try {
+      channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    ScheduledExecutorService syncExecutor = null;
+    if (syncPolicy == SyncPolicy.BATCHED) {
+      syncExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                final Thread thread = new Thread(runnable, "widgets-wal-sync");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    final WriteAheadLog writeAheadLog =
+        new WriteAheadLog(path, channel, syncPolicy, syncExecutor);
+    if (syncExecutor != null) {
+      syncExecutor.scheduleWithFixedDelay(
+          writeAheadLog::syncInBackground,
+          syncIntervalMillis,
+          syncIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+    log.info("Write-ahead log {} opened with {} sync policy.", path, syncPolicy);
+    return writeAheadLog;
+  }
+
+  /**
+   * Passes the records starting from the position to the consumers in the order they were written
+   * and positions the log after the last complete record. Must be called once, before any write.
+   */
+  void replay(
+      final long fromPosition, final Consumer<Widget> onPut, final Consumer<String> onDelete) {
+    if (channel == null) {
+      return;
+    }
+    long position = fromPosition;
+    int records = 0;
+    try {
+      basePosition = readBasePosition();
+      if (position < basePosition) {
+        throw new IllegalStateException(
+            String.format(
+                "Write-ahead log starts at %d, expected at most %d.", basePosition, position));
+      }
+      if (physical(position) > channel.size()) {
+        throw new IllegalStateException(
+            String.format(
+                "Write-ahead log ends at %d, expected at least %d.",
+                basePosition + channel.size() - FILE_HEADER_SIZE, position));
+      }
+      channel.position(physical(position));
+      final DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      final CRC32 crc = new CRC32();
+      while (true) {
+        final int payloadSize;
+        final int checksum;
+        final byte[] payload;
+        try {
+          payloadSize = in.readInt();
+          checksum = in.readInt();
+          if (payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+            break;
+          }
+          payload = new byte[payloadSize];
+          in.readFully(payload);
+        } catch (final EOFException e) {
+          break;
+        }
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        final byte type = buffer.get();
+        final String id = readId(buffer);
+        if (type == PUT) {
+          onPut.accept(readWidget(id, buffer));
+        } else {
+          onDelete.accept(id);
+        }
+        position += HEADER_SIZE + payloadSize;
+        records++;
+      }
+      if (physical(position) < channel.size()) {
+        log.warn(
+            "Discarding {} bytes of write-ahead log tail.", channel.size() - physical(position));
+        channel.truncate(physical(position));
+      }
+      channel.position(physical(position));
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    writtenPosition = position;
+    syncedPosition = position;
+    log.info("Replayed {} write-ahead log records.", records);
+  }
+
+  /** Appends the resulting state of a created or updated widget. */
+  void put(final Widget widget) {
+    if (channel == null) {
+      return;
+    }
+    final byte[] id = widget.id().getBytes(UTF_8);
+    final ByteBuffer payload =
+        ByteBuffer.allocate(1 + Short.BYTES + id.length + Integer.BYTES * 6 + Long.BYTES);
+    payload.put(PUT).putShort((short) id.length).put(id);
+    payload.putInt(widget.x()).putInt(widget.y()).putInt(widget.z());
+    payload.putInt(widget.width()).putInt(widget.height());
+    payload.putLong(widget.lastModified().getEpochSecond());
+    payload.putInt(widget.lastModified().getNano());
+    write(record(payload));
+  }
+
+  void delete(final String widgetId) {
+    if (channel == null) {
+      return;
+    }
+    write(record(deletePayload(widgetId)));
+  }
+
+  /** Appends the deletes of all the widgets by a single write. */
+  void deleteAll(final List<String> widgetIds) {
+    if (channel == null || widgetIds.isEmpty()) {
+      return;
+    }
+    final ByteBuffer[] records = new ByteBuffer[widgetIds.size()];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = record(deletePayload(widgetIds.get(i)));
+    }
+    write(records);
+  }
+
+  /**
+   * Returns once all the records written so far are forced to the storage device. Only waits with
+   * {@link SyncPolicy#PER_OP} policy. Should be called without holding any repository lock, so
+   * writers can keep appending while the force is in progress. Returns at once after {@link
+   * #close()}, which forces all the records written before it.
+   */
+  void awaitDurable() {
+    if (syncPolicy != SyncPolicy.PER_OP) {
+      return;
+    }
+    final long position = writtenPosition;
+    if (syncedPosition >= position) {
+      return;
+    }
+    synchronized (syncMonitor) {
+      // a force completed while waiting for the monitor may have covered the position already
+      if (!closed && syncedPosition < position) {
+        force();
+      }
+    }
+  }
+
+  /** Position after the last written record. */
+  long position() {
+    return writtenPosition;
+  }
+
+  /**
+   * Drops the records before the position, which must be covered by a durable snapshot. Records
+   * from the position on are copied to a new file replacing the log, writers are only paused while
+   * the records they appended during the copy are copied as well.
+   */
+  void truncateBefore(final long position) {
+    if (channel == null || position <= basePosition) {
+      return;
+    }
+    final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      final FileChannel truncated =
+          FileChannel.open(
+              tmpPath,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      try {
+        writeFully(truncated, ByteBuffer.allocate(FILE_HEADER_SIZE).putLong(0, position));
+        long copiedPosition = copy(position, writtenPosition, truncated);
+        synchronized (syncMonitor) {
+          writeLock.lock();
+          try {
+            copiedPosition = copy(copiedPosition, writtenPosition, truncated);
+            truncated.force(false);
+            Files.move(
+                tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel.close();
+            channel = truncated;
+            basePosition = position;
+            syncedPosition = copiedPosition;
+          } finally {
+            writeLock.unlock();
+          }
+        }
+      } catch (final IOException | RuntimeException e) {
+        truncated.close();
+        throw e;
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    log.info("Write-ahead log truncated before {}.", position);
+  }
+
+  /** Forces all the records written so far, regardless of the sync policy. */
+  void forceAll() {
+    if (channel == null) {
+      return;
+    }
+    synchronized (syncMonitor) {
+      if (!closed && syncedPosition < writtenPosition) {
+        force();
+      }
+    }
+  }
+
+  void close() {
+    if (channel == null) {
+      return;
+    }
+    if (syncExecutor != null) {
+      syncExecutor.shutdownNow();
+    }
+    synchronized (syncMonitor) {
+      if (closed) {
+        return;
+      }
+      force();
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      closed = true;
+    }
+  }
+
+  /** Reads the position of the first record, writing it for a new file. */
+  private long readBasePosition() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    if (channel.size() == 0) {
+      writeFully(channel, header);
+      channel.force(false);
+      return 0;
+    }
+    channel.position(0);
+    while (header.hasRemaining()) {
+      if (channel.read(header) < 0) {
+        throw new IllegalStateException("Write-ahead log header is torn.");
+      }
+    }
+    return header.getLong(0);
+  }
+
+  private long physical(final long position) {
+    return position - basePosition + FILE_HEADER_SIZE;
+  }
+
+  /** Copies the records between the positions to the end of the target, returns the end. */
+  private long copy(final long from, final long to, final FileChannel target) throws IOException {
+    long copied = from;
+    while (copied < to) {
+      copied += channel.transferTo(physical(copied), to - copied, target);
+    }
+    return to;
+  }
+
+  private static void writeFully(final FileChannel target, final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+  private static ByteBuffer deletePayload(final String widgetId) {
+    final byte[] id = widgetId.getBytes(UTF_8);
+    final ByteBuffer payload = ByteBuffer.allocate(1 + Short.BYTES + id.length);
+    return payload.put(DELETE).putShort((short) id.length).put(id);
+  }
+
+  private static ByteBuffer record(final ByteBuffer payload) {
+    payload.flip();
+    final CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+    return record.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload).flip();
+  }
+
+  private void write(final ByteBuffer... records) {
+    final ByteBuffer last = records[records.length - 1];
+    long size = 0;
+    for (final ByteBuffer record : records) {
+      size += record.remaining();
+    }
+    writeLock.lock();
+    try {
+      while (last.hasRemaining()) {
+        channel.write(records);
+      }
+      writtenPosition += size;
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /** Must be called holding {@link #syncMonitor}. */
+  private void force() {
+    final long position = writtenPosition;
+    try {
+      channel.force(false);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    syncedPosition = position;
+  }
+
+  private void syncInBackground() {
+    try {
+      forceAll();
+    } catch (final RuntimeException e) {
+      log.error("Write-ahead log sync failed.", e);
+    }
+  }
+
+  private static String readId(final ByteBuffer buffer) {
+    final byte[] id = new byte[Short.toUnsignedInt(buffer.getShort())];
+    buffer.get(id);
+    return new String(id, UTF_8);
+  }
+
+  private static Widget readWidget(final String id, final ByteBuffer buffer) {
+    final int x = buffer.getInt();
+    final int y = buffer.getInt();
+    final int z = buffer.getInt();
+    final int width = buffer.getInt();
+    final int height = buffer.getInt();
+    final Instant lastModified = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+    return new Widget(id, x, y, z, width, height, lastModified);
+  }
+}
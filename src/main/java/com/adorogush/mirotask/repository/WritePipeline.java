@@ -0,0 +1,250 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Executes the mutations of a repository either directly by the calling thread or by a single
+ * writer thread.<br>
+ * In the pipelined mode callers put their mutations to a bounded lock-free ring buffer and wait
+ * for the result. The writer drains all queued mutations at once and passes them to the {@link
+ * Applier} as a batch, so the writers do not hand a lock over to each other and adjacent mutations
+ * can be applied together. A producer claims a slot by a CAS of {@link #tail} and publishes the
+ * mutation to it, the writer takes the slots in order up to the first not yet published one. A
+ * full ring makes producers wait for the writer. Closing sets {@link #CLOSED} bit of {@link #tail}
+ * by the same CAS, so every slot is either claimed before it and applied by the writer, or never
+ * claimed.
+ */
+final class WritePipeline {
+
+  /** Applies a batch of mutations in their order, completing every one of them. */
+  @FunctionalInterface
+  interface Applier {
+    void apply(List<Mutation<?>> batch);
+  }
+
+  /** Mutation waiting for its result. */
+  static final class Mutation<T> {
+
+    private final WidgetToCreate insert;
+    private final Supplier<T> action;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    private Mutation(final WidgetToCreate insert, final Supplier<T> action) {
+      this.insert = insert;
+      this.action = action;
+    }
+
+    static <T> Mutation<T> of(final Supplier<T> action) {
+      return new Mutation<>(null, action);
+    }
+
+    /**
+     * Create of a widget with z-index, which may be applied together with the adjacent ones
+     * instead of by the action.
+     */
+    static Mutation<Widget> insert(
+        final WidgetToCreate widgetToCreate, final Supplier<Widget> action) {
+      return new Mutation<>(widgetToCreate, action);
+    }
+
+    /** Widget to create, if the mutation is an insert. */
+    WidgetToCreate insert() {
+      return insert;
+    }
+
+    /** Applies the action, any exception fails the mutation. */
+    void apply() {
+      try {
+        result.complete(action.get());
+      } catch (final RuntimeException | Error e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    /** Completes an insert applied together with others. */
+    @SuppressWarnings("unchecked")
+    void completeInsert(final Widget widget) {
+      ((CompletableFuture<Widget>) result).complete(widget);
+    }
+
+    void fail(final Throwable e) {
+      result.completeExceptionally(e);
+    }
+
+    /** Waits for the result, an exception of the action is thrown as is. */
+    T await() {
+      try {
+        return result.join();
+      } catch (final CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  // bit of tail set once the pipeline is closed, sequences never reach it
+  private static final long CLOSED = Long.MIN_VALUE;
+  private final Applier applier;
+  private final AtomicReferenceArray<Mutation<?>> slots;
+  private final int mask;
+  // sequence of the next slot to claim, with CLOSED bit once closed
+  private final AtomicLong tail = new AtomicLong();
+  private final Thread writer;
+  // sequence of the next slot to take, only written by the writer
+  private volatile long head;
+  private volatile boolean writerParked;
+
+  private WritePipeline(final Applier applier, final int capacity) {
+    this.applier = applier;
+    if (capacity == 0) {
+      this.slots = null;
+      this.mask = 0;
+      this.writer = null;
+      return;
+    }
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.slots = new AtomicReferenceArray<>(Math.max(size, 1));
+    this.mask = slots.length() - 1;
+    this.writer = new Thread(this::run, "widgets-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Pipeline applying every mutation as a batch of one by the calling thread. */
+  static WritePipeline direct(final Applier applier) {
+    return new WritePipeline(applier, 0);
+  }
+
+  /** Pipeline with a writer thread and a ring buffer of at least the capacity. */
+  static WritePipeline start(final Applier applier, final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Write pipeline capacity must be positive.");
+    }
+    return new WritePipeline(applier, capacity);
+  }
+
+  boolean isPipelined() {
+    return writer != null;
+  }
+
+  /**
+   * Applies the mutation and returns its result.
+   *
+   * @throws IllegalStateException if the pipeline is closed.
+   */
+  <T> T execute(final Mutation<T> mutation) {
+    if (writer == null) {
+      applier.apply(List.of(mutation));
+      return mutation.await();
+    }
+    offer(mutation);
+    return mutation.await();
+  }
+
+  /**
+   * Applies the queued mutations and stops the writer. Mutations executed from now on fail, the
+   * ones which claimed their slots before are applied.
+   */
+  void close() {
+    if (writer == null) {
+      return;
+    }
+    tail.getAndUpdate(claimed -> claimed | CLOSED);
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void offer(final Mutation<?> mutation) {
+    while (true) {
+      final long claimed = tail.get();
+      if ((claimed & CLOSED) != 0) {
+        throw new IllegalStateException("Write pipeline is closed.");
+      }
+      if (claimed - head >= slots.length()) {
+        // full, wait for the writer to take some
+        Thread.yield();
+      } else if (tail.compareAndSet(claimed, claimed + 1)) {
+        slots.set((int) claimed & mask, mutation);
+        break;
+      }
+    }
+    if (writerParked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  private void run() {
+    final List<Mutation<?>> batch = new ArrayList<>(slots.length());
+    while (tail.get() != (head | CLOSED)) {
+      drain(batch);
+      if (batch.isEmpty()) {
+        writerParked = true;
+        // a producer claiming a slot from now on sees the flag and unparks
+        if (tail.get() == head) {
+          LockSupport.park(this);
+        } else {
+          // claimed slot is about to be published
+          Thread.onSpinWait();
+        }
+        writerParked = false;
+        continue;
+      }
+      try {
+        applier.apply(batch);
+      } catch (final RuntimeException | Error e) {
+        batch.forEach(mutation -> mutation.fail(e));
+      }
+      batch.clear();
+    }
+  }
+
+  /** Takes the published mutations in order, stopping at the first slot not published yet. */
+  private void drain(final List<Mutation<?>> batch) {
+    long next = head;
+    final long claimed = tail.get() & ~CLOSED;
+    while (next < claimed) {
+      final int slot = (int) next & mask;
+      final Mutation<?> mutation = slots.get(slot);
+      if (mutation == null) {
+        break;
+      }
+      slots.lazySet(slot, null);
+      batch.add(mutation);
+      next++;
+    }
+    head = next;
+  }
+}
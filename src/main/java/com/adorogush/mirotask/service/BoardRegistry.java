@@ -0,0 +1,343 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import com.adorogush.mirotask.exception.ServiceUnavailableException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * A Service keeping the boards, each one holding its widgets in a repository of its own created by
+ * {@link WidgetRepository#forBoard(String)} on the first request to the board. Boards are kept in
+ * a {@link ConcurrentHashMap}, so only requests to the same board synchronize on the look up, and
+ * writes to different boards share no repository locks and run in parallel.<br>
+ * The {@code default} board is served by the application wide services. At most {@code
+ * boardsMax} other boards are kept, a request to another board evicts the least recently used
+ * board first, found at the head of {@link #leastRecentlyUsed}. A board no request was made to for
+ * {@code boardIdleSeconds} is evicted as well. Boards with change feed subscribers are never
+ * evicted. An evicted board is removed under the lock of its entry, which leaves its future in
+ * {@link #closing}, and closed by {@link WidgetRepository#closeBoard()} outside the lock. The next
+ * request to the board waits for the future, so its widgets are kept before they are loaded again.
+ */
+@Service
+public class BoardRegistry {
+
+  public static final String DEFAULT_BOARD_ID = "default";
+  private static final Logger log = LogManager.getLogger();
+  private static final Pattern BOARD_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+  private final WidgetRepository widgetRepository;
+  private final RateLimitService rateLimitService;
+  private final PageTokenService pageTokenService;
+  private final WidgetEventService widgetEventService;
+  private final ObjectMapper objectMapper;
+  private final Clock clock;
+  private final int importBatchSize;
+  private final int boardsMax;
+  private final Duration idleTimeout;
+  private final Board defaultBoard;
+  private final ConcurrentMap<String, Board> boards = new ConcurrentHashMap<>();
+  // access ordered, guarded by itself and only changed under the lock of the board entry
+  private final Map<String, Board> leastRecentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+  // boards removed but not closed yet, put under the lock of the board entry
+  private final ConcurrentMap<String, CompletableFuture<Void>> closing = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService evictionExecutor;
+
+  public BoardRegistry(
+      final WidgetRepository widgetRepository,
+      final WidgetService widgetService,
+      final WidgetImportService widgetImportService,
+      final WidgetExportService widgetExportService,
+      final WidgetEventService widgetEventService,
+      final RateLimitService rateLimitService,
+      final PageTokenService pageTokenService,
+      final ObjectMapper objectMapper,
+      final Clock clock,
+      @Value("${importBatchSize}") final int importBatchSize,
+      @Value("${boardsMax}") final int boardsMax,
+      @Value("${boardIdleSeconds}") final long boardIdleSeconds) {
+    this.widgetRepository = widgetRepository;
+    this.rateLimitService = rateLimitService;
+    this.pageTokenService = pageTokenService;
+    this.widgetEventService = widgetEventService;
+    this.objectMapper = objectMapper;
+    this.clock = clock;
+    this.importBatchSize = importBatchSize;
+    this.boardsMax = boardsMax;
+    this.idleTimeout = Duration.ofSeconds(boardIdleSeconds);
+    this.defaultBoard =
+        new Board(
+            null,
+            widgetRepository,
+            widgetService,
+            widgetImportService,
+            widgetExportService,
+            widgetEventService,
+            clock.instant());
+    this.evictionExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "widgets-boards-eviction");
+              thread.setDaemon(true);
+              return thread;
+            });
+    evictionExecutor.scheduleWithFixedDelay(
+        this::evictIdleInBackground, boardIdleSeconds, boardIdleSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the board, creating it if it is not kept yet, and marks it as used now.
+   *
+   * @throws ValidationException if the board id is malformed.
+   * @throws ServiceUnavailableException if there are too many boards with subscribers kept
+   *     already.
+   */
+  public Board board(final String boardId) {
+    if (DEFAULT_BOARD_ID.equals(boardId)) {
+      return defaultBoard;
+    }
+    if (!BOARD_ID_PATTERN.matcher(boardId).matches()) {
+      throw new ValidationException(
+          "Board id must be from 1 to 64 latin letters, digits, underscores or hyphens.");
+    }
+    while (true) {
+      // marked under the lock of the entry, so the board is never evicted right after the look up
+      final Board kept = boards.computeIfPresent(boardId, (id, board) -> touch(board));
+      if (kept != null) {
+        return kept;
+      }
+      awaitClosed(boardId);
+      if (boards.size() >= boardsMax) {
+        evictLeastRecentlyUsed();
+      }
+      final Board found =
+          boards.compute(
+              boardId,
+              (id, board) -> {
+                if (board != null) {
+                  return touch(board);
+                }
+                // evicted since the look up, created once it is closed
+                return closing.containsKey(id) ? null : touch(createBoard(id));
+              });
+      if (found != null) {
+        return found;
+      }
+    }
+  }
+
+  /** Must be called under the lock of the board entry. */
+  private Board touch(final Board board) {
+    board.lastAccess = clock.instant();
+    synchronized (leastRecentlyUsed) {
+      // moves an existing board to the tail
+      leastRecentlyUsed.put(board.boardId, board);
+    }
+    return board;
+  }
+
+  private void awaitClosed(final String boardId) {
+    final CompletableFuture<Void> closed = closing.get(boardId);
+    if (closed != null) {
+      closed.join();
+    }
+  }
+
+  private Board createBoard(final String boardId) {
+    if (boards.size() >= boardsMax) {
+      throw new ServiceUnavailableException("Too many boards, try again later.");
+    }
+    final WidgetRepository boardRepository = widgetRepository.forBoard(boardId);
+    final WidgetEventService boardEventService = widgetEventService.forBoard();
+    return new Board(
+        boardId,
+        boardRepository,
+        new WidgetService(
+            boardRepository, rateLimitService, pageTokenService, boardEventService, boardId),
+        new WidgetImportService(boardRepository, rateLimitService, objectMapper, importBatchSize),
+        new WidgetExportService(boardRepository, rateLimitService, objectMapper),
+        boardEventService,
+        clock.instant());
+  }
+
+  /**
+   * Evicts the least recently used board without subscribers, if there is one. Only the boards
+   * with subscribers used even less recently are passed over.
+   */
+  private void evictLeastRecentlyUsed() {
+    Board found = null;
+    synchronized (leastRecentlyUsed) {
+      for (final Board board : leastRecentlyUsed.values()) {
+        if (board.widgetEventService.subscribers() == 0) {
+          found = board;
+          break;
+        }
+      }
+    }
+    if (found != null) {
+      // not evicted if it was used since it was found
+      evict(found.boardId, found.lastAccess.plusNanos(1));
+    }
+  }
+
+  /** Evicts the boards idle for the timeout, returns the number of boards evicted. */
+  /*for tests*/ int evictIdle() {
+    final Instant idleSince = clock.instant().minus(idleTimeout);
+    int evicted = 0;
+    for (final String boardId : boards.keySet()) {
+      if (evict(boardId, idleSince)) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes and closes the board if it is not used since the instant and has no subscribers. The
+   * board is closed outside the lock of its entry, so requests to other boards are never held up by
+   * writing its widgets.
+   */
+  private boolean evict(final String boardId, final Instant idleSince) {
+    final CompletableFuture<Void> closed = new CompletableFuture<>();
+    final Board[] evicted = new Board[1];
+    boards.computeIfPresent(
+        boardId,
+        (id, board) -> {
+          if (!board.isEvictable(idleSince)) {
+            return board;
+          }
+          synchronized (leastRecentlyUsed) {
+            leastRecentlyUsed.remove(id);
+          }
+          closing.put(id, closed);
+          evicted[0] = board;
+          return null;
+        });
+    if (evicted[0] == null) {
+      return false;
+    }
+    try {
+      evicted[0].widgetRepository.closeBoard();
+      evicted[0].widgetEventService.completeSubscribers();
+    } catch (final RuntimeException e) {
+      log.error("Board {} could not be closed.", boardId, e);
+    } finally {
+      closing.remove(boardId, closed);
+      closed.complete(null);
+    }
+    return true;
+  }
+
+  private void evictIdleInBackground() {
+    try {
+      final int evicted = evictIdle();
+      if (evicted > 0) {
+        log.info("Evicted {} idle boards, {} boards are kept.", evicted, boards.size());
+      }
+    } catch (final RuntimeException e) {
+      log.error("Boards eviction failed.", e);
+    }
+  }
+
+  /*for tests*/ int boards() {
+    return boards.size();
+  }
+
+  @PreDestroy
+  public void close() {
+    evictionExecutor.shutdownNow();
+    for (final Board board : boards.values()) {
+      board.widgetEventService.completeSubscribers();
+      try {
+        board.widgetRepository.closeBoard();
+      } catch (final RuntimeException e) {
+        log.error("Board {} could not be closed.", board.boardId, e);
+      }
+    }
+    boards.clear();
+    synchronized (leastRecentlyUsed) {
+      leastRecentlyUsed.clear();
+    }
+  }
+
+  /** Services of a board, all of them working with the same repository. */
+  public static final class Board {
+
+    // null for the default board
+    private final String boardId;
+    private final WidgetRepository widgetRepository;
+    private final WidgetService widgetService;
+    private final WidgetImportService widgetImportService;
+    private final WidgetExportService widgetExportService;
+    private final WidgetEventService widgetEventService;
+    // written under the lock of the board entry
+    private volatile Instant lastAccess;
+
+    private Board(
+        final String boardId,
+        final WidgetRepository widgetRepository,
+        final WidgetService widgetService,
+        final WidgetImportService widgetImportService,
+        final WidgetExportService widgetExportService,
+        final WidgetEventService widgetEventService,
+        final Instant lastAccess) {
+      this.boardId = boardId;
+      this.widgetRepository = widgetRepository;
+      this.widgetService = widgetService;
+      this.widgetImportService = widgetImportService;
+      this.widgetExportService = widgetExportService;
+      this.widgetEventService = widgetEventService;
+      this.lastAccess = lastAccess;
+    }
+
+    public WidgetService widgetService() {
+      return widgetService;
+    }
+
+    public WidgetImportService widgetImportService() {
+      return widgetImportService;
+    }
+
+    public WidgetExportService widgetExportService() {
+      return widgetExportService;
+    }
+
+    public WidgetEventService widgetEventService() {
+      return widgetEventService;
+    }
+
+    private boolean isEvictable(final Instant idleSince) {
+      return lastAccess.isBefore(idleSince) && widgetEventService.subscribers() == 0;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.adorogush.mirotask.exception.GoneException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.Area;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * A Service issuing opaque page tokens, which locate the next page of a scan by the z-index of the
+ * last widget read and the repository version it was read at, a token only reads the board it was
+ * issued for. Nothing is kept for a scan, the next page is read lazily by translating the z-index
+ * through the shifts made since the version, see {@link
+ * com.adorogush.mirotask.repository.Changes#shiftedZ}, so every page costs the same regardless of
+ * the board size and the number of scans in progress.<br>
+ * A token is valid for {@code pageTokenTtlSeconds} after it is issued. Tokens are signed by an
+ * HMAC with a key generated on every start, so a client cannot extend a token or point it
+ * elsewhere, and the tokens of a previous start are answered the same way as expired ones.
+ */
+@Service
+public class PageTokenService {
+
+  private static final String EXPIRED_MSG = "Page token expired, read the first page again.";
+  private static final String INVALID_MSG = "Invalid page token.";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private final Clock clock;
+  private final long ttlSeconds;
+  private final SecretKeySpec key;
+
+  public PageTokenService(
+      final Clock clock, @Value("${pageTokenTtlSeconds}") final long ttlSeconds) {
+    this.clock = clock;
+    this.ttlSeconds = ttlSeconds;
+    final byte[] keyBytes = new byte[32];
+    new SecureRandom().nextBytes(keyBytes);
+    this.key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+  }
+
+  /**
+   * @param boardId board the page was read from.
+   * @param instance tells apart versions counted anew by every start of the application.
+   * @param version repository version the page was read at.
+   * @param lastZ z-index of the last widget of the page.
+   * @param area area of the scan or {@code null}.
+   */
+  public String issue(
+      final String boardId,
+      final long instance,
+      final long version,
+      final int lastZ,
+      final Area area) {
+    final String token =
+        boardId
+            + ':'
+            + Long.toHexString(instance)
+            + ':'
+            + Long.toHexString(version)
+            + ':'
+            + lastZ
+            + ':'
+            + clock.instant().getEpochSecond()
+            + ':'
+            + (area == null ? "" : area.format());
+    final byte[] payload = token.getBytes(UTF_8);
+    final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString(payload) + '.' + encoder.encodeToString(mac(payload));
+  }
+
+  /**
+   * Decodes the token issued by {@link #issue}.
+   *
+   * @throws GoneException if the token is expired or not signed by this start.
+   * @throws ValidationException if the token is malformed.
+   */
+  public PageToken parse(final String pageToken) {
+    final int separator = pageToken.indexOf('.');
+    if (separator < 0) {
+      throw new ValidationException(INVALID_MSG);
+    }
+    final byte[] payload;
+    final byte[] signature;
+    try {
+      payload = Base64.getUrlDecoder().decode(pageToken.substring(0, separator));
+      signature = Base64.getUrlDecoder().decode(pageToken.substring(separator + 1));
+    } catch (final IllegalArgumentException e) {
+      throw new ValidationException(INVALID_MSG);
+    }
+    if (!MessageDigest.isEqual(mac(payload), signature)) {
+      throw new GoneException(EXPIRED_MSG);
+    }
+    final String[] parts = new String(payload, UTF_8).split(":", -1);
+    if (parts.length != 6) {
+      throw new ValidationException(INVALID_MSG);
+    }
+    final PageToken token;
+    final long issuedAt;
+    try {
+      token =
+          new PageToken(
+              parts[0],
+              Long.parseUnsignedLong(parts[1], 16),
+              Long.parseUnsignedLong(parts[2], 16),
+              Integer.parseInt(parts[3]),
+              parts[5].isEmpty() ? null : Area.parse(parts[5]));
+      issuedAt = Long.parseLong(parts[4]);
+    } catch (final NumberFormatException | ValidationException e) {
+      throw new ValidationException(INVALID_MSG);
+    }
+    if (clock.instant().getEpochSecond() - issuedAt >= ttlSeconds) {
+      throw new GoneException(EXPIRED_MSG);
+    }
+    return token;
+  }
+
+  private byte[] mac(final byte[] payload) {
+    try {
+      final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(key);
+      return mac.doFinal(payload);
+    } catch (final GeneralSecurityException e) {
+      throw new IllegalStateException("Page tokens cannot be signed.", e);
+    }
+  }
+
+  /** Decoded page token, see {@link #issue}. */
+  public static final class PageToken {
+
+    private final String boardId;
+    private final long instance;
+    private final long version;
+    private final int lastZ;
+    private final Area area;
+
+    private PageToken(
+        final String boardId,
+        final long instance,
+        final long version,
+        final int lastZ,
+        final Area area) {
+      this.boardId = boardId;
+      this.instance = instance;
+      this.version = version;
+      this.lastZ = lastZ;
+      this.area = area;
+    }
+
+    public String boardId() {
+      return boardId;
+    }
+
+    public long instance() {
+      return instance;
+    }
+
+    public long version() {
+      return version;
+    }
+
+    public int lastZ() {
+      return lastZ;
+    }
+
+    public Area area() {
+      return area;
+    }
+  }
+}
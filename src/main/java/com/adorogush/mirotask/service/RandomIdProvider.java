@@ -16,10 +16,15 @@
 package com.adorogush.mirotask.service;
 
 import java.util.UUID;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 /** Basic implementation of {@link IdProvider}. Uses random {@link UUID}. */
 @Service
+@ConditionalOnProperty(
+    name = "idProviderImplementation",
+    havingValue = "random",
+    matchIfMissing = true)
 public class RandomIdProvider implements IdProvider {
 
   @Override
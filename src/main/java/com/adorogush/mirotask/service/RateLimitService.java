@@ -39,6 +39,7 @@ public class RateLimitService {
 
   public static final String GLOBAL_ENABLED = "rateLimit.global.enabled";
   public static final String GLOBAL_RPM = "rateLimit.global.rpm";
+  public static final String BATCH_WEIGHTED = "rateLimit.batchWeighted";
   private final Environment env;
   private final AtomicReference<LocalBucket> globalBucketRef = new AtomicReference<>();
   private final Map<RateLimitOperation, LocalBucket> specificBucketMap = new ConcurrentHashMap<>();
@@ -72,13 +73,29 @@ public class RateLimitService {
    * @return instance of {@link RateLimitStat} holding the current rate limit stats.
    */
   public Optional<RateLimitStat> tryConsume(final RateLimitOperation operation) {
+    return tryConsume(operation, 1);
+  }
+
+  /**
+   * Will check if a batch of the specified operations is allowed. The batch is charged as a single
+   * request, or as one request per item if {@link #BATCH_WEIGHTED} is enabled.
+   *
+   * @return instance of {@link RateLimitStat} holding the current rate limit stats.
+   */
+  public Optional<RateLimitStat> tryConsumeBatch(
+      final RateLimitOperation operation, final int items) {
+    return tryConsume(operation, getBooleanProperty(BATCH_WEIGHTED) ? items : 1);
+  }
+
+  private Optional<RateLimitStat> tryConsume(
+      final RateLimitOperation operation, final long tokens) {
     return Optional.ofNullable(specificBucketMap.get(operation))
         .or(() -> Optional.ofNullable(globalBucketRef.get()))
-        .map(this::tryConsume);
+        .map(bucket -> tryConsume(bucket, tokens));
   }
 
-  private RateLimitStat tryConsume(final LocalBucket bucket) {
-    final ConsumptionProbe consumptionProbe = bucket.tryConsumeAndReturnRemaining(1);
+  private RateLimitStat tryConsume(final LocalBucket bucket, final long tokens) {
+    final ConsumptionProbe consumptionProbe = bucket.tryConsumeAndReturnRemaining(tokens);
     return new RateLimitStat(
         consumptionProbe.isConsumed(),
         getBucketRpm(bucket),
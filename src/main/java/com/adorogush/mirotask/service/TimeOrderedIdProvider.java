@@ -0,0 +1,90 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import java.time.Clock;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Implementation of {@link IdProvider} generating time ordered ids in {@link UUID} version 7 form
+ * without any shared state on the hot path.<br>
+ * Most significant bits hold milliseconds since epoch, so ids of different milliseconds are
+ * ordered. Least significant bits hold the id of a per-thread generator and its counter, so ids
+ * are unique by construction within the process and never need a random source. Generator ids are
+ * never reused, once all of them are taken by new threads ids are no longer generated.
+ */
+@Service
+@ConditionalOnProperty(name = "idProviderImplementation", havingValue = "timeOrdered")
+public class TimeOrderedIdProvider implements IdProvider {
+
+  private static final int COUNTER_LOW_BITS = 40;
+  private static final int COUNTER_HIGH_BITS = 12;
+  private static final long COUNTER_LOW_MASK = (1L << COUNTER_LOW_BITS) - 1;
+  private static final long COUNTER_MAX = 1L << (COUNTER_LOW_BITS + COUNTER_HIGH_BITS);
+  private static final int GENERATOR_BITS = 22;
+  private static final long GENERATOR_MAX = 1L << GENERATOR_BITS;
+  private static final long VERSION = 0x7000L;
+  private static final long VARIANT = 0x8000000000000000L;
+  private final AtomicLong generators;
+  private final ThreadLocal<Generator> generator = ThreadLocal.withInitial(this::newGenerator);
+  private final Clock clock;
+
+  @Autowired
+  public TimeOrderedIdProvider(final Clock clock) {
+    this(clock, 0);
+  }
+
+  /*for tests*/ TimeOrderedIdProvider(final Clock clock, final long takenGenerators) {
+    this.clock = clock;
+    this.generators = new AtomicLong(takenGenerators);
+  }
+
+  @Override
+  public String get() {
+    Generator g = generator.get();
+    if (g.counter == COUNTER_MAX) {
+      g = newGenerator();
+      generator.set(g);
+    }
+    final long counter = g.counter++;
+    final long high = (clock.millis() << 16) | VERSION | (counter >>> COUNTER_LOW_BITS);
+    final long low = VARIANT | (g.id << COUNTER_LOW_BITS) | (counter & COUNTER_LOW_MASK);
+    return new UUID(high, low).toString();
+  }
+
+  private Generator newGenerator() {
+    final long id = generators.getAndIncrement();
+    if (id >= GENERATOR_MAX) {
+      // a wrapped id would repeat the ids of an earlier generator
+      throw new IllegalStateException("All " + GENERATOR_MAX + " id generators are taken.");
+    }
+    return new Generator(id);
+  }
+
+  /** Thread confined generator state. */
+  private static final class Generator {
+    private final long id;
+    private long counter;
+
+    private Generator(final long id) {
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,467 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static com.adorogush.mirotask.service.WidgetService.checkConsumed;
+
+import com.adorogush.mirotask.exception.ServiceUnavailableException;
+import com.adorogush.mirotask.model.EntityTag;
+import com.adorogush.mirotask.model.RateLimitOperation;
+import com.adorogush.mirotask.model.RateLimitStat;
+import com.adorogush.mirotask.model.ServiceResponse;
+import com.adorogush.mirotask.model.WidgetEvent;
+import com.adorogush.mirotask.repository.WidgetRepository.CommitListener;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * A Service broadcasting committed Widget modifications to the subscribers of the change feed as
+ * server-sent events.<br>
+ * Events are handed over by the repository {@link #listener} in the order of the versions their
+ * modifications produced, the id of every event is the entity tag of its version. Handing over
+ * never blocks: the events are queued and fanned out by a dispatch thread, which serializes every
+ * event once and appends it to the buffer of every subscriber in the same order. A subscriber
+ * having more than {@code eventsBufferSize} events pending is too slow to keep up, its feed is
+ * completed and the client has to read the widgets again. An idle subscriber holds nothing but
+ * its emitter.<br>
+ * A send blocked by a client for longer than {@code eventsSendTimeoutMillis} drops its subscriber
+ * and adds a thread to the dispatch pool until the send returns, so slow clients never hold the
+ * threads the other subscribers are served by.<br>
+ * At most {@code eventsMaxSubscribers} subscribers are kept by the feeds of all boards together,
+ * counted by {@link #subscribersTotal} shared with every feed of {@link #forBoard()}.
+ */
+@Service
+public class WidgetEventService {
+
+  private static final Logger log = LogManager.getLogger();
+  private final RateLimitService rateLimitService;
+  private final ObjectWriter eventWriter;
+  private final int bufferSize;
+  private final int maxSubscribers;
+  private final long timeoutMillis;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  // subscribers of the feeds of all boards
+  private final AtomicInteger subscribersTotal;
+  private final Queue<Commit> committed = new ConcurrentLinkedQueue<>();
+  // at most one dispatch thread fans the commits out at a time
+  private final AtomicBoolean fanOutScheduled = new AtomicBoolean();
+  private final Dispatcher dispatcher;
+
+  @Autowired
+  public WidgetEventService(
+      final RateLimitService rateLimitService,
+      final ObjectMapper objectMapper,
+      @Value("${eventsBufferSize}") final int bufferSize,
+      @Value("${eventsMaxSubscribers}") final int maxSubscribers,
+      @Value("${eventsTimeoutMillis}") final long timeoutMillis,
+      @Value("${eventsSendTimeoutMillis}") final long sendTimeoutMillis) {
+    this(
+        rateLimitService,
+        objectMapper,
+        bufferSize,
+        maxSubscribers,
+        timeoutMillis,
+        sendTimeoutMillis,
+        Math.max(2, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /*for tests*/ WidgetEventService(
+      final RateLimitService rateLimitService,
+      final ObjectMapper objectMapper,
+      final int bufferSize,
+      final int maxSubscribers,
+      final long timeoutMillis,
+      final long sendTimeoutMillis,
+      final int dispatchThreads) {
+    this(
+        rateLimitService,
+        objectMapper.writerFor(WidgetEvent.class),
+        bufferSize,
+        maxSubscribers,
+        timeoutMillis,
+        new Dispatcher(dispatchThreads, sendTimeoutMillis),
+        new AtomicInteger());
+  }
+
+  private WidgetEventService(
+      final RateLimitService rateLimitService,
+      final ObjectWriter eventWriter,
+      final int bufferSize,
+      final int maxSubscribers,
+      final long timeoutMillis,
+      final Dispatcher dispatcher,
+      final AtomicInteger subscribersTotal) {
+    this.rateLimitService = rateLimitService;
+    this.eventWriter = eventWriter;
+    this.bufferSize = bufferSize;
+    this.maxSubscribers = maxSubscribers;
+    this.timeoutMillis = timeoutMillis;
+    this.dispatcher = dispatcher;
+    this.subscribersTotal = subscribersTotal;
+  }
+
+  /**
+   * Change feed of a board, which has subscribers of its own and shares the dispatch threads and
+   * the limit of subscribers with this one.
+   */
+  WidgetEventService forBoard() {
+    return new WidgetEventService(
+        rateLimitService,
+        eventWriter,
+        bufferSize,
+        maxSubscribers,
+        timeoutMillis,
+        dispatcher,
+        subscribersTotal);
+  }
+
+  /**
+   * Subscription is charged as a single read all request.
+   *
+   * @throws ServiceUnavailableException if the feeds of all boards have too many subscribers.
+   */
+  public ServiceResponse<SseEmitter> subscribe() {
+    final RateLimitStat rateLimitStat =
+        checkConsumed(rateLimitService.tryConsume(RateLimitOperation.READ_ALL));
+    if (subscribersTotal.incrementAndGet() > maxSubscribers) {
+      subscribersTotal.decrementAndGet();
+      throw new ServiceUnavailableException("Too many subscribers, try again later.");
+    }
+    return new ServiceResponse<>(add(new SseEmitter(timeoutMillis)), rateLimitStat);
+  }
+
+  /*for tests*/ SseEmitter subscribe(final SseEmitter emitter) {
+    subscribersTotal.incrementAndGet();
+    return add(emitter);
+  }
+
+  /** Must be called once the subscriber is counted by {@link #subscribersTotal}. */
+  private SseEmitter add(final SseEmitter emitter) {
+    final Subscriber subscriber = new Subscriber(emitter);
+    emitter.onCompletion(() -> remove(subscriber));
+    emitter.onTimeout(() -> remove(subscriber));
+    emitter.onError(e -> remove(subscriber));
+    subscribers.add(subscriber);
+    return emitter;
+  }
+
+  /** Removes the subscriber, which is only uncounted by the first removal. */
+  private void remove(final Subscriber subscriber) {
+    if (subscribers.remove(subscriber)) {
+      subscribersTotal.decrementAndGet();
+    }
+  }
+
+  /**
+   * Listener of the repository publishing its committed modifications, called by the writing
+   * thread in the order of the versions. Versions are tagged the same way as the entity tags of
+   * the repository, so a client can read the changes since the last event it received.
+   *
+   * @param instance tells apart versions counted anew by every start of the application.
+   */
+  public CommitListener listener(final long instance) {
+    return (version, events) -> {
+      if (subscribers.isEmpty()) {
+        return;
+      }
+      committed.add(new Commit(instance, version, events));
+      if (fanOutScheduled.compareAndSet(false, true)) {
+        dispatcher.execute(this::fanOut);
+      }
+    };
+  }
+
+  /** Serializes the queued events and appends them to the buffers of all current subscribers. */
+  private void fanOut() {
+    try {
+      Commit commit;
+      while ((commit = committed.poll()) != null) {
+        final String id = EntityTag.of(commit.instance, commit.version).value();
+        for (final WidgetEvent event : commit.events) {
+          final Frame frame;
+          try {
+            frame = new Frame(event.type(), id, eventWriter.writeValueAsString(event));
+          } catch (final JsonProcessingException e) {
+            log.error("Event serialization failed.", e);
+            continue;
+          }
+          for (final Subscriber subscriber : subscribers) {
+            subscriber.offer(frame);
+          }
+        }
+      }
+    } finally {
+      fanOutScheduled.set(false);
+    }
+    // a commit queued after the last poll, but before the flag was cleared
+    if (!committed.isEmpty() && fanOutScheduled.compareAndSet(false, true)) {
+      dispatcher.execute(this::fanOut);
+    }
+  }
+
+  int subscribers() {
+    return subscribers.size();
+  }
+
+  /*for tests*/ int compensatedThreads() {
+    return dispatcher.compensated();
+  }
+
+  @PreDestroy
+  public void close() {
+    dispatcher.close();
+    completeSubscribers();
+  }
+
+  /** Completes the feeds of all current subscribers, the dispatch threads are left running. */
+  void completeSubscribers() {
+    subscribers.forEach(
+        subscriber -> {
+          subscriber.emitter.complete();
+          remove(subscriber);
+        });
+  }
+
+  /** Events of a single committed modification. */
+  private static final class Commit {
+
+    private final long instance;
+    private final long version;
+    private final List<WidgetEvent> events;
+
+    private Commit(final long instance, final long version, final List<WidgetEvent> events) {
+      this.instance = instance;
+      this.version = version;
+      this.events = events;
+    }
+  }
+
+  /** Server-sent event shared by all subscribers. */
+  private static final class Frame {
+
+    private final String name;
+    private final String id;
+    private final String data;
+
+    private Frame(final String name, final String id, final String data) {
+      this.name = name;
+      this.id = id;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Dispatch threads shared by the change feeds of all boards, and a watchdog timing their sends
+   * out. A timed out send is compensated by an extra thread until it returns.
+   */
+  private static final class Dispatcher {
+
+    private final int threads;
+    private final long sendTimeoutNanos;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final Set<Subscriber> sending = ConcurrentHashMap.newKeySet();
+    // guarded by this
+    private int compensated;
+
+    private Dispatcher(final int threads, final long sendTimeoutMillis) {
+      this.threads = threads;
+      this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+      final AtomicInteger threadNumber = new AtomicInteger();
+      this.executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              0,
+              TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>(),
+              runnable -> {
+                final Thread thread =
+                    new Thread(runnable, "widgets-events-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+      this.watchdog =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                final Thread thread = new Thread(runnable, "widgets-events-watchdog");
+                thread.setDaemon(true);
+                return thread;
+              });
+      final long periodMillis = Math.max(1, sendTimeoutMillis / 2);
+      watchdog.scheduleWithFixedDelay(
+          this::timeOutSends, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void execute(final Runnable task) {
+      executor.execute(task);
+    }
+
+    private void timeOutSends() {
+      final long now = System.nanoTime();
+      for (final Subscriber subscriber : sending) {
+        subscriber.timeOutSend(now, sendTimeoutNanos);
+      }
+    }
+
+    /** Adds a thread replacing one blocked by a timed out send. */
+    private synchronized void addThread() {
+      compensated++;
+      executor.setMaximumPoolSize(threads + compensated);
+      executor.setCorePoolSize(threads + compensated);
+    }
+
+    /** Removes the thread added for a timed out send once it returned. */
+    private synchronized void removeThread() {
+      compensated--;
+      executor.setCorePoolSize(threads + compensated);
+      executor.setMaximumPoolSize(threads + compensated);
+    }
+
+    private synchronized int compensated() {
+      return compensated;
+    }
+
+    private void close() {
+      watchdog.shutdownNow();
+      executor.shutdownNow();
+    }
+  }
+
+  private final class Subscriber {
+
+    private final SseEmitter emitter;
+    private final Queue<Frame> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // at most one dispatch thread sends to the emitter at a time
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean dropped;
+    // guarded by this, start of the send in progress or 0
+    private long sendStartedNanos;
+    private boolean sendTimedOut;
+
+    private Subscriber(final SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    private void offer(final Frame frame) {
+      if (dropped) {
+        return;
+      }
+      if (pending.incrementAndGet() > bufferSize) {
+        drop();
+      } else {
+        buffer.add(frame);
+      }
+      schedule();
+    }
+
+    private void drop() {
+      dropped = true;
+      remove(this);
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        dispatcher.execute(this::dispatch);
+      }
+    }
+
+    private void dispatch() {
+      try {
+        if (dropped) {
+          buffer.clear();
+          log.debug("Completing the events of a slow subscriber.");
+          emitter.complete();
+          return;
+        }
+        Frame frame;
+        while (!dropped && (frame = buffer.poll()) != null) {
+          pending.decrementAndGet();
+          send(frame);
+        }
+      } catch (final IOException | IllegalStateException e) {
+        // client is gone or the emitter is already completed
+        drop();
+        buffer.clear();
+        return;
+      } finally {
+        scheduled.set(false);
+      }
+      if (dropped || !buffer.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private void send(final Frame frame) throws IOException {
+      synchronized (this) {
+        sendStartedNanos = System.nanoTime();
+      }
+      dispatcher.sending.add(this);
+      try {
+        emitter.send(SseEmitter.event().id(frame.id).name(frame.name).data(frame.data));
+      } finally {
+        dispatcher.sending.remove(this);
+        final boolean timedOut;
+        synchronized (this) {
+          sendStartedNanos = 0;
+          timedOut = sendTimedOut;
+          sendTimedOut = false;
+        }
+        if (timedOut) {
+          dispatcher.removeThread();
+        }
+      }
+    }
+
+    /**
+     * Drops the subscriber if its send is in progress for longer than the timeout. The send is
+     * compensated before it can return, so the thread is never removed before it is added.
+     */
+    private void timeOutSend(final long now, final long timeoutNanos) {
+      synchronized (this) {
+        if (sendStartedNanos == 0 || sendTimedOut || now - sendStartedNanos < timeoutNanos) {
+          return;
+        }
+        sendTimedOut = true;
+        dispatcher.addThread();
+      }
+      log.debug("Dropping a subscriber blocking a send for too long.");
+      drop();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static com.adorogush.mirotask.service.WidgetService.checkConsumed;
+
+import com.adorogush.mirotask.model.RateLimitOperation;
+import com.adorogush.mirotask.model.RateLimitStat;
+import com.adorogush.mirotask.model.ServiceResponse;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * A Service exporting all Widgets in z-index order as JSON objects separated by new lines, the
+ * format accepted by {@link WidgetImportService}. Widgets are written to the output one at a time
+ * as {@link WidgetRepository#exportAll} passes them, no list of all widgets is built.
+ */
+@Service
+public class WidgetExportService {
+
+  private static final Logger log = LogManager.getLogger();
+  private final WidgetRepository widgetRepository;
+  private final RateLimitService rateLimitService;
+  private final ObjectWriter widgetWriter;
+
+  public WidgetExportService(
+      final WidgetRepository widgetRepository,
+      final RateLimitService rateLimitService,
+      final ObjectMapper objectMapper) {
+    this.widgetRepository = widgetRepository;
+    this.rateLimitService = rateLimitService;
+    this.widgetWriter =
+        objectMapper
+            .writerFor(Widget.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  }
+
+  /**
+   * The whole export is charged as a single read all request, before anything is written. The
+   * returned body writes the widgets when the response is streamed.
+   */
+  public ServiceResponse<StreamingResponseBody> exportAll() {
+    final RateLimitStat rateLimitStat =
+        checkConsumed(rateLimitService.tryConsume(RateLimitOperation.READ_ALL));
+    return new ServiceResponse<>(this::writeAll, rateLimitStat);
+  }
+
+  /*for tests*/ void writeAll(final OutputStream outputStream) throws IOException {
+    final long[] exported = {0};
+    try (final JsonGenerator generator = widgetWriter.createGenerator(outputStream)) {
+      // the output belongs to the caller
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.setRootValueSeparator(null);
+      try {
+        widgetRepository.exportAll(
+            widget -> {
+              try {
+                widgetWriter.writeValue(generator, widget);
+                generator.writeRaw('\n');
+              } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+              }
+              exported[0]++;
+            });
+      } catch (final UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+    log.info("Exported {} widgets.", exported[0]);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static com.adorogush.mirotask.service.WidgetService.checkConsumed;
+
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.RateLimitOperation;
+import com.adorogush.mirotask.model.RateLimitStat;
+import com.adorogush.mirotask.model.ServiceResponse;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetsImported;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * A Service importing Widgets from a stream of JSON objects separated by new lines. Objects are
+ * parsed one at a time and created by {@link WidgetRepository#createMany(List)} in batches of
+ * {@code importBatchSize}, so memory use does not depend on the stream size. Every batch is
+ * applied on its own and published by the repository as a single modification, an invalid object
+ * stops the import leaving the widgets before it created.
+ */
+@Service
+public class WidgetImportService {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final int PROGRESS_LOG_BATCHES = 100;
+  private final WidgetRepository widgetRepository;
+  private final RateLimitService rateLimitService;
+  private final ObjectReader widgetReader;
+  private final int importBatchSize;
+
+  public WidgetImportService(
+      final WidgetRepository widgetRepository,
+      final RateLimitService rateLimitService,
+      final ObjectMapper objectMapper,
+      @Value("${importBatchSize}") final int importBatchSize) {
+    this.widgetRepository = widgetRepository;
+    this.rateLimitService = rateLimitService;
+    this.widgetReader = objectMapper.readerFor(WidgetToCreate.class);
+    this.importBatchSize = importBatchSize;
+  }
+
+  /**
+   * Every batch is charged by {@link RateLimitService#tryConsumeBatch} before it is created, the
+   * same as a create many request of its widgets. An import running out of tokens stops with {@code
+   * 429}, leaving the widgets of the batches before created. An import of no widgets is charged as
+   * a single create request.
+   */
+  public ServiceResponse<WidgetsImported> importAll(final InputStream inputStream) {
+    final List<WidgetToCreate> batch = new ArrayList<>(importBatchSize);
+    RateLimitStat rateLimitStat = null;
+    long imported = 0;
+    long batches = 0;
+    try (final MappingIterator<WidgetToCreate> widgets = widgetReader.readValues(inputStream)) {
+      while (widgets.hasNextValue()) {
+        batch.add(widgets.nextValue());
+        if (batch.size() == importBatchSize) {
+          rateLimitStat = chargeBatch(batch);
+          imported += createBatch(batch);
+          if (++batches % PROGRESS_LOG_BATCHES == 0) {
+            log.info("Imported {} widgets so far.", imported);
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        rateLimitStat = chargeBatch(batch);
+        imported += createBatch(batch);
+        batches++;
+      }
+    } catch (final JsonProcessingException e) {
+      if (!batch.isEmpty()) {
+        chargeBatch(batch);
+        imported += createBatch(batch);
+      } else if (batches == 0) {
+        checkConsumed(rateLimitService.tryConsume(RateLimitOperation.CREATE));
+      }
+      log.info("Import stopped by invalid widget after {} widgets.", imported);
+      throw new ValidationException(
+          String.format(
+              "Invalid widget at line %d, %d widgets before it are imported: %s",
+              e.getLocation() == null ? 0 : e.getLocation().getLineNr(),
+              imported,
+              e.getCause() != null ? e.getCause().getMessage() : e.getOriginalMessage()));
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (batches == 0) {
+      rateLimitStat = checkConsumed(rateLimitService.tryConsume(RateLimitOperation.CREATE));
+    }
+    log.info("Imported {} widgets.", imported);
+    return new ServiceResponse<>(new WidgetsImported(imported), rateLimitStat);
+  }
+
+  private RateLimitStat chargeBatch(final List<WidgetToCreate> batch) {
+    return checkConsumed(
+        rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, batch.size()));
+  }
+
+  private int createBatch(final List<WidgetToCreate> batch) {
+    final int created = widgetRepository.createMany(batch).size();
+    batch.clear();
+    return created;
+  }
+}
@@ -15,30 +15,77 @@
 */
 package com.adorogush.mirotask.service;
 
+import com.adorogush.mirotask.exception.GoneException;
 import com.adorogush.mirotask.exception.NotFoundException;
 import com.adorogush.mirotask.exception.TooManyRequestsException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.EntityTag;
 import com.adorogush.mirotask.model.Page;
 import com.adorogush.mirotask.model.RateLimitOperation;
 import com.adorogush.mirotask.model.RateLimitStat;
 import com.adorogush.mirotask.model.ServiceResponse;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetChanges;
 import com.adorogush.mirotask.model.WidgetToCreate;
 import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsDeleted;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.repository.Changes;
+import com.adorogush.mirotask.repository.VersionedPage;
 import com.adorogush.mirotask.repository.WidgetRepository;
+import com.adorogush.mirotask.service.PageTokenService.PageToken;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-/** A Service for CRUD Widget operations. */
+/**
+ * A Service for CRUD Widget operations. Every committed modification is published by {@link
+ * WidgetEventService}, which listens to the repository, so the events are in the order of the
+ * commits.
+ */
 @Service
 public class WidgetService {
 
+  private static final String SCAN_GONE_MSG = "Scan is no longer known, read the first page again.";
+  private static final String OTHER_BOARD_MSG = "Page token is of another board.";
   private final WidgetRepository widgetRepository;
   private final RateLimitService rateLimitService;
+  private final PageTokenService pageTokenService;
+  private final String boardId;
+  // repository versions are counted anew by every start, so tags of older starts must not match
+  private final long instance = ThreadLocalRandom.current().nextLong();
 
+  @Autowired
   public WidgetService(
-      final WidgetRepository widgetRepository, final RateLimitService rateLimitService) {
+      final WidgetRepository widgetRepository,
+      final RateLimitService rateLimitService,
+      final PageTokenService pageTokenService,
+      final WidgetEventService widgetEventService) {
+    this(
+        widgetRepository,
+        rateLimitService,
+        pageTokenService,
+        widgetEventService,
+        BoardRegistry.DEFAULT_BOARD_ID);
+  }
+
+  /** Service of the board, its page tokens are only accepted by the same board. */
+  WidgetService(
+      final WidgetRepository widgetRepository,
+      final RateLimitService rateLimitService,
+      final PageTokenService pageTokenService,
+      final WidgetEventService widgetEventService,
+      final String boardId) {
     this.widgetRepository = widgetRepository;
     this.rateLimitService = rateLimitService;
+    this.pageTokenService = pageTokenService;
+    this.boardId = boardId;
+    widgetRepository.listen(widgetEventService.listener(instance));
   }
 
   public ServiceResponse<Widget> createOne(final WidgetToCreate widgetToCreate) {
@@ -47,16 +94,114 @@ public class WidgetService {
     return new ServiceResponse<>(created, rateLimitStat);
   }
 
-  public ServiceResponse<Widget> readOne(final String id) {
+  public ServiceResponse<List<Widget>> createMany(final List<WidgetToCreate> widgetsToCreate) {
+    final RateLimitStat rateLimitStat =
+        checkConsumed(
+            rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, widgetsToCreate.size()));
+    final List<Widget> created = widgetRepository.createMany(widgetsToCreate);
+    return new ServiceResponse<>(created, rateLimitStat);
+  }
+
+  /** @param ifNoneMatch value of {@code If-None-Match} header or {@code null}. */
+  public ServiceResponse<Widget> readOne(final String id, final String ifNoneMatch) {
     final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ONE);
     final Widget widgetFound = widgetRepository.readOne(id).orElseThrow(() -> widgetNotFound(id));
-    return new ServiceResponse<>(widgetFound, rateLimitStat);
+    final EntityTag entityTag = EntityTag.of(widgetFound);
+    if (entityTag.matches(ifNoneMatch)) {
+      return ServiceResponse.notModified(entityTag, rateLimitStat);
+    }
+    return new ServiceResponse<>(widgetFound, rateLimitStat, entityTag);
+  }
+
+  /**
+   * If there is more than one page, the page holds the token of the next page, see {@link
+   * PageTokenService}.<br>
+   * Entity tag is the repository version, so if it matches {@code If-None-Match} header nothing is
+   * read at all.
+   */
+  public ServiceResponse<Page<Widget>> readAll(
+      final int perPage, final Integer fromZ, final String ifNoneMatch) {
+    final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ALL);
+    final EntityTag entityTag = repositoryEntityTag();
+    if (entityTag.matches(ifNoneMatch)) {
+      return ServiceResponse.notModified(entityTag, rateLimitStat);
+    }
+    final VersionedPage found = widgetRepository.readVersioned(perPage + 1, fromZ, null);
+    return new ServiceResponse<>(page(found, perPage, null), rateLimitStat, entityTag);
+  }
+
+  /** See {@link #readAll}. */
+  public ServiceResponse<Page<Widget>> readAllInArea(
+      final int perPage, final Integer fromZ, final Area area, final String ifNoneMatch) {
+    final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ALL);
+    final EntityTag entityTag = repositoryEntityTag();
+    if (entityTag.matches(ifNoneMatch)) {
+      return ServiceResponse.notModified(entityTag, rateLimitStat);
+    }
+    final VersionedPage found = widgetRepository.readVersioned(perPage + 1, fromZ, area);
+    return new ServiceResponse<>(page(found, perPage, area), rateLimitStat, entityTag);
+  }
+
+  /**
+   * Reads the next page of a scan started by {@link #readAll} or {@link #readAllInArea}. The page
+   * starts after the last widget of the previous one, wherever the shifts made since moved it, so
+   * no widget left unmodified during the scan is missed or repeated.
+   *
+   * @throws ValidationException if the token is malformed or issued for another board.
+   * @throws GoneException if the token is expired or the changes since it are no longer known, so
+   *     the scan has to be started again.
+   */
+  public ServiceResponse<Page<Widget>> readPage(final int perPage, final String pageToken) {
+    final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ALL);
+    final PageToken token = pageTokenService.parse(pageToken);
+    if (!token.boardId().equals(boardId)) {
+      throw new ValidationException(OTHER_BOARD_MSG);
+    }
+    if (token.instance() != instance) {
+      throw new GoneException(SCAN_GONE_MSG);
+    }
+    final VersionedPage found =
+        widgetRepository
+            .readVersionedAfter(perPage + 1, token.lastZ(), token.version(), token.area())
+            .orElseThrow(() -> new GoneException(SCAN_GONE_MSG));
+    return new ServiceResponse<>(page(found, perPage, token.area()), rateLimitStat);
+  }
+
+  /**
+   * Shifts of z-indexes made since the version, current state of the widgets changed since it and
+   * ids of the deleted ones. The version is the entity tag of {@link #readAll} or the version of
+   * the previous changes, with or without quotes. Widgets changed while the changes are read may be
+   * returned again by the next changes.
+   *
+   * @throws ValidationException if the version is malformed.
+   * @throws GoneException if the changes since the version are no longer known, so all widgets
+   *     have to be read again.
+   */
+  public ServiceResponse<WidgetChanges> readChanges(final String since) {
+    final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ALL);
+    final long sinceVersion = parseVersion(since);
+    // taken before reading, so the widgets read are at least as new as the version
+    final long version = widgetRepository.version();
+    final Changes changed =
+        widgetRepository
+            .changedSince(sinceVersion)
+            .orElseThrow(() -> new GoneException("Changes are no longer known, resync required."));
+    final List<Widget> upserts = new ArrayList<>();
+    final List<String> tombstones = new ArrayList<>();
+    for (final String id : changed.ids()) {
+      widgetRepository.readOne(id).ifPresentOrElse(upserts::add, () -> tombstones.add(id));
+    }
+    upserts.sort(Comparator.comparingInt(Widget::z));
+    final WidgetChanges changes =
+        new WidgetChanges(
+            EntityTag.of(instance, version).value(), changed.shifts(), upserts, tombstones);
+    return new ServiceResponse<>(changes, rateLimitStat);
   }
 
-  public ServiceResponse<Page<Widget>> readAll(final int perPage, final Integer fromZ) {
+  public ServiceResponse<List<Widget>> readTopAt(final int limit, final int x, final int y) {
     final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.READ_ALL);
-    final List<Widget> widgetsFound = widgetRepository.readAll(perPage + 1, fromZ);
-    return new ServiceResponse<>(Page.of(widgetsFound, perPage), rateLimitStat);
+    final List<Widget> widgetsFound = widgetRepository.readTopAt(limit, x, y);
+    return new ServiceResponse<>(widgetsFound, rateLimitStat);
   }
 
   public ServiceResponse<Widget> updateOne(final String id, final WidgetToUpdate widgetToUpdate) {
@@ -66,19 +211,100 @@ public class WidgetService {
     return new ServiceResponse<>(updated, rateLimitStat);
   }
 
+  public ServiceResponse<List<Widget>> reorder(final WidgetsToReorder widgetsToReorder) {
+    final RateLimitStat rateLimitStat =
+        checkConsumed(
+            rateLimitService.tryConsumeBatch(
+                RateLimitOperation.UPDATE, widgetsToReorder.ids().size()));
+    final List<Widget> reordered =
+        widgetRepository
+            .reorder(widgetsToReorder)
+            .orElseThrow(() -> new NotFoundException("Could not find some of the Widgets"));
+    return new ServiceResponse<>(reordered, rateLimitStat);
+  }
+
   public ServiceResponse<Widget> deleteOne(final String id) {
     final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.DELETE);
     final Widget deleted = widgetRepository.deleteOne(id).orElseThrow(() -> widgetNotFound(id));
     return new ServiceResponse<>(deleted, rateLimitStat);
   }
 
+  public ServiceResponse<WidgetsDeleted> deleteMany(final List<String> ids) {
+    final RateLimitStat rateLimitStat =
+        checkConsumed(rateLimitService.tryConsumeBatch(RateLimitOperation.DELETE, ids.size()));
+    final int deleted = widgetRepository.deleteMany(ids);
+    return new ServiceResponse<>(new WidgetsDeleted(deleted), rateLimitStat);
+  }
+
+  public ServiceResponse<WidgetsDeleted> deleteAllInArea(final Area area) {
+    final RateLimitStat rateLimitStat = tryConsume(RateLimitOperation.DELETE);
+    final int deleted = widgetRepository.deleteAllInArea(area);
+    return new ServiceResponse<>(new WidgetsDeleted(deleted), rateLimitStat);
+  }
+
   private static NotFoundException widgetNotFound(final String id) {
     return new NotFoundException(String.format("Could not find Widget %s", id));
   }
 
+  private static ValidationException malformedVersion(final String version) {
+    return new ValidationException(String.format("Malformed version %s", version));
+  }
+
+  /** Must be taken before reading, so the widgets read are at least as new as the tag. */
+  private EntityTag repositoryEntityTag() {
+    return EntityTag.of(instance, widgetRepository.version());
+  }
+
+  /** Repository version of the tag, which must be of this start of the application. */
+  private long parseVersion(final String since) {
+    String tag = since.trim();
+    if (tag.startsWith("W/")) {
+      tag = tag.substring(2);
+    }
+    if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+      tag = tag.substring(1, tag.length() - 1);
+    }
+    final int separator = tag.indexOf('-');
+    if (separator < 0) {
+      throw malformedVersion(since);
+    }
+    final long tagInstance;
+    final long version;
+    try {
+      tagInstance = Long.parseUnsignedLong(tag.substring(0, separator), 16);
+      version = Long.parseUnsignedLong(tag.substring(separator + 1), 16);
+    } catch (final NumberFormatException e) {
+      throw malformedVersion(since);
+    }
+    if (tagInstance != instance) {
+      throw new GoneException("Version is of another start, resync required.");
+    }
+    return version;
+  }
+
+  /**
+   * Page of the widgets found, which holds the token of the next page if more widgets are found
+   * than fit in it. The token holds the version the widgets were read at, so the next page starts
+   * after the last widget moved by exactly the shifts the page has not seen.
+   */
+  private Page<Widget> page(final VersionedPage found, final int perPage, final Area area) {
+    final List<Widget> widgetsFound = found.widgets();
+    if (perPage < 1 || widgetsFound.size() <= perPage) {
+      return Page.of(widgetsFound, perPage);
+    }
+    final List<Widget> widgets = widgetsFound.subList(0, perPage);
+    return Page.of(
+        widgets,
+        pageTokenService.issue(
+            boardId, instance, found.version(), widgets.get(perPage - 1).z(), area));
+  }
+
   private RateLimitStat tryConsume(final RateLimitOperation operation) {
-    return rateLimitService
-        .tryConsume(operation)
+    return checkConsumed(rateLimitService.tryConsume(operation));
+  }
+
+  static RateLimitStat checkConsumed(final Optional<RateLimitStat> rateLimitStatOp) {
+    return rateLimitStatOp
         .map(
             rateLimitStat -> {
               if (!rateLimitStat.isConsumed()) {
@@ -1,10 +1,31 @@
 create table widget
 (
-    id varchar(36) not null primary key,
+    id varbinary(108) not null,
     x int not null,
     y int not null,
-    z int not null unique,
+    z int not null,
     width int not null,
     height int not null,
-    lastModified timestamp with time zone not null
+    lastModified timestamp with time zone not null,
+    board varchar(64) not null default 'default',
+    minX bigint as least(x, cast(x as bigint) + width),
+    minY bigint as least(y, cast(y as bigint) + height),
+    maxX bigint as greatest(x, cast(x as bigint) + width),
+    maxY bigint as greatest(y, cast(y as bigint) + height),
+    primary key (board, id)
 );
+
+create unique index widget_board_z on widget (board, z);
+
+create table widget_cell
+(
+    board varchar(64) not null,
+    id varbinary(108) not null,
+    cellLevel int not null,
+    cellX bigint not null,
+    cellY bigint not null,
+    primary key (board, id),
+    foreign key (board, id) references widget (board, id) on delete cascade
+);
+
+create index widget_cell_board_cell on widget_cell (board, cellLevel, cellX, cellY);
@@ -19,13 +19,19 @@ import static com.adorogush.mirotask.WidgetUtil.randomWidget;
 import static com.adorogush.mirotask.controller.RateLimitHeadersUtil.X_NANOS_UNTIL_REFILL;
 import static com.adorogush.mirotask.controller.RateLimitHeadersUtil.X_REQUESTS_AVAILABLE;
 import static com.adorogush.mirotask.controller.RateLimitHeadersUtil.X_REQUESTS_PER_MINUTE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toUnmodifiableList;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
@@ -38,11 +44,25 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 
 import com.adorogush.mirotask.WidgetUtil;
 import com.adorogush.mirotask.controller.WidgetsController;
+import com.adorogush.mirotask.exception.GoneException;
 import com.adorogush.mirotask.exception.TooManyRequestsException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.model.EntityTag;
 import com.adorogush.mirotask.model.Page;
 import com.adorogush.mirotask.model.RateLimitStat;
 import com.adorogush.mirotask.model.ServiceResponse;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetChanges;
+import com.adorogush.mirotask.model.WidgetsDeleted;
+import com.adorogush.mirotask.model.WidgetsImported;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.model.WidgetsToReorder.Position;
+import com.adorogush.mirotask.model.ZIndexShift;
+import com.adorogush.mirotask.service.BoardRegistry;
+import com.adorogush.mirotask.service.WidgetEventService;
+import com.adorogush.mirotask.service.WidgetExportService;
+import com.adorogush.mirotask.service.WidgetImportService;
 import com.adorogush.mirotask.service.WidgetService;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -55,7 +75,9 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /** This is a MockMVC test covering {@link WidgetsController}. */
 @WebMvcTest(WidgetsController.class)
@@ -65,10 +87,15 @@ import org.springframework.test.web.servlet.ResultActions;
 class WidgetsControllerTest {
   @Autowired private MockMvc mockMvc;
   @MockBean private WidgetService widgetService;
+  @MockBean private WidgetImportService widgetImportService;
+  @MockBean private WidgetExportService widgetExportService;
+  @MockBean private WidgetEventService widgetEventService;
+  @MockBean private BoardRegistry boardRegistry;
 
   @BeforeEach
   void beforeEach() {
-    reset(widgetService);
+    reset(
+        widgetService, widgetImportService, widgetExportService, widgetEventService, boardRegistry);
   }
 
   @Test
@@ -105,11 +132,149 @@ class WidgetsControllerTest {
         .andExpect(jsonPath("lastModified", equalTo(widget.lastModified().toEpochMilli())));
   }
 
+  @Test
+  void testPostBatchWorks() throws Exception {
+    // given
+    final List<Widget> widgets =
+        IntStream.of(3, 1).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
+    when(widgetService.createMany(any())).thenReturn(new ServiceResponse<>(widgets));
+    final String body =
+        ""
+            + "["
+            + "  {\"x\": 1, \"y\": 2, \"z\": 1, \"width\": 3, \"height\": 4},"
+            + "  {\"x\": 5, \"y\": 6, \"z\": 1, \"width\": 7, \"height\": 8}"
+            + "]";
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            post("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content(body));
+    // then
+    resultActions
+        .andExpect(status().isCreated())
+        .andExpect(jsonPath("$.length()", equalTo(2)))
+        .andExpect(jsonPath("$[0].id", equalTo(widgets.get(0).id())))
+        .andExpect(jsonPath("$[0].z", equalTo(3)))
+        .andExpect(jsonPath("$[1].z", equalTo(1)));
+  }
+
+  @Test
+  void testEmptyBatchReturns400() throws Exception {
+    mockMvc
+        .perform(
+            post("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content("[]"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Batch must contain from 1 to 1000 widgets."));
+  }
+
+  @Test
+  void testImportWorks() throws Exception {
+    // given
+    when(widgetImportService.importAll(any()))
+        .thenReturn(new ServiceResponse<>(new WidgetsImported(2)));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            post("/widgets/import")
+                .contentType("application/x-ndjson")
+                .accept(MediaType.APPLICATION_JSON)
+                .content(
+                    "{\"x\": 1, \"y\": 2, \"width\": 3, \"height\": 4}\n"
+                        + "{\"x\": 5, \"y\": 6, \"width\": 7, \"height\": 8}\n"));
+    // then
+    resultActions.andExpect(status().isOk()).andExpect(jsonPath("imported", equalTo(2)));
+  }
+
+  @Test
+  void testExportWorks() throws Exception {
+    // given
+    final String ndjson =
+        "{\"id\":\"1\",\"x\":1,\"y\":2,\"z\":3,\"width\":4,\"height\":5}\n";
+    when(widgetExportService.exportAll())
+        .thenReturn(
+            new ServiceResponse<>(outputStream -> outputStream.write(ndjson.getBytes(UTF_8))));
+    // when
+    final MvcResult mvcResult =
+        mockMvc.perform(get("/widgets/export").accept("application/x-ndjson")).andReturn();
+    final ResultActions resultActions = mockMvc.perform(asyncDispatch(mvcResult));
+    // then
+    assertThat(mvcResult.getResponse().getContentType(), equalTo("application/x-ndjson"));
+    resultActions.andExpect(status().isOk()).andExpect(content().string(ndjson));
+  }
+
+  @Test
+  void testEventsWorks() throws Exception {
+    // given
+    final String data = "{\"type\":\"deleted\",\"id\":\"1\"}";
+    final SseEmitter emitter = new SseEmitter();
+    when(widgetEventService.subscribe()).thenReturn(new ServiceResponse<>(emitter));
+    // when
+    final MvcResult mvcResult =
+        mockMvc.perform(get("/widgets/events").accept(MediaType.TEXT_EVENT_STREAM)).andReturn();
+    emitter.send(SseEmitter.event().name("deleted").data(data));
+    emitter.complete();
+    final ResultActions resultActions = mockMvc.perform(asyncDispatch(mvcResult));
+    // then
+    assertThat(mvcResult.getResponse().getContentType(), equalTo("text/event-stream"));
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(content().string("event:deleted\ndata:" + data + "\n\n"));
+  }
+
+  @Test
+  void testChangesWorks() throws Exception {
+    // given
+    final Widget widget = randomWidget(1);
+    when(widgetService.readChanges("a-7"))
+        .thenReturn(
+            new ServiceResponse<>(
+                new WidgetChanges(
+                    "a-9", List.of(ZIndexShift.from(3, 2)), List.of(widget), List.of("2"))));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(get("/widgets/changes?since=a-7").accept(MediaType.APPLICATION_JSON));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("version", equalTo("a-9")))
+        .andExpect(jsonPath("shifts[0].fromZ", equalTo(3)))
+        .andExpect(jsonPath("shifts[0].by", equalTo(2)))
+        .andExpect(jsonPath("upserts[0].id", equalTo(widget.id())))
+        .andExpect(jsonPath("tombstones[0]", equalTo("2")));
+  }
+
+  @Test
+  void testChangesReturnsGone() throws Exception {
+    // given
+    when(widgetService.readChanges("a-7")).thenThrow(new GoneException("resync required"));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(get("/widgets/changes?since=a-7").accept(MediaType.APPLICATION_JSON));
+    // then
+    resultActions.andExpect(status().isGone());
+  }
+
+  @Test
+  void testBoardPathIsPassedToBoardRegistry() throws Exception {
+    // given
+    when(boardRegistry.board("board.a")).thenThrow(new ValidationException("malformed"));
+    // when
+    final ResultActions resultActions = mockMvc.perform(get("/boards/board.a/widgets/top?x=1&y=2"));
+    // then
+    resultActions.andExpect(status().isBadRequest());
+    verify(widgetService, never()).readTopAt(anyInt(), anyInt(), anyInt());
+  }
+
   @Test
   void testGetOneWorks() throws Exception {
     // given
     final Widget widget = randomWidget(1);
-    when(widgetService.readOne(widget.id())).thenReturn(new ServiceResponse<>(widget));
+    when(widgetService.readOne(widget.id(), null)).thenReturn(new ServiceResponse<>(widget));
     // when
     final ResultActions resultActions =
         mockMvc.perform(get("/widgets/{id}", widget.id()).accept(MediaType.APPLICATION_JSON));
@@ -125,6 +290,41 @@ class WidgetsControllerTest {
         .andExpect(jsonPath("lastModified", equalTo(widget.lastModified().toEpochMilli())));
   }
 
+  @Test
+  void testGetOneReturnsEntityTag() throws Exception {
+    // given
+    final Widget widget = randomWidget(1);
+    when(widgetService.readOne(widget.id(), null))
+        .thenReturn(new ServiceResponse<>(widget, null, EntityTag.of(widget)));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(get("/widgets/{id}", widget.id()).accept(MediaType.APPLICATION_JSON));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(header().string("ETag", EntityTag.of(widget).toString()));
+  }
+
+  @Test
+  void testGetManyNotModifiedReturns304() throws Exception {
+    // given
+    final EntityTag entityTag = EntityTag.of(1, 2);
+    when(widgetService.readAll(10, null, entityTag.toString()))
+        .thenReturn(ServiceResponse.notModified(entityTag, null));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            get("/widgets")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", entityTag.toString()));
+    // then
+    resultActions
+        .andExpect(status().isNotModified())
+        .andExpect(header().string("ETag", entityTag.toString()))
+        .andExpect(header().doesNotExist("Link"))
+        .andExpect(content().string(""));
+  }
+
   @Test
   void testPaginationWorks() throws Exception {
     // given
@@ -135,7 +335,7 @@ class WidgetsControllerTest {
     final List<Widget> widgets =
         IntStream.range(-2, 14).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
     final Page<Widget> widgetPage = Page.of(widgets, 15);
-    when(widgetService.readAll(15, -2)).thenReturn(new ServiceResponse<>(widgetPage));
+    when(widgetService.readAll(15, -2, null)).thenReturn(new ServiceResponse<>(widgetPage));
     // when
     // when we request a page of size 15 and starting from z=-2
     final ResultActions resultActions =
@@ -156,6 +356,137 @@ class WidgetsControllerTest {
         .andExpect(header().string("Link", containsString("fromZ=13")));
   }
 
+  @Test
+  void testAreaPaginationWorks() throws Exception {
+    // given
+    final List<Widget> widgets =
+        IntStream.range(5, 8).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
+    final Page<Widget> widgetPage = Page.of(widgets, 2);
+    when(widgetService.readAllInArea(2, null, new Area(0, 0, 100, 50), null))
+        .thenReturn(new ServiceResponse<>(widgetPage));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            get("/widgets")
+                .accept(MediaType.APPLICATION_JSON)
+                .queryParam("area", "100,0,0,50")
+                .queryParam("perPage", String.valueOf(2)));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", equalTo(2)))
+        .andExpect(jsonPath("$[0].z", equalTo(5)))
+        .andExpect(jsonPath("$[1].z", equalTo(6)))
+        .andExpect(header().string("Link", containsString("area=100,0,0,50")))
+        .andExpect(header().string("Link", containsString("fromZ=7")));
+  }
+
+  @Test
+  void testPageTokenPaginationWorks() throws Exception {
+    // given
+    final List<Widget> widgets =
+        IntStream.range(3, 5).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
+    when(widgetService.readPage(2, "token1"))
+        .thenReturn(new ServiceResponse<>(Page.of(widgets, "token2")));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            get("/widgets")
+                .accept(MediaType.APPLICATION_JSON)
+                .queryParam("pageToken", "token1")
+                .queryParam("perPage", String.valueOf(2)));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", equalTo(2)))
+        .andExpect(jsonPath("$[0].z", equalTo(3)))
+        .andExpect(header().string("Link", containsString("pageToken=token2")));
+  }
+
+  @Test
+  void testInvalidAreaReturns400() throws Exception {
+    mockMvc
+        .perform(get("/widgets").accept(MediaType.APPLICATION_JSON).queryParam("area", "1,2,3"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Area must be formatted as x1,y1,x2,y2."));
+  }
+
+  @Test
+  void testTopWorks() throws Exception {
+    // given
+    final List<Widget> widgets =
+        IntStream.of(9, 4).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
+    when(widgetService.readTopAt(2, 10, -20)).thenReturn(new ServiceResponse<>(widgets));
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            get("/widgets/top")
+                .accept(MediaType.APPLICATION_JSON)
+                .queryParam("x", "10")
+                .queryParam("y", "-20")
+                .queryParam("limit", "2"));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", equalTo(2)))
+        .andExpect(jsonPath("$[0].z", equalTo(9)))
+        .andExpect(jsonPath("$[1].z", equalTo(4)));
+  }
+
+  @Test
+  void testTopInvalidLimitReturns400() throws Exception {
+    mockMvc
+        .perform(
+            get("/widgets/top")
+                .accept(MediaType.APPLICATION_JSON)
+                .queryParam("x", "0")
+                .queryParam("y", "0")
+                .queryParam("limit", "0"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Limit must be positive."));
+  }
+
+  @Test
+  void testReorderWorks() throws Exception {
+    // given
+    final List<Widget> widgets =
+        IntStream.of(7, 8).mapToObj(WidgetUtil::randomWidget).collect(toUnmodifiableList());
+    when(widgetService.reorder(
+            eq(
+                WidgetsToReorder.toPosition(
+                    List.of(widgets.get(1).id(), widgets.get(0).id()), Position.FRONT))))
+        .thenReturn(new ServiceResponse<>(widgets));
+    final String body =
+        String.format(
+            "{\"ids\": [\"%s\", \"%s\"], \"position\": \"front\"}",
+            widgets.get(1).id(), widgets.get(0).id());
+    // when
+    final ResultActions resultActions =
+        mockMvc.perform(
+            post("/widgets/reorder")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content(body));
+    // then
+    resultActions
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", equalTo(2)))
+        .andExpect(jsonPath("$[0].id", equalTo(widgets.get(0).id())))
+        .andExpect(jsonPath("$[1].z", equalTo(8)));
+  }
+
+  @Test
+  void testReorderWithBothTargetsReturns400() throws Exception {
+    mockMvc
+        .perform(
+            post("/widgets/reorder")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content("{\"ids\": [\"1\"], \"z\": 1, \"position\": \"back\"}"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Must provide either z or position field."));
+  }
+
   @Test
   void testPutWorks() throws Exception {
     // given
@@ -210,6 +541,43 @@ class WidgetsControllerTest {
         .andExpect(jsonPath("lastModified", equalTo(widget.lastModified().toEpochMilli())));
   }
 
+  @Test
+  void testBulkDeleteWorks() throws Exception {
+    // given
+    when(widgetService.deleteAllInArea(new Area(0, 0, 100, 50)))
+        .thenReturn(new ServiceResponse<>(new WidgetsDeleted(42)));
+    when(widgetService.deleteMany(List.of("1", "2")))
+        .thenReturn(new ServiceResponse<>(new WidgetsDeleted(2)));
+    // when
+    final ResultActions areaActions =
+        mockMvc.perform(
+            post("/widgets/delete")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content("{\"area\": \"0,0,100,50\"}"));
+    final ResultActions idsActions =
+        mockMvc.perform(
+            post("/widgets/delete")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content("{\"ids\": [\"1\", \"2\"]}"));
+    // then
+    areaActions.andExpect(status().isOk()).andExpect(jsonPath("deleted", equalTo(42)));
+    idsActions.andExpect(status().isOk()).andExpect(jsonPath("deleted", equalTo(2)));
+  }
+
+  @Test
+  void testBulkDeleteWithoutTargetReturns400() throws Exception {
+    mockMvc
+        .perform(
+            post("/widgets/delete")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON)
+                .content("{}"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Must provide either ids or area field."));
+  }
+
   @Test
   void testPostWithMissingFieldReturns400() throws Exception {
     mockMvc
@@ -239,7 +607,7 @@ class WidgetsControllerTest {
   @Test
   void testRateLimitedNotConsumedReturns429() throws Exception {
     // given
-    when(widgetService.readOne("1"))
+    when(widgetService.readOne("1", null))
         .thenThrow(new TooManyRequestsException(new RateLimitStat(false, 1000, 0, 999)));
     // when
     final ResultActions resultActions =
@@ -17,24 +17,42 @@ package com.adorogush.mirotask.repository;
 
 import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
 import static com.adorogush.mirotask.WidgetUtil.widgetToUpdate;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import com.adorogush.mirotask.exception.ServiceUnavailableException;
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetEvent;
 import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.model.WidgetsToReorder.Position;
+import com.adorogush.mirotask.model.ZIndexShift;
 import com.adorogush.mirotask.service.IdProvider;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 abstract class AbstractWidgetRepositoryTest {
 
   private static final Instant INSTANT = Instant.now();
+  private static final Instant BATCH_INSTANT = Instant.parse("2020-09-01T12:00:00Z");
 
   @BeforeEach
   void beforeEach() {
@@ -276,6 +294,573 @@ abstract class AbstractWidgetRepositoryTest {
     assertThat(widgetDeleted.isEmpty(), equalTo(true));
   }
 
+  @Test
+  void testDeleteManyWorks() {
+    // given
+    createWidget("1", 0);
+    createWidget("2", 1);
+    createWidget("3", 2);
+    // when
+    final int deleted = repository().deleteMany(List.of("3", "1", "4", "3"));
+    // then
+    assertThat(deleted, equalTo(2));
+    assertThat(repository().readOne("1"), equalTo(Optional.empty()));
+    assertThat(repository().readOne("3"), equalTo(Optional.empty()));
+    assertWidgetExists("2", 1);
+    assertTotalSize(1);
+  }
+
+  @Test
+  void testDeleteAllInAreaWorks() {
+    final Random random = new Random(19);
+    for (int round = 0; round < 10; round++) {
+      // given
+      clearRepo();
+      final AtomicInteger ids = new AtomicInteger();
+      when(idProviderMock().get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+      nextClockReturn(INSTANT);
+      for (int i = 0; i < 100; i++) {
+        final int size = random.nextInt(10) == 0 ? 100_000 : 3_000;
+        repository()
+            .createOne(
+                new WidgetToCreate(
+                    random.nextInt(4_000) - 2_000,
+                    random.nextInt(4_000) - 2_000,
+                    null,
+                    random.nextInt(size) - size / 2,
+                    random.nextInt(size) - size / 2));
+      }
+      final int x = random.nextInt(5_000) - 2_500;
+      final int y = random.nextInt(5_000) - 2_500;
+      final int size = round == 0 ? 1_000_000 : random.nextInt(2_000);
+      final Area area = new Area(x, y, (long) x + size, (long) y + size);
+      final List<String> expected = new ArrayList<>();
+      int expectedDeleted = 0;
+      for (final Widget widget : repository().readAll(Integer.MAX_VALUE, null)) {
+        if (area.intersects(widget)) {
+          expectedDeleted++;
+        } else {
+          expected.add(widget.id());
+        }
+      }
+      // when
+      final int deleted = repository().deleteAllInArea(area);
+      // then
+      assertThat(deleted, equalTo(expectedDeleted));
+      assertThat(
+          repository().readAll(Integer.MAX_VALUE, null).stream().map(Widget::id).collect(toList()),
+          equalTo(expected));
+      assertThat(repository().readAllInArea(Integer.MAX_VALUE, null, area), equalTo(List.of()));
+    }
+  }
+
+  @Test
+  void testExportAllWorks() {
+    // given
+    final Random random = new Random(23);
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProviderMock().get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    nextClockReturn(INSTANT);
+    for (int i = 0; i < 2_500; i++) {
+      repository().createOne(randomWidgetToCreate(random.nextInt(3_000)));
+    }
+    repository().createOne(randomWidgetToCreate(Integer.MAX_VALUE));
+    // when
+    final List<Widget> exported = new ArrayList<>();
+    repository().exportAll(exported::add);
+    // then
+    assertThat(exported, equalTo(repository().readAll(Integer.MAX_VALUE, null)));
+  }
+
+  @Test
+  void testReadAllInAreaWorks() {
+    // given
+    final Random random = new Random(7);
+    for (int i = 0; i < 300; i++) {
+      nextIdProviderReturn(String.valueOf(i));
+      nextClockReturn(INSTANT);
+      final Integer z = random.nextInt(3) == 0 ? null : random.nextInt(1000);
+      // mostly small widgets, some of them spanning the whole board
+      final int size = random.nextInt(10) == 0 ? 100_000 : 600;
+      repository()
+          .createOne(
+              new WidgetToCreate(
+                  random.nextInt(10_000) - 5_000,
+                  random.nextInt(10_000) - 5_000,
+                  z,
+                  random.nextInt(size) - size / 2,
+                  random.nextInt(size) - size / 2));
+    }
+    for (int i = 0; i < 50; i++) {
+      nextClockReturn(INSTANT);
+      repository()
+          .updateOne(
+              String.valueOf(random.nextInt(300)),
+              new WidgetToUpdate(random.nextInt(10_000) - 5_000, null, null, 100, null));
+    }
+    final List<Widget> allWidgets = repository().readAll(Integer.MAX_VALUE, null);
+    for (int i = 0; i < 100; i++) {
+      // when
+      final int x = random.nextInt(12_000) - 6_000;
+      final int y = random.nextInt(12_000) - 6_000;
+      final Area area =
+          new Area(x, y, x + random.nextInt(3_000) - 1_500, y + random.nextInt(3_000) - 1_500);
+      final Integer fromZ = random.nextBoolean() ? null : random.nextInt(1200);
+      final int perPage = 1 + random.nextInt(20);
+      final List<Widget> widgetsFound = repository().readAllInArea(perPage, fromZ, area);
+      // then
+      final List<Widget> expected =
+          allWidgets.stream()
+              .filter(widget -> fromZ == null || widget.z() >= fromZ)
+              .filter(area::intersects)
+              .limit(perPage)
+              .collect(toList());
+      assertThat(widgetsFound, equalTo(expected));
+    }
+    // the whole board
+    final Area board =
+        new Area(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    assertThat(repository().readAllInArea(Integer.MAX_VALUE, null, board), equalTo(allWidgets));
+  }
+
+  @Test
+  void testReadTopAtWorks() {
+    // given
+    final Random random = new Random(11);
+    for (int i = 0; i < 200; i++) {
+      nextIdProviderReturn(String.valueOf(i));
+      nextClockReturn(INSTANT);
+      final Integer z = random.nextInt(3) == 0 ? null : random.nextInt(1000);
+      final int size = random.nextInt(10) == 0 ? 100_000 : 3_000;
+      repository()
+          .createOne(
+              new WidgetToCreate(
+                  random.nextInt(4_000) - 2_000,
+                  random.nextInt(4_000) - 2_000,
+                  z,
+                  random.nextInt(size) - size / 2,
+                  random.nextInt(size) - size / 2));
+    }
+    final List<Widget> allWidgets = repository().readAll(Integer.MAX_VALUE, null);
+    for (int i = 0; i < 100; i++) {
+      // when
+      final int x = random.nextInt(5_000) - 2_500;
+      final int y = random.nextInt(5_000) - 2_500;
+      final int limit = 1 + random.nextInt(5);
+      final List<Widget> widgetsFound = repository().readTopAt(limit, x, y);
+      // then
+      final Area point = new Area(x, y, x, y);
+      final List<Widget> covering = allWidgets.stream().filter(point::intersects).collect(toList());
+      Collections.reverse(covering);
+      assertThat(widgetsFound, equalTo(covering.stream().limit(limit).collect(toList())));
+    }
+  }
+
+  @Test
+  void testCreateManyWorksAsCreatingOneByOne() {
+    final Random random = new Random(13);
+    for (int round = 0; round < 20; round++) {
+      // given
+      clearRepo();
+      final WidgetRepository reference =
+          new CollectionBasedWidgetRepository(idProviderMock(), clockMock());
+      final AtomicInteger ids = new AtomicInteger();
+      when(idProviderMock().get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+      nextClockReturn(BATCH_INSTANT);
+      final int existing = random.nextInt(30);
+      for (int i = 0; i < existing; i++) {
+        final int z = random.nextInt(60);
+        final WidgetToCreate widgetToCreate = randomWidgetToCreate(z);
+        repository().createOne(widgetToCreate);
+        ids.decrementAndGet();
+        reference.createOne(widgetToCreate);
+      }
+      final List<WidgetToCreate> batch = new ArrayList<>();
+      for (int i = 0, size = 1 + random.nextInt(30); i < size; i++) {
+        batch.add(randomWidgetToCreate(random.nextInt(4) == 0 ? null : random.nextInt(60)));
+      }
+      // when
+      final int firstBatchId = ids.get();
+      final List<Widget> created = repository().createMany(batch);
+      ids.set(firstBatchId);
+      final List<Widget> expected = new ArrayList<>();
+      for (final WidgetToCreate widgetToCreate : batch) {
+        expected.add(reference.createOne(widgetToCreate));
+      }
+      // then
+      final List<Widget> expectedFinal =
+          expected.stream().map(widget -> reference.readOne(widget.id()).get()).collect(toList());
+      assertThat(created, equalTo(expectedFinal));
+      assertThat(
+          repository().readAll(Integer.MAX_VALUE, null),
+          equalTo(reference.readAll(Integer.MAX_VALUE, null)));
+    }
+  }
+
+  @Test
+  void testReorderKeepsRelativeOrder() {
+    final Random random = new Random(17);
+    for (int round = 0; round < 30; round++) {
+      // given
+      clearRepo();
+      final AtomicInteger ids = new AtomicInteger();
+      when(idProviderMock().get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+      nextClockReturn(INSTANT);
+      for (int i = 0, size = 1 + random.nextInt(30); i < size; i++) {
+        repository().createOne(randomWidgetToCreate(random.nextInt(60)));
+      }
+      final List<Widget> before = repository().readAll(Integer.MAX_VALUE, null);
+      final List<String> selectedIds = new ArrayList<>();
+      for (int i = 0, size = 1 + random.nextInt(before.size()); i < size; i++) {
+        selectedIds.add(before.get(random.nextInt(before.size())).id());
+      }
+      final Set<String> selected = Set.copyOf(selectedIds);
+      final WidgetsToReorder widgetsToReorder;
+      final int firstZ;
+      switch (random.nextInt(3)) {
+        case 0:
+          widgetsToReorder = WidgetsToReorder.toPosition(selectedIds, Position.FRONT);
+          firstZ = before.get(before.size() - 1).z() + 1;
+          break;
+        case 1:
+          widgetsToReorder = WidgetsToReorder.toPosition(selectedIds, Position.BACK);
+          firstZ = before.get(0).z() - selected.size();
+          break;
+        default:
+          firstZ = random.nextInt(80) - 10;
+          widgetsToReorder = WidgetsToReorder.toZ(selectedIds, firstZ);
+      }
+      final List<String> lowerOthers = new ArrayList<>();
+      final List<String> upperOthers = new ArrayList<>();
+      final List<String> expectedSelected = new ArrayList<>();
+      for (final Widget widget : before) {
+        if (selected.contains(widget.id())) {
+          expectedSelected.add(widget.id());
+        } else if (widget.z() < firstZ) {
+          lowerOthers.add(widget.id());
+        } else {
+          upperOthers.add(widget.id());
+        }
+      }
+      // when
+      final List<Widget> reordered = repository().reorder(widgetsToReorder).get();
+      // then
+      assertThat(reordered.stream().map(Widget::id).collect(toList()), equalTo(expectedSelected));
+      for (int i = 0; i < reordered.size(); i++) {
+        assertThat(reordered.get(i).z(), equalTo(firstZ + i));
+        assertWidgetExists(reordered.get(i).id(), firstZ + i);
+      }
+      final List<String> expected = new ArrayList<>(lowerOthers);
+      expected.addAll(expectedSelected);
+      expected.addAll(upperOthers);
+      assertThat(
+          repository().readAll(Integer.MAX_VALUE, null).stream().map(Widget::id).collect(toList()),
+          equalTo(expected));
+    }
+  }
+
+  @Test
+  void testReorderNotFoundWorks() {
+    // given
+    createWidget("1", 0);
+    createWidget("2", 1);
+    // when
+    final Optional<List<Widget>> reordered =
+        repository().reorder(WidgetsToReorder.toPosition(List.of("2", "3"), Position.BACK));
+    // then
+    assertThat(reordered, equalTo(Optional.empty()));
+    assertWidgetExists("1", 0);
+    assertWidgetExists("2", 1);
+  }
+
+  @Test
+  void testVersionIncreasesOnModifications() {
+    // given
+    final long initialVersion = repository().version();
+    // when
+    createWidget("1", 1);
+    final long createdVersion = repository().version();
+    repository().readOne("1");
+    repository().readAll(10, null);
+    final long readVersion = repository().version();
+    repository().updateOne("1", widgetToUpdate(10, null));
+    final long updatedVersion = repository().version();
+    repository().deleteOne("1");
+    final long deletedVersion = repository().version();
+    // then
+    assertThat(createdVersion, greaterThan(initialVersion));
+    assertThat(readVersion, equalTo(createdVersion));
+    assertThat(updatedVersion, greaterThan(readVersion));
+    assertThat(deletedVersion, greaterThan(updatedVersion));
+  }
+
+  @Test
+  void testReadVersionedReadsPageAtCurrentVersion() {
+    // given
+    for (int i = 0; i < 20; i++) {
+      createWidget(String.valueOf(i), i == 10 ? 0 : null);
+    }
+    final Area area = new Area(-1_000_000_000, -1_000_000_000, 1_000_000_000, 1_000_000_000);
+    // when
+    final VersionedPage page = repository().readVersioned(5, 3, null);
+    final VersionedPage pageInArea = repository().readVersioned(5, 3, area);
+    // then
+    assertThat(page.widgets(), equalTo(repository().readAll(5, 3)));
+    assertThat(page.version(), equalTo(repository().version()));
+    assertThat(pageInArea.widgets(), equalTo(repository().readAllInArea(5, 3, area)));
+    assertThat(pageInArea.version(), equalTo(repository().version()));
+  }
+
+  @Test
+  void testReadVersionedAfterResumesAfterShiftedLastWidget() {
+    // given
+    for (int i = 0; i < 5; i++) {
+      createWidget(String.valueOf(i), i);
+    }
+    final long version = repository().version();
+    createWidget("5", 0);
+    // when
+    final VersionedPage page =
+        repository().readVersionedAfter(10, 1, version, null).orElseThrow();
+    // then
+    assertThat(
+        page.widgets().stream().map(Widget::id).collect(toList()), equalTo(List.of("2", "3", "4")));
+    assertThat(page.widgets().get(0).z(), equalTo(3));
+    assertThat(page.version(), equalTo(repository().version()));
+    assertThat(
+        repository()
+            .readVersionedAfter(10, Integer.MAX_VALUE, version, null)
+            .orElseThrow()
+            .widgets(),
+        equalTo(List.of()));
+    assertThat(
+        repository().readVersionedAfter(10, 1, repository().version() + 1, null).isEmpty(),
+        equalTo(true));
+  }
+
+  /** For the repositories keeping changes, see {@link WidgetRepository#changedSince(long)}. */
+  protected void assertChangedSinceListsChangedWidgets() {
+    // given
+    createWidget("0", 0);
+    createWidget("1", 1);
+    createWidget("2", 2);
+    final long version = repository().version();
+    // when
+    createWidget("3", 2);
+    repository().deleteOne("1");
+    final Optional<Changes> changes = repository().changedSince(version);
+    // then
+    assertThat(changes.isPresent(), equalTo(true));
+    assertThat(changes.get().ids(), equalTo(Set.of("1", "3")));
+    // shifted widget is not listed, the shift is instead
+    assertThat(changes.get().shifts(), equalTo(List.of(ZIndexShift.from(2, 1))));
+    assertThat(changes.get().shiftedZ(2), equalTo(3L));
+    assertThat(changes.get().shiftedZ(1), equalTo(1L));
+    final Changes noChanges = repository().changedSince(repository().version()).orElseThrow();
+    assertThat(noChanges.ids(), equalTo(Set.of()));
+    assertThat(noChanges.shifts(), equalTo(List.of()));
+    assertThat(repository().changedSince(repository().version() + 1), equalTo(Optional.empty()));
+  }
+
+  /**
+   * Applies the changes since a version to the widgets read at it, the same way a client does,
+   * expecting the widgets read now after every few random operations.
+   */
+  protected void assertChangesApplyToCurrentWidgets(final int operations) {
+    final Random random = new Random(11);
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProviderMock().get())
+        .thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    nextClockReturn(Instant.now());
+    long version = repository().version();
+    List<Widget> held = repository().readAll(Integer.MAX_VALUE, null);
+    for (int i = 0; i < operations; i++) {
+      final Integer z = random.nextInt(4) == 0 ? null : random.nextInt(100);
+      final String id = String.valueOf(1 + random.nextInt(ids.get() + 1));
+      switch (random.nextInt(6)) {
+        case 0:
+        case 1:
+          repository().createOne(randomWidgetToCreate(z));
+          break;
+        case 2:
+          repository()
+              .createMany(
+                  List.of(
+                      randomWidgetToCreate(z),
+                      randomWidgetToCreate(random.nextInt(100)),
+                      randomWidgetToCreate(z)));
+          break;
+        case 3:
+          repository().updateOne(id, widgetToUpdate(random.nextInt(), z));
+          break;
+        case 4:
+          final String otherId = String.valueOf(1 + random.nextInt(ids.get() + 1));
+          if (!otherId.equals(id)) {
+            repository()
+                .reorder(
+                    new WidgetsToReorder(
+                        List.of(id, otherId), z, z == null ? Position.BACK : null));
+          }
+          break;
+        default:
+          repository().deleteOne(id);
+      }
+      if (random.nextInt(3) == 0) {
+        final Changes changes = repository().changedSince(version).orElseThrow();
+        version = repository().version();
+        held = applyChanges(held, changes);
+        assertThat(held, equalTo(repository().readAll(Integer.MAX_VALUE, null)));
+      }
+    }
+  }
+
+  /**
+   * Listener receives the events of every modification under the version it produced, in the
+   * order of the versions, and a shift only when some widgets are moved.
+   */
+  protected void assertListenerReceivesEventsInVersionOrder() {
+    // given
+    final List<Long> versions = new ArrayList<>();
+    final List<List<String>> types = new ArrayList<>();
+    repository()
+        .listen(
+            (version, events) -> {
+              versions.add(version);
+              types.add(events.stream().map(WidgetEvent::type).collect(toList()));
+            });
+    final long version = repository().version();
+    // when
+    createWidget("1", 1);
+    createWidget("2", 5);
+    createWidget("3", 1);
+    nextClockReturn(Instant.now());
+    repository().updateOne("2", widgetToUpdate(1, null));
+    repository().deleteOne("1");
+    repository().deleteOne("1");
+    // then
+    assertThat(
+        versions,
+        equalTo(List.of(version + 1, version + 2, version + 3, version + 4, version + 5)));
+    assertThat(repository().version(), equalTo(version + 5));
+    assertThat(
+        types,
+        equalTo(
+            List.of(
+                List.of("created"),
+                List.of("created"),
+                List.of("shifted", "created"),
+                List.of("updated"),
+                List.of("deleted"))));
+  }
+
+  protected void assertBoardIsIndependent() {
+    // given
+    createWidget("1", 1);
+    final WidgetRepository board = repository().forBoard("board");
+    nextIdProviderReturn("2");
+    nextClockReturn(Instant.now());
+    board.createOne(randomWidgetToCreate(1));
+    // when
+    createWidget("3", 1);
+    final Optional<Widget> deleted = board.deleteOne("1");
+    // then
+    assertThat(deleted, equalTo(Optional.empty()));
+    assertThat(
+        repository().readAll(10, null).stream().map(Widget::id).collect(toList()),
+        equalTo(List.of("3", "1")));
+    assertThat(readWidget("1").z(), equalTo(2));
+    final List<Widget> boardWidgets = board.readAll(10, null);
+    assertThat(boardWidgets.stream().map(Widget::id).collect(toList()), equalTo(List.of("2")));
+    assertThat(boardWidgets.get(0).z(), equalTo(1));
+    assertThat(repository().readOne("2"), equalTo(Optional.empty()));
+  }
+
+  protected void assertBoardSurvivesClose() {
+    // given
+    final WidgetRepository board = repository().forBoard("closed-board");
+    nextClockReturn(Instant.now());
+    for (int i = 1; i <= 3; i++) {
+      nextIdProviderReturn(String.valueOf(i));
+      board.createOne(randomWidgetToCreate(i % 2));
+    }
+    final List<Widget> widgets = board.readAll(10, null);
+    // when
+    board.closeBoard();
+    // then
+    assertThrows(ServiceUnavailableException.class, () -> board.deleteOne("1"));
+    final WidgetRepository loaded = repository().forBoard("closed-board");
+    assertThat(loaded.readAll(10, null), equalTo(widgets));
+    assertThat(repository().readOne("1"), equalTo(Optional.empty()));
+  }
+
+  protected void assertCompactAndPlainIdsRoundTrip() {
+    // given
+    nextClockReturn(Instant.now());
+    final List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      ids.add(UUID.randomUUID().toString());
+      ids.add(UUID.randomUUID().toString().toUpperCase());
+      ids.add(String.valueOf(i));
+    }
+    ids.add("00000000-0000-0000-0000-000000000000");
+    ids.add("ffffffff-ffff-ffff-ffff-ffffffffffff");
+    // plain ids of the same length in bytes as the compact ones
+    ids.add("0123456789abcdef");
+    ids.add("\u00e401234567890123");
+    // when
+    for (final String id : ids) {
+      nextIdProviderReturn(id);
+      assertThat(repository().createOne(randomWidgetToCreate(null)).id(), equalTo(id));
+    }
+    // then
+    assertTotalSize(ids.size());
+    for (final String id : ids) {
+      assertThat(repository().readOne(id).get().id(), equalTo(id));
+    }
+    assertThat(repository().readOne(ids.get(1).toLowerCase()).isPresent(), equalTo(false));
+    for (final String id : ids) {
+      assertThat(repository().deleteOne(id).get().id(), equalTo(id));
+    }
+    assertTotalSize(0);
+  }
+
+  /**
+   * Applies the same random sequence of operations to {@link #repository()} and to a reference
+   * {@link CollectionBasedWidgetRepository}, expecting identical results.
+   */
+  protected void assertRandomOperationsMatchCollectionBasedRepository(final int operations) {
+    final WidgetRepository reference =
+        new CollectionBasedWidgetRepository(idProviderMock(), clockMock());
+    final Random random = new Random(42);
+    for (int i = 0; i < operations; i++) {
+      nextIdProviderReturn(String.valueOf(i));
+      nextClockReturn(Instant.now());
+      final Integer z = random.nextInt(4) == 0 ? null : random.nextInt(100);
+      final String id = String.valueOf(random.nextInt(i + 1));
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1:
+          final WidgetToCreate widgetToCreate = randomWidgetToCreate(z);
+          assertThat(
+              repository().createOne(widgetToCreate), equalTo(reference.createOne(widgetToCreate)));
+          break;
+        case 2:
+          final WidgetToUpdate widgetToUpdate = widgetToUpdate(random.nextInt(), z);
+          assertThat(
+              repository().updateOne(id, widgetToUpdate),
+              equalTo(reference.updateOne(id, widgetToUpdate)));
+          break;
+        default:
+          assertThat(repository().deleteOne(id), equalTo(reference.deleteOne(id)));
+      }
+      final int fromZ = random.nextInt(120);
+      assertThat(repository().readAll(5, fromZ), equalTo(reference.readAll(5, fromZ)));
+    }
+    assertThat(
+        repository().readAll(Integer.MAX_VALUE, null),
+        equalTo(reference.readAll(Integer.MAX_VALUE, null)));
+  }
+
   protected abstract IdProvider idProviderMock();
 
   protected abstract Clock clockMock();
@@ -294,6 +879,20 @@ abstract class AbstractWidgetRepositoryTest {
     when(clockMock().instant()).thenReturn(instant);
   }
 
+  private List<Widget> applyChanges(final List<Widget> held, final Changes changes) {
+    final List<Widget> applied = new ArrayList<>();
+    for (final Widget widget : held) {
+      if (!changes.ids().contains(widget.id())) {
+        applied.add(widget.withZ((int) changes.shiftedZ(widget.z())));
+      }
+    }
+    for (final String id : changes.ids()) {
+      repository().readOne(id).ifPresent(applied::add);
+    }
+    applied.sort(Comparator.comparingInt(Widget::z));
+    return applied;
+  }
+
   private void assertWidgetExists(final String id, final int z) {
     assertThat(readWidget(id).z(), equalTo(z));
   }
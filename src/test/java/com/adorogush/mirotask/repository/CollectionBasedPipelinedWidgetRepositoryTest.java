@@ -0,0 +1,217 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.exception.ConflictException;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.service.IdProvider;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+/** Unit test covering {@link CollectionBasedWidgetRepository} with writes applied by a pipeline. */
+@TestInstance(value = PER_CLASS)
+class CollectionBasedPipelinedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+
+  private final IdProvider idProvider = mock(IdProvider.class);
+  private final Clock clock = mock(Clock.class);
+  private final ConcurrentMap<String, Widget> idToWidget = new ConcurrentHashMap<>();
+  private final SortedMap<Integer, Widget> zToWidget = new ConcurrentSkipListMap<>();
+  private final CollectionBasedWidgetRepository repository =
+      new CollectionBasedWidgetRepository(
+          idProvider,
+          clock,
+          idToWidget,
+          zToWidget,
+          WriteAheadLog.disabled(),
+          SnapshotFile.disabled(),
+          0,
+          new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+          64);
+
+  @AfterAll
+  void shutdown() {
+    repository.shutdown();
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testRandomOperationsMatchCollectionBasedRepository() {
+    assertRandomOperationsMatchCollectionBasedRepository(3000);
+  }
+
+  @Test
+  void testFailedInsertThrowsToItsCaller() {
+    // given
+    when(clock.instant()).thenReturn(Instant.now());
+    when(idProvider.get()).thenReturn("1", "2");
+    repository.createOne(randomWidgetToCreate(Integer.MAX_VALUE));
+    assertThrows(
+        ConflictException.class,
+        () -> repository.createOne(randomWidgetToCreate(Integer.MAX_VALUE)));
+  }
+
+  @Test
+  void testParallelInsertsAreAppliedOneAfterAnother() throws Exception {
+    // given
+    final int threads = 16;
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    // the first insert holds the writer, so the others are queued and applied as a batch
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean first = new AtomicBoolean(true);
+    when(clock.instant())
+        .thenAnswer(
+            invocation -> {
+              if (first.getAndSet(false)) {
+                release.await();
+              }
+              return Instant.now();
+            });
+    final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    try {
+      final List<Future<Widget>> created = new ArrayList<>();
+      created.add(executor.submit(() -> repository.createOne(randomWidgetToCreate(0))));
+      for (int i = 0; i < threads; i++) {
+        created.add(executor.submit(() -> repository.createOne(randomWidgetToCreate(0))));
+      }
+      // when
+      Thread.sleep(100);
+      release.countDown();
+      // then
+      for (final Future<Widget> widget : created) {
+        // every insert is applied at the requested z-index, shifting the previous ones
+        assertThat(widget.get().z(), equalTo(0));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertTotalSize(threads + 1);
+    assertThat(
+        new ArrayList<>(zToWidget.keySet()),
+        equalTo(IntStream.rangeClosed(0, threads).boxed().collect(Collectors.toList())));
+    zToWidget.forEach((z, widget) -> assertThat(idToWidget.get(widget.id()), equalTo(widget)));
+  }
+
+  @Test
+  void testCloseWhileProducersRunAppliesOrFailsEveryWrite() throws Exception {
+    // given
+    final int threads = 8;
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenAnswer(invocation -> Instant.now());
+    final CollectionBasedWidgetRepository closed =
+        new CollectionBasedWidgetRepository(
+            idProvider,
+            clock,
+            new ConcurrentHashMap<>(),
+            new ConcurrentSkipListMap<>(),
+            WriteAheadLog.disabled(),
+            SnapshotFile.disabled(),
+            0,
+            new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+            4);
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Integer>> producers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        producers.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  int created = 0;
+                  try {
+                    while (true) {
+                      closed.createOne(randomWidgetToCreate(0));
+                      created++;
+                    }
+                  } catch (final IllegalStateException e) {
+                    return created;
+                  }
+                }));
+      }
+      start.countDown();
+      Thread.sleep(50);
+      // when
+      closed.shutdown();
+      // then
+      int created = 0;
+      for (final Future<Integer> producer : producers) {
+        // a write claiming its slot after the close would never return
+        created += producer.get(10, TimeUnit.SECONDS);
+      }
+      assertThat(closed.readAll(Integer.MAX_VALUE, null).size(), equalTo(created));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Override
+  protected IdProvider idProviderMock() {
+    return idProvider;
+  }
+
+  @Override
+  protected Clock clockMock() {
+    return clock;
+  }
+
+  @Override
+  protected WidgetRepository repository() {
+    return repository;
+  }
+
+  @Override
+  protected void assertTotalSize(final int size) {
+    assertThat(idToWidget.size(), equalTo(size));
+    assertThat(zToWidget.size(), equalTo(size));
+  }
+
+  @Override
+  protected void clearRepo() {
+    repository.clear();
+  }
+}
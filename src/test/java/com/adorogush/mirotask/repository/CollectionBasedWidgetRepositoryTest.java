@@ -15,19 +15,46 @@
 */
 package com.adorogush.mirotask.repository;
 
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static com.adorogush.mirotask.WidgetUtil.widgetToUpdate;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
+import com.adorogush.mirotask.model.Area;
 import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.model.ZIndexShift;
+import com.adorogush.mirotask.repository.WriteAheadLog.SyncPolicy;
 import com.adorogush.mirotask.service.IdProvider;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Clock;
-import java.util.Map;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.io.TempDir;
 
 /** Unit test covering {@link CollectionBasedWidgetRepository}. */
 @TestInstance(value = PER_CLASS)
@@ -35,11 +62,488 @@ class CollectionBasedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
 
   private final IdProvider idProvider = mock(IdProvider.class);
   private final Clock clock = mock(Clock.class);
-  private final Map<String, Widget> idToWidget = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Widget> idToWidget = new ConcurrentHashMap<>();
   private final SortedMap<Integer, Widget> zToWidget = new ConcurrentSkipListMap<>();
-  private final WidgetRepository repository =
+  private final CollectionBasedWidgetRepository repository =
       new CollectionBasedWidgetRepository(idProvider, clock, idToWidget, zToWidget);
 
+  @Test
+  void testChangedSinceListsChangedWidgets() {
+    assertChangedSinceListsChangedWidgets();
+  }
+
+  @Test
+  void testChangedSinceIsEmptyOnceOverwritten() {
+    // given
+    final CollectionBasedWidgetRepository repository =
+        new CollectionBasedWidgetRepository(
+            idProvider,
+            clock,
+            new ConcurrentHashMap<>(),
+            new ConcurrentSkipListMap<>(),
+            WriteAheadLog.disabled(),
+            SnapshotFile.disabled(),
+            0,
+            new ChangeLog(2),
+            0);
+    when(clock.instant()).thenReturn(Instant.now());
+    when(idProvider.get()).thenReturn("1", "2", "3");
+    repository.createOne(randomWidgetToCreate(1));
+    final long version = repository.version();
+    // when
+    repository.createOne(randomWidgetToCreate(2));
+    final Optional<Set<String>> changedBeforeOverwrite =
+        repository.changedSince(version).map(Changes::ids);
+    // the shift and the created widget overwrite the first change
+    repository.createOne(randomWidgetToCreate(1));
+    // then
+    assertThat(changedBeforeOverwrite, equalTo(Optional.of(Set.of("2"))));
+    assertThat(repository.changedSince(version), equalTo(Optional.empty()));
+    assertThat(
+        repository.changedSince(repository.version()).map(Changes::ids),
+        equalTo(Optional.of(Set.of())));
+  }
+
+  @Test
+  void testShiftTakesSingleChangeLogEntry() {
+    // given
+    final CollectionBasedWidgetRepository repository =
+        new CollectionBasedWidgetRepository(
+            idProvider,
+            clock,
+            new ConcurrentHashMap<>(),
+            new ConcurrentSkipListMap<>(),
+            WriteAheadLog.disabled(),
+            SnapshotFile.disabled(),
+            0,
+            new ChangeLog(2),
+            0);
+    when(clock.instant()).thenReturn(Instant.now());
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    for (int i = 0; i < 10; i++) {
+      repository.createOne(randomWidgetToCreate(null));
+    }
+    final long version = repository.version();
+    // when
+    final Widget bottom = repository.createOne(randomWidgetToCreate(Integer.MIN_VALUE));
+    // then
+    final Changes changes = repository.changedSince(version).orElseThrow();
+    assertThat(changes.ids(), equalTo(Set.of(bottom.id())));
+    assertThat(changes.shifts(), equalTo(List.of(ZIndexShift.from(Integer.MIN_VALUE, 1))));
+  }
+
+  @Test
+  void testChangesApplyToCurrentWidgets() {
+    assertChangesApplyToCurrentWidgets(1_000);
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testParallelUpdatesOfDifferentFieldsAreNotLost() throws Exception {
+    // given
+    when(idProvider.get()).thenReturn("1");
+    when(clock.instant()).thenReturn(Instant.now());
+    repository.createOne(randomWidgetToCreate(0));
+    final int updates = 10_000;
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    final CountDownLatch start = new CountDownLatch(1);
+    try {
+      // when
+      final Future<?> xUpdates =
+          executor.submit(
+              () -> {
+                start.await();
+                for (int i = 1; i <= updates; i++) {
+                  repository.updateOne("1", new WidgetToUpdate(i, null, null, null, null));
+                }
+                return null;
+              });
+      final Future<?> yUpdates =
+          executor.submit(
+              () -> {
+                start.await();
+                for (int i = 1; i <= updates; i++) {
+                  repository.updateOne("1", new WidgetToUpdate(null, i, null, null, null));
+                }
+                return null;
+              });
+      start.countDown();
+      xUpdates.get();
+      yUpdates.get();
+    } finally {
+      executor.shutdown();
+    }
+    // then
+    final Widget widgetFound = repository.readOne("1").get();
+    assertThat(widgetFound.x(), equalTo(updates));
+    assertThat(widgetFound.y(), equalTo(updates));
+    assertThat(widgetFound.z(), equalTo(0));
+    assertThat(zToWidget.get(0), equalTo(widgetFound));
+    assertTotalSize(1);
+  }
+
+  @Test
+  void testParallelAppendsClaimDistinctZ() throws Exception {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    repository.createOne(randomWidgetToCreate(0));
+    final int threads = 4;
+    final int appends = 5_000;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    try {
+      // when
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  for (int i = 0; i < appends; i++) {
+                    repository.createOne(randomWidgetToCreate(null));
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // then
+    assertTotalSize(1 + threads * appends);
+    final List<Widget> widgetsFound = repository.readAll(Integer.MAX_VALUE, null);
+    for (int i = 0; i < widgetsFound.size(); i++) {
+      assertThat(widgetsFound.get(i).z(), equalTo(i));
+      assertThat(idToWidget.get(widgetsFound.get(i).id()), equalTo(widgetsFound.get(i)));
+    }
+    // append after a shift continues from the new top
+    repository.createOne(randomWidgetToCreate(0));
+    assertThat(
+        repository.createOne(randomWidgetToCreate(null)).z(), equalTo(2 + threads * appends));
+  }
+
+  @Test
+  void testReadAllDuringShiftsReturnsConsistentPages() throws Exception {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    for (int i = 0; i < 1_000; i++) {
+      repository.createOne(randomWidgetToCreate(null));
+    }
+    final int inserts = 2_000;
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<List<Widget>> pages = new ArrayList<>();
+    try {
+      // when
+      final Future<?> shifts =
+          executor.submit(
+              () -> {
+                start.await();
+                for (int i = 0; i < inserts; i++) {
+                  repository.createOne(randomWidgetToCreate(Integer.MIN_VALUE));
+                }
+                return null;
+              });
+      final Future<?> reads =
+          executor.submit(
+              () -> {
+                start.await();
+                while (!shifts.isDone()) {
+                  pages.add(repository.readAll(Integer.MAX_VALUE, null));
+                }
+                return null;
+              });
+      start.countDown();
+      shifts.get();
+      reads.get();
+    } finally {
+      executor.shutdown();
+    }
+    // then
+    for (final List<Widget> page : pages) {
+      for (int i = 1; i < page.size(); i++) {
+        assertThat(page.get(i).z(), equalTo(page.get(i - 1).z() + 1));
+      }
+    }
+    assertTotalSize(1_000 + inserts);
+  }
+
+  @Test
+  void testExportDoesNotBlockWriters() {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    for (int i = 0; i < 3_000; i++) {
+      repository.createOne(randomWidgetToCreate(null));
+    }
+    final List<String> idsBefore =
+        repository.readAll(Integer.MAX_VALUE, null).stream().map(Widget::id).collect(toList());
+    // when
+    final List<Widget> exported = new ArrayList<>();
+    repository.exportAll(
+        widget -> {
+          exported.add(widget);
+          // shifts all widgets, would deadlock if the export held a lock
+          repository.createOne(randomWidgetToCreate(Integer.MIN_VALUE));
+        });
+    // then
+    assertThat(exported.stream().map(Widget::id).collect(toList()), equalTo(idsBefore));
+    assertTotalSize(6_000);
+  }
+
+  @Test
+  void testReorderOnlyPushesWidgetsInTheWay() {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    for (final int z : new int[] {0, 1, 2, 3, 5, 6, 9, 10}) {
+      repository.createOne(randomWidgetToCreate(z));
+    }
+    // when
+    final List<Widget> reordered =
+        repository.reorder(WidgetsToReorder.toZ(List.of("8", "1", "3"), 1)).get();
+    // then
+    assertThat(reordered.get(0).id(), equalTo("1"));
+    assertThat(reordered.get(2).id(), equalTo("8"));
+    final List<String> idsFound = new ArrayList<>();
+    final List<Integer> zFound = new ArrayList<>();
+    for (final Widget widget : repository.readAll(Integer.MAX_VALUE, null)) {
+      idsFound.add(widget.id());
+      zFound.add(widget.z());
+    }
+    assertThat(idsFound, equalTo(List.of("1", "3", "8", "2", "4", "5", "6", "7")));
+    // the push is absorbed by the gap below z-index 9, so the widget there is not moved
+    assertThat(zFound, equalTo(List.of(1, 2, 3, 4, 5, 6, 7, 9)));
+    assertTotalSize(8);
+  }
+
+  @Test
+  void testWriteAheadLogIsReplayed(@TempDir final Path tempDir) {
+    // given
+    final Path walPath = tempDir.resolve("widgets.wal");
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenAnswer(invocation -> Instant.now());
+    final CollectionBasedWidgetRepository logged = openWithWriteAheadLog(walPath);
+    applyRandomOperations(logged, new Random(3), 2_000, ids);
+    final List<Widget> widgetsLogged = logged.readAll(Integer.MAX_VALUE, null);
+    logged.shutdown();
+    // when
+    final CollectionBasedWidgetRepository replayed = openWithWriteAheadLog(walPath);
+    // then
+    assertThat(replayed.readAll(Integer.MAX_VALUE, null), equalTo(widgetsLogged));
+    final int topZ = widgetsLogged.get(widgetsLogged.size() - 1).z();
+    assertThat(replayed.createOne(randomWidgetToCreate(null)).z(), equalTo(topZ + 1));
+    replayed.shutdown();
+  }
+
+  @Test
+  void testTornWriteAheadLogTailIsDiscarded(@TempDir final Path tempDir) throws Exception {
+    // given
+    final Path walPath = tempDir.resolve("widgets.wal");
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    final CollectionBasedWidgetRepository logged = openWithWriteAheadLog(walPath);
+    for (int i = 0; i < 3; i++) {
+      logged.createOne(randomWidgetToCreate(null));
+    }
+    logged.shutdown();
+    final long walSize = Files.size(walPath);
+    Files.write(walPath, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+    // when
+    final CollectionBasedWidgetRepository replayed = openWithWriteAheadLog(walPath);
+    // then
+    assertThat(replayed.readAll(Integer.MAX_VALUE, null).size(), equalTo(3));
+    assertThat(Files.size(walPath), equalTo(walSize));
+    // records written after the discarded tail are replayed
+    replayed.createOne(randomWidgetToCreate(null));
+    replayed.shutdown();
+    final CollectionBasedWidgetRepository reopened = openWithWriteAheadLog(walPath);
+    assertThat(reopened.readAll(Integer.MAX_VALUE, null).size(), equalTo(4));
+    reopened.shutdown();
+  }
+
+  @Test
+  void testFailedWriteAheadLogAppendChangesNothing(@TempDir final Path tempDir) {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenReturn(Instant.now());
+    final WriteAheadLog writeAheadLog =
+        WriteAheadLog.open(tempDir.resolve("widgets.wal"), SyncPolicy.PER_OP, 10);
+    final CollectionBasedWidgetRepository logged = open(writeAheadLog, SnapshotFile.disabled());
+    for (int i = 0; i < 3; i++) {
+      logged.createOne(randomWidgetToCreate(null));
+    }
+    final List<Widget> widgets = logged.readAll(Integer.MAX_VALUE, null);
+    final long version = logged.version();
+    // when
+    // every append fails from now on
+    writeAheadLog.close();
+    // then
+    final int bottomZ = widgets.get(0).z();
+    final int topZ = widgets.get(2).z();
+    assertThrows(UncheckedIOException.class, () -> logged.createOne(randomWidgetToCreate(null)));
+    assertThrows(
+        UncheckedIOException.class, () -> logged.createOne(randomWidgetToCreate(bottomZ)));
+    assertThrows(
+        UncheckedIOException.class,
+        () -> logged.createMany(List.of(randomWidgetToCreate(bottomZ), randomWidgetToCreate(null))));
+    assertThrows(UncheckedIOException.class, () -> logged.updateOne("1", widgetToUpdate(7, null)));
+    assertThrows(
+        UncheckedIOException.class, () -> logged.updateOne("3", widgetToUpdate(7, bottomZ)));
+    assertThrows(
+        UncheckedIOException.class,
+        () -> logged.reorder(WidgetsToReorder.toZ(List.of("3"), bottomZ)));
+    assertThrows(UncheckedIOException.class, () -> logged.deleteOne("1"));
+    assertThrows(UncheckedIOException.class, () -> logged.deleteMany(List.of("1", "2")));
+    assertThat(logged.readAll(Integer.MAX_VALUE, null), equalTo(widgets));
+    assertThat(logged.readOne("3").orElseThrow().z(), equalTo(topZ));
+    final Area board =
+        new Area(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    assertThat(logged.readAllInArea(Integer.MAX_VALUE, null, board), equalTo(widgets));
+    assertThat(logged.version(), equalTo(version));
+  }
+
+  @Test
+  void testSnapshotIsLoadedAndLogTailReplayed(@TempDir final Path tempDir) {
+    // given
+    final Path walPath = tempDir.resolve("widgets.wal");
+    final Path snapshotPath = tempDir.resolve("widgets.snapshot");
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenAnswer(invocation -> Instant.now());
+    final Random random = new Random(5);
+    final CollectionBasedWidgetRepository logged =
+        open(WriteAheadLog.open(walPath, SyncPolicy.PER_OP, 10), SnapshotFile.of(snapshotPath));
+    applyRandomOperations(logged, random, 1_000, ids);
+    logged.writeSnapshot();
+    final List<Widget> widgetsSnapshotted = logged.readAll(Integer.MAX_VALUE, null);
+    applyRandomOperations(logged, random, 500, ids);
+    final List<Widget> widgetsLogged = logged.readAll(Integer.MAX_VALUE, null);
+    logged.shutdown();
+    // when
+    final CollectionBasedWidgetRepository fromSnapshot =
+        open(WriteAheadLog.disabled(), SnapshotFile.of(snapshotPath));
+    final CollectionBasedWidgetRepository replayed =
+        open(WriteAheadLog.open(walPath, SyncPolicy.PER_OP, 10), SnapshotFile.of(snapshotPath));
+    // then
+    assertThat(fromSnapshot.readAll(Integer.MAX_VALUE, null), equalTo(widgetsSnapshotted));
+    assertThat(replayed.readAll(Integer.MAX_VALUE, null), equalTo(widgetsLogged));
+    replayed.shutdown();
+  }
+
+  @Test
+  void testSnapshotTruncatesWriteAheadLog(@TempDir final Path tempDir) throws Exception {
+    // given
+    final Path walPath = tempDir.resolve("widgets.wal");
+    final Path snapshotPath = tempDir.resolve("widgets.snapshot");
+    final AtomicInteger ids = new AtomicInteger();
+    when(idProvider.get()).thenAnswer(invocation -> String.valueOf(ids.incrementAndGet()));
+    when(clock.instant()).thenAnswer(invocation -> Instant.now());
+    final Random random = new Random(7);
+    final CollectionBasedWidgetRepository logged =
+        open(WriteAheadLog.open(walPath, SyncPolicy.PER_OP, 10), SnapshotFile.of(snapshotPath));
+    applyRandomOperations(logged, random, 1_000, ids);
+    final long walSize = Files.size(walPath);
+    // when
+    logged.writeSnapshot();
+    final long truncatedWalSize = Files.size(walPath);
+    applyRandomOperations(logged, random, 100, ids);
+    logged.writeSnapshot();
+    applyRandomOperations(logged, random, 100, ids);
+    final List<Widget> widgetsLogged = logged.readAll(Integer.MAX_VALUE, null);
+    logged.shutdown();
+    // then
+    // only the position of the first record is left
+    assertThat(truncatedWalSize, equalTo((long) Long.BYTES));
+    assertThat(Files.size(walPath) < walSize, equalTo(true));
+    final CollectionBasedWidgetRepository replayed =
+        open(WriteAheadLog.open(walPath, SyncPolicy.PER_OP, 10), SnapshotFile.of(snapshotPath));
+    assertThat(replayed.readAll(Integer.MAX_VALUE, null), equalTo(widgetsLogged));
+    replayed.shutdown();
+  }
+
+  private CollectionBasedWidgetRepository openWithWriteAheadLog(final Path walPath) {
+    return open(WriteAheadLog.open(walPath, SyncPolicy.PER_OP, 10), SnapshotFile.disabled());
+  }
+
+  private CollectionBasedWidgetRepository open(
+      final WriteAheadLog writeAheadLog, final SnapshotFile snapshotFile) {
+    return new CollectionBasedWidgetRepository(
+        idProvider,
+        clock,
+        new ConcurrentHashMap<>(),
+        new ConcurrentSkipListMap<>(),
+        writeAheadLog,
+        snapshotFile,
+        0,
+        new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+        0);
+  }
+
+  private static void applyRandomOperations(
+      final WidgetRepository repository,
+      final Random random,
+      final int operations,
+      final AtomicInteger ids) {
+    for (int i = 0; i < operations; i++) {
+      final Integer z = random.nextInt(3) == 0 ? null : random.nextInt(200);
+      final String id = String.valueOf(1 + random.nextInt(ids.get() + 1));
+      switch (random.nextInt(7)) {
+        case 0:
+        case 1:
+          repository.createOne(randomWidgetToCreate(z));
+          break;
+        case 2:
+          repository.updateOne(id, widgetToUpdate(random.nextInt(), z));
+          break;
+        case 3:
+          repository.createMany(
+              List.of(randomWidgetToCreate(z), randomWidgetToCreate(random.nextInt(200))));
+          break;
+        case 4:
+          final List<String> reorderIds =
+              List.of(id, String.valueOf(1 + random.nextInt(ids.get() + 1)));
+          repository.reorder(
+              z == null
+                  ? WidgetsToReorder.toPosition(reorderIds, WidgetsToReorder.Position.FRONT)
+                  : WidgetsToReorder.toZ(reorderIds, z));
+          break;
+        case 5:
+          repository.deleteMany(List.of(id, String.valueOf(1 + random.nextInt(ids.get() + 1))));
+          break;
+        default:
+          repository.deleteOne(id);
+      }
+    }
+  }
+
+  @Test
+  void testForBoardIsIndependent() {
+    assertBoardIsIndependent();
+  }
+
+  @Test
+  void testBoardSurvivesClose() {
+    assertBoardSurvivesClose();
+  }
+
   @Override
   protected IdProvider idProviderMock() {
     return idProvider;
@@ -63,7 +567,6 @@ class CollectionBasedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
 
   @Override
   protected void clearRepo() {
-    idToWidget.clear();
-    zToWidget.clear();
+    repository.clear();
   }
 }
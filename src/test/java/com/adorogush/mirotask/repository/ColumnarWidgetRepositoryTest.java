@@ -0,0 +1,132 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.service.IdProvider;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+/** Unit test covering {@link ColumnarWidgetRepository}. */
+@TestInstance(value = PER_CLASS)
+class ColumnarWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+
+  private final IdProvider idProvider = mock(IdProvider.class);
+  private final Clock clock = mock(Clock.class);
+  private final ColumnarWidgetRepository repository =
+      new ColumnarWidgetRepository(idProvider, clock);
+
+  @Test
+  void testDeletedSlotsAreReused() {
+    // given
+    when(clock.instant()).thenReturn(Instant.now());
+    for (int i = 0; i < 1000; i++) {
+      when(idProvider.get()).thenReturn(String.valueOf(i));
+      repository.createOne(randomWidgetToCreate(null));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      repository.deleteOne(String.valueOf(i));
+    }
+    // when
+    for (int i = 1000; i < 1500; i++) {
+      when(idProvider.get()).thenReturn(String.valueOf(i));
+      repository.createOne(randomWidgetToCreate(0));
+    }
+    // then
+    assertTotalSize(1000);
+    for (int i = 0; i < 1500; i++) {
+      assertThat(
+          repository.readOne(String.valueOf(i)).isPresent(), equalTo(i >= 1000 || i % 2 == 1));
+    }
+    final List<Widget> widgetsFound = repository.readAll(Integer.MAX_VALUE, null);
+    assertThat(widgetsFound.size(), equalTo(1000));
+    for (int i = 1; i < widgetsFound.size(); i++) {
+      assertThat(widgetsFound.get(i).z() > widgetsFound.get(i - 1).z(), equalTo(true));
+      assertThat(repository.readOne(widgetsFound.get(i).id()).get(), equalTo(widgetsFound.get(i)));
+    }
+  }
+
+  @Test
+  void testCompactAndPlainIdsRoundTrip() {
+    assertCompactAndPlainIdsRoundTrip();
+  }
+
+  @Test
+  void testChangedSinceListsChangedWidgets() {
+    assertChangedSinceListsChangedWidgets();
+  }
+
+  @Test
+  void testChangesApplyToCurrentWidgets() {
+    assertChangesApplyToCurrentWidgets(1_000);
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testRandomOperationsMatchCollectionBasedRepository() {
+    assertRandomOperationsMatchCollectionBasedRepository(3000);
+  }
+
+  @Test
+  void testForBoardIsIndependent() {
+    assertBoardIsIndependent();
+  }
+
+  @Test
+  void testBoardSurvivesClose() {
+    assertBoardSurvivesClose();
+  }
+
+  @Override
+  protected IdProvider idProviderMock() {
+    return idProvider;
+  }
+
+  @Override
+  protected Clock clockMock() {
+    return clock;
+  }
+
+  @Override
+  protected WidgetRepository repository() {
+    return repository;
+  }
+
+  @Override
+  protected void assertTotalSize(final int size) {
+    assertThat(repository.size(), equalTo(size));
+  }
+
+  @Override
+  protected void clearRepo() {
+    repository.clear();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.service.IdProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+/** Unit test covering {@link GapBasedWidgetRepository}. */
+@TestInstance(value = PER_CLASS)
+class GapBasedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+
+  private final IdProvider idProvider = mock(IdProvider.class);
+  private final Clock clock = mock(Clock.class);
+  private final GapBasedWidgetRepository repository =
+      new GapBasedWidgetRepository(idProvider, clock, new SimpleMeterRegistry(), 1000);
+
+  @AfterAll
+  void afterAll() {
+    repository.shutdown();
+  }
+
+  @Test
+  void testInsertsIntoSameZExhaustGapsAndCompact() {
+    // given
+    createWidgets(0, 3);
+    // when
+    // each insert halves the gap below the widget occupying z=1
+    for (int i = 3; i < 3 + GapBasedWidgetRepository.KEY_GAP_BITS * 4; i++) {
+      createWidget(String.valueOf(i), 1);
+    }
+    // then
+    final List<Widget> widgetsFound = repository.readAll(Integer.MAX_VALUE, null);
+    assertThat(widgetsFound.size(), equalTo(3 + GapBasedWidgetRepository.KEY_GAP_BITS * 4));
+    assertThat(widgetsFound.get(0).id(), equalTo("0"));
+    assertThat(widgetsFound.get(0).z(), equalTo(0));
+    for (int i = 1; i < widgetsFound.size(); i++) {
+      assertThat(widgetsFound.get(i).z(), equalTo(i));
+      assertThat(repository.readOne(widgetsFound.get(i).id()).get().z(), equalTo(i));
+    }
+    assertThat(widgetsFound.get(1).id(), equalTo(String.valueOf(widgetsFound.size() - 1)));
+    assertThat(widgetsFound.get(widgetsFound.size() - 1).id(), equalTo("2"));
+  }
+
+  @Test
+  void testCompactionKeepsZ() {
+    // given
+    createWidgets(0, 10);
+    createWidget("a", 3);
+    createWidget("b", 3);
+    createWidget("c", 7);
+    final List<Widget> widgetsBefore = repository.readAll(Integer.MAX_VALUE, null);
+    assertThat(repository.offsetsSize() > 0, equalTo(true));
+    assertThat(repository.readAll(2, 7), equalTo(widgetsBefore.subList(7, 9)));
+    // when
+    repository.compact();
+    // then
+    assertThat(repository.offsetsSize(), equalTo(0));
+    assertThat(repository.readAll(Integer.MAX_VALUE, null), equalTo(widgetsBefore));
+    assertThat(repository.readAll(2, 7), equalTo(widgetsBefore.subList(7, 9)));
+  }
+
+  @Test
+  void testChangedSinceListsChangedWidgets() {
+    assertChangedSinceListsChangedWidgets();
+  }
+
+  @Test
+  void testForBoardIsIndependent() {
+    assertBoardIsIndependent();
+  }
+
+  @Test
+  void testBoardSurvivesClose() {
+    assertBoardSurvivesClose();
+  }
+
+  @Test
+  void testChangesApplyToCurrentWidgets() {
+    assertChangesApplyToCurrentWidgets(1_000);
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testRandomOperationsMatchCollectionBasedRepository() {
+    assertRandomOperationsMatchCollectionBasedRepository(3000);
+  }
+
+  @Override
+  protected IdProvider idProviderMock() {
+    return idProvider;
+  }
+
+  @Override
+  protected Clock clockMock() {
+    return clock;
+  }
+
+  @Override
+  protected WidgetRepository repository() {
+    return repository;
+  }
+
+  @Override
+  protected void assertTotalSize(final int size) {
+    assertThat(repository.idIndexSize(), equalTo(size));
+    assertThat(repository.keyIndexSize(), equalTo(size));
+  }
+
+  @Override
+  protected void clearRepo() {
+    repository.clear();
+  }
+
+  private void createWidgets(final int fromZ, final int toZ) {
+    for (int z = fromZ; z < toZ; z++) {
+      createWidget(String.valueOf(z), z);
+    }
+  }
+
+  private void createWidget(final String id, final int z) {
+    when(idProvider.get()).thenReturn(id);
+    when(clock.instant()).thenReturn(Instant.now());
+    repository.createOne(randomWidgetToCreate(z));
+  }
+}
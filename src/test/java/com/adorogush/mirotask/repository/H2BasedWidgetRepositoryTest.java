@@ -21,6 +21,7 @@ import static org.springframework.test.jdbc.JdbcTestUtils.countRowsInTable;
 
 import com.adorogush.mirotask.service.IdProvider;
 import java.time.Clock;
+import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
@@ -42,6 +43,36 @@ class H2BasedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
   @Autowired private JdbcTemplate jdbcTemplate;
   @Autowired private H2BasedWidgetRepository repository;
 
+  @Test
+  void testChangedSinceListsChangedWidgets() {
+    assertChangedSinceListsChangedWidgets();
+  }
+
+  @Test
+  void testChangesApplyToCurrentWidgets() {
+    assertChangesApplyToCurrentWidgets(300);
+  }
+
+  @Test
+  void testCompactAndPlainIdsRoundTrip() {
+    assertCompactAndPlainIdsRoundTrip();
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testForBoardIsIndependent() {
+    assertBoardIsIndependent();
+  }
+
+  @Test
+  void testBoardSurvivesClose() {
+    assertBoardSurvivesClose();
+  }
+
   @Override
   protected IdProvider idProviderMock() {
     return idProvider;
@@ -0,0 +1,113 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of reading pages of widgets from {@link CollectionBasedWidgetRepository} while a
+ * writer keeps inserting widgets in the middle of the stack, each insert shifting the upper half
+ * of the widgets, and deleting the top one, so the number of widgets stays the same. Latencies are
+ * sampled, so the report holds the p99 of the readers, which only wait for a shift if it overlaps
+ * the optimistic read. Is not run by tests, run it with {@code mvn test-compile} and the {@link
+ * #main} method from the test classpath.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixedReadAllBenchmark {
+
+  private static final int PER_PAGE = 10;
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"10000", "100000"})
+  private int widgets;
+
+  private CollectionBasedWidgetRepository repository;
+
+  @Setup
+  public void setup() {
+    final AtomicLong ids = new AtomicLong();
+    repository =
+        new CollectionBasedWidgetRepository(
+            () -> String.valueOf(ids.incrementAndGet()), Clock.systemUTC());
+    for (int from = 0; from < widgets; from += BATCH_SIZE) {
+      final List<WidgetToCreate> batch = new ArrayList<>(BATCH_SIZE);
+      for (int z = from; z < Math.min(from + BATCH_SIZE, widgets); z++) {
+        batch.add(new WidgetToCreate(z, z, z, 10, 10));
+      }
+      repository.createMany(batch);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    repository.shutdown();
+  }
+
+  /** Reads a page from a random z-index, the same request as the service makes for a page. */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public List<Widget> readPage() {
+    return repository.readAll(PER_PAGE + 1, ThreadLocalRandom.current().nextInt(widgets));
+  }
+
+  /**
+   * Inserts a widget in the middle of the stack, shifting the widgets above it, and deletes the
+   * top one, so no gap is left and every insert shifts.
+   */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Widget insertMidStack() {
+    final int z = widgets / 2 + ThreadLocalRandom.current().nextInt(PER_PAGE);
+    repository.createOne(new WidgetToCreate(z, z, z, 10, 10));
+    return repository.deleteOne(repository.readAll(1, widgets).get(0).id()).orElseThrow();
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(MixedReadAllBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
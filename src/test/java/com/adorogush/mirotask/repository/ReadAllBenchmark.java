@@ -0,0 +1,87 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of reading a page of widgets from {@link CollectionBasedWidgetRepository}, the
+ * latency should not depend on the number of widgets above the page. Is not run by tests, run it
+ * with {@code mvn test-compile} and the {@link #main} method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadAllBenchmark {
+
+  private static final int PER_PAGE = 10;
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"1000", "100000", "1000000"})
+  private int widgetsAbove;
+
+  private CollectionBasedWidgetRepository repository;
+
+  @Setup
+  public void setup() {
+    final AtomicLong ids = new AtomicLong();
+    repository =
+        new CollectionBasedWidgetRepository(
+            () -> String.valueOf(ids.incrementAndGet()), Clock.systemUTC());
+    // page is read from z-index 0, everything after it is above the page
+    final int total = PER_PAGE + 1 + widgetsAbove;
+    for (int from = 0; from < total; from += BATCH_SIZE) {
+      final List<WidgetToCreate> batch = new ArrayList<>(BATCH_SIZE);
+      for (int z = from; z < Math.min(from + BATCH_SIZE, total); z++) {
+        batch.add(new WidgetToCreate(z, z, z, 10, 10));
+      }
+      repository.createMany(batch);
+    }
+  }
+
+  /** The same request as the service makes for a page, one more widget tells if there is next. */
+  @Benchmark
+  public List<Widget> readPage() {
+    return repository.readAll(PER_PAGE + 1, 0);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ReadAllBenchmark.class.getSimpleName()).build()).run();
+  }
+}
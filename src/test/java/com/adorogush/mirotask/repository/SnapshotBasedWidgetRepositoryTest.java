@@ -0,0 +1,178 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.exception.ConflictException;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToUpdate;
+import com.adorogush.mirotask.service.IdProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+/** Unit test covering {@link SnapshotBasedWidgetRepository}. */
+@TestInstance(value = PER_CLASS)
+class SnapshotBasedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+
+  private final IdProvider idProvider = mock(IdProvider.class);
+  private final Clock clock = mock(Clock.class);
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final SnapshotBasedWidgetRepository repository =
+      new SnapshotBasedWidgetRepository(idProvider, clock, meterRegistry);
+
+  @Test
+  void testEveryWritePublishesOneSnapshot() {
+    // given
+    final long versionBefore = repository.version();
+    createWidget("1", 0);
+    createWidget("2", 1);
+    // when
+    // shifting insert
+    createWidget("3", 0);
+    // z-index changing update
+    repository.updateOne("1", new WidgetToUpdate(null, null, 5, null, null));
+    repository.deleteOne("2");
+    // not found
+    repository.deleteOne("2");
+    // then
+    assertThat(repository.version(), equalTo(versionBefore + 5));
+    assertThat(
+        meterRegistry.get("widgets.snapshot.version").gauge().value(),
+        equalTo((double) repository.version()));
+    // two map nodes per widget, nothing else is held
+    assertThat(meterRegistry.get("widgets.snapshot.retained").gauge().value(), equalTo(4.0));
+  }
+
+  @Test
+  void testExportHoldsItsSnapshot() {
+    // given
+    createWidget("1", 0);
+    createWidget("2", 1);
+    createWidget("3", 2);
+    final List<Long> heldDuringExport = new ArrayList<>();
+    final List<Widget> exported = new ArrayList<>();
+    // when
+    repository.exportAll(
+        widget -> {
+          if (exported.isEmpty()) {
+            // shifts all the exported widgets
+            createWidget("4", 0);
+            heldDuringExport.add((long) repository.heldSnapshots());
+            heldDuringExport.add(repository.retainedNodes());
+          }
+          exported.add(widget);
+        });
+    // then
+    assertThat(
+        exported.stream().map(Widget::id).collect(toList()), equalTo(List.of("1", "2", "3")));
+    assertThat(heldDuringExport.get(0), equalTo(1L));
+    // the shift replaced every node of the export snapshot, retained on top of the current ones
+    assertThat(heldDuringExport.get(1), equalTo(8L + 6L));
+    assertThat(repository.heldSnapshots(), equalTo(0));
+    assertThat(repository.retainedNodes(), equalTo(8L));
+  }
+
+  @Test
+  void testFailedShiftPublishesNothing() {
+    // given
+    createWidget("1", 0);
+    createWidget("2", Integer.MAX_VALUE);
+    final List<Widget> widgetsBefore = repository.readAll(Integer.MAX_VALUE, null);
+    final long versionBefore = repository.version();
+    // when
+    when(idProvider.get()).thenReturn("3");
+    assertThrows(ConflictException.class, () -> repository.createOne(randomWidgetToCreate(0)));
+    // then
+    assertThat(repository.version(), equalTo(versionBefore));
+    assertThat(repository.readAll(Integer.MAX_VALUE, null), equalTo(widgetsBefore));
+    assertTotalSize(2);
+  }
+
+  @Test
+  void testChangedSinceListsChangedWidgets() {
+    assertChangedSinceListsChangedWidgets();
+  }
+
+  @Test
+  void testForBoardIsIndependent() {
+    assertBoardIsIndependent();
+  }
+
+  @Test
+  void testBoardSurvivesClose() {
+    assertBoardSurvivesClose();
+  }
+
+  @Test
+  void testChangesApplyToCurrentWidgets() {
+    assertChangesApplyToCurrentWidgets(1_000);
+  }
+
+  @Test
+  void testListenerReceivesEventsInVersionOrder() {
+    assertListenerReceivesEventsInVersionOrder();
+  }
+
+  @Test
+  void testRandomOperationsMatchCollectionBasedRepository() {
+    assertRandomOperationsMatchCollectionBasedRepository(3000);
+  }
+
+  @Override
+  protected IdProvider idProviderMock() {
+    return idProvider;
+  }
+
+  @Override
+  protected Clock clockMock() {
+    return clock;
+  }
+
+  @Override
+  protected WidgetRepository repository() {
+    return repository;
+  }
+
+  @Override
+  protected void assertTotalSize(final int size) {
+    assertThat(repository.idIndexSize(), equalTo(size));
+    assertThat(repository.zIndexSize(), equalTo(size));
+  }
+
+  @Override
+  protected void clearRepo() {
+    repository.clear();
+  }
+
+  private void createWidget(final String id, final int z) {
+    when(idProvider.get()).thenReturn(id);
+    when(clock.instant()).thenReturn(Instant.now());
+    repository.createOne(randomWidgetToCreate(z));
+  }
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.repository;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of contended writes to {@link CollectionBasedWidgetRepository}, applied by the
+ * writer threads holding the global lock ({@code writePipelineSize} {@code 0}) against a single
+ * writer thread draining a ring buffer. Every operation creates a widget at a random z-index,
+ * shifting all widgets above it if occupied, and deletes it, so the number of widgets stays the
+ * same. Is not run by tests, run it with {@code mvn test-compile} and the {@link
+ * #main} method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+  private static final int WIDGETS = 10_000;
+
+  @Param({"0", "1024"})
+  private int writePipelineSize;
+
+  private CollectionBasedWidgetRepository repository;
+
+  @Setup
+  public void setup() {
+    final AtomicLong ids = new AtomicLong();
+    repository =
+        new CollectionBasedWidgetRepository(
+            () -> String.valueOf(ids.incrementAndGet()),
+            Clock.systemUTC(),
+            new ConcurrentHashMap<>(),
+            new ConcurrentSkipListMap<>(),
+            WriteAheadLog.disabled(),
+            SnapshotFile.disabled(),
+            0,
+            new ChangeLog(ChangeLog.DEFAULT_CAPACITY),
+            writePipelineSize);
+    // every other z-index is free, so about half of the creates shift
+    final List<WidgetToCreate> widgetsToCreate = new ArrayList<>(WIDGETS);
+    for (int i = 0; i < WIDGETS; i++) {
+      widgetsToCreate.add(new WidgetToCreate(i, i, i * 2, 10, 10));
+    }
+    repository.createMany(widgetsToCreate);
+  }
+
+  @TearDown
+  public void tearDown() {
+    repository.shutdown();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Widget write1Thread() {
+    return write();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Widget write8Threads() {
+    return write();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Widget write64Threads() {
+    return write();
+  }
+
+  private Widget write() {
+    final int z = ThreadLocalRandom.current().nextInt(WIDGETS * 2);
+    final Widget created = repository.createOne(new WidgetToCreate(z, z, z, 10, 10));
+    return repository.deleteOne(created.id()).orElseThrow();
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(WriteBenchmark.class.getSimpleName()).build()).run();
+  }
+}
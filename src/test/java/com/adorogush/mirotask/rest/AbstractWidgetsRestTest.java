@@ -140,38 +140,81 @@ abstract class AbstractWidgetsRestTest {
     assertThat(widgetsFound4.get(3).z(), equalTo(7));
   }
 
+  /** Widgets of two boards are created at the same z-indexes without shifting each other. */
+  protected void assertBoardsAreIndependent() {
+    final String boardA = "/boards/board-a/widgets";
+    final String boardB = "/boards/board-b/widgets";
+    final Widget widgetA1 = create(boardA, 1);
+    final Widget widgetB1 = create(boardB, 1);
+    assertThat(widgetB1.z(), equalTo(1));
+
+    // shifts widgetA1 only
+    final Widget widgetA2 = create(boardA, 1);
+    assertThat(readOne(boardA, widgetA1.id()).z(), equalTo(2));
+    assertThat(readOne(boardB, widgetB1.id()).z(), equalTo(1));
+
+    // widgets of a board are not found by another one
+    final ResponseEntity<String> notFound =
+        testRestTemplate.getForEntity(boardB + "/{id}", String.class, widgetA1.id());
+    assertThat(notFound.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+
+    // next page link stays on the board
+    final Page page1 = readAll(boardA, 1, null);
+    assertThat(page1.widgets().get(0).id(), equalTo(widgetA2.id()));
+    assertThat(page1.nextPageUrl().contains(boardA), equalTo(true));
+    final Page page2 = readAll(boardA, null, page1.nextPageUrl());
+    assertThat(page2.widgets().get(0).id(), equalTo(widgetA1.id()));
+
+    // malformed board id
+    final ResponseEntity<String> badRequest =
+        testRestTemplate.getForEntity("/boards/{boardId}/widgets/top?x=0&y=0", String.class, "b.c");
+    assertThat(badRequest.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+  }
+
   private Widget create(final Integer z) {
-    return create(randomWidgetToCreate(z));
+    return create("/widgets", z);
   }
 
-  private Widget create(final WidgetToCreate widgetToCreate) {
+  private Widget create(final String widgetsPath, final Integer z) {
+    return create(widgetsPath, randomWidgetToCreate(z));
+  }
+
+  private Widget create(final String widgetsPath, final WidgetToCreate widgetToCreate) {
     final ResponseEntity<Widget> response =
-        testRestTemplate.postForEntity("/widgets", widgetToCreate, Widget.class);
+        testRestTemplate.postForEntity(widgetsPath, widgetToCreate, Widget.class);
     assertThat(response.getStatusCode(), equalTo(HttpStatus.CREATED));
     return response.getBody();
   }
 
   private Widget readOne(final String id) {
+    return readOne("/widgets", id);
+  }
+
+  private Widget readOne(final String widgetsPath, final String id) {
     final ResponseEntity<Widget> response =
-        testRestTemplate.getForEntity("/widgets/{id}", Widget.class, id);
+        testRestTemplate.getForEntity(widgetsPath + "/{id}", Widget.class, id);
     assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
     return response.getBody();
   }
 
   private Page readAll(final Integer perPage, final String pageLink) {
+    return readAll("/widgets", perPage, pageLink);
+  }
+
+  private Page readAll(final String widgetsPath, final Integer perPage, final String pageLink) {
     final ResponseEntity<List<Widget>> response;
     if (pageLink == null) {
       if (perPage == null) {
         response =
             testRestTemplate.exchange(
-                "/widgets",
+                widgetsPath,
                 HttpMethod.GET,
                 null,
                 new ParameterizedTypeReference<List<Widget>>() {});
       } else {
         response =
             testRestTemplate.exchange(
-                "/widgets?perPage={perPage}",
+                widgetsPath + "?perPage={perPage}",
                 HttpMethod.GET,
                 null,
                 new ParameterizedTypeReference<List<Widget>>() {},
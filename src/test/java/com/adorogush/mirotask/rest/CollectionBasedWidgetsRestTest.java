@@ -15,6 +15,7 @@
 */
 package com.adorogush.mirotask.rest;
 
+import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.boot.web.server.LocalServerPort;
@@ -28,4 +29,9 @@ public class CollectionBasedWidgetsRestTest extends AbstractWidgetsRestTest {
       @Autowired final RestTemplateBuilder restTemplateBuilder) {
     super(localPort, restTemplateBuilder);
   }
+
+  @Test
+  void boardsScenario() {
+    assertBoardsAreIndependent();
+  }
 }
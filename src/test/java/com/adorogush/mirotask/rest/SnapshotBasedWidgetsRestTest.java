@@ -0,0 +1,31 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.rest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {"widgetRepositoryImplementation: snapshot"})
+public class SnapshotBasedWidgetsRestTest extends AbstractWidgetsRestTest {
+
+  public SnapshotBasedWidgetsRestTest(
+      @LocalServerPort final int localPort,
+      @Autowired final RestTemplateBuilder restTemplateBuilder) {
+    super(localPort, restTemplateBuilder);
+  }
+}
@@ -0,0 +1,226 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.exception.ServiceUnavailableException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.repository.CollectionBasedWidgetRepository;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.adorogush.mirotask.service.BoardRegistry.Board;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/** Tests for {@link BoardRegistry}. */
+class BoardRegistryTest {
+
+  private static final Instant INSTANT = Instant.parse("2020-09-01T12:00:00Z");
+  private static final long IDLE_SECONDS = 60;
+  private final Clock clock = mock(Clock.class);
+  private final RateLimitService rateLimitService = mock(RateLimitService.class);
+  private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+  private final PageTokenService pageTokenService = new PageTokenService(clock, 300);
+  private final WidgetEventService widgetEventService =
+      new WidgetEventService(rateLimitService, objectMapper, 4, 2, 1000, 1000);
+  private BoardRegistry boardRegistry;
+
+  @BeforeEach
+  void beforeEach() {
+    when(clock.instant()).thenReturn(INSTANT);
+    boardRegistry =
+        boardRegistry(new CollectionBasedWidgetRepository(new RandomIdProvider(), clock));
+  }
+
+  @AfterEach
+  void afterEach() {
+    boardRegistry.close();
+    widgetEventService.close();
+  }
+
+  @Test
+  void testDefaultBoardIsServedByApplicationServices() {
+    // given
+    // when
+    final Board board = boardRegistry.board(BoardRegistry.DEFAULT_BOARD_ID);
+    // then
+    assertThat(board.widgetEventService(), sameInstance(widgetEventService));
+    assertThat(boardRegistry.boards(), equalTo(0));
+  }
+
+  @Test
+  void testBoardsAreKeptApart() {
+    // given
+    final Board board = boardRegistry.board("board-a");
+    board.widgetService().createOne(randomWidgetToCreate(1));
+    // when
+    final Board sameBoard = boardRegistry.board("board-a");
+    final Board otherBoard = boardRegistry.board("board_b");
+    // then
+    assertThat(sameBoard, sameInstance(board));
+    assertThat(otherBoard, not(sameInstance(board)));
+    assertThat(readAllSize(board), equalTo(1));
+    assertThat(readAllSize(otherBoard), equalTo(0));
+    assertThat(readAllSize(boardRegistry.board(BoardRegistry.DEFAULT_BOARD_ID)), equalTo(0));
+    assertThat(boardRegistry.boards(), equalTo(2));
+  }
+
+  @Test
+  void testMalformedBoardIdIsRejected() {
+    // given
+    // when
+    // then
+    assertThrows(ValidationException.class, () -> boardRegistry.board(""));
+    assertThrows(ValidationException.class, () -> boardRegistry.board("board.a"));
+    assertThrows(ValidationException.class, () -> boardRegistry.board("a".repeat(65)));
+    assertThat(boardRegistry.boards(), equalTo(0));
+  }
+
+  @Test
+  void testLeastRecentlyUsedBoardIsEvictedWhenFull() {
+    // given
+    boardRegistry.board("board-a");
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(1));
+    final Board board = boardRegistry.board("board-b");
+    board.widgetService().createOne(randomWidgetToCreate(1));
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(2));
+    boardRegistry.board("board-c");
+    boardRegistry.board("board-a");
+    // when
+    boardRegistry.board("board-d");
+    // then
+    assertThat(boardRegistry.boards(), equalTo(3));
+    final Board loadedBoard = boardRegistry.board("board-b");
+    assertThat(loadedBoard, not(sameInstance(board)));
+    assertThat(readAllSize(loadedBoard), equalTo(1));
+    assertThrows(
+        ServiceUnavailableException.class,
+        () -> board.widgetService().createOne(randomWidgetToCreate(2)));
+  }
+
+  @Test
+  void testBoardsWithSubscribersAreNotEvictedWhenFull() {
+    // given
+    for (final String boardId : new String[] {"board-a", "board-b", "board-c"}) {
+      boardRegistry.board(boardId).widgetEventService().subscribe(new SseEmitter());
+    }
+    // when
+    // then
+    assertThrows(ServiceUnavailableException.class, () -> boardRegistry.board("board-d"));
+    assertThat(boardRegistry.board("board-a"), sameInstance(boardRegistry.board("board-a")));
+  }
+
+  @Test
+  void testIdleBoardIsEvictedAndLoadedAgain() {
+    // given
+    final Board emptyBoard = boardRegistry.board("board-a");
+    boardRegistry.board("board-b").widgetService().createOne(randomWidgetToCreate(null));
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(IDLE_SECONDS - 1));
+    boardRegistry.board("board-c");
+    // when
+    final int notIdleEvicted = boardRegistry.evictIdle();
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(IDLE_SECONDS + 1));
+    final int evicted = boardRegistry.evictIdle();
+    // then
+    assertThat(notIdleEvicted, equalTo(0));
+    assertThat(evicted, equalTo(2));
+    assertThat(boardRegistry.boards(), equalTo(1));
+    assertThat(boardRegistry.board("board-a"), not(sameInstance(emptyBoard)));
+    assertThat(readAllSize(boardRegistry.board("board-b")), equalTo(1));
+  }
+
+  @Test
+  void testRequestToClosingBoardWaitsForClose() throws Exception {
+    // given
+    final WidgetRepository repository = mock(WidgetRepository.class);
+    final WidgetRepository closingRepository = mock(WidgetRepository.class);
+    final WidgetRepository loadedRepository = mock(WidgetRepository.class);
+    when(repository.forBoard("board-a")).thenReturn(closingRepository, loadedRepository);
+    when(repository.forBoard("board-b")).thenReturn(mock(WidgetRepository.class));
+    final CountDownLatch closeStarted = new CountDownLatch(1);
+    final CountDownLatch closeReleased = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              closeStarted.countDown();
+              closeReleased.await();
+              return null;
+            })
+        .when(closingRepository)
+        .closeBoard();
+    final BoardRegistry registry = boardRegistry(repository);
+    registry.board("board-a");
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(IDLE_SECONDS + 1));
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<Integer> evicted = executor.submit(registry::evictIdle);
+      closeStarted.await();
+      // when
+      final Future<Board> loaded = executor.submit(() -> registry.board("board-a"));
+      final Board otherBoard = registry.board("board-b");
+      Thread.sleep(100);
+      // then
+      assertThat(otherBoard, not(nullValue()));
+      assertThat(loaded.isDone(), equalTo(false));
+      closeReleased.countDown();
+      assertThat(evicted.get(), equalTo(1));
+      assertThat(loaded.get(), not(nullValue()));
+      verify(repository, times(2)).forBoard("board-a");
+    } finally {
+      executor.shutdown();
+      registry.close();
+    }
+  }
+
+  private BoardRegistry boardRegistry(final WidgetRepository repository) {
+    return new BoardRegistry(
+        repository,
+        new WidgetService(repository, rateLimitService, pageTokenService, widgetEventService),
+        new WidgetImportService(repository, rateLimitService, objectMapper, 1000),
+        new WidgetExportService(repository, rateLimitService, objectMapper),
+        widgetEventService,
+        rateLimitService,
+        pageTokenService,
+        objectMapper,
+        clock,
+        1000,
+        3,
+        IDLE_SECONDS);
+  }
+
+  private static int readAllSize(final Board board) {
+    return board.widgetService().readAll(10, null, null).model().elements().size();
+  }
+}
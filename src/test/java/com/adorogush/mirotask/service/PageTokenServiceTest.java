@@ -0,0 +1,106 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.exception.GoneException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.Area;
+import com.adorogush.mirotask.service.PageTokenService.PageToken;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Base64;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link PageTokenService}. */
+class PageTokenServiceTest {
+
+  private static final Instant INSTANT = Instant.parse("2020-09-01T10:15:30Z");
+  private final Clock clock = mock(Clock.class);
+  private final PageTokenService pageTokenService = new PageTokenService(clock, 300);
+
+  @BeforeEach
+  void beforeEach() {
+    when(clock.instant()).thenReturn(INSTANT);
+  }
+
+  @Test
+  void testTokenRoundTrips() {
+    // given
+    final Area area = new Area(-1, 2, 3, -4);
+    // when
+    final PageToken token =
+        pageTokenService.parse(pageTokenService.issue("board-a", -5, 7, -9, area));
+    final PageToken noArea =
+        pageTokenService.parse(pageTokenService.issue("default", 5, 0, Integer.MAX_VALUE, null));
+    // then
+    assertThat(token.boardId(), equalTo("board-a"));
+    assertThat(token.instance(), equalTo(-5L));
+    assertThat(token.version(), equalTo(7L));
+    assertThat(token.lastZ(), equalTo(-9));
+    assertThat(token.area(), equalTo(area));
+    assertThat(noArea.lastZ(), equalTo(Integer.MAX_VALUE));
+    assertThat(noArea.area(), nullValue());
+  }
+
+  @Test
+  void testExpiredTokenThrowsGoneException() {
+    // given
+    final String pageToken = pageTokenService.issue("default", 1, 1, 1, null);
+    // when
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(299));
+    pageTokenService.parse(pageToken);
+    when(clock.instant()).thenReturn(INSTANT.plusSeconds(300));
+    // then
+    assertThrows(GoneException.class, () -> pageTokenService.parse(pageToken));
+  }
+
+  @Test
+  void testRewrittenTokenThrowsGoneException() {
+    // given
+    final String pageToken = pageTokenService.issue("default", 1, 1, 1, null);
+    final int separator = pageToken.indexOf('.');
+    final String payload =
+        new String(Base64.getUrlDecoder().decode(pageToken.substring(0, separator)), UTF_8);
+    final String extended =
+        payload.replace(String.valueOf(INSTANT.getEpochSecond()), "9999999999");
+    final String extendedToken =
+        Base64.getUrlEncoder().withoutPadding().encodeToString(extended.getBytes(UTF_8))
+            + pageToken.substring(separator);
+    // when
+    // then
+    assertThrows(GoneException.class, () -> pageTokenService.parse(extendedToken));
+    // signed by the key of another start
+    assertThrows(GoneException.class, () -> new PageTokenService(clock, 300).parse(pageToken));
+  }
+
+  @Test
+  void testInvalidTokenThrowsValidationException() {
+    assertThrows(ValidationException.class, () -> pageTokenService.parse("%%%"));
+    assertThrows(ValidationException.class, () -> pageTokenService.parse("dGVzdA"));
+    // b:1:1:x:0: without signature
+    assertThrows(ValidationException.class, () -> pageTokenService.parse("YjoxOjE6eDowOg"));
+    assertThrows(ValidationException.class, () -> pageTokenService.parse("YjoxOjE6eDowOg.%%%"));
+  }
+}
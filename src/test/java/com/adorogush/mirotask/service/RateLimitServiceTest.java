@@ -15,6 +15,7 @@
 */
 package com.adorogush.mirotask.service;
 
+import static com.adorogush.mirotask.service.RateLimitService.BATCH_WEIGHTED;
 import static com.adorogush.mirotask.service.RateLimitService.GLOBAL_ENABLED;
 import static com.adorogush.mirotask.service.RateLimitService.GLOBAL_RPM;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -88,6 +89,29 @@ class RateLimitServiceTest {
         rateLimitService.tryConsume(RateLimitOperation.CREATE), true, 10L, 9L, true);
   }
 
+  @Test
+  void testBatchIsChargedAsOneRequestOrPerItem() {
+    // given
+    final Environment environment = mock(Environment.class);
+    when(environment.getProperty(GLOBAL_ENABLED)).thenReturn("true");
+    when(environment.getProperty(GLOBAL_RPM)).thenReturn("100");
+    when(environment.getProperty(BATCH_WEIGHTED)).thenReturn("false");
+    final RateLimitService rateLimitService = new RateLimitService(environment);
+
+    // batch is charged as one request
+    assertRateLimitStat(
+        rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, 10), true, 100L, 99L, true);
+
+    // batch is charged per item
+    when(environment.getProperty(BATCH_WEIGHTED)).thenReturn("true");
+    assertRateLimitStat(
+        rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, 10), true, 100L, 89L, true);
+
+    // batch larger than available is not consumed
+    assertRateLimitStat(
+        rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, 90), false, 100L, 89L, false);
+  }
+
   private static void changeProperty(
       final Environment environment,
       final RateLimitService rateLimitService,
@@ -0,0 +1,110 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link TimeOrderedIdProvider}. */
+class TimeOrderedIdProviderTest {
+
+  private final TimeOrderedIdProvider idProvider = new TimeOrderedIdProvider(Clock.systemUTC());
+
+  @Test
+  void testIdsAreCanonicalVersion7Uuids() {
+    final String id = idProvider.get();
+    final UUID uuid = UUID.fromString(id);
+    assertThat(uuid.toString(), equalTo(id));
+    assertThat(uuid.version(), equalTo(7));
+    assertThat(uuid.variant(), equalTo(2));
+  }
+
+  @Test
+  void testIdsOfOneThreadAreOrdered() {
+    UUID previous = UUID.fromString(idProvider.get());
+    for (int i = 0; i < 10_000; i++) {
+      final UUID next = UUID.fromString(idProvider.get());
+      assertThat(
+          Long.compareUnsigned(previous.getMostSignificantBits(), next.getMostSignificantBits()),
+          lessThan(1));
+      assertThat(
+          Long.compareUnsigned(previous.getLeastSignificantBits(), next.getLeastSignificantBits()),
+          lessThan(0));
+      previous = next;
+    }
+  }
+
+  @Test
+  void testIdsOfParallelThreadsAreUnique() throws Exception {
+    final int threads = 4;
+    final int ids = 50_000;
+    final Set<String> generated = ConcurrentHashMap.newKeySet();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < ids; i++) {
+                    generated.add(idProvider.get());
+                  }
+                }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(generated.size(), equalTo(threads * ids));
+  }
+
+  @Test
+  void testGeneratorIdsDoNotWrap() throws Exception {
+    // given
+    final TimeOrderedIdProvider lastGenerator =
+        new TimeOrderedIdProvider(Clock.systemUTC(), (1L << 22) - 1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // when
+      final String lastId = lastGenerator.get();
+      // then
+      assertThat(
+          UUID.fromString(lastId).getLeastSignificantBits() >>> 40 & ((1L << 22) - 1),
+          equalTo((1L << 22) - 1));
+      final Future<String> nextThreadId = executor.submit(lastGenerator::get);
+      final ExecutionException e = assertThrows(ExecutionException.class, nextThreadId::get);
+      assertThat(e.getCause() instanceof IllegalStateException, equalTo(true));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static com.adorogush.mirotask.WidgetUtil.randomWidget;
+import static java.util.stream.Collectors.joining;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import com.adorogush.mirotask.exception.ServiceUnavailableException;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetEvent;
+import com.adorogush.mirotask.model.ZIndexShift;
+import com.adorogush.mirotask.repository.WidgetRepository.CommitListener;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/** Tests for {@link WidgetEventService}. */
+class WidgetEventServiceTest {
+
+  private static final int BUFFER_SIZE = 4;
+  private static final long INSTANCE = 0xabc;
+  private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+  private final WidgetEventService widgetEventService =
+      new WidgetEventService(
+          mock(RateLimitService.class), objectMapper, BUFFER_SIZE, 3, 1000, 60_000, 2);
+  private final CommitListener listener = widgetEventService.listener(INSTANCE);
+
+  @AfterEach
+  void afterEach() {
+    widgetEventService.close();
+  }
+
+  @Test
+  void testCommittedEventsAreSentInOrderWithVersionIds() throws InterruptedException {
+    // given
+    final CapturingEmitter emitter = new CapturingEmitter(null);
+    widgetEventService.subscribe(emitter);
+    final Widget widget = randomWidget(1);
+    // when
+    listener.committed(1, List.of(WidgetEvent.created(widget)));
+    listener.committed(
+        2, List.of(WidgetEvent.shifted(ZIndexShift.from(1, 1)), WidgetEvent.updated(widget)));
+    listener.committed(3, List.of(WidgetEvent.deleted(widget.id())));
+    // then
+    assertThat(
+        emitter.next(),
+        startsWith("id:abc-1\nevent:created\ndata:{\"type\":\"created\",\"widget\":{"));
+    assertThat(emitter.next(), equalTo(shiftedFrame(2, 1)));
+    assertThat(emitter.next(), startsWith("id:abc-2\nevent:updated\n"));
+    assertThat(
+        emitter.next(),
+        equalTo(
+            "id:abc-3\nevent:deleted\ndata:{\"type\":\"deleted\",\"id\":\""
+                + widget.id()
+                + "\"}\n\n"));
+  }
+
+  @Test
+  void testSlowSubscriberIsDroppedWithoutBlockingPublisher() throws InterruptedException {
+    // given
+    final CountDownLatch release = new CountDownLatch(1);
+    final CapturingEmitter slowEmitter = new CapturingEmitter(release);
+    final CapturingEmitter emitter = new CapturingEmitter(null);
+    widgetEventService.subscribe(slowEmitter);
+    widgetEventService.subscribe(emitter);
+    // when
+    // then
+    for (int version = 1; version <= BUFFER_SIZE + 2; version++) {
+      listener.committed(version, List.of(WidgetEvent.shifted(ZIndexShift.from(version, 1))));
+      assertThat(emitter.next(), equalTo(shiftedFrame(version, version)));
+    }
+    assertThat(widgetEventService.subscribers(), equalTo(1));
+    release.countDown();
+    assertThat(slowEmitter.sent.size(), lessThanOrEqualTo(1));
+  }
+
+  @Test
+  void testBlockedSendsDoNotHoldUpOtherSubscribers() throws InterruptedException {
+    // given
+    final WidgetEventService widgetEventService =
+        new WidgetEventService(
+            mock(RateLimitService.class), objectMapper, BUFFER_SIZE, 3, 1000, 100, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CapturingEmitter emitter = new CapturingEmitter(null);
+    try {
+      widgetEventService.subscribe(new CapturingEmitter(release));
+      widgetEventService.subscribe(new CapturingEmitter(release));
+      widgetEventService.subscribe(emitter);
+      // when
+      widgetEventService
+          .listener(INSTANCE)
+          .committed(1, List.of(WidgetEvent.shifted(ZIndexShift.from(1, 1))));
+      // then
+      assertThat(emitter.next(), equalTo(shiftedFrame(1, 1)));
+      for (int i = 0; i < 50 && widgetEventService.subscribers() > 1; i++) {
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+      assertThat(widgetEventService.subscribers(), equalTo(1));
+      assertThat(widgetEventService.compensatedThreads(), equalTo(2));
+      release.countDown();
+      for (int i = 0; i < 50 && widgetEventService.compensatedThreads() > 0; i++) {
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+      assertThat(widgetEventService.compensatedThreads(), equalTo(0));
+    } finally {
+      release.countDown();
+      widgetEventService.close();
+    }
+  }
+
+  @Test
+  void testSubscribeThrowsWhenTooManySubscribers() {
+    // given
+    widgetEventService.subscribe();
+    widgetEventService.subscribe();
+    widgetEventService.subscribe();
+    // then
+    assertThrows(ServiceUnavailableException.class, widgetEventService::subscribe);
+  }
+
+  @Test
+  void testSubscribersAreLimitedAcrossBoards() {
+    // given
+    final WidgetEventService boardEventService = widgetEventService.forBoard();
+    widgetEventService.subscribe();
+    widgetEventService.subscribe();
+    boardEventService.subscribe();
+    // when
+    // then
+    assertThrows(ServiceUnavailableException.class, boardEventService::subscribe);
+    assertThrows(ServiceUnavailableException.class, widgetEventService::subscribe);
+    boardEventService.completeSubscribers();
+    widgetEventService.subscribe();
+  }
+
+  private static String shiftedFrame(final long version, final int fromZ) {
+    return "id:abc-"
+        + Long.toHexString(version)
+        + "\nevent:shifted\ndata:{\"type\":\"shifted\",\"fromZ\":"
+        + fromZ
+        + ",\"toZ\":2147483647,\"by\":1}\n\n";
+  }
+
+  /** Emitter keeping the sent events, optionally waiting for the latch before every send. */
+  private static final class CapturingEmitter extends SseEmitter {
+
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private final CountDownLatch release;
+
+    private CapturingEmitter(final CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void send(final SseEventBuilder builder) {
+      sent.add(builder.build().stream().map(data -> data.getData().toString()).collect(joining()));
+      if (release != null) {
+        try {
+          release.await();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    private String next() throws InterruptedException {
+      return sent.poll(5, TimeUnit.SECONDS);
+    }
+  }
+}
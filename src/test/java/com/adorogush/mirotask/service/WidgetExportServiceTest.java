@@ -0,0 +1,70 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link WidgetExportService}. */
+class WidgetExportServiceTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+  private final WidgetRepository repository = mock(WidgetRepository.class);
+  private final RateLimitService rateLimitService = mock(RateLimitService.class);
+  private final WidgetExportService widgetExportService =
+      new WidgetExportService(repository, rateLimitService, objectMapper);
+
+  @Test
+  void testExportWritesWidgetPerLine() throws IOException {
+    // given
+    final Instant lastModified = Instant.parse("2020-09-01T10:15:30Z");
+    doAnswer(
+            invocation -> {
+              final Consumer<Widget> consumer = invocation.getArgument(0);
+              consumer.accept(new Widget("a", 1, 2, 3, 4, 5, lastModified));
+              consumer.accept(new Widget("b", 6, 7, 8, 9, 10, lastModified));
+              return null;
+            })
+        .when(repository)
+        .exportAll(any());
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    // when
+    widgetExportService.writeAll(outputStream);
+    // then
+    final String[] lines = outputStream.toString(UTF_8).split("\n", -1);
+    assertThat(lines.length, equalTo(3));
+    assertThat(lines[2], equalTo(""));
+    assertThat(
+        objectMapper.readValue(lines[0], Widget.class),
+        equalTo(new Widget("a", 1, 2, 3, 4, 5, lastModified)));
+    assertThat(
+        objectMapper.readValue(lines[1], Widget.class),
+        equalTo(new Widget("b", 6, 7, 8, 9, 10, lastModified)));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+* Copyright 2020 Aleksandr Dorogush
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.adorogush.mirotask.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.adorogush.mirotask.exception.TooManyRequestsException;
+import com.adorogush.mirotask.exception.ValidationException;
+import com.adorogush.mirotask.model.RateLimitOperation;
+import com.adorogush.mirotask.model.RateLimitStat;
+import com.adorogush.mirotask.model.WidgetToCreate;
+import com.adorogush.mirotask.repository.WidgetRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link WidgetImportService}. */
+class WidgetImportServiceTest {
+
+  private final WidgetRepository repository = mock(WidgetRepository.class);
+  private final RateLimitService rateLimitService = mock(RateLimitService.class);
+  private final WidgetImportService widgetImportService =
+      new WidgetImportService(repository, rateLimitService, new ObjectMapper(), 2);
+  private final List<List<WidgetToCreate>> batches = new ArrayList<>();
+
+  @BeforeEach
+  void beforeEach() {
+    when(rateLimitService.tryConsume(RateLimitOperation.CREATE)).thenReturn(Optional.empty());
+    when(repository.createMany(any()))
+        .thenAnswer(
+            invocation -> {
+              final List<WidgetToCreate> batch = invocation.getArgument(0);
+              batches.add(new ArrayList<>(batch));
+              return Collections.nCopies(batch.size(), null);
+            });
+  }
+
+  @Test
+  void testImportCreatesWidgetsInBatches() {
+    // given
+    final InputStream ndjson =
+        ndjson(
+            "{\"x\": 1, \"y\": 1, \"width\": 1, \"height\": 1}",
+            "{\"x\": 2, \"y\": 2, \"z\": 5, \"width\": 2, \"height\": 2}",
+            "",
+            "{\"x\": 3, \"y\": 3, \"width\": 3, \"height\": 3}");
+    // when
+    final long imported = widgetImportService.importAll(ndjson).model().imported();
+    // then
+    assertThat(imported, equalTo(3L));
+    assertThat(
+        batches,
+        equalTo(
+            List.of(
+                List.of(
+                    new WidgetToCreate(1, 1, null, 1, 1), new WidgetToCreate(2, 2, 5, 2, 2)),
+                List.of(new WidgetToCreate(3, 3, null, 3, 3)))));
+  }
+
+  @Test
+  void testInvalidWidgetStopsImport() {
+    // given
+    final InputStream ndjson =
+        ndjson(
+            "{\"x\": 1, \"y\": 1, \"width\": 1, \"height\": 1}",
+            "{\"x\": 2, \"y\": 2, \"width\": 2}",
+            "{\"x\": 3, \"y\": 3, \"width\": 3, \"height\": 3}");
+    // when
+    final ValidationException e =
+        assertThrows(ValidationException.class, () -> widgetImportService.importAll(ndjson));
+    // then
+    assertThat(
+        e.getReason(),
+        equalTo(
+            "Invalid widget at line 2, 1 widgets before it are imported:"
+                + " Field height cannot be empty."));
+    assertThat(batches, equalTo(List.of(List.of(new WidgetToCreate(1, 1, null, 1, 1)))));
+  }
+
+  @Test
+  void testEveryBatchIsCharged() {
+    // given
+    when(rateLimitService.tryConsumeBatch(eq(RateLimitOperation.CREATE), anyInt()))
+        .thenReturn(Optional.of(new RateLimitStat(true, 1000, 998, 0)))
+        .thenReturn(Optional.of(new RateLimitStat(false, 1000, 0, 9999)));
+    final InputStream ndjson =
+        ndjson(
+            "{\"x\": 1, \"y\": 1, \"width\": 1, \"height\": 1}",
+            "{\"x\": 2, \"y\": 2, \"width\": 2, \"height\": 2}",
+            "{\"x\": 3, \"y\": 3, \"width\": 3, \"height\": 3}");
+    // when
+    assertThrows(TooManyRequestsException.class, () -> widgetImportService.importAll(ndjson));
+    // then
+    verify(rateLimitService).tryConsumeBatch(RateLimitOperation.CREATE, 2);
+    verify(rateLimitService).tryConsumeBatch(RateLimitOperation.CREATE, 1);
+    verify(rateLimitService, never()).tryConsume(RateLimitOperation.CREATE);
+    assertThat(batches.size(), equalTo(1));
+  }
+
+  private static InputStream ndjson(final String... lines) {
+    return new ByteArrayInputStream(String.join("\n", lines).getBytes(UTF_8));
+  }
+}
@@ -15,21 +15,51 @@
 */
 package com.adorogush.mirotask.service;
 
+import static com.adorogush.mirotask.WidgetUtil.randomWidget;
 import static com.adorogush.mirotask.WidgetUtil.randomWidgetToCreate;
 import static com.adorogush.mirotask.WidgetUtil.widgetToUpdate;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.adorogush.mirotask.exception.GoneException;
 import com.adorogush.mirotask.exception.NotFoundException;
 import com.adorogush.mirotask.exception.TooManyRequestsException;
+import com.adorogush.mirotask.exception.ValidationException;
 import com.adorogush.mirotask.model.RateLimitOperation;
+import com.adorogush.mirotask.model.Page;
 import com.adorogush.mirotask.model.RateLimitStat;
+import com.adorogush.mirotask.model.ServiceResponse;
+import com.adorogush.mirotask.model.Widget;
+import com.adorogush.mirotask.model.WidgetChanges;
+import com.adorogush.mirotask.model.WidgetsToReorder;
+import com.adorogush.mirotask.model.ZIndexShift;
+import com.adorogush.mirotask.repository.Changes;
+import com.adorogush.mirotask.repository.CollectionBasedWidgetRepository;
+import com.adorogush.mirotask.repository.VersionedPage;
 import com.adorogush.mirotask.repository.WidgetRepository;
+import com.adorogush.mirotask.repository.WidgetRepository.CommitListener;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -38,11 +68,14 @@ class WidgetServiceTest {
 
   private final WidgetRepository repository = mock(WidgetRepository.class);
   private final RateLimitService rateLimitService = mock(RateLimitService.class);
-  private final WidgetService widgetService = new WidgetService(repository, rateLimitService);
+  private final WidgetEventService widgetEventService = mock(WidgetEventService.class);
+  private final PageTokenService pageTokenService = new PageTokenService(Clock.systemUTC(), 300);
+  private final WidgetService widgetService =
+      new WidgetService(repository, rateLimitService, pageTokenService, widgetEventService);
 
   @BeforeEach
   void beforeEach() {
-    reset(repository, rateLimitService);
+    reset(repository, rateLimitService, widgetEventService);
   }
 
   @Test
@@ -54,12 +87,22 @@ class WidgetServiceTest {
         TooManyRequestsException.class, () -> widgetService.createOne(randomWidgetToCreate(1)));
   }
 
+  @Test
+  void testCreateManyThrowsTooManyRequestsException() {
+    // given
+    when(rateLimitService.tryConsumeBatch(RateLimitOperation.CREATE, 2))
+        .thenReturn(Optional.of(new RateLimitStat(false, 1000, 0, 9999)));
+    assertThrows(
+        TooManyRequestsException.class,
+        () -> widgetService.createMany(List.of(randomWidgetToCreate(1), randomWidgetToCreate(1))));
+  }
+
   @Test
   void testReadOneThrowsTooManyRequestsException() {
     // given
     when(rateLimitService.tryConsume(RateLimitOperation.READ_ONE))
         .thenReturn(Optional.of(new RateLimitStat(false, 1000, 0, 9999)));
-    assertThrows(TooManyRequestsException.class, () -> widgetService.readOne("1"));
+    assertThrows(TooManyRequestsException.class, () -> widgetService.readOne("1", null));
   }
 
   @Test
@@ -68,7 +111,7 @@ class WidgetServiceTest {
     when(rateLimitService.tryConsume(RateLimitOperation.READ_ONE))
         .thenReturn(Optional.of(new RateLimitStat(true, 1000, 0, 9999)));
     when(repository.readOne("1")).thenReturn(Optional.empty());
-    assertThrows(NotFoundException.class, () -> widgetService.readOne("1"));
+    assertThrows(NotFoundException.class, () -> widgetService.readOne("1", null));
   }
 
   @Test
@@ -76,7 +119,278 @@ class WidgetServiceTest {
     // given
     when(rateLimitService.tryConsume(RateLimitOperation.READ_ALL))
         .thenReturn(Optional.of(new RateLimitStat(false, 1000, 0, 9999)));
-    assertThrows(TooManyRequestsException.class, () -> widgetService.readAll(1, null));
+    assertThrows(TooManyRequestsException.class, () -> widgetService.readAll(1, null, null));
+  }
+
+  @Test
+  void testReadAllNotModifiedDoesNotRead() {
+    // given
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(randomWidget(1)), 7L));
+    final ServiceResponse<Page<Widget>> firstResponse = widgetService.readAll(10, null, null);
+    reset(repository);
+    when(repository.version()).thenReturn(7L);
+    // when
+    final ServiceResponse<Page<Widget>> response =
+        widgetService.readAll(10, null, firstResponse.entityTag().toString());
+    // then
+    assertThat(response.notModified(), equalTo(true));
+    assertThat(response.model(), nullValue());
+    assertThat(response.entityTag(), equalTo(firstResponse.entityTag()));
+    verify(repository, never()).readVersioned(anyInt(), any(), any());
+  }
+
+  @Test
+  void testReadAllModifiedReads() {
+    // given
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(randomWidget(1)), 7L));
+    final ServiceResponse<Page<Widget>> firstResponse = widgetService.readAll(10, null, null);
+    when(repository.version()).thenReturn(8L);
+    // when
+    final ServiceResponse<Page<Widget>> response =
+        widgetService.readAll(10, null, firstResponse.entityTag().toString());
+    // then
+    assertThat(response.notModified(), equalTo(false));
+    assertThat(response.model().elements().size(), equalTo(1));
+  }
+
+  @Test
+  void testReadAllReadsOnlyFirstPage() {
+    // given
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(
+            new VersionedPage(List.of(randomWidget(1), randomWidget(2), randomWidget(3)), 7L));
+    // when
+    final Page<Widget> page = widgetService.readAll(2, null, null).model();
+    // then
+    assertThat(page.elements().size(), equalTo(2));
+    assertThat(page.nextPageToken() != null, equalTo(true));
+    verify(repository).readVersioned(3, null, null);
+  }
+
+  @Test
+  void testReadPageResumesAfterLastWidgetAtTokenVersion() {
+    // given
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(
+            new VersionedPage(List.of(randomWidget(1), randomWidget(2), randomWidget(3)), 7L));
+    final String pageToken = widgetService.readAll(2, null, null).model().nextPageToken();
+    when(repository.readVersionedAfter(anyInt(), anyInt(), anyLong(), any()))
+        .thenReturn(Optional.of(new VersionedPage(List.of(randomWidget(4)), 9L)));
+    // when
+    final Page<Widget> page = widgetService.readPage(2, pageToken).model();
+    // then
+    assertThat(page.elements().size(), equalTo(1));
+    assertThat(page.nextPageToken(), nullValue());
+    verify(repository).readVersionedAfter(3, 2, 7L, null);
+  }
+
+  @Test
+  void testReadPageThrowsGoneExceptionWhenChangesAreUnknown() {
+    // given
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(randomWidget(1), randomWidget(2)), 7L));
+    final String pageToken = widgetService.readAll(1, null, null).model().nextPageToken();
+    when(repository.readVersionedAfter(anyInt(), anyInt(), anyLong(), any()))
+        .thenReturn(Optional.empty());
+    // then
+    assertThrows(GoneException.class, () -> widgetService.readPage(1, pageToken));
+  }
+
+  @Test
+  void testReadPageThrowsGoneExceptionForOtherStart() {
+    // given
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(randomWidget(1), randomWidget(2)), 7L));
+    final String pageToken =
+        new WidgetService(repository, rateLimitService, pageTokenService, widgetEventService)
+            .readAll(1, null, null)
+            .model()
+            .nextPageToken();
+    when(repository.readVersionedAfter(anyInt(), anyInt(), anyLong(), any()))
+        .thenReturn(Optional.of(new VersionedPage(List.of(randomWidget(2)), 7L)));
+    // then
+    assertThrows(GoneException.class, () -> widgetService.readPage(1, pageToken));
+  }
+
+  @Test
+  void testReadPageThrowsValidationExceptionForOtherBoard() {
+    // given
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(randomWidget(1), randomWidget(2)), 7L));
+    final String pageToken =
+        new WidgetService(
+                repository,
+                rateLimitService,
+                pageTokenService,
+                widgetEventService,
+                "board-a")
+            .readAll(1, null, null)
+            .model()
+            .nextPageToken();
+    // when
+    // then
+    assertThrows(ValidationException.class, () -> widgetService.readPage(1, pageToken));
+  }
+
+  @Test
+  void testPagesReturnEveryUnmodifiedWidgetOnceWhileShifted() {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    final WidgetService widgetService =
+        new WidgetService(
+            new CollectionBasedWidgetRepository(
+                () -> String.valueOf(ids.incrementAndGet()), Clock.systemUTC()),
+            rateLimitService,
+            new PageTokenService(Clock.systemUTC(), 300),
+            widgetEventService);
+    for (int z = 0; z < 10; z++) {
+      widgetService.createOne(randomWidgetToCreate(z * 2));
+    }
+    // when
+    final List<String> read = new ArrayList<>();
+    Page<Widget> page = widgetService.readAll(3, null, null).model();
+    while (true) {
+      page.elements().forEach(widget -> read.add(widget.id()));
+      if (page.nextPageToken() == null) {
+        break;
+      }
+      // shifts all widgets, the read ones included
+      widgetService.createOne(randomWidgetToCreate(0));
+      widgetService.createOne(randomWidgetToCreate(0));
+      page = widgetService.readPage(3, page.nextPageToken()).model();
+    }
+    // then
+    assertThat(
+        read.stream().filter(id -> Integer.parseInt(id) <= 10).collect(toList()),
+        equalTo(List.of("1", "2", "3", "4", "5", "6", "7", "8", "9", "10")));
+  }
+
+  @Test
+  void testPagesReturnEveryUnmodifiedWidgetOnceWhileShiftedConcurrently() throws Exception {
+    // given
+    final AtomicInteger ids = new AtomicInteger();
+    final WidgetService widgetService =
+        new WidgetService(
+            new CollectionBasedWidgetRepository(
+                () -> String.valueOf(ids.incrementAndGet()), Clock.systemUTC()),
+            rateLimitService,
+            new PageTokenService(Clock.systemUTC(), 300),
+            widgetEventService);
+    final List<String> created = new ArrayList<>();
+    for (int z = 0; z < 1_000; z++) {
+      created.add(widgetService.createOne(randomWidgetToCreate(z)).model().id());
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<String> read = new ArrayList<>();
+    try {
+      // when
+      final Future<?> scan =
+          executor.submit(
+              () -> {
+                start.await();
+                Page<Widget> page = widgetService.readAll(7, null, null).model();
+                while (true) {
+                  page.elements().forEach(widget -> read.add(widget.id()));
+                  if (page.nextPageToken() == null) {
+                    return null;
+                  }
+                  page = widgetService.readPage(7, page.nextPageToken()).model();
+                }
+              });
+      final Future<?> shifts =
+          executor.submit(
+              () -> {
+                start.await();
+                // every insert at the bottom shifts all widgets, the read ones included
+                while (!scan.isDone()) {
+                  widgetService.createOne(randomWidgetToCreate(0));
+                }
+                return null;
+              });
+      start.countDown();
+      scan.get();
+      shifts.get();
+    } finally {
+      executor.shutdown();
+    }
+    // then
+    final Set<String> createdIds = Set.copyOf(created);
+    assertThat(read.stream().filter(createdIds::contains).collect(toList()), equalTo(created));
+  }
+
+  @Test
+  void testReadOneNotModified() {
+    // given
+    final Widget widget = randomWidget(1);
+    when(repository.readOne(widget.id())).thenReturn(Optional.of(widget));
+    final ServiceResponse<Widget> firstResponse = widgetService.readOne(widget.id(), null);
+    // when
+    final ServiceResponse<Widget> response =
+        widgetService.readOne(widget.id(), "W/" + firstResponse.entityTag());
+    // then
+    assertThat(firstResponse.model(), equalTo(widget));
+    assertThat(response.notModified(), equalTo(true));
+    assertThat(response.model(), nullValue());
+  }
+
+  @Test
+  void testReadChangesReturnsUpsertsAndTombstones() {
+    // given
+    final Widget top = randomWidget("1", 5);
+    final Widget bottom = randomWidget("2", 1);
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(), 7L));
+    final String since = widgetService.readAll(10, null, null).entityTag().toString();
+    when(repository.version()).thenReturn(9L);
+    final List<ZIndexShift> shifts = List.of(ZIndexShift.from(3, 1));
+    when(repository.changedSince(7L))
+        .thenReturn(Optional.of(new Changes(Set.of("1", "2", "3"), shifts)));
+    when(repository.readOne("1")).thenReturn(Optional.of(top));
+    when(repository.readOne("2")).thenReturn(Optional.of(bottom));
+    when(repository.readOne("3")).thenReturn(Optional.empty());
+    // when
+    final WidgetChanges changes = widgetService.readChanges(since).model();
+    // then
+    assertThat(changes.shifts(), equalTo(shifts));
+    assertThat(changes.upserts(), equalTo(List.of(bottom, top)));
+    assertThat(changes.tombstones(), equalTo(List.of("3")));
+    // the next changes are read since the version of these
+    when(repository.changedSince(9L))
+        .thenReturn(Optional.of(new Changes(Set.of(), List.of())));
+    assertThat(widgetService.readChanges(changes.version()).model().upserts(), equalTo(List.of()));
+  }
+
+  @Test
+  void testReadChangesThrowsGoneExceptionIfEvicted() {
+    // given
+    when(repository.version()).thenReturn(7L);
+    when(repository.readVersioned(anyInt(), any(), any()))
+        .thenReturn(new VersionedPage(List.of(), 7L));
+    final String since = widgetService.readAll(10, null, null).entityTag().toString();
+    when(repository.changedSince(7L)).thenReturn(Optional.empty());
+    // when
+    assertThrows(GoneException.class, () -> widgetService.readChanges(since));
+    // then
+    verify(repository, never()).readOne(any());
+  }
+
+  @Test
+  void testReadChangesThrowsGoneExceptionIfOfAnotherStart() {
+    assertThrows(GoneException.class, () -> widgetService.readChanges("\"0-7\""));
+  }
+
+  @Test
+  void testReadChangesThrowsValidationException() {
+    assertThrows(ValidationException.class, () -> widgetService.readChanges("7"));
+    assertThrows(ValidationException.class, () -> widgetService.readChanges("x-7"));
   }
 
   @Test
@@ -99,6 +413,31 @@ class WidgetServiceTest {
         NotFoundException.class, () -> widgetService.updateOne("1", widgetToUpdate(null, 1)));
   }
 
+  @Test
+  void testListensToRepository() {
+    // given
+    final CommitListener listener = (version, events) -> {};
+    when(widgetEventService.listener(anyLong())).thenReturn(listener);
+    // when
+    new WidgetService(
+        repository,
+        rateLimitService,
+        new PageTokenService(Clock.systemUTC(), 300),
+        widgetEventService);
+    // then
+    verify(repository).listen(listener);
+  }
+
+  @Test
+  void testReorderThrowsNotFoundException() {
+    // given
+    when(rateLimitService.tryConsumeBatch(RateLimitOperation.UPDATE, 2))
+        .thenReturn(Optional.of(new RateLimitStat(true, 1000, 0, 9999)));
+    final WidgetsToReorder widgetsToReorder = WidgetsToReorder.toZ(List.of("1", "2"), 0);
+    when(repository.reorder(widgetsToReorder)).thenReturn(Optional.empty());
+    assertThrows(NotFoundException.class, () -> widgetService.reorder(widgetsToReorder));
+  }
+
   @Test
   void testDeleteThrowsTooManyRequestsException() {
     // given